@@ -34,6 +34,8 @@ public class Diachromatic implements Callable<Integer>  {
                 .addSubcommand("truncate", new TruncateCommand())
                 .addSubcommand("align", new AlignCommand())
                 .addSubcommand("count", new CountCommand())
+                .addSubcommand("digest", new DigestCommand())
+                .addSubcommand("digest-index", new DigestIndexCommand())
                 .addSubcommand("summarize", new SummarizeCommand());
         cline.setToggleBooleanFlags(false);
         int exitCode = cline.execute(args);
@@ -5,15 +5,23 @@ import htsjdk.samtools.util.Log;
 
 import org.jax.diachromatic.Diachromatic;
 import org.jax.diachromatic.exception.DiachromaticException;
+import org.jax.diachromatic.util.BAMIndexBuilder;
+import org.jax.diachromatic.util.ParallelBAMFileWriter;
+import org.jax.diachromatic.util.SortingBAMFileWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * This class takes as input two SAM files that have been created by {@code bowtie2} from the truncated FASTQ files
- * produced by {@link org.jax.diachromatic.command.TruncateCommand}. Its purpose is to rejoin the pairs of reads that
+ * This class takes as input two SAM files (or the SAM output streams of two running {@code bowtie2} processes) that
+ * have been created by {@code bowtie2} from the truncated FASTQ files produced by
+ * {@link org.jax.diachromatic.command.TruncateCommand}. Its purpose is to rejoin the pairs of reads that
  * correspond to the chimeric fragments in the input files and to perform Q/C and filtering on the reads to remove
  * characteristic Hi-C artifacts.
  *
@@ -34,108 +42,54 @@ public class Aligner {
     private static String VERSION = "0.0";
 
     /**
-     * Total number of truncated read pairs that passed to Diachromatic with the subcommand align.
+     * Counts of the processed read pairs.
      */
-    private int n_total_input_read_pairs = 0;
+    private final AlignmentCounts counts = new AlignmentCounts();
 
     /**
-     * Numbers of unmapped forward and reverse reads (SAM flag==4 for unmapped). Note: SAM flag is also 4 for the
-     * reverse read, because the reads are mapped independently as single-end reads.
-     */
-    private int n_unmapped_R1 = 0;
-    private int n_unmapped_R2 = 0;
-
-    /**
-     * Number of read pairs for which at least one read is unmapped.
-     */
-    private int  n_unmappedPair = 0;
-
-    /**
-     * Numbers of forward and reverse reads that were multi-mapped (had an XS tag).
-     */
-    private int n_multimapped_R1 = 0;
-    private int n_multimapped_R2 = 0;
-
-    /**
-     * Number of read pairs for which at least one read is multi-mapped.
-     */
-    private int n_multimappedPair = 0;
-
-    /**
-     * Number of paired pairs, i.e. read pairs for which both reads can be mapped uniquely.
-     */
-    private int n_paired = 0;
-
-    /**
-     * Number of unique paired pairs, i.e. same as 'n_paired' but after removal of duplicates.
+     * Lower and upper bounds for sizes of chimeric fragments. Are passed as arguments to the constructor of {@link ReadPair}
+     * and compared to the calculated insert size in order to categorize given read pairs as 'too short' or 'too long'.
      */
-    private int n_paired_unique = 0;
+    private Integer lowerFragSize;
+    private Integer upperFragSize;
 
     /**
-     * Number of duplicated read pairs that were removed.
+     * If true, multi-mapped reads are defined as those for which a score of a second best hit is reported by bowtie2,
+     * i.e. the corresponding SAM record has an XS attribute.
+     *
+     * If false, a less stringent criterion for uniqueness is used. Reads for which the XS attribute is reported are
+     * still categorized as unique, if they have a MAPQ of at least 30 and the difference between AS and XS at least 10.
      */
-    private int n_paired_duplicated = 0;
+    private boolean useStringentUniqueSettings;
 
-    /**
-     * Count variables for disjoint read pair categories (see documentation on read the docs).
-     */
-    private int n_paired_unique_un_ligated = 0;
-    private int n_paired_unique_un_ligated_same_internal = 0;
-    private int n_paired_unique_self_ligated = 0;
-    private int n_paired_unique_self_ligated_same_internal = 0;
-    private int n_paired_unique_too_short = 0;
-    private int n_paired_unique_too_long = 0;
-    private int n_paired_unique_valid = 0;
-    private int n_paired_strange_internal = 0;
+    private boolean useRelativeOrientationForDuplicateRemoval = false;
 
     /**
-     * Number trans read pairs, i.e. the two reads of a given pair map to different chromosomes. Trans read pairs are
-     * counted after removal of duplicates only. Trans read pairs cannot be un-ligated or self-ligated by definition.
+     * Memory budget in bytes for duplicate removal with {@link ExternalDeDup}, or 0 if the unique read pairs are
+     * kept in memory by {@link DeDupMap}. See {@link #setExternalDuplicateRemoval(long, File)}.
      */
-    private int n_paired_unique_trans = 0;
+    private long externalDeDupMemory = 0;
 
     /**
-     * Number of dangling end read pairs. A read pairs is categorized as dangling end pair if the 5' end position of at
-     * least one of the two reads occurs at a distance of at most DANGLING_THRESHOLD = 7 from the next restriction
-     * enzyme cutting site. Dangling end read pairs are counted after removal of duplicates only. Dangling end read
-     * pairs may occur in all read pair categories.
+     * Number of threads (shards) for pairing, duplicate removal and categorization, see {@link #setShardNum(int)}.
      */
-    private int n_paired_unique_dangling = 0;
+    private int shardNum = 1;
 
     /**
-     * Additional experimental count variable for more detailed characterization and sanity checks.
+     * Number of SAM record pairs that are distributed to the shards at once.
      */
-    private int n_paired_unique_un_ligated_dangling = 0;
-    private int n_paired_unique_self_ligated_dangling = 0;
-    private int n_paired_unique_too_short_dangling = 0;
-    private int n_paired_unique_too_long_dangling = 0;
-    private int n_paired_unique_valid_dangling = 0;
-    private int n_paired_strange_internal_dangling = 0;
-
-    private int n_paired_unique_un_ligated_trans = 0; // should never be incremented
-    private int n_paired_unique_self_ligated_trans = 0; // should never be incremented
-    private int n_paired_unique_too_short_trans = 0;
-    private int n_paired_unique_too_long_trans = 0;
-    private int n_paired_unique_valid_trans = 0;
-    private int n_paired_strange_internal_trans = 0;
+    private static final int SHARD_BATCH_SIZE = 4096;
 
     /**
-     * Lower and upper bounds for sizes of chimeric fragments. Are passed as arguments to the constructor of {@link ReadPair}
-     * and compared to the calculated insert size in order to categorize given read pairs as 'too short' or 'too long'.
+     * Maximum number of batches per shard that are read before the oldest batch is written.
      */
-    private Integer lowerFragSize;
-    private Integer upperFragSize;
+    private static final int SHARD_BATCH_QUEUE_FACTOR = 4;
 
     /**
-     * If true, multi-mapped reads are defined as those for which a score of a second best hit is reported by bowtie2,
-     * i.e. the corresponding SAM record has an XS attribute.
-     *
-     * If false, a less stringent criterion for uniqueness is used. Reads for which the XS attribute is reported are
-     * still categorized as unique, if they have a MAPQ of at least 30 and the difference between AS and XS at least 10.
+     * Directory for the temporary files of {@link ExternalDeDup} and of the sorting of the valid pairs (null for the
+     * default temporary directory).
      */
-    private boolean useStringentUniqueSettings;
-
-    private boolean useRelativeOrientationForDuplicateRemoval = false;
+    private File tmpDir = null;
 
     /**
      * If true, rejected read pairs are summarize to an extra BAM file {@link #outputBAMrejected}.
@@ -146,7 +100,7 @@ public class Aligner {
      * Filenames (including path) for summarize BAM files and for text file containing statistics about the alignment and
      * filtering step.
      */
-    private String outputBAMvalid, outputBAMrejected, outputTxtStats, outputFragSizesCountsRscript;
+    private String outputBAMvalid, outputBAMrejected, outputTxtStats, outputFragSizesCountsRscript, outputPairs;
     private String filenamePrefix;
 
     /**
@@ -158,22 +112,15 @@ public class Aligner {
     /**
      * Largest calculated insert size represented in the distribution of fragment sizes.
      */
-    private static int FRAG_SIZE_LIMIT = 30000;
+    static final int FRAG_SIZE_LIMIT = 30000;
+
 
-    /**
-     * Arrays that represent size distributions.
-     */
-    private int[] fragSizesChimericPairs =  new int[FRAG_SIZE_LIMIT+1];
-    private int[] fragSizesActiveChimericPairs =  new int[FRAG_SIZE_LIMIT+1];
-    private int[] fragSizesUnLigatedPairs =  new int[FRAG_SIZE_LIMIT+1];
-    private int[] fragSizesSelfLigatedSameInternalPairs =  new int[FRAG_SIZE_LIMIT+1];
 
     /**
-     * HasMap for Trans/Cis ratio
+     * Alignment summaries of bowtie2 for R1 and R2, which are included in the stats file (null if not available).
      */
-    Map<String, Integer> cisCounts;
-    Map<String, Integer> transCounts;
-
+    private Bowtie2Summary bowtie2SummaryR1 = null;
+    private Bowtie2Summary bowtie2SummaryR2 = null;
 
     /**
      * HTS-JDK SAM reader objects for R1 and R2.
@@ -186,6 +133,33 @@ public class Aligner {
      */
     private SAMFileWriter validReadsWriter;
     private SAMFileWriter rejectedReadsWriter;
+    /** Writer for the valid read pairs in the 4DN pairs format (null if no pairs file is written). */
+    private PairsFileWriter pairsWriter = null;
+
+    /**
+     * Default compression level of the BAM files (the default of htsjdk).
+     */
+    public static final int DEFAULT_BAM_COMPRESSION_LEVEL = Defaults.COMPRESSION_LEVEL;
+
+    /**
+     * Number of threads that compress the BAM files (0 to compress them with the BAM writer of htsjdk in the
+     * thread that processes the read pairs), see {@link #setBamCompression(int, int, int)}.
+     */
+    private int bamThreadNum = 0;
+    private int bamCompressionLevel = DEFAULT_BAM_COMPRESSION_LEVEL;
+    /** Maximum number of BGZF blocks per BAM file that are compressed or waiting to be written (0 for the default). */
+    private int bamPendingBlocks = 0;
+    /** Nanoseconds spent in adding the read pairs to the BAM writers, including compression if it is not parallel. */
+    private long bamWriteNanos = 0;
+    /**
+     * Memory for the sorting of the valid pairs by coordinate (0 to write the valid pairs in input order), see
+     * {@link #setSortedValidPairs(long, boolean, File)}.
+     */
+    private long sortMemory = 0;
+    /** Format of the index of the sorted valid pairs (null to choose it based on the chromosome lengths). */
+    private BAMIndexBuilder.Format sortIndexFormat = null;
+    /** Memory for the sorting of the pairs file (0 to write no pairs file), see {@link #setPairsOutput(long, File)}. */
+    private long pairsMemory = 0;
 
     /**
      * Iterator over reads from R1 {@link #sam_reader_R1} and R2 {@link #sam_reader_R2}.
@@ -195,7 +169,8 @@ public class Aligner {
 
     /**
      * Path to the SAM file representing the forward (R1) and reverse (R2) read of a paired end experiment.
-     * The SAM files should have been processed with the truncate command of this package.
+     * The SAM files should have been processed with the truncate command of this package. Null if the SAM records
+     * are read from streams.
      */
     private String sam_path_R1;
     private String sam_path_R2;
@@ -216,10 +191,36 @@ public class Aligner {
     public Aligner(String sam1, String sam2, boolean outputRejected, String outputPathPrefix, DigestMap digestMap,
                    Integer lowerFragSize, Integer upperFragSize, Integer upperSelfLigationSize, String filenamePrefix,
                    boolean useStringentUniqueSettings) {
+        this(SamReaderFactory.makeDefault().open(new File(sam1)), SamReaderFactory.makeDefault().open(new File(sam2)),
+                outputRejected, outputPathPrefix, digestMap, lowerFragSize, upperFragSize, upperSelfLigationSize,
+                filenamePrefix, useStringentUniqueSettings);
         this.sam_path_R1 = sam1;
         this.sam_path_R2 = sam2;
-        this.sam_reader_R1 = SamReaderFactory.makeDefault().open(new File(sam_path_R1));
-        this.sam_reader_R2 = SamReaderFactory.makeDefault().open(new File(sam_path_R2));
+    }
+
+    /**
+     * Constructor for SAM records that are read from streams, e.g., directly from the standard output of two bowtie2
+     * processes (see {@link Bowtie2Runner#startStreaming()}), so that no temporary SAM files are needed. Note that
+     * the records of both streams are read alternately, i.e., both streams need to be produced concurrently.
+     *
+     * @param sam1 SAM records of the truncated R1 reads
+     * @param sam2 SAM records of the truncated R2 reads
+     * @see #Aligner(String, String, boolean, String, DigestMap, Integer, Integer, Integer, String, boolean)
+     */
+    public Aligner(InputStream sam1, InputStream sam2, boolean outputRejected, String outputPathPrefix, DigestMap digestMap,
+                   Integer lowerFragSize, Integer upperFragSize, Integer upperSelfLigationSize, String filenamePrefix,
+                   boolean useStringentUniqueSettings) {
+        this(SamReaderFactory.makeDefault().open(SamInputResource.of(sam1)),
+                SamReaderFactory.makeDefault().open(SamInputResource.of(sam2)),
+                outputRejected, outputPathPrefix, digestMap, lowerFragSize, upperFragSize, upperSelfLigationSize,
+                filenamePrefix, useStringentUniqueSettings);
+    }
+
+    private Aligner(SamReader reader1, SamReader reader2, boolean outputRejected, String outputPathPrefix, DigestMap digestMap,
+                   Integer lowerFragSize, Integer upperFragSize, Integer upperSelfLigationSize, String filenamePrefix,
+                   boolean useStringentUniqueSettings) {
+        this.sam_reader_R1 = reader1;
+        this.sam_reader_R2 = reader2;
         this.it1 = sam_reader_R1.iterator();
         this.it2 = sam_reader_R2.iterator();
         this.digestMap = digestMap;
@@ -230,10 +231,6 @@ public class Aligner {
         this.useStringentUniqueSettings = useStringentUniqueSettings;
         this.useRelativeOrientationForDuplicateRemoval = false;
         ReadPair.setLengthThresholds(lowerFragSize,upperFragSize,upperSelfLigationSize);
-        Arrays.fill(fragSizesChimericPairs, 0);
-        Arrays.fill(fragSizesActiveChimericPairs, 0);
-        Arrays.fill(fragSizesUnLigatedPairs, 0);
-        Arrays.fill(fragSizesSelfLigatedSameInternalPairs, 0);
 
 
 
@@ -241,6 +238,106 @@ public class Aligner {
         createOutputNames(outputPathPrefix);
     }
 
+    /**
+     * Set the alignment summaries of the bowtie2 runs for the forward and reverse reads, which are written to the
+     * stats file by {@link #printStatistics()}.
+     */
+    public void setBowtie2Summaries(Bowtie2Summary summaryR1, Bowtie2Summary summaryR2) {
+        this.bowtie2SummaryR1 = summaryR1;
+        this.bowtie2SummaryR2 = summaryR2;
+    }
+
+    /**
+     * Set how the BAM files for valid and rejected read pairs are compressed. With one or more threads, the BGZF blocks
+     * of both files are compressed by a shared thread pool while the read pairs are processed (see
+     * {@link ParallelBAMFileWriter}), and the throughput of the BAM output is logged.
+     *
+     * @param threadNum number of compression threads, or 0 to compress with the BAM writer of htsjdk
+     * @param compressionLevel deflate compression level (0-9)
+     * @param pendingBlocks maximum number of blocks per BAM file that are compressed or waiting to be written
+     *                      (about 128 kB each), or 0 for two blocks per thread
+     */
+    public void setBamCompression(int threadNum, int compressionLevel, int pendingBlocks) {
+        this.bamThreadNum = threadNum;
+        this.bamCompressionLevel = compressionLevel;
+        this.bamPendingBlocks = pendingBlocks;
+    }
+
+    /**
+     * Write the valid read pairs as a coordinate-sorted BAM file with an index (see {@link SortingBAMFileWriter}), so
+     * that they can be queried by region. The records are sorted with a bounded amount of memory by the threads of
+     * {@link #setBamCompression(int, int, int)} (at least one), which also compress the BAM file.
+     *
+     * @param memoryBudget approximate maximum number of bytes used for sorting
+     * @param csi if true, write a CSI index; otherwise, write a BAI index unless a chromosome is longer than 2^29
+     *            bases, which needs a CSI index
+     * @param tmpDir directory for the temporary files (null for the default temporary directory)
+     */
+    public void setSortedValidPairs(long memoryBudget, boolean csi, File tmpDir) {
+        this.sortMemory = memoryBudget;
+        this.sortIndexFormat = csi ? BAMIndexBuilder.Format.CSI : null;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Additionally write the valid read pairs as a block-sorted and indexed pairs file of the 4D Nucleome project
+     * (see {@link PairsFileWriter}), in the same pass as the BAM files. The pairs are sorted and compressed by the
+     * threads of {@link #setBamCompression(int, int, int)} (at least one).
+     *
+     * @param memoryBudget approximate maximum number of bytes used for sorting
+     * @param tmpDir directory for the temporary files (null for the default temporary directory)
+     */
+    public void setPairsOutput(long memoryBudget, File tmpDir) {
+        this.pairsMemory = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Use {@link ExternalDeDup} instead of {@link DeDupMap} for duplicate removal, so that the memory needed for
+     * duplicate removal is bounded by the given budget instead of growing with the number of unique read pairs. This
+     * needs an additional pass over the SAM files and therefore cannot be used if the SAM records are read from streams.
+     *
+     * @param memoryBudget approximate maximum number of bytes used for duplicate removal
+     * @param tmpDir directory for the temporary files (null for the default temporary directory)
+     */
+    public void setExternalDuplicateRemoval(long memoryBudget, File tmpDir) {
+        this.externalDeDupMemory = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * First pass over the SAM files for {@link ExternalDeDup}: pass the records of all paired read pairs to
+     * {@link ExternalDeDup#add(SAMRecord, SAMRecord)} and determine the duplicates. No {@link ReadPair} is created,
+     * as only the coordinates of the reads are needed.
+     */
+    private ExternalDeDup findDuplicatesExternally() throws IOException, DiachromaticException {
+        if (sam_path_R1 == null) {
+            throw new DiachromaticException("External duplicate removal needs SAM files and cannot be used with streamed SAM records");
+        }
+        ExternalDeDup dedup = new ExternalDeDup(useRelativeOrientationForDuplicateRemoval, externalDeDupMemory, tmpDir);
+        boolean found = false;
+        try (SamReader reader1 = SamReaderFactory.makeDefault().open(new File(sam_path_R1));
+             SamReader reader2 = SamReaderFactory.makeDefault().open(new File(sam_path_R2))) {
+            Iterator<SAMRecord> iterator1 = reader1.iterator();
+            Iterator<SAMRecord> iterator2 = reader2.iterator();
+            while (iterator1.hasNext() && iterator2.hasNext()) {
+                SAMRecord record1 = iterator1.next();
+                SAMRecord record2 = iterator2.next();
+                if (ReadPair.isPaired(record1, record2, useStringentUniqueSettings)) {
+                    dedup.add(record1, record2);
+                }
+            }
+            dedup.findDuplicates();
+            found = true;
+        } finally {
+            if (!found) {
+                // delete the temporary files on any error
+                dedup.close();
+            }
+        }
+        return dedup;
+    }
+
     /**
      * An iterator over pairs of SAMRecords -- similar to "next()" in a standard iterator, but will return a pair
      * of SAMRecord objects. Both files must be equally long. This function will return null of there is any issue with
@@ -276,192 +373,342 @@ public class Aligner {
         header.addProgramRecord(programRecord);
 
         // init BAM outfile
-        boolean presorted = false;
-        this.validReadsWriter = new SAMFileWriterFactory().makeBAMWriter(header, presorted, new File(outputBAMvalid));
-        if(outputRejectedReads) {
-            this.rejectedReadsWriter = new SAMFileWriterFactory().makeBAMWriter(header, presorted, new File(outputBAMrejected));
-        }
-
-        DeDupMap dedup_map = new DeDupMap(useRelativeOrientationForDuplicateRemoval);
-        ReadPair pair;
-        cisCounts = new HashMap<>();
-        transCounts = new HashMap<>();
-
-        while ((pair = getNextPair())!= null) {
-
-            n_total_input_read_pairs++;
-
-            if(n_total_input_read_pairs%1000000==0) {
-                logger.trace("n_total_input_read_pairs: " + n_total_input_read_pairs);
-            }
-
-            if(dedup_map.getNumOfInsertions()%1000000==0 && 0<dedup_map.getNumOfInsertions()) {
-                logger.trace("dedup_map.getNumOfInsertions(): " + dedup_map.getNumOfInsertions());
-            }
-
-            // first check whether both reads were mapped uniquely
-            if (pair.isUnMappedR1()) {
-                n_unmapped_R1++;
+        ExecutorService compressors = bamThreadNum > 0 || sortMemory > 0 || pairsMemory > 0 ?
+                Executors.newFixedThreadPool(Math.max(1, bamThreadNum)) : null;
+        try {
+            this.validReadsWriter = sortMemory > 0 ? openSortingBamWriter(header, compressors) :
+                    openBamWriter(header, outputBAMvalid, compressors);
+            if(outputRejectedReads) {
+                this.rejectedReadsWriter = openBamWriter(header, outputBAMrejected, compressors);
             }
-            if (pair.isUnMappedR2()) {
-                n_unmapped_R2++;
+            if (pairsMemory > 0) {
+                this.pairsWriter = new PairsFileWriter(new File(outputPairs), header.getSequenceDictionary(),
+                        bamCompressionLevel, compressors, Math.max(1, bamThreadNum), pairsMemory, tmpDir);
             }
-            if (pair.isUnMappedR1() || pair.isUnMappedR2()) {
-                n_unmappedPair++;
+            processPairs();
+            validReadsWriter.close();
+            if(outputRejectedReads) {
+                rejectedReadsWriter.close();
             }
-            if (pair.isMultiMappedR1()) {
-                n_multimapped_R1++;
+            if (pairsWriter != null) {
+                pairsWriter.close();
+                logger.info("Wrote {} valid pairs to {}", pairsWriter.getPairNum(), outputPairs);
             }
-            if (pair.isMultiMappedR2()) {
-                n_multimapped_R2++;
-            }
-            if (pair.isMultiMappedR1() || pair.isMultiMappedR2()) {
-                n_multimappedPair++;
+        } finally {
+            if (compressors != null) {
+                compressors.shutdownNow();
             }
+        }
+        logBamThroughput();
+        sam_reader_R1.close();
+        sam_reader_R2.close();
 
-            // Note: Read pairs with unmapped or multi-mapped reads remain unpaired
+        printFragmentLengthDistributionRscript(counts.fragSizesChimericPairs, counts.fragSizesActiveChimericPairs, counts.fragSizesUnLigatedPairs, counts.fragSizesSelfLigatedSameInternalPairs);
+    }
 
-            // count categories of paired pairs
-            if(pair.isPaired()) {
+    /**
+     * @param compressors thread pool for the compression of the BAM file, or null to use the BAM writer of htsjdk
+     * @return writer for a BAM file with read pairs
+     */
+    private SAMFileWriter openBamWriter(SAMFileHeader header, String path, ExecutorService compressors) throws IOException {
+        if (compressors == null || bamThreadNum == 0) {
+            boolean presorted = false;
+            return new SAMFileWriterFactory().setCompressionLevel(bamCompressionLevel)
+                    .makeBAMWriter(header, presorted, new File(path));
+        }
+        int pendingBlocks = bamPendingBlocks > 0 ? bamPendingBlocks : 2 * bamThreadNum;
+        return new ParallelBAMFileWriter(header, new File(path), bamCompressionLevel, compressors, bamThreadNum, pendingBlocks);
+    }
 
-                n_paired++;
+    /**
+     * @param sorters thread pool for sorting and compression
+     * @return writer for the coordinate-sorted BAM file with the valid read pairs
+     */
+    private SAMFileWriter openSortingBamWriter(SAMFileHeader header, ExecutorService sorters) {
+        BAMIndexBuilder.Format format = sortIndexFormat != null ? sortIndexFormat :
+                BAMIndexBuilder.getDefaultFormat(header.getSequenceDictionary());
+        return new SortingBAMFileWriter(header, new File(outputBAMvalid), format, bamCompressionLevel, sorters,
+                Math.max(1, bamThreadNum), sortMemory, tmpDir);
+    }
 
-                // de-duplication starts with paired pairs
-                if(dedup_map.hasSeen(pair)) {
-                    n_paired_duplicated++;
-                    continue;
-                }
+    /**
+     * Log the time spent writing the BAM files and, for parallel compression, the throughput of each file. If the
+     * writing time is a large part of the run time, more compression threads or a lower compression level help.
+     */
+    private void logBamThroughput() {
+        logger.info("Time spent writing read pairs to BAM files: {} s", String.format("%.1f", bamWriteNanos / 1e9));
+        if (validReadsWriter instanceof ParallelBAMFileWriter) {
+            logger.info("Valid pairs BAM: {}", ((ParallelBAMFileWriter) validReadsWriter).getThroughputSummary());
+        } else if (validReadsWriter instanceof SortingBAMFileWriter) {
+            logger.info("Sorted valid pairs BAM: {}", ((SortingBAMFileWriter) validReadsWriter).getThroughputSummary());
+        }
+        if (rejectedReadsWriter instanceof ParallelBAMFileWriter) {
+            logger.info("Rejected pairs BAM: {}", ((ParallelBAMFileWriter) rejectedReadsWriter).getThroughputSummary());
+        }
+    }
 
-                n_paired_unique++;
-
-                if(pair.getCategoryTag().equals("VP")) {
-                    n_paired_unique_valid++;}
-                if(pair.getCategoryTag().equals("UL")) {
-                    n_paired_unique_un_ligated++;}
-                if(pair.getCategoryTag().equals("ULSI")) {
-                    n_paired_unique_un_ligated_same_internal++;}
-                if(pair.getCategoryTag().equals("SL")) {
-                    n_paired_unique_self_ligated++;}
-                if(pair.getCategoryTag().equals("SLSI")) {
-                    n_paired_unique_self_ligated_same_internal++;}
-                if(pair.getCategoryTag().equals("TS")) {
-                    n_paired_unique_too_short++;}
-                if(pair.getCategoryTag().equals("TL")) {
-                    n_paired_unique_too_long++;}
-                if(pair.getCategoryTag().equals("SI")) {
-                    n_paired_strange_internal++;}
-
-                if(pair.isDanglingEnd()) {
-                    n_paired_unique_dangling++;
-                    if(pair.getCategoryTag().equals("VP")) {
-                        n_paired_unique_valid_dangling++;}
-                    if(pair.getCategoryTag().equals("UL")) {
-                        n_paired_unique_un_ligated_dangling++;}
-                    if(pair.getCategoryTag().equals("SL")) {
-                        n_paired_unique_self_ligated_dangling++;}
-                    if(pair.getCategoryTag().equals("TS")) {
-                        n_paired_unique_too_short_dangling++;}
-                    if(pair.getCategoryTag().equals("TL")) {
-                        n_paired_unique_too_long_dangling++;}
-                    if(pair.getCategoryTag().equals("SI")) {
-                        n_paired_strange_internal_dangling++;}
-                }
+    /**
+     * Pair, deduplicate and categorize all read pairs and write them to the BAM files.
+     */
+    private void processPairs() throws IOException, DiachromaticException {
+        if (shardNum > 1) {
+            processPairsInShards();
+        } else {
+            DuplicateFilter dedup_map = externalDeDupMemory > 0 ? findDuplicatesExternally()
+                    : new DeDupMap(useRelativeOrientationForDuplicateRemoval);
+            ReadPair pair;
 
-                if(pair.isTrans()) {
-                    n_paired_unique_trans++;
-                    if(pair.getCategoryTag().equals("VP")) {
-                        n_paired_unique_valid_trans++;}
-                    if(pair.getCategoryTag().equals("UL")) {
-                        n_paired_unique_un_ligated_trans++;}
-                    if(pair.getCategoryTag().equals("SL")) {
-                        n_paired_unique_self_ligated_trans++;}
-                    if(pair.getCategoryTag().equals("TS")) {
-                        n_paired_unique_too_short_trans++;}
-                    if(pair.getCategoryTag().equals("TL")) {
-                        n_paired_unique_too_long_trans++;}
-                    if(pair.getCategoryTag().equals("SI")) {
-                        n_paired_strange_internal_trans++;}
-                    if(pair.getCategoryTag().equals("VP")) { // count trans/cis for chromosome-wise CLC
-                        if(transCounts.containsKey(pair.getReferenceSequenceOfR1())) {
-                            transCounts.put(pair.getReferenceSequenceOfR1(),transCounts.get(pair.getReferenceSequenceOfR1())+1);
-                        } else {
-                            transCounts.put(pair.getReferenceSequenceOfR1(),1);
-                            if(!cisCounts.containsKey(pair.getReferenceSequenceOfR1())) {
-                                cisCounts.put(pair.getReferenceSequenceOfR1(),0);
-                            }
-                        }
-                        if(transCounts.containsKey(pair.getReferenceSequenceOfR2())) {
-                            transCounts.put(pair.getReferenceSequenceOfR2(),transCounts.get(pair.getReferenceSequenceOfR2())+1);
-                        } else {
-                            transCounts.put(pair.getReferenceSequenceOfR2(),1);
-                            if(!cisCounts.containsKey(pair.getReferenceSequenceOfR2())) {
-                                cisCounts.put(pair.getReferenceSequenceOfR2(),0);
-                            }
-                        }
-                    }
-                } else {
-                    if(pair.getCategoryTag().equals("VP")) {
-                        if (cisCounts.containsKey(pair.getReferenceSequenceOfR1())) {
-                            cisCounts.put(pair.getReferenceSequenceOfR1(), cisCounts.get(pair.getReferenceSequenceOfR1()) + 2);
-                        } else {
-                            cisCounts.put(pair.getReferenceSequenceOfR1(), 2);
-                            if(!transCounts.containsKey(pair.getReferenceSequenceOfR1())) {
-                                transCounts.put(pair.getReferenceSequenceOfR1(),0);
-                            }
-                        }
-                    }
+            try {
+                while ((pair = getNextPair()) != null) {
+                    writePair(pair, counts.count(pair, dedup_map));
+                }
+            } finally {
+                if (dedup_map instanceof ExternalDeDup) {
+                    // delete the temporary files, also if a read pair could not be processed
+                    ((ExternalDeDup) dedup_map).close();
                 }
-            } else {
-                continue;
             }
+            //dedup_map.printDeDupStatistics(n_paired_duplicated);
+            logger.info("Memory used for duplicate removal: {} MB for {} unique pairs", dedup_map.getMemoryFootprint() / 1_000_000, dedup_map.getNumOfInsertions());
+        }
+    }
 
-            // count sizes of all chimeric fragments including valid, too short and too long
-            Integer incrementFragSize = pair.getChimericFragmentSize();
-            if(FRAG_SIZE_LIMIT<incrementFragSize) { incrementFragSize = FRAG_SIZE_LIMIT; }
-            if(pair.getCategoryTag().equals("VP")||pair.getCategoryTag().equals("TS")||pair.getCategoryTag().equals("TL"))   {
+    /**
+     * Delete the BAM files, the pairs file and their indices, e.g. because the SAM records that were streamed from
+     * bowtie2 turned out to be incomplete.
+     */
+    public void deleteOutputFiles() {
+        for (String path : new String[]{outputBAMvalid, outputBAMrejected}) {
+            File file = new File(path);
+            file.delete();
+            for (BAMIndexBuilder.Format format : BAMIndexBuilder.Format.values()) {
+                SortingBAMFileWriter.getIndexFile(file, format).delete();
+            }
+        }
+        File pairs = new File(outputPairs);
+        pairs.delete();
+        PairsFileWriter.getIndexFile(pairs).delete();
+    }
 
-                fragSizesChimericPairs[incrementFragSize]++;
+    /**
+     * Write a read pair to the BAM file for valid or rejected pairs and, if it is valid, to the pairs file.
+     *
+     * @param outcome return value of {@link AlignmentCounts#count(ReadPair, DuplicateFilter)}
+     */
+    private void writePair(ReadPair pair, int outcome) throws IOException {
+        if (outcome == AlignmentCounts.VALID) {
+            long start = System.nanoTime();
+            validReadsWriter.addAlignment(pair.forward());
+            validReadsWriter.addAlignment(pair.reverse());
+            if (pairsWriter != null) {
+                pairsWriter.add(pair);
+            }
+            bamWriteNanos += System.nanoTime() - start;
+        } else if (outcome == AlignmentCounts.REJECTED && outputRejectedReads) {
+            long start = System.nanoTime();
+            rejectedReadsWriter.addAlignment(pair.forward());
+            rejectedReadsWriter.addAlignment(pair.reverse());
+            bamWriteNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Set the number of threads for pairing, duplicate removal and categorization of the read pairs. If greater than 1,
+     * the read pairs are distributed to this number of shards by the coordinates of their reads (see
+     * {@link #processPairsInShards()}).
+     */
+    public void setShardNum(int shardNum) {
+        this.shardNum = shardNum;
+    }
 
-                // count sizes of all active chimeric fragments
-                if((pair.forwardDigestIsActive() & !pair.reverseDigestIsActive()) || (!pair.forwardDigestIsActive() & pair.reverseDigestIsActive())) {
-                    fragSizesActiveChimericPairs[incrementFragSize]++;
+    /**
+     * Process the read pairs with {@link #shardNum} threads. This thread and a parser thread read the SAM records of
+     * R1 and R2 in batches of {@link #SHARD_BATCH_SIZE} pairs, and each pair is assigned to a shard according to the
+     * reference sequences and 5' end positions of the two reads, so that all potential duplicates of a read pair end
+     * up in the same shard and the pairs of a chromosome are spread over all shards. Each shard has its own thread,
+     * {@link DeDupMap} and {@link AlignmentCounts} and processes only the pairs of the batch that belong to it; since
+     * the batches are processed by the shards in order, the first read pair of a group of duplicates is kept as in the
+     * sequential mode. A writer thread waits until all shards have processed a batch and then writes its read pairs
+     * in input order, so that the BAM files are the same as in the sequential mode. At most
+     * {@link #SHARD_BATCH_QUEUE_FACTOR} batches per shard are in flight to bound the memory.
+     */
+    private void processPairsInShards() throws IOException, DiachromaticException {
+        if (externalDeDupMemory > 0) {
+            throw new DiachromaticException("External duplicate removal cannot be used with several pairing threads");
+        }
+        ExecutorService[] executors = new ExecutorService[shardNum];
+        AlignmentCounts[] shardCounts = new AlignmentCounts[shardNum];
+        DeDupMap[] shardDedup = new DeDupMap[shardNum];
+        for (int s = 0; s < shardNum; s++) {
+            executors[s] = Executors.newSingleThreadExecutor();
+            shardCounts[s] = new AlignmentCounts();
+            shardDedup[s] = new DeDupMap(useRelativeOrientationForDuplicateRemoval);
+        }
+        ExecutorService parser = Executors.newSingleThreadExecutor();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Deque<Future<Void>> writes = new ArrayDeque<>();
+        try {
+            PairBatch batch;
+            while ((batch = readBatch(parser)) != null) {
+                for (int s = 0; s < shardNum; s++) {
+                    if (batch.shardSizes[s] > 0) {
+                        final int shard = s;
+                        final PairBatch b = batch;
+                        batch.futures.add(executors[s].submit(() -> b.process(shard, shardCounts[shard], shardDedup[shard])));
+                    }
+                }
+                writes.add(writer.submit(batch::write));
+                if (writes.size() > SHARD_BATCH_QUEUE_FACTOR * shardNum) {
+                    waitFor(writes.poll());
                 }
             }
-
-            // count sizes of potentially un-ligated fragments (don't use thresholds to avoid circular argument)
-            if(pair.isInwardFacing() && !pair.isTrans()){
-                incrementFragSize=pair.getDistanceBetweenFivePrimeEnds();
-                if(FRAG_SIZE_LIMIT<incrementFragSize) { incrementFragSize = FRAG_SIZE_LIMIT; }
-                fragSizesUnLigatedPairs[incrementFragSize]++;
+            while (!writes.isEmpty()) {
+                waitFor(writes.poll());
+            }
+        } finally {
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
             }
+            parser.shutdownNow();
+            writer.shutdownNow();
+        }
+        long memory = 0;
+        int unique = 0;
+        for (int s = 0; s < shardNum; s++) {
+            counts.add(shardCounts[s]);
+            memory += shardDedup[s].getMemoryFootprint();
+            unique += shardDedup[s].getNumOfInsertions();
+        }
+        logger.info("Memory used for duplicate removal: {} MB for {} unique pairs in {} shards", memory / 1_000_000, unique, shardNum);
+    }
 
-            // count sizes of potentially un-ligated fragments (don't use thresholds to avoid circular argument)
-            if(pair.getCategoryTag().equals("SLSI")){
-                incrementFragSize=pair.getSelfLigationFragmentSize();
-                if(FRAG_SIZE_LIMIT<incrementFragSize) { incrementFragSize = FRAG_SIZE_LIMIT; }
-                fragSizesSelfLigatedSameInternalPairs[incrementFragSize]++;
+    /**
+     * Wait for a task of {@link #processPairsInShards()} and rethrow its exception.
+     */
+    private static <T> T waitFor(Future<T> future) throws IOException, DiachromaticException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiachromaticException("Interrupted while waiting for the pairing threads");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof DiachromaticException) {
+                throw (DiachromaticException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw new DiachromaticException(String.format("Could not process read pairs: %s", cause));
+        }
+    }
+
+    /**
+     * Read the records of R1 in this thread and the records of R2 with the parser at the same time.
+     *
+     * @return the next {@link #SHARD_BATCH_SIZE} pairs of SAM records (fewer at the end of the input), or null if
+     * there are no more records
+     */
+    private PairBatch readBatch(ExecutorService parser) throws IOException, DiachromaticException {
+        PairBatch batch = new PairBatch();
+        Future<Integer> records2 = parser.submit(() -> readRecords(it2, batch.records2));
+        int size = readRecords(it1, batch.records1);
+        size = Math.min(size, waitFor(records2));
+        for (int i = 0; i < size; i++) {
+            batch.add(getShard(batch.records1[i], batch.records2[i], i));
+        }
+        return batch.size > 0 ? batch : null;
+    }
 
+    /** @return the number of records that were read into the array, which is only less than its length at the end */
+    private static int readRecords(Iterator<SAMRecord> iterator, SAMRecord[] records) {
+        int n = 0;
+        while (n < records.length && iterator.hasNext()) {
+            records[n++] = iterator.next();
+        }
+        return n;
+    }
 
-            // write pair to BAM file
-            if(pair.getCategoryTag().equals("VP")){
-                validReadsWriter.addAlignment(pair.forward());
-                validReadsWriter.addAlignment(pair.reverse());
-            } else {
-                if (outputRejectedReads) {
-                    rejectedReadsWriter.addAlignment(pair.forward());
-                    rejectedReadsWriter.addAlignment(pair.reverse());
-                }
+    /**
+     * @return the shard for a pair of SAM records, which only depends on the (unordered) pair of reference indices and
+     * 5' end positions if both reads are aligned
+     */
+    private int getShard(SAMRecord record1, SAMRecord record2, int i) {
+        int refIndex1 = record1.getReferenceIndex();
+        int refIndex2 = record2.getReferenceIndex();
+        if (refIndex1 < 0 || refIndex2 < 0) {
+            // at least one read is unmapped, so the pair is not checked for duplicates
+            return i % shardNum;
+        }
+        int pos1 = ReadPair.getFivePrimeEndPosOfRead(record1);
+        int pos2 = ReadPair.getFivePrimeEndPosOfRead(record2);
+        if (refIndex1 > refIndex2 || (refIndex1 == refIndex2 && pos1 > pos2)) {
+            // the same order of the reads as for the duplicate removal
+            int tmp = refIndex1;
+            refIndex1 = refIndex2;
+            refIndex2 = tmp;
+            tmp = pos1;
+            pos1 = pos2;
+            pos2 = tmp;
+        }
+        int h = refIndex1;
+        h = h * 0x9E3779B9 + refIndex2;
+        h = h * 0x9E3779B9 + pos1;
+        h = h * 0x9E3779B9 + pos2;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 16;
+        return Math.floorMod(h, shardNum);
+    }
+
+    /**
+     * A batch of SAM record pairs that is processed by the shards, see {@link #processPairsInShards()}.
+     */
+    private final class PairBatch {
+        private final SAMRecord[] records1 = new SAMRecord[SHARD_BATCH_SIZE];
+        private final SAMRecord[] records2 = new SAMRecord[SHARD_BATCH_SIZE];
+        private final ReadPair[] pairs = new ReadPair[SHARD_BATCH_SIZE];
+        /** Indices of the pairs of each shard in input order. */
+        private final int[][] shardPairs = new int[shardNum][];
+        private final int[] shardSizes = new int[shardNum];
+        /** Return values of {@link AlignmentCounts#count(ReadPair, DuplicateFilter)}. */
+        private final int[] outcomes = new int[SHARD_BATCH_SIZE];
+        private int size = 0;
+        /** One future per shard with pairs. */
+        private final List<Future<Void>> futures = new ArrayList<>();
+
+        /** Add the next pair of records to a shard. */
+        private void add(int shard) {
+            if (shardPairs[shard] == null) {
+                shardPairs[shard] = new int[2 * SHARD_BATCH_SIZE / shardNum + 16];
+            } else if (shardSizes[shard] == shardPairs[shard].length) {
+                shardPairs[shard] = Arrays.copyOf(shardPairs[shard], 2 * shardSizes[shard]);
             }
+            shardPairs[shard][shardSizes[shard]++] = size++;
         }
 
-        validReadsWriter.close();
-        if(outputRejectedReads) {
-            rejectedReadsWriter.close();
+        /** Pair, count and check for duplicates the read pairs of the batch that belong to the given shard. */
+        private Void process(int shard, AlignmentCounts shardCounts, DeDupMap shardDedup) throws IOException {
+            for (int j = 0; j < shardSizes[shard]; j++) {
+                int i = shardPairs[shard][j];
+                pairs[i] = new ReadPair(records1[i], records2[i], digestMap, useStringentUniqueSettings);
+                outcomes[i] = shardCounts.count(pairs[i], shardDedup);
+            }
+            return null;
         }
 
-        printFragmentLengthDistributionRscript(fragSizesChimericPairs, fragSizesActiveChimericPairs, fragSizesUnLigatedPairs, fragSizesSelfLigatedSameInternalPairs);
-        //dedup_map.printDeDupStatistics(n_paired_duplicated);
+        /** Wait for the shards and write the read pairs in input order. */
+        private Void write() throws IOException, DiachromaticException {
+            for (Future<Void> future : futures) {
+                waitFor(future);
+            }
+            for (int i = 0; i < size; i++) {
+                writePair(pairs[i], outcomes[i]);
+            }
+            return null;
+        }
     }
 
     /**
@@ -570,57 +817,63 @@ public class Aligner {
 
         PrintStream printStream = new PrintStream(new FileOutputStream(outputTxtStats));
         
-        printStream.print("total_read_pairs_processed:\t" + n_total_input_read_pairs + "\n");
+        printStream.print("total_read_pairs_processed:\t" + counts.n_total_input_read_pairs + "\n");
 
-        printStream.print("unmapped_read_pairs:" + n_unmappedPair + String.format(" (%.2f%%)", 100.0*n_unmappedPair/ n_total_input_read_pairs) + "\n");
-        printStream.print("unmapped_R1_reads:" + n_unmapped_R1 + "\n");
-        printStream.print("unmapped_R2_reads:" + n_unmapped_R2 + "\n");
+        printStream.print("unmapped_read_pairs:" + counts.n_unmappedPair + String.format(" (%.2f%%)", 100.0*counts.n_unmappedPair/ counts.n_total_input_read_pairs) + "\n");
+        printStream.print("unmapped_R1_reads:" + counts.n_unmapped_R1 + "\n");
+        printStream.print("unmapped_R2_reads:" + counts.n_unmapped_R2 + "\n");
 
-        printStream.print("multimapped_read_pairs:" + n_multimappedPair + String.format(" (%.2f%%)", 100.0*n_multimappedPair/ n_total_input_read_pairs) + "\n");
-        printStream.print("multimapped_R1_reads:" + n_multimapped_R1 + "\n");
-        printStream.print("multimapped_R2_reads:" + n_multimapped_R2 + "\n");
+        printStream.print("multimapped_read_pairs:" + counts.n_multimappedPair + String.format(" (%.2f%%)", 100.0*counts.n_multimappedPair/ counts.n_total_input_read_pairs) + "\n");
+        printStream.print("multimapped_R1_reads:" + counts.n_multimapped_R1 + "\n");
+        printStream.print("multimapped_R2_reads:" + counts.n_multimapped_R2 + "\n");
 
-        printStream.print("paired_read_pairs:" + n_paired + String.format(" (%.2f%%)", 100.0*n_paired/ n_total_input_read_pairs) + "\n");
-        printStream.print("unique_paired_read_pairs:" + n_paired_unique + "\n");
-        printStream.print("duplicated_pairs:\t" + n_paired_duplicated + "\n");
+        printStream.print("paired_read_pairs:" + counts.n_paired + String.format(" (%.2f%%)", 100.0*counts.n_paired/ counts.n_total_input_read_pairs) + "\n");
+        printStream.print("unique_paired_read_pairs:" + counts.n_paired_unique + "\n");
+        printStream.print("duplicated_pairs:\t" + counts.n_paired_duplicated + "\n");
         printStream.print("\n");
+        if (bowtie2SummaryR1 != null && bowtie2SummaryR2 != null) {
+            printStream.print("bowtie2 alignment summary\n");
+            bowtie2SummaryR1.print(printStream, "bowtie2_R1_");
+            bowtie2SummaryR2.print(printStream, "bowtie2_R2_");
+            printStream.print("\n");
+        }
         printStream.print("Artifact statistics\n");
 
-        int n_paired_unique_un_ligated_total=n_paired_unique_un_ligated+n_paired_unique_un_ligated_same_internal;
-        printStream.print("unligated:" + n_paired_unique_un_ligated_total + String.format(" (%.2f%%)", 100.0* n_paired_unique_un_ligated_total /n_paired_unique) + "\n");
-        printStream.print("unligated_by_size:" + n_paired_unique_un_ligated + String.format(" (%.2f%%)", 100.0* n_paired_unique_un_ligated /n_paired_unique) + "\n");
-        printStream.print("unligated_same_internal:" + n_paired_unique_un_ligated_same_internal + String.format(" (%.2f%%)", 100.0* n_paired_unique_un_ligated_same_internal /n_paired_unique) + "\n");
+        int n_paired_unique_un_ligated_total=counts.n_paired_unique_un_ligated+counts.n_paired_unique_un_ligated_same_internal;
+        printStream.print("unligated:" + n_paired_unique_un_ligated_total + String.format(" (%.2f%%)", 100.0* n_paired_unique_un_ligated_total /counts.n_paired_unique) + "\n");
+        printStream.print("unligated_by_size:" + counts.n_paired_unique_un_ligated + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_un_ligated /counts.n_paired_unique) + "\n");
+        printStream.print("unligated_same_internal:" + counts.n_paired_unique_un_ligated_same_internal + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_un_ligated_same_internal /counts.n_paired_unique) + "\n");
 
-        int n_paired_unique_self_ligated_total=n_paired_unique_self_ligated+n_paired_unique_self_ligated_same_internal;
-        printStream.print("self_ligated:" + n_paired_unique_self_ligated_total + String.format(" (%.2f%%)", 100.0* n_paired_unique_self_ligated_total /n_paired_unique) + "\n");
-        printStream.print("self_ligated_by_size:" + n_paired_unique_self_ligated + String.format(" (%.2f%%)", 100.0* n_paired_unique_self_ligated /n_paired_unique) + "\n");
-        printStream.print("self_ligated_same_internal:" + n_paired_unique_self_ligated_same_internal + String.format(" (%.2f%%)", 100.0* n_paired_unique_self_ligated_same_internal /n_paired_unique) + "\n");
+        int n_paired_unique_self_ligated_total=counts.n_paired_unique_self_ligated+counts.n_paired_unique_self_ligated_same_internal;
+        printStream.print("self_ligated:" + n_paired_unique_self_ligated_total + String.format(" (%.2f%%)", 100.0* n_paired_unique_self_ligated_total /counts.n_paired_unique) + "\n");
+        printStream.print("self_ligated_by_size:" + counts.n_paired_unique_self_ligated + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_self_ligated /counts.n_paired_unique) + "\n");
+        printStream.print("self_ligated_same_internal:" + counts.n_paired_unique_self_ligated_same_internal + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_self_ligated_same_internal /counts.n_paired_unique) + "\n");
 
-        int n_chimeric_fragments=n_paired_unique_too_short+n_paired_unique_too_long+n_paired_unique_valid;
+        int n_chimeric_fragments=counts.n_paired_unique_too_short+counts.n_paired_unique_too_long+counts.n_paired_unique_valid;
 
-        printStream.print("chimeric:" + n_chimeric_fragments + String.format(" (%.2f%%)", 100.0* n_chimeric_fragments /n_paired_unique) + "\n");
-        printStream.print("chimeric_short:" + n_paired_unique_too_short + String.format(" (%.2f%%)", 100.0* n_paired_unique_too_short /n_paired_unique) + "\n");
-        printStream.print("chimeric_long:" + n_paired_unique_too_long + String.format(" (%.2f%%)", 100.0* n_paired_unique_too_long /n_paired_unique) + "\n");
-        printStream.print("chimeric_valid:" + n_paired_unique_valid + String.format(" (%.2f%%)", 100.0* n_paired_unique_valid /n_paired_unique) + "\n");
+        printStream.print("chimeric:" + n_chimeric_fragments + String.format(" (%.2f%%)", 100.0* n_chimeric_fragments /counts.n_paired_unique) + "\n");
+        printStream.print("chimeric_short:" + counts.n_paired_unique_too_short + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_too_short /counts.n_paired_unique) + "\n");
+        printStream.print("chimeric_long:" + counts.n_paired_unique_too_long + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_too_long /counts.n_paired_unique) + "\n");
+        printStream.print("chimeric_valid:" + counts.n_paired_unique_valid + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_valid /counts.n_paired_unique) + "\n");
 
-        printStream.print("strange_internal:" + n_paired_strange_internal + String.format(" (%.2f%%)", 100.0* n_paired_strange_internal /n_paired_unique) + "\n");
+        printStream.print("strange_internal:" + counts.n_paired_strange_internal + String.format(" (%.2f%%)", 100.0* counts.n_paired_strange_internal /counts.n_paired_unique) + "\n");
 
         printStream.print("Note: These four categories are disjoint subsets of all unique paired read pairs, and percentages refer to this superset." + "\n\n");
 
-        printStream.print("dangling_end_pairs_total:" + n_paired_unique_dangling + String.format(" (%.2f%%)", 100.0* n_paired_unique_dangling /n_paired_unique) + "\n");
+        printStream.print("dangling_end_pairs_total:" + counts.n_paired_unique_dangling + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_dangling /counts.n_paired_unique) + "\n");
         printStream.print("Note: Dangling end pairs may occur in all categories, and a read pair with a dangling end can still be valid." + "\n\n");
 
-        printStream.print("trans_pairs_total:" + n_paired_unique_trans + String.format(" (%.2f%%)", 100.0* n_paired_unique_trans /n_paired_unique) + "\n");
+        printStream.print("trans_pairs_total:" + counts.n_paired_unique_trans + String.format(" (%.2f%%)", 100.0* counts.n_paired_unique_trans /counts.n_paired_unique) + "\n");
         printStream.print("Note: Trans pairs cannot occur in the categories un-ligated and self-ligated but all others." + "\n\n");
 
 //        printStream.print("Quality metrics for experimental trouble shooting\n");
 //        printStream.print("-------------------------------------------------\n");
 //        printStream.print("\n");
-        printStream.print("YVP:\t" + String.format("%.2f%%", 100.0* n_paired_unique_valid / n_total_input_read_pairs) + "\n");
-        printStream.print("CLC:\t" + String.format("%.2f%%", 100.0* n_paired_unique_valid_trans/n_paired_unique_valid) + "\n");
-        double rlc = 1.0 - 1.0*(n_paired_unique_too_short_dangling+n_paired_unique_too_long_dangling+n_paired_unique_valid_dangling)/(n_paired_unique_too_short+n_paired_unique_too_long+n_paired_unique_valid);
+        printStream.print("YVP:\t" + String.format("%.2f%%", 100.0* counts.n_paired_unique_valid / counts.n_total_input_read_pairs) + "\n");
+        printStream.print("CLC:\t" + String.format("%.2f%%", 100.0* counts.n_paired_unique_valid_trans/counts.n_paired_unique_valid) + "\n");
+        double rlc = 1.0 - 1.0*(counts.n_paired_unique_too_short_dangling+counts.n_paired_unique_too_long_dangling+counts.n_paired_unique_valid_dangling)/(counts.n_paired_unique_too_short+counts.n_paired_unique_too_long+counts.n_paired_unique_valid);
         printStream.print("RLC:\t" + String.format("%.2f%%", 100.0*rlc) + "\n");
-        printStream.print("HPDR:\t" + String.format("%.2f%%", 100.0*n_paired_duplicated/n_paired) + "\n");
+        printStream.print("HPDR:\t" + String.format("%.2f%%", 100.0*counts.n_paired_duplicated/counts.n_paired) + "\n");
         printStream.print("\n");
 
 
@@ -630,58 +883,58 @@ public class Aligner {
         printStream.print("\n");
 
         printStream.print("Fractions of dangling end pairs:\n");
-        printStream.print(String.format("n_paired_unique_un_ligated_dangling:%d (%.2f%% of all unique un-ligated pairs)\n", n_paired_unique_un_ligated_dangling, (100.0 * n_paired_unique_un_ligated_dangling / n_paired_unique_un_ligated)));
-        printStream.print(String.format("n_paired_unique_self_ligated_dangling:%d (%.2f%% of all unique self-ligated pairs)\n", n_paired_unique_self_ligated_dangling, (100.0 * n_paired_unique_self_ligated_dangling / n_paired_unique_self_ligated)));
-        printStream.print(String.format("n_paired_unique_too_short_dangling:%d (%.2f%% of all unique valid too short pairs)\n", n_paired_unique_too_short_dangling, (100.0 * n_paired_unique_too_short_dangling / n_paired_unique_too_short)));
-        printStream.print(String.format("n_paired_unique_too_long_dangling:%d (%.2f%% of all unique valid too long pairs)\n", n_paired_unique_too_long_dangling, (100.0 * n_paired_unique_too_long_dangling / n_paired_unique_too_long)));
-        printStream.print(String.format("n_paired_unique_valid_dangling:%d (%.2f%% of all unique valid pairs)\n", n_paired_unique_valid_dangling, (100.0 * n_paired_unique_valid_dangling / n_paired_unique_valid)));
-        printStream.print(String.format("n_paired_strange_internal_dangling:%d (%.2f%% of all unique valid pairs)\n", n_paired_strange_internal_dangling, (100.0 * n_paired_strange_internal_dangling / n_paired_unique_valid)));
+        printStream.print(String.format("n_paired_unique_un_ligated_dangling:%d (%.2f%% of all unique un-ligated pairs)\n", counts.n_paired_unique_un_ligated_dangling, (100.0 * counts.n_paired_unique_un_ligated_dangling / counts.n_paired_unique_un_ligated)));
+        printStream.print(String.format("n_paired_unique_self_ligated_dangling:%d (%.2f%% of all unique self-ligated pairs)\n", counts.n_paired_unique_self_ligated_dangling, (100.0 * counts.n_paired_unique_self_ligated_dangling / counts.n_paired_unique_self_ligated)));
+        printStream.print(String.format("n_paired_unique_too_short_dangling:%d (%.2f%% of all unique valid too short pairs)\n", counts.n_paired_unique_too_short_dangling, (100.0 * counts.n_paired_unique_too_short_dangling / counts.n_paired_unique_too_short)));
+        printStream.print(String.format("n_paired_unique_too_long_dangling:%d (%.2f%% of all unique valid too long pairs)\n", counts.n_paired_unique_too_long_dangling, (100.0 * counts.n_paired_unique_too_long_dangling / counts.n_paired_unique_too_long)));
+        printStream.print(String.format("n_paired_unique_valid_dangling:%d (%.2f%% of all unique valid pairs)\n", counts.n_paired_unique_valid_dangling, (100.0 * counts.n_paired_unique_valid_dangling / counts.n_paired_unique_valid)));
+        printStream.print(String.format("n_paired_strange_internal_dangling:%d (%.2f%% of all unique valid pairs)\n", counts.n_paired_strange_internal_dangling, (100.0 * counts.n_paired_strange_internal_dangling / counts.n_paired_unique_valid)));
 
         printStream.print("\n");
         printStream.print("Fractions of trans pairs:\n");
-        printStream.print(String.format("n_paired_unique_un_ligated_trans:%d (%.2f%% of all unique un-ligated pairs)\n", n_paired_unique_un_ligated_trans, (100.0 * n_paired_unique_un_ligated_trans / n_paired_unique_un_ligated)));
-        printStream.print(String.format("n_paired_unique_self_ligated_trans:%d (%.2f%% of all unique self-ligated pairs)\n", n_paired_unique_self_ligated_trans, (100.0 * n_paired_unique_self_ligated_trans / n_paired_unique_self_ligated)));
-        printStream.print(String.format("n_paired_unique_too_short_trans:%d (%.2f%% of all unique valid too short pairs)\n", n_paired_unique_too_short_trans, (100.0 * n_paired_unique_too_short_trans / n_paired_unique_too_short)));
-        printStream.print(String.format("n_paired_unique_too_long_trans:%d (%.2f%% of all unique valid too long pairs)\n", n_paired_unique_too_long_trans, (100.0 * n_paired_unique_too_long_trans / n_paired_unique_too_long)));
-        printStream.print(String.format("n_paired_unique_valid_trans:%d (%.2f%% of all unique valid pairs)\n", n_paired_unique_valid_trans, (100.0 * n_paired_unique_valid_trans / n_paired_unique_valid)));
-        printStream.print(String.format("n_paired_strange_internal_trans:%d (%.2f%% of all unique valid pairs)\n", n_paired_strange_internal_trans, (100.0 * n_paired_strange_internal_trans / n_paired_unique_valid)));
-        printStream.print(String.format("n_total_trans:%d (%.2f%% of all unique paired read pairs)\n", n_paired_unique_trans, (100.0 * n_paired_unique_trans/n_paired_unique)));
+        printStream.print(String.format("n_paired_unique_un_ligated_trans:%d (%.2f%% of all unique un-ligated pairs)\n", counts.n_paired_unique_un_ligated_trans, (100.0 * counts.n_paired_unique_un_ligated_trans / counts.n_paired_unique_un_ligated)));
+        printStream.print(String.format("n_paired_unique_self_ligated_trans:%d (%.2f%% of all unique self-ligated pairs)\n", counts.n_paired_unique_self_ligated_trans, (100.0 * counts.n_paired_unique_self_ligated_trans / counts.n_paired_unique_self_ligated)));
+        printStream.print(String.format("n_paired_unique_too_short_trans:%d (%.2f%% of all unique valid too short pairs)\n", counts.n_paired_unique_too_short_trans, (100.0 * counts.n_paired_unique_too_short_trans / counts.n_paired_unique_too_short)));
+        printStream.print(String.format("n_paired_unique_too_long_trans:%d (%.2f%% of all unique valid too long pairs)\n", counts.n_paired_unique_too_long_trans, (100.0 * counts.n_paired_unique_too_long_trans / counts.n_paired_unique_too_long)));
+        printStream.print(String.format("n_paired_unique_valid_trans:%d (%.2f%% of all unique valid pairs)\n", counts.n_paired_unique_valid_trans, (100.0 * counts.n_paired_unique_valid_trans / counts.n_paired_unique_valid)));
+        printStream.print(String.format("n_paired_strange_internal_trans:%d (%.2f%% of all unique valid pairs)\n", counts.n_paired_strange_internal_trans, (100.0 * counts.n_paired_strange_internal_trans / counts.n_paired_unique_valid)));
+        printStream.print(String.format("n_total_trans:%d (%.2f%% of all unique paired read pairs)\n", counts.n_paired_unique_trans, (100.0 * counts.n_paired_unique_trans/counts.n_paired_unique)));
 
         printStream.print("\n");
         printStream.print("chimeric_fragment_size_count_array:");
         for(int i=0; i<1000; i++) {
             if (i < 1000 - 1) {
-                printStream.print(fragSizesChimericPairs[i] + ", ");
+                printStream.print(counts.fragSizesChimericPairs[i] + ", ");
             } else {
-                printStream.print(fragSizesChimericPairs[i] + "\n");
+                printStream.print(counts.fragSizesChimericPairs[i] + "\n");
             }
         }
         printStream.print("\n");
         printStream.print("chimeric_fragment_size_active_count_array:");
         for(int i=0; i<1000; i++) {
             if (i < 1000 - 1) {
-                printStream.print(fragSizesActiveChimericPairs[i] + ", ");
+                printStream.print(counts.fragSizesActiveChimericPairs[i] + ", ");
             } else {
-                printStream.print(fragSizesActiveChimericPairs[i] + "\n");
+                printStream.print(counts.fragSizesActiveChimericPairs[i] + "\n");
             }
         }
         printStream.print("\n");
         printStream.print("un_ligated_fragment_size_count_array:");
         for(int i=0; i<1000; i++) {
             if (i < 1000 - 1) {
-                printStream.print(fragSizesUnLigatedPairs[i] + ", ");
+                printStream.print(counts.fragSizesUnLigatedPairs[i] + ", ");
             } else {
-                printStream.print(fragSizesUnLigatedPairs[i] + "\n");
+                printStream.print(counts.fragSizesUnLigatedPairs[i] + "\n");
             }
         }
         printStream.print("\n");
         printStream.print("self_ligated_fragment_size_count_array:");
         for(int i=0; i<FRAG_SIZE_LIMIT; i++) {
             if (i < FRAG_SIZE_LIMIT - 1) {
-                printStream.print(fragSizesSelfLigatedSameInternalPairs[i] + ", ");
+                printStream.print(counts.fragSizesSelfLigatedSameInternalPairs[i] + ", ");
 
             } else {
-                printStream.print(fragSizesSelfLigatedSameInternalPairs[i]);
+                printStream.print(counts.fragSizesSelfLigatedSameInternalPairs[i]);
 
             }
         }
@@ -693,18 +946,18 @@ public class Aligner {
         int cnt = 0;
         int trans_cnt=0;
         int cis_cnt=0;
-        for (String chromosome : transCounts.keySet()) {
+        for (String chromosome : counts.transCounts.keySet()) {
             if(chromosome.equals("chrM") || chromosome.equals("chrY")) {continue;}
-            double chr_clc = 1.0*transCounts.get(chromosome)/(cisCounts.get(chromosome)+transCounts.get(chromosome));
+            double chr_clc = 1.0*counts.transCounts.get(chromosome)/(counts.cisCounts.get(chromosome)+counts.transCounts.get(chromosome));
             if(cnt==0) {
                 printStream.print("{\"name\"%\"" + chromosome + "\", \"x\"%" + String.format("%.2f", chr_clc) + ",\"y\"%" + digestMap.getDigestMap().get(chromosome).getNumOfDigestsForChromosome() + "}");
                 cnt++;
             } else {
                 printStream.print(", {\"name\"%\"" + chromosome + "\", \"x\"%" + String.format("%.2f", chr_clc) + ",\"y\"%" + digestMap.getDigestMap().get(chromosome).getNumOfDigestsForChromosome() + "}");
             }
-            trans_cnt = trans_cnt + transCounts.get(chromosome);
-            cis_cnt = cis_cnt + cisCounts.get(chromosome);
-            //logger.trace(chromosome + "\t" + transCounts.get(chromosome) + "\t" + cisCounts.get(chromosome) + "\t" + digestMap.getDigestMap().get(chromosome).getNumOfDigestsForChromosome());
+            trans_cnt = trans_cnt + counts.transCounts.get(chromosome);
+            cis_cnt = cis_cnt + counts.cisCounts.get(chromosome);
+            //logger.trace(chromosome + "\t" + counts.transCounts.get(chromosome) + "\t" + counts.cisCounts.get(chromosome) + "\t" + digestMap.getDigestMap().get(chromosome).getNumOfDigestsForChromosome());
         }
         printStream.print("]\n\n");
         double global_clc = 1.0*trans_cnt/(trans_cnt + cis_cnt);
@@ -721,5 +974,6 @@ public class Aligner {
         outputBAMrejected = String.format("%s.%s", outputPathPrefix, "rejected_pairs.aligned.bam");
         outputFragSizesCountsRscript = String.format("%s.%s", outputPathPrefix, "frag.sizes.counts.script.R");
         outputTxtStats = String.format("%s.%s", outputPathPrefix, "align.stats.txt");
+        outputPairs = String.format("%s.%s", outputPathPrefix, "valid_pairs.pairs.gz");
     }
 }
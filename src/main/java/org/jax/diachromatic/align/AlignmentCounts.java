@@ -0,0 +1,331 @@
+package org.jax.diachromatic.align;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts of the read pairs processed by {@link Aligner}, which are written to the stats file by
+ * {@link Aligner#printStatistics()}. {@link #count(ReadPair, DuplicateFilter)} categorizes a single read pair; if the
+ * read pairs are processed in several shards, each shard has its own object, and the counts are summed up with
+ * {@link #add(AlignmentCounts)}.
+ */
+public class AlignmentCounts {
+    private static final Logger logger = LoggerFactory.getLogger(AlignmentCounts.class);
+
+    /** Return values of {@link #count(ReadPair, DuplicateFilter)}. */
+    static final int SKIPPED = 0;
+    static final int VALID = 1;
+    static final int REJECTED = 2;
+
+    /**
+     * Total number of truncated read pairs that passed to Diachromatic with the subcommand align.
+     */
+    int n_total_input_read_pairs = 0;
+
+    /**
+     * Numbers of unmapped forward and reverse reads (SAM flag==4 for unmapped). Note: SAM flag is also 4 for the
+     * reverse read, because the reads are mapped independently as single-end reads.
+     */
+    int n_unmapped_R1 = 0;
+    int n_unmapped_R2 = 0;
+
+    /**
+     * Number of read pairs for which at least one read is unmapped.
+     */
+    int  n_unmappedPair = 0;
+
+    /**
+     * Numbers of forward and reverse reads that were multi-mapped (had an XS tag).
+     */
+    int n_multimapped_R1 = 0;
+    int n_multimapped_R2 = 0;
+
+    /**
+     * Number of read pairs for which at least one read is multi-mapped.
+     */
+    int n_multimappedPair = 0;
+
+    /**
+     * Number of paired pairs, i.e. read pairs for which both reads can be mapped uniquely.
+     */
+    int n_paired = 0;
+
+    /**
+     * Number of unique paired pairs, i.e. same as 'n_paired' but after removal of duplicates.
+     */
+    int n_paired_unique = 0;
+
+    /**
+     * Number of duplicated read pairs that were removed.
+     */
+    int n_paired_duplicated = 0;
+
+    /**
+     * Count variables for disjoint read pair categories (see documentation on read the docs).
+     */
+    int n_paired_unique_un_ligated = 0;
+    int n_paired_unique_un_ligated_same_internal = 0;
+    int n_paired_unique_self_ligated = 0;
+    int n_paired_unique_self_ligated_same_internal = 0;
+    int n_paired_unique_too_short = 0;
+    int n_paired_unique_too_long = 0;
+    int n_paired_unique_valid = 0;
+    int n_paired_strange_internal = 0;
+
+    /**
+     * Number trans read pairs, i.e. the two reads of a given pair map to different chromosomes. Trans read pairs are
+     * counted after removal of duplicates only. Trans read pairs cannot be un-ligated or self-ligated by definition.
+     */
+    int n_paired_unique_trans = 0;
+
+    /**
+     * Number of dangling end read pairs. A read pairs is categorized as dangling end pair if the 5' end position of at
+     * least one of the two reads occurs at a distance of at most DANGLING_THRESHOLD = 7 from the next restriction
+     * enzyme cutting site. Dangling end read pairs are counted after removal of duplicates only. Dangling end read
+     * pairs may occur in all read pair categories.
+     */
+    int n_paired_unique_dangling = 0;
+
+    /**
+     * Additional experimental count variable for more detailed characterization and sanity checks.
+     */
+    int n_paired_unique_un_ligated_dangling = 0;
+    int n_paired_unique_self_ligated_dangling = 0;
+    int n_paired_unique_too_short_dangling = 0;
+    int n_paired_unique_too_long_dangling = 0;
+    int n_paired_unique_valid_dangling = 0;
+    int n_paired_strange_internal_dangling = 0;
+
+    int n_paired_unique_un_ligated_trans = 0; // should never be incremented
+    int n_paired_unique_self_ligated_trans = 0; // should never be incremented
+    int n_paired_unique_too_short_trans = 0;
+    int n_paired_unique_too_long_trans = 0;
+    int n_paired_unique_valid_trans = 0;
+    int n_paired_strange_internal_trans = 0;
+
+    /**
+     * Arrays that represent size distributions.
+     */
+    final int[] fragSizesChimericPairs =  new int[Aligner.FRAG_SIZE_LIMIT+1];
+    final int[] fragSizesActiveChimericPairs =  new int[Aligner.FRAG_SIZE_LIMIT+1];
+    final int[] fragSizesUnLigatedPairs =  new int[Aligner.FRAG_SIZE_LIMIT+1];
+    final int[] fragSizesSelfLigatedSameInternalPairs =  new int[Aligner.FRAG_SIZE_LIMIT+1];
+
+    /**
+     * HasMap for Trans/Cis ratio
+     */
+    final Map<String, Integer> cisCounts = new HashMap<>();
+    final Map<String, Integer> transCounts = new HashMap<>();
+
+    /**
+     * Count a read pair, including the check for duplicates, and decide in which BAM file it is written.
+     *
+     * @param pair the read pair
+     * @param dedup_map duplicate removal for the read pairs of this object
+     * @return {@link #VALID} or {@link #REJECTED} for unique paired read pairs, {@link #SKIPPED} for all others
+     */
+    public int count(ReadPair pair, DuplicateFilter dedup_map) throws IOException {
+        n_total_input_read_pairs++;
+
+        if(n_total_input_read_pairs%1000000==0) {
+            logger.trace("n_total_input_read_pairs: " + n_total_input_read_pairs);
+        }
+
+        if(dedup_map.getNumOfInsertions()%1000000==0 && 0<dedup_map.getNumOfInsertions()) {
+            logger.trace("dedup_map.getNumOfInsertions(): " + dedup_map.getNumOfInsertions());
+        }
+
+        // first check whether both reads were mapped uniquely
+        if (pair.isUnMappedR1()) {
+            n_unmapped_R1++;
+        }
+        if (pair.isUnMappedR2()) {
+            n_unmapped_R2++;
+        }
+        if (pair.isUnMappedR1() || pair.isUnMappedR2()) {
+            n_unmappedPair++;
+        }
+        if (pair.isMultiMappedR1()) {
+            n_multimapped_R1++;
+        }
+        if (pair.isMultiMappedR2()) {
+            n_multimapped_R2++;
+        }
+        if (pair.isMultiMappedR1() || pair.isMultiMappedR2()) {
+            n_multimappedPair++;
+        }
+
+        // Note: Read pairs with unmapped or multi-mapped reads remain unpaired
+
+        // count categories of paired pairs
+        if(pair.isPaired()) {
+
+            n_paired++;
+
+            // de-duplication starts with paired pairs
+            if(dedup_map.hasSeen(pair)) {
+                n_paired_duplicated++;
+                return SKIPPED;
+            }
+
+            n_paired_unique++;
+
+            ReadPair.ReadPairCategory category = pair.getCategory();
+            boolean valid = category == ReadPair.ReadPairCategory.VALID_PAIR;
+            switch (category) {
+                case VALID_PAIR: n_paired_unique_valid++; break;
+                case UN_LIGATED: n_paired_unique_un_ligated++; break;
+                case UN_LIGATED_SAME_INTERNAL: n_paired_unique_un_ligated_same_internal++; break;
+                case SELF_LIGATED: n_paired_unique_self_ligated++; break;
+                case SELF_LIGATED_SAME_INTERNAL: n_paired_unique_self_ligated_same_internal++; break;
+                case VALID_TOO_SHORT: n_paired_unique_too_short++; break;
+                case VALID_TOO_LONG: n_paired_unique_too_long++; break;
+                case STRANGE_INTERNAL: n_paired_strange_internal++; break;
+            }
+
+            if(pair.isDanglingEnd()) {
+                n_paired_unique_dangling++;
+                switch (category) {
+                    case VALID_PAIR: n_paired_unique_valid_dangling++; break;
+                    case UN_LIGATED: n_paired_unique_un_ligated_dangling++; break;
+                    case SELF_LIGATED: n_paired_unique_self_ligated_dangling++; break;
+                    case VALID_TOO_SHORT: n_paired_unique_too_short_dangling++; break;
+                    case VALID_TOO_LONG: n_paired_unique_too_long_dangling++; break;
+                    case STRANGE_INTERNAL: n_paired_strange_internal_dangling++; break;
+                    default: break;
+                }
+            }
+
+            if(pair.isTrans()) {
+                n_paired_unique_trans++;
+                switch (category) {
+                    case VALID_PAIR: n_paired_unique_valid_trans++; break;
+                    case UN_LIGATED: n_paired_unique_un_ligated_trans++; break;
+                    case SELF_LIGATED: n_paired_unique_self_ligated_trans++; break;
+                    case VALID_TOO_SHORT: n_paired_unique_too_short_trans++; break;
+                    case VALID_TOO_LONG: n_paired_unique_too_long_trans++; break;
+                    case STRANGE_INTERNAL: n_paired_strange_internal_trans++; break;
+                    default: break;
+                }
+                if(valid) { // count trans/cis for chromosome-wise CLC
+                    if(transCounts.containsKey(pair.getReferenceSequenceOfR1())) {
+                        transCounts.put(pair.getReferenceSequenceOfR1(),transCounts.get(pair.getReferenceSequenceOfR1())+1);
+                    } else {
+                        transCounts.put(pair.getReferenceSequenceOfR1(),1);
+                        if(!cisCounts.containsKey(pair.getReferenceSequenceOfR1())) {
+                            cisCounts.put(pair.getReferenceSequenceOfR1(),0);
+                        }
+                    }
+                    if(transCounts.containsKey(pair.getReferenceSequenceOfR2())) {
+                        transCounts.put(pair.getReferenceSequenceOfR2(),transCounts.get(pair.getReferenceSequenceOfR2())+1);
+                    } else {
+                        transCounts.put(pair.getReferenceSequenceOfR2(),1);
+                        if(!cisCounts.containsKey(pair.getReferenceSequenceOfR2())) {
+                            cisCounts.put(pair.getReferenceSequenceOfR2(),0);
+                        }
+                    }
+                }
+            } else {
+                if(valid) {
+                    if (cisCounts.containsKey(pair.getReferenceSequenceOfR1())) {
+                        cisCounts.put(pair.getReferenceSequenceOfR1(), cisCounts.get(pair.getReferenceSequenceOfR1()) + 2);
+                    } else {
+                        cisCounts.put(pair.getReferenceSequenceOfR1(), 2);
+                        if(!transCounts.containsKey(pair.getReferenceSequenceOfR1())) {
+                            transCounts.put(pair.getReferenceSequenceOfR1(),0);
+                        }
+                    }
+                }
+            }
+        } else {
+            return SKIPPED;
+        }
+
+        // count sizes of all chimeric fragments including valid, too short and too long
+        ReadPair.ReadPairCategory category = pair.getCategory();
+        int incrementFragSize = pair.getChimericFragmentSize();
+        if(Aligner.FRAG_SIZE_LIMIT<incrementFragSize) { incrementFragSize = Aligner.FRAG_SIZE_LIMIT; }
+        if(category == ReadPair.ReadPairCategory.VALID_PAIR || category == ReadPair.ReadPairCategory.VALID_TOO_SHORT
+                || category == ReadPair.ReadPairCategory.VALID_TOO_LONG) {
+
+            fragSizesChimericPairs[incrementFragSize]++;
+
+            // count sizes of all active chimeric fragments
+            if((pair.forwardDigestIsActive() & !pair.reverseDigestIsActive()) || (!pair.forwardDigestIsActive() & pair.reverseDigestIsActive())) {
+                fragSizesActiveChimericPairs[incrementFragSize]++;
+            }
+        }
+
+        // count sizes of potentially un-ligated fragments (don't use thresholds to avoid circular argument)
+        if(pair.isInwardFacing() && !pair.isTrans()){
+            incrementFragSize=pair.getDistanceBetweenFivePrimeEnds();
+            if(Aligner.FRAG_SIZE_LIMIT<incrementFragSize) { incrementFragSize = Aligner.FRAG_SIZE_LIMIT; }
+            fragSizesUnLigatedPairs[incrementFragSize]++;
+        }
+
+        // count sizes of potentially un-ligated fragments (don't use thresholds to avoid circular argument)
+        if(category == ReadPair.ReadPairCategory.SELF_LIGATED_SAME_INTERNAL){
+            incrementFragSize=pair.getSelfLigationFragmentSize();
+            if(Aligner.FRAG_SIZE_LIMIT<incrementFragSize) { incrementFragSize = Aligner.FRAG_SIZE_LIMIT; }
+            fragSizesSelfLigatedSameInternalPairs[incrementFragSize]++;
+        }
+
+        return category == ReadPair.ReadPairCategory.VALID_PAIR ? VALID : REJECTED;
+    }
+
+    /**
+     * Add the counts of another object to this one.
+     */
+    void add(AlignmentCounts other) {
+        n_total_input_read_pairs += other.n_total_input_read_pairs;
+        n_unmapped_R1 += other.n_unmapped_R1;
+        n_unmapped_R2 += other.n_unmapped_R2;
+        n_unmappedPair += other.n_unmappedPair;
+        n_multimapped_R1 += other.n_multimapped_R1;
+        n_multimapped_R2 += other.n_multimapped_R2;
+        n_multimappedPair += other.n_multimappedPair;
+        n_paired += other.n_paired;
+        n_paired_unique += other.n_paired_unique;
+        n_paired_duplicated += other.n_paired_duplicated;
+        n_paired_unique_un_ligated += other.n_paired_unique_un_ligated;
+        n_paired_unique_un_ligated_same_internal += other.n_paired_unique_un_ligated_same_internal;
+        n_paired_unique_self_ligated += other.n_paired_unique_self_ligated;
+        n_paired_unique_self_ligated_same_internal += other.n_paired_unique_self_ligated_same_internal;
+        n_paired_unique_too_short += other.n_paired_unique_too_short;
+        n_paired_unique_too_long += other.n_paired_unique_too_long;
+        n_paired_unique_valid += other.n_paired_unique_valid;
+        n_paired_strange_internal += other.n_paired_strange_internal;
+        n_paired_unique_trans += other.n_paired_unique_trans;
+        n_paired_unique_dangling += other.n_paired_unique_dangling;
+        n_paired_unique_un_ligated_dangling += other.n_paired_unique_un_ligated_dangling;
+        n_paired_unique_self_ligated_dangling += other.n_paired_unique_self_ligated_dangling;
+        n_paired_unique_too_short_dangling += other.n_paired_unique_too_short_dangling;
+        n_paired_unique_too_long_dangling += other.n_paired_unique_too_long_dangling;
+        n_paired_unique_valid_dangling += other.n_paired_unique_valid_dangling;
+        n_paired_strange_internal_dangling += other.n_paired_strange_internal_dangling;
+        n_paired_unique_un_ligated_trans += other.n_paired_unique_un_ligated_trans;
+        n_paired_unique_self_ligated_trans += other.n_paired_unique_self_ligated_trans;
+        n_paired_unique_too_short_trans += other.n_paired_unique_too_short_trans;
+        n_paired_unique_too_long_trans += other.n_paired_unique_too_long_trans;
+        n_paired_unique_valid_trans += other.n_paired_unique_valid_trans;
+        n_paired_strange_internal_trans += other.n_paired_strange_internal_trans;
+        for (int i = 0; i < fragSizesChimericPairs.length; i++) {
+            fragSizesChimericPairs[i] += other.fragSizesChimericPairs[i];
+        }
+        for (int i = 0; i < fragSizesActiveChimericPairs.length; i++) {
+            fragSizesActiveChimericPairs[i] += other.fragSizesActiveChimericPairs[i];
+        }
+        for (int i = 0; i < fragSizesUnLigatedPairs.length; i++) {
+            fragSizesUnLigatedPairs[i] += other.fragSizesUnLigatedPairs[i];
+        }
+        for (int i = 0; i < fragSizesSelfLigatedSameInternalPairs.length; i++) {
+            fragSizesSelfLigatedSameInternalPairs[i] += other.fragSizesSelfLigatedSameInternalPairs[i];
+        }
+        other.cisCounts.forEach((chromosome, count) -> cisCounts.merge(chromosome, count, Integer::sum));
+        other.transCounts.forEach((chromosome, count) -> transCounts.merge(chromosome, count, Integer::sum));
+    }
+}
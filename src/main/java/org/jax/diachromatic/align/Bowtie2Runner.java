@@ -6,7 +6,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Runs {@code bowtie2} for the truncated reads of one FASTQ file. The SAM records are written either to a file or to
+ * the standard output, from which they can be read while bowtie2 is running. The other messages of bowtie2 are
+ * written to a log file, so that the process cannot block on a full pipe; the alignment summary is parsed from this
+ * file once bowtie2 finished (see {@link #getSummary()}).
+ */
 public class Bowtie2Runner {
     private static final Logger logger = LoggerFactory.getLogger(Bowtie2Runner.class);
     private String pathToBowtie2;
@@ -19,12 +30,21 @@ public class Bowtie2Runner {
 
     private final int threadNum;
 
-    private String stdin = null;
+    /** File to which the messages of bowtie2 (including the alignment summary) are written. */
+    private final String logPath;
 
-    private String stderr = null;
+    /** The bowtie2 process if it was started with {@link #start()} or {@link #startStreaming()}. */
+    private Process process = null;
+    /** Set to true if the process was killed by {@link #destroy()}, i.e., its exit code does not indicate an error. */
+    private volatile boolean destroyed = false;
 
 
-    public Bowtie2Runner(String bowtiepath, String btIndexPath, String inputFastqPath, String outnam, Integer threadNum) throws DiachromaticException {
+    /**
+     * @param outnam path of the SAM file that is written by bowtie2, or null if the SAM records are to be read from
+     *               the standard output of bowtie2 (see {@link #startStreaming()})
+     * @param logPath path of the file to which the messages of bowtie2 are written
+     */
+    public Bowtie2Runner(String bowtiepath, String btIndexPath, String inputFastqPath, String outnam, Integer threadNum, String logPath) throws DiachromaticException {
         if (! checkBowtie2(bowtiepath) ){
             throw new DiachromaticException("Could not start bowtie");
         }
@@ -34,6 +54,7 @@ public class Bowtie2Runner {
         outname=outnam;
         checkExistenceOfInputFile();
         this.threadNum=threadNum;
+        this.logPath=logPath;
     }
 
 
@@ -65,56 +86,184 @@ public class Bowtie2Runner {
     }
 
     /**
-     * Run bowtie.
+     * @return the bowtie2 command line. If no output file name was passed to the constructor, the alignments are
+     * written to standard output.
+     */
+    private List<String> getCommand() {
+        List<String> args = new ArrayList<>();
+        args.add(pathToBowtie2);
+        args.add("--very-sensitive");
+        //args.add("--no-unal");
+        args.add("-p");
+        args.add(String.valueOf(threadNum));
+        args.add("--reorder"); // keep same order of records as in FASTQ
+        args.add("-x");
+        args.add(pathToBowtieIndex);
+        args.add("-U"); // unpaired reads to be aligned
+        args.add(pathToInputFastq); // Input FASTQ file (just one!)
+        if (outname != null) {
+            args.add("-S");
+            args.add(outname);// summarize name
+        }
+        return args;
+    }
+
+    /**
+     * Start bowtie2 without waiting for it to finish. The SAM records are written to standard output and can be read
+     * from the returned stream, e.g., by {@link Aligner}, so that no temporary SAM file is needed. The standard
+     * error of bowtie2 (including the alignment summary) is written to the log file. Call {@link #waitFor()} or {@link #waitForAll(Bowtie2Runner...)} after the stream was read completely.
      *
-     * @throws DiachromaticException
+     * @return stream of the SAM output of bowtie2
+     * @throws DiachromaticException if bowtie2 cannot be started
      */
-    public void run() throws DiachromaticException {
-        String[] args = new String[11];
-        args[0]=pathToBowtie2;
-        args[1]="--very-sensitive";
-        //args[2]="--no-unal";
-        args[2]="-p";
-        args[3]=String.valueOf(threadNum);
-        args[4]="--reorder"; // keep same order of records as in FASTQ
-        args[5]="-x";
-        args[6]=pathToBowtieIndex;
-        args[7]="-U"; // unpaired reads to be aligned
-        args[8]=pathToInputFastq; // Input FASTQ file (just one!)
-        args[9]="-S";
-        args[10]=outname;// summarize name
-
-
-        String btcomd= String.join(" ", args);
-        logger.trace("Running: "+btcomd);
-
-        String[] dummy=new String[0];
+    public InputStream startStreaming() throws DiachromaticException {
+        if (outname != null) {
+            throw new DiachromaticException("Cannot stream the output of bowtie2 if an output file is given");
+        }
+        startProcess(new ProcessBuilder(getCommand())
+                .redirectError(new File(logPath)));
+        return process.getInputStream();
+    }
+
+    /**
+     * Start bowtie2 without waiting for it to finish, e.g., to align the forward and the reverse reads at the same
+     * time. The SAM records are written to the output file that was passed to the constructor, and the other output
+     * of bowtie2 (including the alignment summary) is written to the log file. Call {@link #waitFor()} or
+     * {@link #waitForAll(Bowtie2Runner...)} to wait for bowtie2 to finish.
+     *
+     * @throws DiachromaticException if bowtie2 cannot be started
+     */
+    public void start() throws DiachromaticException {
+        if (outname == null) {
+            throw new DiachromaticException("No output file was given for bowtie2");
+        }
+        startProcess(new ProcessBuilder(getCommand())
+                .redirectErrorStream(true)
+                .redirectOutput(new File(logPath)));
+    }
+
+    private void startProcess(ProcessBuilder processBuilder) throws DiachromaticException {
+        logger.trace("Running: " + String.join(" ", processBuilder.command()));
+        try {
+            process = processBuilder.start();
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not run bowtie [%s]", e.getMessage()));
+        }
+    }
+
+    /**
+     * Wait for the bowtie2 process that was started by {@link #start()} or {@link #startStreaming()} to finish.
+     *
+     * @throws DiachromaticException if bowtie2 did not finish successfully
+     */
+    public void waitFor() throws DiachromaticException {
+        waitForAll(this);
+    }
+
+    /**
+     * Wait for several bowtie2 processes that run at the same time. As soon as one of the processes fails, the
+     * others are killed, so that a failure of one alignment aborts all of them.
+     *
+     * @param runners runners whose processes were started by {@link #start()} or {@link #startStreaming()}
+     * @throws DiachromaticException if at least one of the processes did not finish successfully. The message lists
+     * the exit codes of all processes that failed (processes that were killed by {@link #destroy()} are not counted
+     * as failed).
+     */
+    public static void waitForAll(Bowtie2Runner... runners) throws DiachromaticException {
+        for (Bowtie2Runner runner : runners) {
+            if (runner.process == null) {
+                throw new DiachromaticException("bowtie2 was not started for " + runner.pathToInputFastq);
+            }
+        }
+        List<Bowtie2Runner> running = new ArrayList<>(List.of(runners));
         try {
-            // we need to provide the Runtime with the directory in which to start
-            // Since we are providing the absolute path of bowtie, we will start in the
-            // current working directory (".").
-            Process process = Runtime.getRuntime().exec(args,dummy,new File("."));
-            BufferedReader stdInput = new BufferedReader(new
-                    InputStreamReader(process.getInputStream()));
-            BufferedReader stdError = new BufferedReader(new
-                    InputStreamReader(process.getErrorStream()));
-            StringBuilder sb = new StringBuilder();
-            String s;
-            while ((s = stdInput.readLine()) != null) {
-                sb.append(s+"\n");
+            while (!running.isEmpty()) {
+                CompletableFuture.anyOf(running.stream()
+                        .map(runner -> runner.process.onExit())
+                        .toArray(CompletableFuture[]::new)).get();
+                List<String> failures = new ArrayList<>();
+                Iterator<Bowtie2Runner> it = running.iterator();
+                while (it.hasNext()) {
+                    Bowtie2Runner runner = it.next();
+                    if (!runner.process.isAlive()) {
+                        it.remove();
+                        int exitCode = runner.process.exitValue();
+                        if (exitCode != 0 && !runner.destroyed) {
+                            failures.add(String.format("%s (exit code %d, see %s)", runner.pathToInputFastq, exitCode, runner.logPath));
+                        }
+                    }
+                }
+                if (!failures.isEmpty()) {
+                    throw new DiachromaticException("bowtie2 failed for " + String.join(", ", failures));
+                }
             }
-            this.stdin=sb.toString();
-            sb = new StringBuilder();
-            while ((s = stdError.readLine()) != null) {
-                sb.append(s+"\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiachromaticException("Interrupted while waiting for bowtie2");
+        } catch (ExecutionException e) {
+            throw new DiachromaticException(String.format("Could not wait for bowtie2 [%s]", e.getMessage()));
+        } finally {
+            // only has an effect for processes that are still running because another one failed
+            for (Bowtie2Runner runner : runners) {
+                runner.destroy();
             }
-            if (sb.length()>0)
-                this.stderr=sb.toString();
-        } catch (IOException e) {
-            String msg = String.format("Could not run bowtie [%s]",e.getMessage());
-            throw new DiachromaticException(msg);
         }
-        System.out.println("STDOUT="+stdin);
-        System.out.println("STDERR="+stderr);
+    }
+
+    /**
+     * Make sure that all of the given bowtie2 processes are killed as soon as one of them fails, without waiting for
+     * them. This is needed if the output of the processes is streamed, because the reader would otherwise block on
+     * the output of the remaining processes.
+     *
+     * @param runners runners whose processes were started by {@link #start()} or {@link #startStreaming()}
+     */
+    public static void destroyAllOnFailure(Bowtie2Runner... runners) {
+        for (Bowtie2Runner runner : runners) {
+            runner.process.onExit().thenAccept(p -> {
+                if (p.exitValue() != 0) {
+                    logger.error("bowtie2 failed for {} (exit code {})", runner.pathToInputFastq, p.exitValue());
+                    for (Bowtie2Runner other : runners) {
+                        other.destroy();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Kill the bowtie2 process that was started by {@link #start()} or {@link #startStreaming()} if it is still
+     * running. Note that {@code bowtie2} is a wrapper script that starts the actual aligner ({@code bowtie2-align-s}),
+     * so the child processes are killed as well.
+     */
+    public void destroy() {
+        if (process != null && process.isAlive()) {
+            destroyed = true;
+            process.descendants().forEach(ProcessHandle::destroy);
+            process.destroy();
+        }
+    }
+
+    /**
+     * Run bowtie2 and wait for it to finish. The SAM records are written to the output file that was passed to the
+     * constructor and the messages of bowtie2 to the log file.
+     *
+     * @throws DiachromaticException if bowtie2 cannot be started or does not finish successfully
+     */
+    public void run() throws DiachromaticException {
+        start();
+        waitFor();
+    }
+
+    /**
+     * @return the alignment summary that bowtie2 wrote to the log file, or null if the log file does not contain an
+     * alignment summary. Must only be called after bowtie2 finished successfully.
+     */
+    public Bowtie2Summary getSummary() {
+        try {
+            return Bowtie2Summary.parse(logPath);
+        } catch (DiachromaticException e) {
+            logger.warn("{} ({})", e.getMessage(), logPath);
+            return null;
+        }
     }
 }
@@ -0,0 +1,117 @@
+package org.jax.diachromatic.align;
+
+import org.jax.diachromatic.exception.DiachromaticException;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The alignment summary that {@code bowtie2} writes to standard error at the end of a run with unpaired reads, e.g.,
+ * <pre>
+ * 10000 reads; of these:
+ *   10000 (100.00%) were unpaired; of these:
+ *     596 (5.96%) aligned 0 times
+ *     9138 (91.38%) aligned exactly 1 time
+ *     266 (2.66%) aligned &gt;1 times
+ * 94.04% overall alignment rate
+ * </pre>
+ * Other lines (e.g., warnings) are ignored.
+ */
+public class Bowtie2Summary {
+
+    private static final Pattern TOTAL = Pattern.compile("^\\s*(\\d+) reads; of these:");
+    private static final Pattern ALIGNED_0 = Pattern.compile("^\\s*(\\d+) \\([0-9.]+%\\) aligned 0 times");
+    private static final Pattern ALIGNED_1 = Pattern.compile("^\\s*(\\d+) \\([0-9.]+%\\) aligned exactly 1 time");
+    private static final Pattern ALIGNED_MULTI = Pattern.compile("^\\s*(\\d+) \\([0-9.]+%\\) aligned >1 times");
+    private static final Pattern OVERALL = Pattern.compile("^\\s*([0-9.]+)% overall alignment rate");
+
+    /** Number of reads that were processed by bowtie2. */
+    private long totalReads = -1;
+    /** Number of reads that could not be aligned. */
+    private long alignedZeroTimes = -1;
+    /** Number of reads with exactly one alignment. */
+    private long alignedExactlyOnce = -1;
+    /** Number of reads with more than one alignment. */
+    private long alignedMoreThanOnce = -1;
+    /** Percentage of aligned reads as reported by bowtie2. */
+    private double overallAlignmentRate = -1.0;
+
+    private Bowtie2Summary() {
+    }
+
+    /**
+     * Parse the alignment summary from the output of bowtie2.
+     *
+     * @throws DiachromaticException if the output does not contain a complete alignment summary
+     */
+    public static Bowtie2Summary parse(BufferedReader reader) throws IOException, DiachromaticException {
+        Bowtie2Summary summary = new Bowtie2Summary();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher m;
+            if ((m = TOTAL.matcher(line)).find()) {
+                summary.totalReads = Long.parseLong(m.group(1));
+            } else if ((m = ALIGNED_0.matcher(line)).find()) {
+                summary.alignedZeroTimes = Long.parseLong(m.group(1));
+            } else if ((m = ALIGNED_1.matcher(line)).find()) {
+                summary.alignedExactlyOnce = Long.parseLong(m.group(1));
+            } else if ((m = ALIGNED_MULTI.matcher(line)).find()) {
+                summary.alignedMoreThanOnce = Long.parseLong(m.group(1));
+            } else if ((m = OVERALL.matcher(line)).find()) {
+                summary.overallAlignmentRate = Double.parseDouble(m.group(1));
+            }
+        }
+        if (summary.totalReads < 0 || summary.alignedZeroTimes < 0 || summary.alignedExactlyOnce < 0
+                || summary.alignedMoreThanOnce < 0 || summary.overallAlignmentRate < 0) {
+            throw new DiachromaticException("Could not find the alignment summary in the output of bowtie2");
+        }
+        return summary;
+    }
+
+    /**
+     * Parse the alignment summary from a file to which the output of bowtie2 was written.
+     */
+    public static Bowtie2Summary parse(String path) throws DiachromaticException {
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            return parse(br);
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not read bowtie2 output %s: %s", path, e.getMessage()));
+        }
+    }
+
+    /**
+     * Write the summary as key:value lines (as used in the stats files) with keys starting with the given prefix,
+     * e.g., {@code bowtie2_R1_aligned_0_times:596 (5.96%)}.
+     */
+    void print(PrintStream printStream, String prefix) {
+        printStream.print(prefix + "reads:" + totalReads + "\n");
+        printStream.print(prefix + "aligned_0_times:" + alignedZeroTimes + String.format(" (%.2f%%)", 100.0 * alignedZeroTimes / totalReads) + "\n");
+        printStream.print(prefix + "aligned_exactly_1_time:" + alignedExactlyOnce + String.format(" (%.2f%%)", 100.0 * alignedExactlyOnce / totalReads) + "\n");
+        printStream.print(prefix + "aligned_more_than_1_time:" + alignedMoreThanOnce + String.format(" (%.2f%%)", 100.0 * alignedMoreThanOnce / totalReads) + "\n");
+        printStream.print(prefix + "overall_alignment_rate:" + String.format("%.2f%%", overallAlignmentRate) + "\n");
+    }
+
+    public long getTotalReads() {
+        return totalReads;
+    }
+
+    public long getAlignedZeroTimes() {
+        return alignedZeroTimes;
+    }
+
+    public long getAlignedExactlyOnce() {
+        return alignedExactlyOnce;
+    }
+
+    public long getAlignedMoreThanOnce() {
+        return alignedMoreThanOnce;
+    }
+
+    public double getOverallAlignmentRate() {
+        return overallAlignmentRate;
+    }
+}
@@ -1,14 +1,16 @@
 package org.jax.diachromatic.align;
 
 import htsjdk.samtools.util.Log;
+import org.jax.diachromatic.util.LongHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
-public class DeDupMap {
+/**
+ * Duplicate removal that keeps all unique read pairs in memory. See {@link ExternalDeDup} for large libraries.
+ */
+public class DeDupMap implements DuplicateFilter {
     private static final Logger logger = LoggerFactory.getLogger(DeDupMap.class);
     private static final htsjdk.samtools.util.Log log = Log.getInstance(Aligner.class);
 
@@ -28,21 +30,26 @@ public class DeDupMap {
     private int first_coord_num, second_coord_num;
 
     /**
-     *
+     * If true, read pairs with the same 5' end positions but a different relative orientation are not considered as
+     * duplicates.
      */
     private boolean useRelativeOrientation;
 
     /**
-     * Core structure of this class is a HashMap
-     *
-     * Keys: pairs of chromosome names, e.g. chr1:chr2 (lexicographical smaller comes always first)
-     * Values: Another HashMap. Key is the coordinate of the lexicographical smaller reference (chr1). Value is a set
-     * of integers, which are the coordinates of the lexicographical larger references (chr2).
+     * Core structure of this class. For each pair of reference sequences (chromosomes), the 5' end positions and the
+     * orientation code of the read pairs that were seen are packed into a {@code long} (see
+     * {@link #packPositions(int, int, int)}) and stored in a primitive hash set, so that no objects are allocated per
+     * read pair. The sets are indexed by the reference indices of the two reads (smaller index first); the inner arrays
+     * are allocated when the first read pair for a reference sequence is seen.
      */
-    private HashMap<String, Set<ReadPairCoordinates>> dedupmap2;
+    private LongHashSet[][] positionSets;
+
+    /** Number of pairs of reference sequences for which read pairs were seen. */
+    private int chrPairNum;
 
-    DeDupMap(boolean useRelativeOrientation) {
-        dedupmap2 = new  HashMap<>();
+    public DeDupMap(boolean useRelativeOrientation) {
+        positionSets = new LongHashSet[0][];
+        chrPairNum = 0;
         query_num = 0;
         insertion_num = 0;
         first_coord_num = 0;
@@ -50,94 +57,111 @@ public class DeDupMap {
         this.useRelativeOrientation=useRelativeOrientation;
     }
 
+    @Override
     public boolean hasSeen(ReadPair readPair) {
-
-        query_num++;
-
-        String stringKey;
-        Integer fp1;
-        Integer fp2;
-
-        if(readPair.isTrans()) {
-            // if reads are on different chromosomes, read with lexicographically smaller reference ID comes always first
-            if(readPair.forward().getReferenceName().compareTo(readPair.reverse().getReferenceName())<0) {
-                stringKey = readPair.getReferenceSequenceOfR1();
-                stringKey += readPair.getReferenceSequenceOfR2();
-                fp1 = readPair.getFivePrimeEndPosOfR1();
-                fp2 = readPair.getFivePrimeEndPosOfR2();
-
-            }
-            else {
-                stringKey = readPair.getReferenceSequenceOfR2();
-                stringKey += readPair.getReferenceSequenceOfR1();
-                fp1 = readPair.getFivePrimeEndPosOfR2();
-                fp2 = readPair.getFivePrimeEndPosOfR1();
-            }
-        } else {
-            // if reads are on the same chromosome, read with smaller coordinate ID comes always first
-            if(readPair.getFivePrimeEndPosOfR1()<readPair.getFivePrimeEndPosOfR2()) {
-                stringKey = readPair.getReferenceSequenceOfR1();
-                stringKey += readPair.getReferenceSequenceOfR2();
-                fp1 = readPair.getFivePrimeEndPosOfR1();
-                fp2 = readPair.getFivePrimeEndPosOfR2();
-            }
-            else {
-                stringKey = readPair.getReferenceSequenceOfR1();
-                stringKey += readPair.getReferenceSequenceOfR2();
-                fp1 = readPair.getFivePrimeEndPosOfR2();
-                fp2 = readPair.getFivePrimeEndPosOfR1();
-            }
-        }
-
          /*
           * Also care about relative orientation of read pair, i.e. two read pairs with identical coordinates
           * (reference names and 5' end positions) but different relative orientation are not regarded as
           * duplicated.
           */
-         int readPairOrientation = 0;
-        if(useRelativeOrientation) {
-            if (readPair.getRelativeOrientationTag().equals("F1R2") || readPair.getRelativeOrientationTag().equals("F2R1")) {
-                readPairOrientation = 1;
-            }
-            if (readPair.getRelativeOrientationTag().equals("R1F2") || readPair.getRelativeOrientationTag().equals("R2F1")) {
-                readPairOrientation = 2;
-            }
-            if (readPair.getRelativeOrientationTag().equals("F1F2") || readPair.getRelativeOrientationTag().equals("F2F1")) {
-                readPairOrientation = 3;
-            }
-            if (readPair.getRelativeOrientationTag().equals("R1R2") || readPair.getRelativeOrientationTag().equals("R2R1")) {
-                readPairOrientation = 4;
-            }
+        int readPairOrientation = useRelativeOrientation ? getOrientationCode(readPair) : 0;
+        return hasSeen(readPair.forward().getReferenceIndex(), readPair.getFivePrimeEndPosOfR1(),
+                readPair.reverse().getReferenceIndex(), readPair.getFivePrimeEndPosOfR2(), readPairOrientation);
+    }
+
+    /**
+     * @return code of the relative orientation of the reads of a pair (0-3), where the two orientations that are
+     * equivalent if the reads are swapped (e.g., F1R2 and F2R1) have the same code
+     */
+    static int getOrientationCode(ReadPair readPair) {
+        return readPair.getRelativeOrientation().getSwapInvariantCode();
+    }
+
+    /**
+     * Check whether a read pair with the same reference sequences, 5' end positions and orientation was seen before,
+     * and remember this read pair. The order of the two reads does not matter.
+     *
+     * @param refIndex1 reference index of the first read
+     * @param fivePrimePos1 5' end position of the first read
+     * @param refIndex2 reference index of the second read
+     * @param fivePrimePos2 5' end position of the second read
+     * @param orientation code of the relative orientation of the reads (0-3), or 0 if the orientation is not used
+     * @return true if the read pair is a duplicate
+     */
+    public boolean hasSeen(int refIndex1, int fivePrimePos1, int refIndex2, int fivePrimePos2, int orientation) {
+        query_num++;
+        // read with the smaller reference index (or, on the same reference, with the smaller position) comes first
+        if (refIndex1 > refIndex2 || (refIndex1 == refIndex2 && fivePrimePos1 > fivePrimePos2)) {
+            int tmp = refIndex1;
+            refIndex1 = refIndex2;
+            refIndex2 = tmp;
+            tmp = fivePrimePos1;
+            fivePrimePos1 = fivePrimePos2;
+            fivePrimePos2 = tmp;
         }
-        ReadPairCoordinates rpc = new ReadPairCoordinates(fp1, fp2, readPairOrientation);
-
-        if(dedupmap2.containsKey(stringKey)) {
-            // a read pair with this pair of chromosomes has already been seen
-            if (dedupmap2.get(stringKey).add(rpc)) {
-                insertion_num++;
-                return false;
-            } else {
-                return true;
-            }
-        } else {
-            // this is the first read pair with this pair of chromosomes
-            Set<ReadPairCoordinates> newSet = new HashSet<>(); // create new integer set
-            newSet.add(rpc);
-            dedupmap2.put(stringKey,newSet);
+        if (getPositionSet(refIndex1, refIndex2).add(packPositions(fivePrimePos1, fivePrimePos2, orientation))) {
             insertion_num++;
             return false;
+        } else {
+            return true;
         }
     }
 
-    /** @return Number of keys used to kep track of chromosome interaction combinations, e.g., chr1chr23 means chromosome 1-chromosome2-orientation 3.*/
+    /**
+     * Pack two 5' end positions (31 bits each, i.e., any position of a SAM record) and the orientation code (2 bits)
+     * into a single {@code long}.
+     */
+    static long packPositions(int fivePrimePos1, int fivePrimePos2, int orientation) {
+        return ((long) fivePrimePos1 << 33) | ((fivePrimePos2 & 0x7fffffffL) << 2) | (orientation & 3);
+    }
+
+    private LongHashSet getPositionSet(int refIndex1, int refIndex2) {
+        if (refIndex1 >= positionSets.length) {
+            positionSets = Arrays.copyOf(positionSets, refIndex1 + 1);
+        }
+        LongHashSet[] sets = positionSets[refIndex1];
+        if (sets == null || refIndex2 >= sets.length) {
+            sets = sets == null ? new LongHashSet[refIndex2 + 1] : Arrays.copyOf(sets, refIndex2 + 1);
+            positionSets[refIndex1] = sets;
+        }
+        LongHashSet set = sets[refIndex2];
+        if (set == null) {
+            set = new LongHashSet();
+            sets[refIndex2] = set;
+            chrPairNum++;
+        }
+        return set;
+    }
+
+    /** @return Number of keys used to kep track of chromosome interaction combinations, i.e., the number of pairs of chromosomes for which read pairs were seen.*/
     public int getNumOfChrPairKeys() {
-        return dedupmap2.size();
+        return chrPairNum;
+    }
+
+    /**
+     * @return approximate number of bytes used by this object to store the read pairs
+     */
+    @Override
+    public long getMemoryFootprint() {
+        long bytes = 16L + 8L * positionSets.length;
+        for (LongHashSet[] sets : positionSets) {
+            if (sets != null) {
+                bytes += 16L + 8L * sets.length;
+                for (LongHashSet set : sets) {
+                    if (set != null) {
+                        bytes += set.getMemoryFootprint();
+                    }
+                }
+            }
+        }
+        return bytes;
     }
 
     public int getNumOfQueries() {
         return query_num;
     }
 
+    @Override
     public int getNumOfInsertions() {
         return insertion_num;
     }
@@ -159,6 +183,7 @@ public class DeDupMap {
         logger.trace("getNumOfInsertions(): " + getNumOfInsertions());
         logger.trace("getNumOfFirstCoords(): " + getNumOfFirstCoords());
         logger.trace("getNumOfSecondCoords(): " + getNumOfSecondCoords());
+        logger.trace("getMemoryFootprint(): " + getMemoryFootprint());
         logger.trace("" );
     }
 }
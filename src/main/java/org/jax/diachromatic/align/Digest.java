@@ -42,6 +42,9 @@ public class Digest {
     /** If true, then this digest has been selected for enrichment by a capture probe. */
     private boolean active = false;
 
+    /** Index of this digest among the digests of all chromosomes of a {@link DigestMap}, or -1. */
+    private int index = -1;
+
 
     private final static int CHROMOSOME_INDEX=0;
     private final static int DIGEST_START_POSITION_INDEX=1;
@@ -91,6 +94,29 @@ public class Digest {
         three_prime_probe_count =Integer.parseInt(fields[THREE_PRIME_PROBE_COUNT_INDEX]);
     }
 
+    /**
+     * Create a digest from values that were already parsed, e.g., from a {@link DigestIndex} file. The arguments
+     * correspond to the columns of the GOPHER digest file.
+     */
+    Digest(String chromosome, int startPosition, int endPosition, int number, String fivePrimeSite,
+           String threePrimeSite, int length, double fivePrimeGC, double threePrimeGC, double fivePrimeRepeat,
+           double threePrimeRepeat, boolean selected, int fivePrimeProbeCount, int threePrimeProbeCount) {
+        this.chromosome = chromosome;
+        this.digestStartPosition = startPosition;
+        this.digestEndPosition = endPosition;
+        this.digesttNumber = number;
+        this.fivePrimeRestrictionSite = fivePrimeSite;
+        this.threePrimeRestrictionSite = threePrimeSite;
+        this.digestLength = length;
+        this.five_prime_GC = fivePrimeGC;
+        this.three_prime_GC = threePrimeGC;
+        this.five_prime_repeat = fivePrimeRepeat;
+        this.three_prime_repeat = threePrimeRepeat;
+        this.active = selected;
+        this.five_prime_probe_count = fivePrimeProbeCount;
+        this.three_prime_probe_count = threePrimeProbeCount;
+    }
+
 
 
 
@@ -101,6 +127,18 @@ public class Digest {
         return chromosome;
     }
 
+    /**
+     * @return index of this digest among the digests of all chromosomes of the {@link DigestMap} that contains it
+     * (from 0 to {@link DigestMap#getNumOfDigests()} - 1), or -1 if it was not added to a map
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
     public int getDigestStartPosition() {
         return digestStartPosition;
     }
@@ -113,6 +151,11 @@ public class Digest {
         return digesttNumber;
     }
 
+    /** @return the length as given in the digest file (see {@link #getSize()} for the length from the positions) */
+    int getDigestLength() {
+        return digestLength;
+    }
+
     public String getFivePrimeRestrictionSite() {
         return fivePrimeRestrictionSite;
     }
@@ -0,0 +1,265 @@
+package org.jax.diachromatic.align;
+
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary version of a GOPHER digest file that is created once with the {@code digest-index} command and then read by
+ * {@link DigestMap} instead of the text file, so that the 14 columns of each line do not have to be split and parsed
+ * on every run. The file (big-endian) consists of
+ * <ol>
+ *     <li>a header with a magic number, the format version, the length, modification time and CRC32C checksum of the
+ *     digest file it was created from, and the names of the chromosomes and restriction sites,</li>
+ *     <li>a table with the chromosome name, number of digests and file offset of each block of consecutive digests on
+ *     the same chromosome, and</li>
+ *     <li>for each block, one record of {@link #RECORD_SIZE} bytes per digest with the remaining columns.</li>
+ * </ol>
+ * The digests are stored in the order of the digest file, so that {@link DigestMap} numbers them in the same way no
+ * matter whether it reads the digest file or the index. The records of each block are memory-mapped and decoded
+ * without creating intermediate strings. If the digest file is changed after the index was created, the index is
+ * ignored.
+ */
+public final class DigestIndex {
+    private static final Logger logger = LoggerFactory.getLogger(DigestIndex.class);
+    /** Extension that is appended to the path of the digest file to get the default path of the index. */
+    public static final String EXTENSION = ".didx";
+    /** "DIACDIGX" */
+    private static final long MAGIC = 0x4449414344494758L;
+    private static final int VERSION = 2;
+    /**
+     * Start, end, number and length (4 ints), restriction sites (2 unsigned shorts), GC and repeat content
+     * (4 doubles), selected (1 byte) and probe counts (2 ints).
+     */
+    static final int RECORD_SIZE = 4 * 4 + 2 * 2 + 4 * 8 + 1 + 2 * 4;
+    private static final int CHECKSUM_BUFFER_SIZE = 1 << 20;
+
+    private DigestIndex() {
+    }
+
+    /** @return the path where {@link DigestMap} looks for the index of the given digest file */
+    public static String getDefaultIndexPath(String digestFilePath) {
+        return digestFilePath + EXTENSION;
+    }
+
+    /** Length, modification time and checksum of the digest file that an index was created from. */
+    private static final class Header {
+        private final long sourceLength;
+        private final long sourceLastModified;
+        private final long sourceChecksum;
+        private final String[] names;
+
+        private Header(long sourceLength, long sourceLastModified, long sourceChecksum, String[] names) {
+            this.sourceLength = sourceLength;
+            this.sourceLastModified = sourceLastModified;
+            this.sourceChecksum = sourceChecksum;
+            this.names = names;
+        }
+    }
+
+    /** Consecutive digests of the digest file that are located on the same chromosome. */
+    private static final class Block {
+        private final String chromosome;
+        private final List<Digest> digests = new ArrayList<>();
+
+        private Block(String chromosome) {
+            this.chromosome = chromosome;
+        }
+    }
+
+    /**
+     * Parse a digest file and write its binary index.
+     *
+     * @param digestFilePath path to the GOPHER digest file
+     * @param indexPath path of the index that is written
+     * @return number of digests
+     */
+    public static int write(String digestFilePath, String indexPath) throws DiachromaticException {
+        File source = new File(digestFilePath);
+        long lastModified = source.lastModified();
+        long checksum = checksum(source);
+        List<Digest> digests = DigestMap.readDigests(digestFilePath);
+        // split into blocks of consecutive digests on the same chromosome, keeping the order of the digest file
+        List<Block> blocks = new ArrayList<>();
+        Map<String, Integer> nameIndices = new LinkedHashMap<>();
+        for (Digest digest : digests) {
+            if (blocks.isEmpty() || !blocks.get(blocks.size() - 1).chromosome.equals(digest.getChromosome())) {
+                blocks.add(new Block(digest.getChromosome()));
+            }
+            blocks.get(blocks.size() - 1).digests.add(digest);
+            nameIndices.putIfAbsent(digest.getChromosome(), nameIndices.size());
+            nameIndices.putIfAbsent(digest.getFivePrimeRestrictionSite(), nameIndices.size());
+            nameIndices.putIfAbsent(digest.getThreePrimeRestrictionSite(), nameIndices.size());
+        }
+        if (nameIndices.size() > 0xffff) {
+            throw new DiachromaticException(String.format("Too many chromosome and restriction site names (%d) in %s",
+                    nameIndices.size(), digestFilePath));
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexPath), 1 << 16))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(lastModified);
+            out.writeLong(checksum);
+            out.writeInt(nameIndices.size());
+            for (String name : nameIndices.keySet()) {
+                out.writeUTF(name);
+            }
+            out.writeInt(blocks.size());
+            long offset = out.size() + blocks.size() * (4L + 4L + 8L);
+            for (Block block : blocks) {
+                out.writeInt(nameIndices.get(block.chromosome));
+                out.writeInt(block.digests.size());
+                out.writeLong(offset);
+                offset += (long) block.digests.size() * RECORD_SIZE;
+            }
+            for (Block block : blocks) {
+                for (Digest digest : block.digests) {
+                    out.writeInt(digest.getDigestStartPosition());
+                    out.writeInt(digest.getDigestEndPosition());
+                    out.writeInt(digest.getDigesttNumber());
+                    out.writeInt(digest.getDigestLength());
+                    out.writeShort(nameIndices.get(digest.getFivePrimeRestrictionSite()));
+                    out.writeShort(nameIndices.get(digest.getThreePrimeRestrictionSite()));
+                    out.writeDouble(digest.getFivePrimeGcContent());
+                    out.writeDouble(digest.getThreePrimeGcContent());
+                    out.writeDouble(digest.getFivePrimeRepeatContent());
+                    out.writeDouble(digest.getThreePrimeRepeatContent());
+                    out.writeByte(digest.isSelected() ? 1 : 0);
+                    out.writeInt(digest.getFivePrimeProbeCount());
+                    out.writeInt(digest.getThreePrimeProbeCount());
+                }
+            }
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not write digest index %s: %s", indexPath, e.getMessage()));
+        }
+        logger.trace("Wrote {} digests in {} blocks to {}", digests.size(), blocks.size(), indexPath);
+        return digests.size();
+    }
+
+    /**
+     * Check whether an index was created from the current version of a digest file. The index is up to date if the
+     * length and the modification time of the digest file are the same as when the index was written. Only if the
+     * length is the same but the modification time differs (e.g., because the file was copied or touched), the
+     * checksum of the digest file is computed and compared.
+     *
+     * @return false if the index is stale or cannot be read
+     */
+    public static boolean isUpToDate(String indexPath, String digestFilePath) throws DiachromaticException {
+        File source = new File(digestFilePath);
+        Header header;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath)))) {
+            header = readHeader(in, indexPath);
+        } catch (IOException e) {
+            logger.warn("Could not read digest index {}: {}", indexPath, e.getMessage());
+            return false;
+        }
+        if (header.sourceLength != source.length()) {
+            return false;
+        }
+        if (header.sourceLastModified == source.lastModified()) {
+            return true;
+        }
+        logger.trace("Modification time of {} differs from the one in {}, comparing checksums.", digestFilePath, indexPath);
+        return header.sourceChecksum == checksum(source);
+    }
+
+    /** @return true if the file starts with the magic number of a digest index */
+    public static boolean isIndex(String path) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            return in.readLong() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Header readHeader(DataInputStream in, String indexPath) throws IOException {
+        if (in.readLong() != MAGIC) {
+            throw new IOException(String.format("%s is not a digest index", indexPath));
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported version %d of digest index %s (expected %d)", version,
+                    indexPath, VERSION));
+        }
+        long sourceLength = in.readLong();
+        long sourceLastModified = in.readLong();
+        long sourceChecksum = in.readLong();
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        return new Header(sourceLength, sourceLastModified, sourceChecksum, names);
+    }
+
+    /**
+     * Read the digests from an index. The records of each block are memory-mapped.
+     *
+     * @param indexPath path to an index written by {@link #write(String, String)}
+     * @return the digests, in the order of the digest file
+     */
+    public static List<Digest> read(String indexPath) throws DiachromaticException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath)));
+             FileChannel channel = FileChannel.open(new File(indexPath).toPath(), StandardOpenOption.READ)) {
+            Header header = readHeader(in, indexPath);
+            String[] names = header.names;
+            int blockNum = in.readInt();
+            List<Digest> digests = new ArrayList<>();
+            for (int b = 0; b < blockNum; b++) {
+                String chromosome = names[in.readInt()];
+                int digestNum = in.readInt();
+                long offset = in.readLong();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) digestNum * RECORD_SIZE);
+                readRecords(buffer, chromosome, digestNum, names, digests);
+            }
+            logger.trace("Read {} digests in {} blocks from {}", digests.size(), blockNum, indexPath);
+            return digests;
+        } catch (IOException | IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new DiachromaticException(String.format("Could not read digest index %s: %s", indexPath, e.getMessage()));
+        }
+    }
+
+    private static void readRecords(ByteBuffer buffer, String chromosome, int digestNum, String[] names, List<Digest> digests) {
+        for (int i = 0; i < digestNum; i++) {
+            int start = buffer.getInt();
+            int end = buffer.getInt();
+            int number = buffer.getInt();
+            int length = buffer.getInt();
+            String fivePrimeSite = names[buffer.getChar()];
+            String threePrimeSite = names[buffer.getChar()];
+            double fivePrimeGC = buffer.getDouble();
+            double threePrimeGC = buffer.getDouble();
+            double fivePrimeRepeat = buffer.getDouble();
+            double threePrimeRepeat = buffer.getDouble();
+            boolean selected = buffer.get() != 0;
+            int fivePrimeProbes = buffer.getInt();
+            int threePrimeProbes = buffer.getInt();
+            digests.add(new Digest(chromosome, start, end, number, fivePrimeSite, threePrimeSite, length, fivePrimeGC,
+                    threePrimeGC, fivePrimeRepeat, threePrimeRepeat, selected, fivePrimeProbes, threePrimeProbes));
+        }
+    }
+
+    /** @return the CRC32C checksum of a file */
+    static long checksum(File file) throws DiachromaticException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not read %s: %s", file.getAbsolutePath(), e.getMessage()));
+        }
+        return crc.getValue();
+    }
+}
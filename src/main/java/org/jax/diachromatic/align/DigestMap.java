@@ -1,6 +1,8 @@
 package org.jax.diachromatic.align;
 
 
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
 import org.jax.diachromatic.exception.DiachromaticException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +36,9 @@ import java.util.*;
  *         <li>3'_Probes, e.g., 0</li>
  *     </ol>
  * </p>
+ * The end positions of the digests of each chromosome are stored in an {@code int[]} array that is searched without
+ * boxing. For read pairs, the chromosomes are looked up by the reference index of the SAM records (see
+ * {@link #getDigestPair(SAMRecord, int, SAMRecord, int)}) instead of by name.
  *
  * @author <a href="mailto:peter.robinson@jax.org">Peter Robinson</a>
  * @author <a href="mailto:peter.hansen@charite.de">Peter Hansen</a>
@@ -47,7 +52,112 @@ public class DigestMap {
      */
     private final Map<String, Chromosome2DigestArray> digestMap;
 
+    /** Total number of digests (each chromosome is only counted once, even if it has two names). */
+    private final int digestNum;
+
+    /** All digests, indexed by {@link Digest#getIndex()}. */
+    private final Digest[] digests;
+
+    /**
+     * Chromosome arrays indexed by the reference indices of the SAM sequence dictionaries that were used with this
+     * map, see {@link #getChromosomeArrays(SAMSequenceDictionary)}. Usually, there are one or two dictionaries (the
+     * headers of the SAM files for R1 and R2), so that a linear search by identity is fast. The array is replaced
+     * (never modified) when a dictionary is added, so that it can be read without locking.
+     */
+    private volatile DictionaryIndex[] dictionaryIndices = new DictionaryIndex[0];
+
+    /** The chromosome arrays for the reference sequences of a SAM sequence dictionary. */
+    private static final class DictionaryIndex {
+        private final SAMSequenceDictionary dictionary;
+        /** Indexed by reference index, null for reference sequences without digests. */
+        private final Chromosome2DigestArray[] arrays;
+
+        private DictionaryIndex(SAMSequenceDictionary dictionary, Chromosome2DigestArray[] arrays) {
+            this.dictionary = dictionary;
+            this.arrays = arrays;
+        }
+    }
+
+    /**
+     * Create a map from a GOPHER digest file or from a {@link DigestIndex} file. If an up-to-date index of the digest
+     * file exists at the default path ({@link DigestIndex#getDefaultIndexPath(String)}), the index is read instead.
+     *
+     * @param digestFilePath path to the digest file or its index
+     */
     public DigestMap(String digestFilePath) throws DiachromaticException {
+        this(loadDigests(digestFilePath));
+    }
+
+    /**
+     * Create a map from digests that are sorted by position within each chromosome.
+     *
+     * @param digests all digests of the genome
+     */
+    public DigestMap(List<Digest> digests) {
+        // in the order of the input, so that the digest indices follow the order of the digest file
+        Map<String, Chromosome2DigestArray> prelimMap = new LinkedHashMap<>();
+        for (Digest digest : digests) {
+            prelimMap.computeIfAbsent(digest.getChromosome(), k -> new Chromosome2DigestArray()).addDigest(digest);
+        }
+        // number the digests of all chromosomes consecutively
+        int offset = 0;
+        for (Chromosome2DigestArray array : prelimMap.values()) {
+            array.trim(offset);
+            offset += array.getNumOfDigestsForChromosome();
+        }
+        this.digestNum = offset;
+        this.digests = new Digest[digestNum];
+        for (Chromosome2DigestArray array : prelimMap.values()) {
+            System.arraycopy(array.digestArray, 0, this.digests, array.offset, array.size);
+        }
+
+        if (prelimMap.containsKey("M") && ! prelimMap.containsKey("MT")) {
+            prelimMap.put("MT", prelimMap.get("M"));
+        }
+        if (prelimMap.containsKey("MT") && ! prelimMap.containsKey("M")) {
+            prelimMap.put("M", prelimMap.get("MT"));
+        }
+        if (prelimMap.containsKey("chrM") && ! prelimMap.containsKey("chrMT")) {
+            prelimMap.put("chrMT", prelimMap.get("chrM"));
+        }
+        if (prelimMap.containsKey("chrMT") && ! prelimMap.containsKey("chrM")) {
+            prelimMap.put("chrM", prelimMap.get("chrMT"));
+        }
+        // In some cases, our data uses "chr5" and in others we see just "5".
+        // The following adds some additional references to mitigate this issue
+        for (Map.Entry<String, Chromosome2DigestArray> e : new ArrayList<>(prelimMap.entrySet())) {
+            if (e.getKey().startsWith("chr")) {
+                String newKey = e.getKey().substring(3);
+                prelimMap.put(newKey, e.getValue());
+            } else {
+                String newKey = "chr" + e.getKey();
+                prelimMap.put(newKey, e.getValue());
+            }
+        }
+        this.digestMap = Map.copyOf(prelimMap); // make immutable
+    }
+
+    private static List<Digest> loadDigests(String digestFilePath) throws DiachromaticException {
+        if (DigestIndex.isIndex(digestFilePath)) {
+            return DigestIndex.read(digestFilePath);
+        }
+        String indexPath = DigestIndex.getDefaultIndexPath(digestFilePath);
+        if (new File(indexPath).exists() && new File(digestFilePath).exists()) {
+            if (DigestIndex.isUpToDate(indexPath, digestFilePath)) {
+                logger.trace("Reading digests from index {}.", indexPath);
+                return DigestIndex.read(indexPath);
+            }
+            logger.warn("Ignoring digest index {} because {} was changed after the index was created.", indexPath,
+                    digestFilePath);
+        }
+        return readDigests(digestFilePath);
+    }
+
+    /**
+     * Parse the digest file produced by GOPHER. The names of the chromosomes and restriction sites are shared between
+     * the digests, so that only a few String objects are needed.
+     */
+    static List<Digest> readDigests(String digestFilePath) throws DiachromaticException {
         File f = new File(digestFilePath);
         if (! f.exists()) {
             throw new DiachromaticException(String.format("Could not find digest file at %s.", f.getAbsolutePath() ));
@@ -55,8 +165,9 @@ public class DigestMap {
         else {
             logger.trace("Found digest file at {}.",digestFilePath);
         }
+        List<Digest> digests = new ArrayList<>();
+        Map<String, String> names = new HashMap<>();
         try ( BufferedReader br = new BufferedReader(new FileReader(digestFilePath))){
-            Map<String, Chromosome2DigestArray> prelimMap = new HashMap<>();
             String line;
             while ((line=br.readLine())!=null) {
                 if (line.startsWith("Chromosome")) continue; // the header line
@@ -65,46 +176,55 @@ public class DigestMap {
                     throw new DiachromaticException(String.format("Malformed line with %d fields (required: %d): %s",
                             fields.length,Digest.TOTAL_NUMBER_OF_FIELDS,line ));
                 }
-                Digest digest = new Digest(fields);
-                String chromosome = digest.getChromosome();
-                prelimMap.putIfAbsent(chromosome,new Chromosome2DigestArray());
-                prelimMap.get(chromosome).addDigest(digest);
-            }
-            br.close();
-
-            if (prelimMap.containsKey("M") && ! prelimMap.containsKey("MT")) {
-                prelimMap.put("MT", prelimMap.get("M"));
-            }
-            if (prelimMap.containsKey("MT") && ! prelimMap.containsKey("M")) {
-                prelimMap.put("M", prelimMap.get("MT"));
+                fields[0] = names.computeIfAbsent(fields[0], k -> k); // chromosome
+                fields[4] = names.computeIfAbsent(fields[4], k -> k); // restriction sites
+                fields[5] = names.computeIfAbsent(fields[5], k -> k);
+                digests.add(new Digest(fields));
             }
-            if (prelimMap.containsKey("chrM") && ! prelimMap.containsKey("chrMT")) {
-                prelimMap.put("chrMT", prelimMap.get("chrM"));
-            }
-            if (prelimMap.containsKey("chrMT") && ! prelimMap.containsKey("chrM")) {
-                prelimMap.put("chrM", prelimMap.get("chrMT"));
-            }
-            // In some cases, our data uses "chr5" and in others we see just "5".
-            // The following adds some additional references to mitigate this issue
-            for (Map.Entry<String, Chromosome2DigestArray> e : prelimMap.entrySet()) {
-                if (e.getKey().startsWith("chr")) {
-                    String newKey = e.getKey().substring(3);
-                    prelimMap.put(newKey, e.getValue());
-                } else {
-                    String newKey = "chr" + e.getKey();
-                    prelimMap.put(newKey, e.getValue());
-                }
-            }
-            this.digestMap = Map.copyOf(prelimMap); // make immutable
         } catch (IOException e){
             throw new DiachromaticException(String.format("Could not parse %s: %s",digestFilePath,e.getMessage()));
         }
+        return digests;
     }
 
     public Map<String, Chromosome2DigestArray> getDigestMap() {
         return digestMap;
     }
 
+    /**
+     * Build a bucketed position index for each chromosome (see {@link Chromosome2DigestArray#buildBucketIndex(int)}),
+     * so that a digest is found with one array access and a short linear scan instead of a binary search. The width
+     * of the buckets is the largest power of two that is not larger than the mean digest length, so that the index
+     * needs at most about four bytes per digest. Must be called before the map is used by several threads.
+     */
+    public void buildBucketIndex() {
+        long genomeLength = 0;
+        Set<Chromosome2DigestArray> arrays = Collections.newSetFromMap(new IdentityHashMap<>());
+        arrays.addAll(digestMap.values());
+        for (Chromosome2DigestArray array : arrays) {
+            genomeLength += array.getLength();
+        }
+        long meanLength = Math.max(1, genomeLength / Math.max(1, digestNum));
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(meanLength));
+        for (Chromosome2DigestArray array : arrays) {
+            array.buildBucketIndex(shift);
+        }
+        logger.trace("Built bucket index with buckets of {} bp", 1 << shift);
+    }
+
+    /** @return total number of digests, which is one more than the largest digest index */
+    public int getNumOfDigests() {
+        return digestNum;
+    }
+
+    /**
+     * @param index index of a digest among the digests of all chromosomes (see {@link Digest#getIndex()})
+     * @return the digest with the index
+     */
+    public Digest getDigest(int index) {
+        return digests[index];
+    }
+
 
     /**
      * Get the pair of digests that correspond to the two positions defined by (chrom1,coord1) and (chrom2,coord2)
@@ -123,59 +243,180 @@ public class DigestMap {
         return new DigestPair(digest1, digest2);
     }
 
+    /**
+     * Get the pair of digests that contain the given positions on the reference sequences of two SAM records. The
+     * chromosomes are found by the reference indices of the records; records without header are looked up by name.
+     *
+     * @param record1 SAM record of the forward read
+     * @param coord1 position on the reference sequence of the forward read
+     * @param record2 SAM record of the reverse read
+     * @param coord2 position on the reference sequence of the reverse read
+     * @return DigestPair object corresponding to these position.
+     */
+    public DigestPair getDigestPair(SAMRecord record1, int coord1, SAMRecord record2, int coord2) {
+        return new DigestPair(getDigest(record1, coord1), getDigest(record2, coord2));
+    }
+
+    private Digest getDigest(SAMRecord record, int coord) {
+        if (record.getHeader() == null) {
+            return this.digestMap.get(record.getReferenceName()).getDigestAt(coord);
+        }
+        return getDigest(record.getHeader().getSequenceDictionary(), record.getReferenceIndex(), coord);
+    }
+
+    /**
+     * @param dictionary sequence dictionary of a SAM header
+     * @param refIndex index of a reference sequence of the dictionary
+     * @param coord position on the reference sequence
+     * @return the digest that contains the position
+     */
+    public Digest getDigest(SAMSequenceDictionary dictionary, int refIndex, int coord) {
+        Chromosome2DigestArray[] arrays = getChromosomeArrays(dictionary);
+        Chromosome2DigestArray array = refIndex >= 0 && refIndex < arrays.length ? arrays[refIndex] : null;
+        if (array == null) {
+            throw new IllegalArgumentException(String.format("No digests for reference sequence %d (%s)", refIndex,
+                    refIndex >= 0 && refIndex < dictionary.size() ? dictionary.getSequence(refIndex).getSequenceName() : "?"));
+        }
+        return array.getDigestAt(coord);
+    }
+
+    /**
+     * @return the chromosome arrays indexed by the reference indices of the given dictionary
+     */
+    Chromosome2DigestArray[] getChromosomeArrays(SAMSequenceDictionary dictionary) {
+        for (DictionaryIndex index : dictionaryIndices) {
+            if (index.dictionary == dictionary) {
+                return index.arrays;
+            }
+        }
+        synchronized (this) {
+            DictionaryIndex[] indices = dictionaryIndices;
+            for (DictionaryIndex index : indices) {
+                if (index.dictionary == dictionary) {
+                    return index.arrays;
+                }
+            }
+            Chromosome2DigestArray[] arrays = new Chromosome2DigestArray[dictionary.size()];
+            for (int i = 0; i < arrays.length; i++) {
+                arrays[i] = digestMap.get(dictionary.getSequence(i).getSequenceName());
+            }
+            indices = Arrays.copyOf(indices, indices.length + 1);
+            indices[indices.length - 1] = new DictionaryIndex(dictionary, arrays);
+            dictionaryIndices = indices;
+            return arrays;
+        }
+    }
+
 
     /**
      * This class stores all the digests that are located on one chromosome (or scaffold). It additionally
      * stores an array of locations (the end positions) of each of the digests so that we can find the correct
      * digest given a position quickly using a binary search. The class is intended to be used with a map whose
      * key stores the name of the chromosome; the values of the map are objects of this class (one per chromosome).
+     * <p>
+     * The end positions are stored in a primitive array, so that the search does not need to follow references or
+     * unbox values; the {@link Digest} objects are only used for the result.
      */
     static class Chromosome2DigestArray {
-        /** List of the chromosomal positions of the digests on this chromosome. The end position is stored for each digest.*/
-        private final ArrayList<Integer> coordArray;
-        /** List of {@link Digest} objects corresponding to this chromosome. */
-        private final ArrayList<Digest> digestArray;
+        /** Chromosomal end positions of the digests on this chromosome, in increasing order. */
+        private int[] endArray;
+        /** {@link Digest} objects corresponding to this chromosome. */
+        private Digest[] digestArray;
+        /** Number of digests on this chromosome. */
+        private int size;
+        /** Index of the first digest of this chromosome among the digests of all chromosomes. */
+        private int offset;
+        /**
+         * Optional bucketed position index: entry b is the index of the first digest that ends at or after position
+         * {@code b << bucketShift}. Null if the digests are found by binary search.
+         */
+        private int[] bucketArray = null;
+        /** Binary logarithm of the width of the buckets of {@link #bucketArray}. */
+        private int bucketShift;
 
 
         Chromosome2DigestArray() {
-            coordArray = new ArrayList<>();
-            digestArray = new ArrayList<>();
+            endArray = new int[16];
+            digestArray = new Digest[16];
+            size = 0;
         }
 
         void addDigest(Digest digest) {
-            digestArray.add(digest);
-            coordArray.add(digest.getDigestEndPosition());
+            if (size == endArray.length) {
+                int capacity = 2 * size;
+                endArray = Arrays.copyOf(endArray, capacity);
+                digestArray = Arrays.copyOf(digestArray, capacity);
+            }
+            endArray[size] = digest.getDigestEndPosition();
+            digestArray[size] = digest;
+            size++;
+        }
+
+        /** Release the unused capacity of the arrays after all digests were added. */
+        void trim(int offset) {
+            endArray = Arrays.copyOf(endArray, size);
+            digestArray = Arrays.copyOf(digestArray, size);
+            this.offset = offset;
+            for (int i = 0; i < size; i++) {
+                digestArray[i].setIndex(offset + i);
+            }
         }
 
         /**
-         * Collections.binary search returns the index of a key for a list tyhat is sorted in ascending order.
+         * Arrays.binarySearch returns the index of a key for an array that is sorted in ascending order.
          * If a key is not present, the method returns "(-(insertion point) - 1), whereby the insertion point is
-         * defined as the point at which the key would be inserted into the list. The expression in the
+         * defined as the point at which the key would be inserted into the array. The expression in the
          * "else" statement reverse this. We therefore get the right digest whether the search is made with
          * the actual END POSITION (which is stored in the array) or whether an INTERNAL POSITION is used.
-         * @param coordinate
-         * @return
+         * @param coordinate position on the chromosome
+         * @return index of the digest that contains the position on this chromosome
          */
-        public Digest getDigestAt(int coordinate){
-            int index = Collections.binarySearch(this.coordArray, coordinate);
-            Digest digest;
-            if(0 <= index) {
-                // coord1 is in the list and corresponds to digest end position
-                digest = digestArray.get(index);
-            } else {
-                // coord1 is not in the list and would be inserted at i=(index+1)*(-1)
-                int i = (index+1)*(-1);
-                //logger.trace("index: " + index + " i: " + i);
-                digest = digestArray.get(i);
+        int getDigestIndexAt(int coordinate) {
+            if (bucketArray != null) {
+                int bucket = coordinate >> bucketShift;
+                if (bucket >= bucketArray.length) {
+                    return size; // behind the last digest
+                }
+                int index = bucketArray[bucket];
+                while (index < size && endArray[index] < coordinate) {
+                    index++;
+                }
+                return index;
             }
-            return digest;
+            int index = Arrays.binarySearch(endArray, 0, size, coordinate);
+            return 0 <= index ? index : -(index + 1);
+        }
+
+        /**
+         * Build the bucketed position index {@link #bucketArray} with buckets of {@code 1 << shift} positions.
+         */
+        void buildBucketIndex(int shift) {
+            int[] buckets = new int[size == 0 ? 0 : (endArray[size - 1] >> shift) + 1];
+            int index = 0;
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                int bucketStart = bucket << shift;
+                while (endArray[index] < bucketStart) {
+                    index++;
+                }
+                buckets[bucket] = index;
+            }
+            this.bucketShift = shift;
+            this.bucketArray = buckets;
+        }
+
+        /** @return end position of the last digest, i.e., the length of the chromosome */
+        int getLength() {
+            return size == 0 ? 0 : endArray[size - 1];
+        }
+
+        public Digest getDigestAt(int coordinate){
+            return digestArray[getDigestIndexAt(coordinate)];
         }
 
         public int getNumOfDigestsForChromosome() {
-            return digestArray.size();
+            return size;
         }
 
     }
 
 }
-
@@ -0,0 +1,28 @@
+package org.jax.diachromatic.align;
+
+import java.io.IOException;
+
+/**
+ * Decides which read pairs are duplicates during the pairing step of {@link Aligner}. A read pair is a duplicate if a
+ * read pair with the same reference sequences and 5' end positions (and, optionally, relative orientation) was passed
+ * before; the first of these read pairs is kept.
+ *
+ * @see DeDupMap
+ * @see ExternalDeDup
+ */
+public interface DuplicateFilter {
+
+    /**
+     * Check whether a read pair with the same coordinates was seen before. Must be called once for every paired read
+     * pair, in input order.
+     *
+     * @return true if the read pair is a duplicate
+     */
+    boolean hasSeen(ReadPair readPair) throws IOException;
+
+    /** @return number of unique read pairs that were passed to {@link #hasSeen(ReadPair)} so far */
+    int getNumOfInsertions();
+
+    /** @return approximate number of bytes of memory used for duplicate removal */
+    long getMemoryFootprint();
+}
@@ -0,0 +1,177 @@
+package org.jax.diachromatic.align;
+
+import htsjdk.samtools.SAMRecord;
+import org.jax.diachromatic.util.ExternalRecordSorter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Duplicate removal with a bounded amount of memory for libraries that are too large for {@link DeDupMap}. The read
+ * pairs are processed in two passes over the input:
+ * <ol>
+ * <li>{@link #add(SAMRecord, SAMRecord)} is called with the records of every paired read pair. The coordinates of
+ * the pair (the same packed key as used by {@link DeDupMap}) are stored together with the ordinal number of the pair
+ * in an {@link ExternalRecordSorter}, which writes sorted runs to disk whenever its memory budget is exceeded.
+ * {@link #findDuplicates()} merges the runs, so that read pairs with the same coordinates become adjacent in the
+ * order in which they were added. Within each group, all pairs but the first one are duplicates; their ordinal
+ * numbers are sorted again (on disk if needed).</li>
+ * <li>{@link #hasSeen(ReadPair)} is called for every paired read pair in the same order as in the first pass and
+ * compares the ordinal number of the pair with the next duplicate from the sorted list.</li>
+ * </ol>
+ * As the first read pair of each group is kept, the result is identical to that of {@link DeDupMap}.
+ */
+public class ExternalDeDup implements DuplicateFilter, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ExternalDeDup.class);
+
+    private final boolean useRelativeOrientation;
+    /**
+     * Records of the paired read pairs with the reference indices and the packed positions as keys and the ordinal
+     * number as bytes.
+     */
+    private final ExternalRecordSorter keySorter;
+    private final DataOutputStream keyOutputStream;
+    /** Records with the ordinal numbers of the duplicated read pairs as first key and no bytes. */
+    private final ExternalRecordSorter duplicateSorter;
+    /** Number of read pairs passed to {@link #add(SAMRecord, SAMRecord)}. */
+    private long addedNum = 0;
+
+    /** Duplicated read pairs in increasing order, available after {@link #findDuplicates()}. */
+    private ExternalRecordSorter.Reader duplicates = null;
+    /** Ordinal number of the next duplicated read pair, or -1 if there are no more duplicates. */
+    private long nextDuplicate = -1;
+    /** Number of read pairs passed to {@link #hasSeen(ReadPair)}. */
+    private long queryNum = 0;
+    private int insertionNum = 0;
+
+    /**
+     * @param useRelativeOrientation if true, read pairs with a different relative orientation are not duplicates
+     * @param memoryBudget approximate maximum number of bytes used to buffer the read pairs
+     * @param tmpDir directory for the temporary files (null for the default temporary directory)
+     */
+    public ExternalDeDup(boolean useRelativeOrientation, long memoryBudget, File tmpDir) {
+        this.useRelativeOrientation = useRelativeOrientation;
+        // the two sorters are filled at the same time while the runs of the keys are merged
+        this.keySorter = new ExternalRecordSorter(null, 0, memoryBudget / 2, tmpDir);
+        this.keyOutputStream = new DataOutputStream(keySorter.getOutputStream());
+        this.duplicateSorter = new ExternalRecordSorter(null, 0, memoryBudget / 2, tmpDir);
+    }
+
+    /**
+     * First pass: remember the coordinates of a paired read pair (see {@link ReadPair#isPaired(SAMRecord, SAMRecord,
+     * boolean)}). Only the reference indices, the 5' end positions and the strands of the records are used, so that
+     * no {@link ReadPair} needs to be created.
+     */
+    public void add(SAMRecord record1, SAMRecord record2) throws IOException {
+        int fivePrimePos1 = ReadPair.getFivePrimeEndPosOfRead(record1);
+        int fivePrimePos2 = ReadPair.getFivePrimeEndPosOfRead(record2);
+        int orientation = useRelativeOrientation ? RelativeOrientation.of(record1.getReadNegativeStrandFlag(),
+                record2.getReadNegativeStrandFlag(), fivePrimePos1 <= fivePrimePos2).getSwapInvariantCode() : 0;
+        add(record1.getReferenceIndex(), fivePrimePos1, record2.getReferenceIndex(), fivePrimePos2, orientation);
+    }
+
+    /**
+     * First pass: remember the coordinates of a read pair (see {@link DeDupMap#hasSeen(int, int, int, int, int)}).
+     */
+    public void add(int refIndex1, int fivePrimePos1, int refIndex2, int fivePrimePos2, int orientation) throws IOException {
+        if (duplicates != null) {
+            throw new IllegalStateException("Cannot add read pairs after the duplicates were determined");
+        }
+        if (refIndex1 > refIndex2 || (refIndex1 == refIndex2 && fivePrimePos1 > fivePrimePos2)) {
+            int tmp = refIndex1;
+            refIndex1 = refIndex2;
+            refIndex2 = tmp;
+            tmp = fivePrimePos1;
+            fivePrimePos1 = fivePrimePos2;
+            fivePrimePos2 = tmp;
+        }
+        keySorter.startRecord(((long) refIndex1 << 32) | (refIndex2 & 0xffffffffL),
+                DeDupMap.packPositions(fivePrimePos1, fivePrimePos2, orientation));
+        keyOutputStream.writeLong(addedNum++);
+    }
+
+    /**
+     * Merge the sorted runs of the first pass and determine the duplicated read pairs.
+     */
+    public void findDuplicates() throws IOException {
+        ExternalRecordSorter.Reader keys = keySorter.sort();
+        long previousChromosomes = 0, previousPositions = 0;
+        boolean first = true;
+        while (keys.next()) {
+            if (!first && keys.getKey1() == previousChromosomes && keys.getKey2() == previousPositions) {
+                // same coordinates as the previous record, which has a smaller ordinal number
+                duplicateSorter.startRecord(getOrdinal(keys.getData(), keys.getOffset()), 0);
+            } else {
+                previousChromosomes = keys.getKey1();
+                previousPositions = keys.getKey2();
+                first = false;
+            }
+        }
+        logger.info("Found {} duplicates among {} read pairs ({} runs written to disk)", duplicateSorter.size(),
+                addedNum, keySorter.getRunNum());
+        keySorter.close();
+        duplicates = duplicateSorter.sort();
+        nextDuplicate = duplicates.next() ? duplicates.getKey1() : -1;
+    }
+
+    /** @return the ordinal number that was written to {@link #keyOutputStream} */
+    private static long getOrdinal(byte[] data, int offset) {
+        long ordinal = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            ordinal = (ordinal << 8) | (data[offset + i] & 0xffL);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Second pass: check whether a paired read pair is a duplicate. The read pairs must be passed in the same order as
+     * to {@link #add(SAMRecord, SAMRecord)}; the coordinates of the read pair are not used.
+     */
+    @Override
+    public boolean hasSeen(ReadPair readPair) throws IOException {
+        if (duplicates == null) {
+            throw new IllegalStateException("The duplicates were not determined yet");
+        }
+        if (queryNum++ == nextDuplicate) {
+            nextDuplicate = duplicates.next() ? duplicates.getKey1() : -1;
+            return true;
+        }
+        insertionNum++;
+        return false;
+    }
+
+    /** @return number of read pairs that were passed to {@link #add(SAMRecord, SAMRecord)} */
+    public long getNumOfAddedPairs() {
+        return addedNum;
+    }
+
+    /** @return number of duplicated read pairs, available after {@link #findDuplicates()} */
+    public long getNumOfDuplicates() {
+        return duplicateSorter.size();
+    }
+
+    @Override
+    public int getNumOfInsertions() {
+        return insertionNum;
+    }
+
+    /**
+     * @return the sum of the maximum number of bytes used by the two sorters, which are used at the same time while
+     * the duplicates are determined
+     */
+    @Override
+    public long getMemoryFootprint() {
+        return keySorter.getMemoryFootprint() + duplicateSorter.getMemoryFootprint();
+    }
+
+    /** Delete the temporary files. */
+    @Override
+    public void close() throws IOException {
+        keySorter.close();
+        duplicateSorter.close();
+    }
+}
@@ -0,0 +1,181 @@
+package org.jax.diachromatic.align;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.jax.diachromatic.util.BAMIndexBuilder;
+import org.jax.diachromatic.util.ExternalRecordSorter;
+import org.jax.diachromatic.util.ParallelBlockCompressedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes read pairs in the pairs format of the 4D Nucleome project (version 1.0), compressed with bgzip and
+ * block-sorted, i.e., sorted by the chromosomes of both reads and then by their positions
+ * ({@code #sorted: chr1-chr2-pos1-pos2}). Each line has the columns
+ * {@code readID chr1 pos1 chr2 pos2 strand1 strand2 pair_type frag1 frag2}, where the positions are the 5' end
+ * positions of the reads, {@code pair_type} is {@code UU} (both reads are mapped uniquely) and {@code frag1} and
+ * {@code frag2} are the numbers of the digests of the reads. The two ends of each pair are ordered so that the
+ * first end comes first in the order of the chromosomes of the BAM header ({@code #shape: upper triangle}).
+ * <p>
+ * The pairs are sorted with a bounded amount of memory by an {@link ExternalRecordSorter} and written when the
+ * writer is closed, together with a pairix index for region-pair queries (see {@link #getIndexFile(File)}). The
+ * index has one reference sequence for each pair of chromosomes with the name {@code chr1|chr2}, which is indexed by
+ * {@code pos1}; a query for two regions looks up the pairs of chromosomes and the region of the first end in the
+ * index and filters the lines by the position of the second end. As pairix only supports chromosomes of up to 2^29
+ * bases, no index is written for longer chromosomes.
+ */
+public class PairsFileWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PairsFileWriter.class);
+    /** Extension of the index, which is appended to the path of the pairs file. */
+    public static final String INDEX_EXTENSION = ".px2";
+    static final String COLUMNS = "readID chr1 pos1 chr2 pos2 strand1 strand2 pair_type frag1 frag2";
+    /** Pair type of the 4DN format for pairs whose reads are both mapped uniquely. */
+    private static final String UNIQUE_UNIQUE = "UU";
+    /** Size of the buffer between the compressed blocks and the file. */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+    private final SAMSequenceDictionary dictionary;
+    private final int compressionLevel;
+    private final ExecutorService executor;
+    private final int threadNum;
+    private final ExternalRecordSorter sorter;
+    private final StringBuilder line = new StringBuilder(128);
+    private byte[] lineBytes = new byte[256];
+    private long pairNum = 0;
+    private boolean closed = false;
+
+    /**
+     * @param file pairs file that is written (usually with the extension {@code .pairs.gz})
+     * @param dictionary chromosomes of the reads, in the order used for sorting
+     * @param compressionLevel deflate compression level (0-9)
+     * @param executor thread pool that sorts and compresses the pairs. It is not shut down by this class.
+     * @param threadNum number of threads of the executor
+     * @param memoryBudget approximate maximum number of bytes used for sorting
+     * @param tmpDir directory for the temporary files (null for the default temporary directory)
+     */
+    public PairsFileWriter(File file, SAMSequenceDictionary dictionary, int compressionLevel, ExecutorService executor,
+                           int threadNum, long memoryBudget, File tmpDir) {
+        this.file = file;
+        this.dictionary = dictionary;
+        this.compressionLevel = compressionLevel;
+        this.executor = executor;
+        this.threadNum = threadNum;
+        this.sorter = new ExternalRecordSorter(executor, threadNum, memoryBudget, tmpDir);
+    }
+
+    /** @return the index file that belongs to a pairs file */
+    public static File getIndexFile(File pairs) {
+        return new File(pairs.getPath() + INDEX_EXTENSION);
+    }
+
+    /**
+     * Add a read pair whose reads are mapped and have digests.
+     */
+    public void add(ReadPair pair) throws IOException {
+        SAMRecord r1 = pair.forward();
+        SAMRecord r2 = pair.reverse();
+        int chrom1 = r1.getReferenceIndex();
+        int chrom2 = r2.getReferenceIndex();
+        int pos1 = pair.getFivePrimeEndPosOfR1();
+        int pos2 = pair.getFivePrimeEndPosOfR2();
+        DigestPair digests = pair.getDigestPair();
+        line.setLength(0);
+        line.append(r1.getReadName()).append('\t');
+        if (chrom1 < chrom2 || chrom1 == chrom2 && pos1 <= pos2) {
+            appendLine(r1, r2, pos1, pos2, digests.forward(), digests.reverse());
+            sorter.startRecord((long) chrom1 << 32 | chrom2, (long) pos1 << 32 | pos2);
+        } else {
+            appendLine(r2, r1, pos2, pos1, digests.reverse(), digests.forward());
+            sorter.startRecord((long) chrom2 << 32 | chrom1, (long) pos2 << 32 | pos1);
+        }
+        int length = line.length();
+        if (length > lineBytes.length) {
+            lineBytes = new byte[2 * length];
+        }
+        for (int i = 0; i < length; i++) {
+            lineBytes[i] = (byte) line.charAt(i);
+        }
+        sorter.getOutputStream().write(lineBytes, 0, length);
+        pairNum++;
+    }
+
+    /** Append the columns after the read name for the two ends in the given order. */
+    private void appendLine(SAMRecord first, SAMRecord second, int pos1, int pos2, Digest digest1, Digest digest2) {
+        line.append(first.getReferenceName()).append('\t').append(pos1).append('\t')
+                .append(second.getReferenceName()).append('\t').append(pos2).append('\t')
+                .append(first.getReadNegativeStrandFlag() ? '-' : '+').append('\t')
+                .append(second.getReadNegativeStrandFlag() ? '-' : '+').append('\t')
+                .append(UNIQUE_UNIQUE).append('\t')
+                .append(digest1.getDigesttNumber()).append('\t').append(digest2.getDigesttNumber()).append('\n');
+    }
+
+    /** @return the header lines of the pairs file */
+    String getHeader() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("## pairs format v1.0\n");
+        sb.append("#sorted: chr1-chr2-pos1-pos2\n");
+        sb.append("#shape: upper triangle\n");
+        for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+            sb.append("#chromsize: ").append(sequence.getSequenceName()).append(' ').append(sequence.getSequenceLength()).append('\n');
+        }
+        sb.append("#columns: ").append(COLUMNS).append('\n');
+        return sb.toString();
+    }
+
+    /** @return number of pairs written */
+    public long getPairNum() {
+        return pairNum;
+    }
+
+    /**
+     * Sort the pairs, write the pairs file and its index and delete the temporary files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+            ParallelBlockCompressedOutputStream bgzf = new ParallelBlockCompressedOutputStream(os, compressionLevel,
+                    executor, threadNum);
+            long maxLength = dictionary.getSequences().stream().mapToLong(SAMSequenceRecord::getSequenceLength).max().orElse(0);
+            BAMIndexBuilder index = new BAMIndexBuilder(0, maxLength, BAMIndexBuilder.getDefaultFormat(maxLength));
+            List<String> names = new ArrayList<>();
+            try {
+                bgzf.write(getHeader().getBytes(StandardCharsets.US_ASCII));
+                bgzf.flush();
+                long[] lastChromosomes = {-1};
+                sorter.sort((chromosomes, positions, data, offset, length) -> {
+                    if (chromosomes != lastChromosomes[0]) {
+                        names.add(dictionary.getSequence((int) (chromosomes >>> 32)).getSequenceName() + "|" +
+                                dictionary.getSequence((int) chromosomes).getSequenceName());
+                        lastChromosomes[0] = chromosomes;
+                    }
+                    int pos1 = (int) (positions >>> 32);
+                    long start = bgzf.getBlockPointer();
+                    bgzf.write(data, offset, length);
+                    index.add(names.size() - 1, pos1 - 1, pos1, false, start, bgzf.getBlockPointer());
+                });
+            } finally {
+                bgzf.close();
+            }
+            if (index.getFormat() == BAMIndexBuilder.Format.BAI) {
+                index.writePairix(getIndexFile(file), bgzf::toVirtualFilePointer, names, 2, 3, 3, 4, 5, 5, '#');
+            } else {
+                logger.warn("No pairix index written for {}, which has chromosomes longer than 2^29 bases", file);
+            }
+        } finally {
+            sorter.close();
+        }
+    }
+}
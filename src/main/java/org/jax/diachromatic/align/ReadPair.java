@@ -1,6 +1,7 @@
 package org.jax.diachromatic.align;
 
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
 import org.jax.diachromatic.exception.DiachromaticException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -83,7 +84,11 @@ public class ReadPair {
      */
     private final static String ORIENTATION_ATTRIBUTE = "RO";
 
-    private String relativeOrientationTag=null;
+    /** Relative orientation of the reads, null if the reads are not paired. */
+    private RelativeOrientation relativeOrientation = null;
+
+    /** True, if the reads are on different chromosomes. */
+    private final boolean trans;
 
     /**
      * True, if read R1 or R2 is unmapped.
@@ -145,14 +150,14 @@ public class ReadPair {
     private final DigestPair digestPair;
 
     /**
-     * A read pair belongs to one of the following categories: UL, SL, TS, TL or VP.
+     * A read pair belongs to one of the categories of {@link ReadPairCategory}, or to none (null) if it is not paired.
      */
-    private String categoryTag = "NA";
+    private ReadPairCategory category = null;
 
     /**
      * Paired reads belong to one of the following disjoint categories.
      */
-    private enum ReadPairCategory {
+    public enum ReadPairCategory {
         UN_LIGATED("UL"),
         UN_LIGATED_SAME_INTERNAL("ULSI"),
         SELF_LIGATED("SL"),
@@ -173,12 +178,22 @@ public class ReadPair {
         }
     }
 
-    private void setCategoryTag(String categoryTag) {
-        this.categoryTag = categoryTag;
+    private void setCategory(ReadPairCategory category) {
+        this.category = category;
+    }
+
+    /**
+     * @return the category of this read pair, or null if the reads are not paired
+     */
+    public ReadPairCategory getCategory() {
+        return this.category;
     }
 
+    /**
+     * @return the tag of the category of this read pair (e.g. VP) or NA if the reads are not paired
+     */
     public String getCategoryTag() {
-        return this.categoryTag;
+        return this.category == null ? "NA" : this.category.getTag();
     }
 
     /**
@@ -192,9 +207,10 @@ public class ReadPair {
 
         R1 = f;
         R2 = r;
+        trans = !f.getReferenceName().equals(r.getReferenceName());
 
         // create digest pair
-        this.digestPair = digestMap.getDigestPair(f.getReferenceName(), getFivePrimeEndPosOfRead(f), r.getReferenceName(), getFivePrimeEndPosOfRead(r));
+        this.digestPair = digestMap.getDigestPair(f, getFivePrimeEndPosOfRead(f), r, getFivePrimeEndPosOfRead(r));
     }
 
     static void setLengthThresholds(int lowerFragSize, int upperFragSize, int upperSelfLigationFragSize) {
@@ -210,78 +226,42 @@ public class ReadPair {
      * @param digestMap       structure containing all digests.
      * @param stringentUnique If true, more  stringent definition of uniquely mapped is used.
      */
-    ReadPair(SAMRecord f, SAMRecord r, DigestMap digestMap, boolean stringentUnique) {
+    public ReadPair(SAMRecord f, SAMRecord r, DigestMap digestMap, boolean stringentUnique) {
 
         R1 = f;
         R2 = r;
+        trans = !f.getReferenceName().equals(r.getReferenceName());
 
         // check if both reads could be mapped
-        unmapped_R1 = false;
-        unmapped_R2 = false;
-        if (R1.getReadUnmappedFlag()) {
-            unmapped_R1 = true;
-            this.isPaired = false;
-        }
-        if (R2.getReadUnmappedFlag()) {
-            unmapped_R2 = true;
-            this.isPaired = false;
-        }
+        unmapped_R1 = R1.getReadUnmappedFlag();
+        unmapped_R2 = R2.getReadUnmappedFlag();
 
         // check if both reads could be uniquely mapped
-        multimapped_R1 = false;
-        multimapped_R2 = false;
-
-        if (R1.getAttribute("XS") != null) {
-            // there is more than one alignment
-            if (stringentUnique) {
-                // in the stringent mode this enough to be multi-mapped
-                multimapped_R1 = true;
-                this.isPaired = false;
-            } else {
-                if (R1.getMappingQuality() < 30 || (int) R1.getAttribute("AS") - (int) R1.getAttribute("XS") < 10) {
-                    multimapped_R1 = true;
-                    this.isPaired = false;
-                }
-            }
-        }
-        if (R2.getAttribute("XS") != null) {
-            // there is more than one alignment
-            if (stringentUnique) {
-                // in the stringent mode this enough to be multi-mapped
-                multimapped_R2 = true;
-                this.isPaired = false;
-            } else {
-                if (R2.getMappingQuality() < 30 || (int) R2.getAttribute("AS") - (int) R2.getAttribute("XS") < 10) {
-                    multimapped_R2 = true;
-                    this.isPaired = false;
-                }
-            }
-        }
+        multimapped_R1 = isMultiMapped(R1, stringentUnique);
+        multimapped_R2 = isMultiMapped(R2, stringentUnique);
 
-        // check if both reads are not on random chromosomes or EBV for hg38
-        if (R1.getReferenceName().contains("_") || R2.getReferenceName().contains("_") || R1.getReferenceName().contains("EBV")|| R2.getReferenceName().contains("EBV")) {
-            this.isPaired = false;
-        }
+        this.isPaired = !unmapped_R1 && !unmapped_R2 && !multimapped_R1 && !multimapped_R2
+                && !isOnExcludedSequence(R1) && !isOnExcludedSequence(R2);
 
         if (this.isPaired) {
 
             // pair reads, if both reads could be mapped uniquely
             this.pairReads();
-            this.setRelativeOrientationTag();
+            this.setRelativeOrientation();
 
             // try to find restriction digests that match the read pair
-            this.digestPair = digestMap.getDigestPair(this.R1.getReferenceName(), getFivePrimeEndPosOfRead(this.R1), this.R2.getReferenceName(), getFivePrimeEndPosOfRead(this.R2));
+            this.digestPair = digestMap.getDigestPair(this.R1, getFivePrimeEndPosOfRead(this.R1), this.R2, getFivePrimeEndPosOfRead(this.R2));
 
             // categorize ReadPair
             this.categorizeReadPair();
-            if (!this.getCategoryTag().equals("VP")) {
-                this.R1.setAttribute(BADREAD_ATTRIBUTE, this.categoryTag);
-                this.R2.setAttribute(BADREAD_ATTRIBUTE, this.categoryTag);
+            if (this.category != ReadPairCategory.VALID_PAIR) {
+                this.R1.setAttribute(BADREAD_ATTRIBUTE, this.category.getTag());
+                this.R2.setAttribute(BADREAD_ATTRIBUTE, this.category.getTag());
             }
 
             // add attribute for relative orientation of read pair
-            this.R1.setAttribute(ORIENTATION_ATTRIBUTE, this.getRelativeOrientationTag());
-            this.R2.setAttribute(ORIENTATION_ATTRIBUTE, this.getRelativeOrientationTag());
+            this.R1.setAttribute(ORIENTATION_ATTRIBUTE, this.relativeOrientation.getTag());
+            this.R2.setAttribute(ORIENTATION_ATTRIBUTE, this.relativeOrientation.getTag());
 
 
         } else {
@@ -289,11 +269,41 @@ public class ReadPair {
         }
     }
 
+    /**
+     * Check whether the two records would be paired by {@link #ReadPair(SAMRecord, SAMRecord, DigestMap, boolean)},
+     * i.e., whether both reads are mapped uniquely and not to an excluded sequence. Unlike the constructor, this does
+     * not look up the digests and does not change the records.
+     */
+    static boolean isPaired(SAMRecord f, SAMRecord r, boolean stringentUnique) {
+        return !f.getReadUnmappedFlag() && !r.getReadUnmappedFlag() && !isMultiMapped(f, stringentUnique)
+                && !isMultiMapped(r, stringentUnique) && !isOnExcludedSequence(f) && !isOnExcludedSequence(r);
+    }
+
+    /**
+     * @param stringentUnique if true, a read with more than one alignment is multi-mapped. Otherwise, the mapping
+     *                        quality of the read must also be below 30, or its alignment score must exceed the score
+     *                        of the second best alignment by less than 10.
+     * @return true if the read could not be mapped uniquely
+     */
+    private static boolean isMultiMapped(SAMRecord samRecord, boolean stringentUnique) {
+        if (samRecord.getAttribute("XS") == null) {
+            return false;
+        }
+        // there is more than one alignment, which in the stringent mode is enough to be multi-mapped
+        return stringentUnique || samRecord.getMappingQuality() < 30
+                || (int) samRecord.getAttribute("AS") - (int) samRecord.getAttribute("XS") < 10;
+    }
+
+    /** @return true if the read is mapped to a random chromosome or to EBV (for hg38) */
+    private static boolean isOnExcludedSequence(SAMRecord samRecord) {
+        return samRecord.getReferenceName().contains("_") || samRecord.getReferenceName().contains("EBV");
+    }
+
     /**
      * @param samRecord
      * @return The genomic position that corresponds to the 5' end position of the mapped read.
      */
-    private Integer getFivePrimeEndPosOfRead(SAMRecord samRecord) {
+    static int getFivePrimeEndPosOfRead(SAMRecord samRecord) {
         if (!samRecord.getReadNegativeStrandFlag()) {
             return samRecord.getAlignmentStart();
         } else {
@@ -301,20 +311,12 @@ public class ReadPair {
         }
     }
 
-    public Integer getFivePrimeEndPosOfR1() {
-        if (!this.R1.getReadNegativeStrandFlag()) {
-            return this.R1.getAlignmentStart();
-        } else {
-            return this.R1.getAlignmentEnd();
-        }
+    public int getFivePrimeEndPosOfR1() {
+        return getFivePrimeEndPosOfRead(this.R1);
     }
 
-    public Integer getFivePrimeEndPosOfR2() {
-        if (!this.R2.getReadNegativeStrandFlag()) {
-            return this.R2.getAlignmentStart();
-        } else {
-            return this.R2.getAlignmentEnd();
-        }
+    public int getFivePrimeEndPosOfR2() {
+        return getFivePrimeEndPosOfRead(this.R2);
     }
 
     public String getReferenceSequenceOfR1() {
@@ -389,7 +391,7 @@ public class ReadPair {
      * @return True, if both reads are on the same chromosome.
      */
     public boolean isTrans() {
-        return !R1.getReferenceName().equals(R2.getReferenceName());
+        return trans;
     }
 
 
@@ -401,7 +403,7 @@ public class ReadPair {
      *
      * @return The insert size for chimeric chimeric fragments.
      */
-    public Integer getChimericFragmentSize() {
+    public int getChimericFragmentSize() {
 
         SAMRecord R1 = forward();
 
@@ -464,6 +466,10 @@ public class ReadPair {
         reverse().setMateReferenceIndex(forward().getReferenceIndex());
         forward().setMateAlignmentStart(reverse().getAlignmentStart());
         reverse().setMateAlignmentStart(forward().getAlignmentStart());
+        // The CIGAR of the mate (MC) gives the position of its 5' end, so that count can process a coordinate-sorted
+        // BAM file by region without finding the mate of each read
+        forward().setAttribute(SAMTag.MC.name(), reverse().getCigarString());
+        reverse().setAttribute(SAMTag.MC.name(), forward().getCigarString());
     }
 
 
@@ -475,7 +481,7 @@ public class ReadPair {
      * @return True, if the reads point to one another.
      */
     public boolean isInwardFacing() {
-        return getRelativeOrientationTag().equals("F1R2") || getRelativeOrientationTag().equals("F2R1");
+        return relativeOrientation.isInwardFacing();
     }
 
 
@@ -485,74 +491,31 @@ public class ReadPair {
      * @return True, if the reads point to opposite directions.
      */
     public boolean isOutwardFacing() {
-        return getRelativeOrientationTag().equals("R2F1") || getRelativeOrientationTag().equals("R1F2");
+        return relativeOrientation.isOutwardFacing();
     }
 
 
     /**
-     * Get relative orientation of the pair.
+     * Determine the relative orientation of the pair. R1 proceeds R2 if the 5' end of R1 is not downstream of the
+     * 5' end of R2.
      *
      * @return F1F2, F2F1, R1R2, R2R1, F1R2, F2R1, R2F1 or R1F2.
      */
-    public String setRelativeOrientationTag() {
-
-        String tag;
+    public RelativeOrientation setRelativeOrientation() {
+        this.relativeOrientation = RelativeOrientation.of(R1.getReadNegativeStrandFlag(),
+                R2.getReadNegativeStrandFlag(), getFivePrimeEndPosOfRead(R1) <= getFivePrimeEndPosOfRead(R2));
+        return this.relativeOrientation;
+    }
 
-        if (R1.getReadNegativeStrandFlag() == R2.getReadNegativeStrandFlag()) {
-            // both reads align to the same strand
-            if (!R1.getReadNegativeStrandFlag()) {
-                // both reads align to the forward strand
-                if (getFivePrimeEndPosOfRead(R1) <= getFivePrimeEndPosOfRead(R2)) {
-                    // R1 proceeds R2
-                    tag = "F1F2";
-                    this.relativeOrientationTag = "F1F2";
-                } else {
-                    // R2 proceeds R1
-                    tag = "F2F1";
-                    this.relativeOrientationTag = "F2F1";
-                }
-            } else {
-                // both reads align to the reverse strand
-                if (getFivePrimeEndPosOfRead(R1) <= getFivePrimeEndPosOfRead(R2)) {
-                    // R1 proceeds R2
-                    tag = "R1R2";
-                    this.relativeOrientationTag = "R1R2";
-                } else {
-                    // R2 proceeds R1
-                    tag = "R2R1";
-                    this.relativeOrientationTag = "R2R1";
-                }
-            }
-        } else {
-            // reads align to different strands
-            if (!R1.getReadNegativeStrandFlag()) {
-                // R1 is mapped to the forward and R2 to the reverse strand
-                if (getFivePrimeEndPosOfRead(R1) <= getFivePrimeEndPosOfRead(R2)) {
-                    // R1 proceeds R2
-                    tag = "F1R2"; // innie
-                    this.relativeOrientationTag = "F1R2";
-                } else {
-                    // R2 proceeds R1
-                    tag = "R2F1"; //outie
-                    this.relativeOrientationTag = "R2F1";
-                }
-            } else {
-                // R1 is mapped to the reverse and R2 to the forward strand
-                if (getFivePrimeEndPosOfRead(R1) <= getFivePrimeEndPosOfRead(R2)) {
-                    // R1 proceeds R2
-                    tag = "R1F2"; // outie
-                    this.relativeOrientationTag = "R1F2";
-                } else {
-                    tag = "F2R1"; // innie
-                    this.relativeOrientationTag = "F2R1";
-                }
-            }
-        }
-        return tag;
+    /**
+     * @return the relative orientation of the pair, or null if it was not determined
+     */
+    public RelativeOrientation getRelativeOrientation() {
+        return this.relativeOrientation;
     }
 
     public String getRelativeOrientationTag(){
-        return this.relativeOrientationTag;
+        return this.relativeOrientation == null ? null : this.relativeOrientation.getTag();
     }
 
 
@@ -588,48 +551,48 @@ public class ReadPair {
             if (this.isOutwardFacing()) {
                 if (this.getSelfLigationFragmentSize() < UPPER_SIZE_SELF_LIGATION_THRESHOLD || sameInternal) {
                     if(!sameInternal) {
-                        setCategoryTag(ReadPairCategory.SELF_LIGATED.getTag());
+                        setCategory(ReadPairCategory.SELF_LIGATED);
                     } else {
-                        setCategoryTag(ReadPairCategory.SELF_LIGATED_SAME_INTERNAL.getTag());
+                        setCategory(ReadPairCategory.SELF_LIGATED_SAME_INTERNAL);
                     }
                 } else {
                     if (this.hasTooSmallChimericFragmentSize()) {
-                        setCategoryTag(ReadPairCategory.VALID_TOO_SHORT.getTag());
+                        setCategory(ReadPairCategory.VALID_TOO_SHORT);
                     } else if (this.hasTooBigChimericFragmentSize()) {
-                        setCategoryTag(ReadPairCategory.VALID_TOO_LONG.getTag());
+                        setCategory(ReadPairCategory.VALID_TOO_LONG);
                     } else {
-                        setCategoryTag(ReadPairCategory.VALID_PAIR.getTag()); // only if chimeric fragment has the right size it is categorized as valid pair
+                        setCategory(ReadPairCategory.VALID_PAIR); // only if chimeric fragment has the right size it is categorized as valid pair
                     }
                 }
             } else {
                 // pair is inward facing
                 if (this.getDistanceBetweenFivePrimeEnds() < UPPER_SIZE_THRESHOLD || sameInternal) {
                         if(!sameInternal) {
-                            setCategoryTag(ReadPairCategory.UN_LIGATED.getTag());
+                            setCategory(ReadPairCategory.UN_LIGATED);
                         } else {
-                            setCategoryTag(ReadPairCategory.UN_LIGATED_SAME_INTERNAL.getTag());
+                            setCategory(ReadPairCategory.UN_LIGATED_SAME_INTERNAL);
                             //logger.trace("Un-ligated same internal!");
                         }
                     } else {
                     if (this.hasTooSmallChimericFragmentSize()) {
-                        setCategoryTag(ReadPairCategory.VALID_TOO_SHORT.getTag());
+                        setCategory(ReadPairCategory.VALID_TOO_SHORT);
                     } else if (this.hasTooBigChimericFragmentSize()) {
-                        setCategoryTag(ReadPairCategory.VALID_TOO_LONG.getTag());
+                        setCategory(ReadPairCategory.VALID_TOO_LONG);
                     } else {
-                        setCategoryTag(ReadPairCategory.VALID_PAIR.getTag()); // only if chimeric fragment has the right size it is categorized as valid
+                        setCategory(ReadPairCategory.VALID_PAIR); // only if chimeric fragment has the right size it is categorized as valid
                     }
                 }
             }
         } else {
             // trans pairs and read pairs that are pointing in the same direction cannot arise from self- or un-ligated fragments
             if(this.digestPair.forward()==this.digestPair.reverse() && !this.isTrans()) {
-                setCategoryTag(ReadPairCategory.STRANGE_INTERNAL.getTag());
+                setCategory(ReadPairCategory.STRANGE_INTERNAL);
             } else if (this.hasTooSmallChimericFragmentSize()) {
-                setCategoryTag(ReadPairCategory.VALID_TOO_SHORT.getTag());
+                setCategory(ReadPairCategory.VALID_TOO_SHORT);
             } else if (this.hasTooBigChimericFragmentSize()) {
-                setCategoryTag(ReadPairCategory.VALID_TOO_LONG.getTag());
+                setCategory(ReadPairCategory.VALID_TOO_LONG);
             } else {
-                setCategoryTag(ReadPairCategory.VALID_PAIR.getTag()); // only if chimeric fragment has the right size it is categorized as valid
+                setCategory(ReadPairCategory.VALID_PAIR); // only if chimeric fragment has the right size it is categorized as valid
             }
         }
     }
@@ -651,11 +614,11 @@ public class ReadPair {
         }
     }
 
-    public Integer getForwardDigestStart() {
+    public int getForwardDigestStart() {
         return this.digestPair.forward().getDigestStartPosition();
     }
 
-    public Integer getForwardDigestEnd() {
+    public int getForwardDigestEnd() {
         return this.digestPair.forward().getDigestEndPosition();
     }
 
@@ -663,11 +626,11 @@ public class ReadPair {
         return this.digestPair.forward().isSelected();
     }
 
-    public Integer getReverseDigestStart() {
+    public int getReverseDigestStart() {
         return this.digestPair.reverse().getDigestStartPosition();
     }
 
-    public Integer getReverseDigestEnd() {
+    public int getReverseDigestEnd() {
         return this.digestPair.reverse().getDigestEndPosition();
     }
 
@@ -680,47 +643,13 @@ public class ReadPair {
     }
 
     public boolean isTwisted() {
-        String tag = this.getRelativeOrientationTag();
-        switch (tag) {
-            case "R1R2":
-            case "R2R1":
-            case "F1F2":
-            case "F2F1":
-                return true;
-        }
-        return false;
+        return relativeOrientation.isTwisted();
     }
 
     /**
      *  Shuffle read pair orientation for study about significance of directed interactions
      */
     public void setRandomRelativeOrientationTag() {
-        int index = ThreadLocalRandom.current().nextInt(8);
-        String tag=null;
-        if (index == 0) {
-            this.relativeOrientationTag = "F1F2";
-        }
-        if (index == 1) {
-            this.relativeOrientationTag = "F2F1";
-        }
-        if (index == 2) {
-            this.relativeOrientationTag = "R1R2";
-        }
-        if (index == 3) {
-            this.relativeOrientationTag = "R2R1";
-        }
-        if (index == 4) {
-            this.relativeOrientationTag = "F1R2";
-        }
-        if (index == 5) {
-            this.relativeOrientationTag = "R2F1";
-        }
-        if (index == 6) {
-            this.relativeOrientationTag = "R1F2";
-        }
-        if (index == 7) {
-            this.relativeOrientationTag = "F2R1";
-        }
+        this.relativeOrientation = RelativeOrientation.fromIndex(ThreadLocalRandom.current().nextInt(8));
     }
 }
-
@@ -0,0 +1,74 @@
+package org.jax.diachromatic.align;
+
+/**
+ * Relative orientation of the two reads of a {@link ReadPair}. The name of each constant is the tag that is written
+ * to the {@code RO} attribute of the reads: F and R stand for a read on the forward and reverse strand, and 1 and 2
+ * for R1 and R2, in the order of their 5' end positions. For instance, {@code F1R2} is an inward facing pair where
+ * R1 is on the forward strand and upstream of R2.
+ */
+public enum RelativeOrientation {
+    F1F2, F2F1, R1R2, R2R1, F1R2, R2F1, R1F2, F2R1;
+
+    private static final RelativeOrientation[] VALUES = values();
+
+    /** @return the tag of this orientation, e.g. {@code F1R2} */
+    public String getTag() {
+        return name();
+    }
+
+    /** @return true if the reads point to one another (F1R2, F2R1) */
+    public boolean isInwardFacing() {
+        return this == F1R2 || this == F2R1;
+    }
+
+    /** @return true if the reads point to opposite directions (R2F1, R1F2) */
+    public boolean isOutwardFacing() {
+        return this == R2F1 || this == R1F2;
+    }
+
+    /** @return true if both reads are on the same strand (F1F2, F2F1, R1R2, R2R1) */
+    public boolean isTwisted() {
+        return this.ordinal() <= R2R1.ordinal();
+    }
+
+    /**
+     * @return code of the orientation (0-3), where the two orientations that are equivalent if the reads are swapped
+     * (e.g., F1R2 and F2R1) have the same code
+     */
+    public int getSwapInvariantCode() {
+        switch (this) {
+            case R1F2: case R2F1: return 1;
+            case F1F2: case F2F1: return 2;
+            case R1R2: case R2R1: return 3;
+            default: return 0;
+        }
+    }
+
+    /**
+     * @param r1Reverse true if R1 is on the reverse strand
+     * @param r2Reverse true if R2 is on the reverse strand
+     * @param r1First true if the 5' end of R1 is not downstream of the 5' end of R2
+     * @return the relative orientation of two reads
+     */
+    public static RelativeOrientation of(boolean r1Reverse, boolean r2Reverse, boolean r1First) {
+        if (r1Reverse == r2Reverse) {
+            // both reads align to the same strand
+            if (!r1Reverse) {
+                return r1First ? F1F2 : F2F1;
+            } else {
+                return r1First ? R1R2 : R2R1;
+            }
+        } else if (!r1Reverse) {
+            // R1 is mapped to the forward and R2 to the reverse strand
+            return r1First ? F1R2 : R2F1; // innie : outie
+        } else {
+            // R1 is mapped to the reverse and R2 to the forward strand
+            return r1First ? R1F2 : F2R1; // outie : innie
+        }
+    }
+
+    /** @return the orientation with the given index (0-7), see {@link #ordinal()} */
+    static RelativeOrientation fromIndex(int index) {
+        return VALUES[index];
+    }
+}
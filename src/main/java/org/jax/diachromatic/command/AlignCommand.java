@@ -9,10 +9,12 @@ import org.jax.diachromatic.align.DigestMap;
 import org.jax.diachromatic.exception.DiachromaticException;
 import org.jax.diachromatic.align.Aligner;
 import org.jax.diachromatic.align.Bowtie2Runner;
+import htsjdk.samtools.SAMException;
 import picocli.CommandLine;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Random;
 import java.util.concurrent.Callable;
 
@@ -39,7 +41,7 @@ public class AlignCommand extends Command implements Callable<Integer>  {
     @CommandLine.Option(names={"-i", "--bowtie-index"}, required = true, description ="Path to bowtie2 index.", order = 2)
     private String pathToBowtieIndex;
 
-    @CommandLine.Option(names={"-p", "--thread-num"},description = "Number of threads used by bowtie2.", order = 3)
+    @CommandLine.Option(names={"-p", "--thread-num"},description = "Number of threads used by bowtie2 (shared by both alignments with --concurrent or --stream).", order = 3)
     private int threadNum = 1;
 
     @CommandLine.Option(names={"-bsu","--bowtie-stringent-unique"},
@@ -69,6 +71,44 @@ public class AlignCommand extends Command implements Callable<Integer>  {
     /** if this is set, an extra BAM file containg the rejected read pairs will be created */
     @CommandLine.Option(names={"-k", "--keep-sam"}, description = "Do not delete temporary SAM files.",order = 12)
     private boolean keepSamFiles=false;
+    /** if this is set, the SAM output of bowtie2 is read directly from the two bowtie2 processes */
+    @CommandLine.Option(names={"-m", "--stream"}, description = "Stream the bowtie2 output into the pairing step without temporary SAM files.",order = 13)
+    private boolean streamSam=false;
+    /** if this is set, the two bowtie2 processes for the forward and reverse reads run at the same time */
+    @CommandLine.Option(names={"-c", "--concurrent"}, description = "Align the forward and reverse reads at the same time, sharing the threads given by --thread-num.",order = 14)
+    private boolean concurrent=false;
+    /** Fraction of {@link #threadNum} used for the forward reads if the two bowtie2 processes run at the same time. */
+    @CommandLine.Option(names={"--r1-thread-fraction"}, description = "Fraction of the threads used for the forward reads if both alignments run at the same time.",order = 15)
+    private double r1ThreadFraction=0.5;
+    /** If greater than 0, duplicates are removed with a bounded amount of memory (in MB) by spilling to disk. */
+    @CommandLine.Option(names={"-M", "--dedup-memory"}, description = "Remove duplicates using at most this many MB of memory, spilling to temporary files if needed (not with --stream).",order = 16)
+    private int dedupMemoryMb=0;
+    /** Directory for temporary files of the duplicate removal with {@link #dedupMemoryMb}, {@link #sortValid} and {@link #pairsOutput}. */
+    @CommandLine.Option(names={"-T", "--tmp-dir"}, description = "Directory for temporary files (default: system temporary directory).",order = 17)
+    private String tmpDir=null;
+    /** Number of threads used to pair, deduplicate and categorize the read pairs after the alignment. */
+    @CommandLine.Option(names={"-n", "--pairing-threads"}, description = "Number of threads for pairing, duplicate removal and categorization of the read pairs (not with --dedup-memory).",order = 18)
+    private int pairingThreads=1;
+    /** Find the digests of the reads with a bucketed position index instead of a binary search. */
+    @CommandLine.Option(names={"-g", "--bucket-index"}, description = "Look up digests with a bucketed position index (faster, needs about 4 bytes of memory per digest).",order = 19)
+    private boolean bucketIndex=false;
+    /** Number of threads that compress the BAM files of valid and rejected read pairs. */
+    @CommandLine.Option(names={"-z", "--bam-threads"}, description = "Number of threads for the compression of the BAM files (0: compress in the pairing thread).",order = 20)
+    private int bamThreads=0;
+    @CommandLine.Option(names={"-L", "--bam-compression-level"}, description = "Compression level (0-9) of the BAM files.",order = 21)
+    private int bamCompressionLevel=Aligner.DEFAULT_BAM_COMPRESSION_LEVEL;
+    @CommandLine.Option(names={"-B", "--bam-buffer-blocks"}, description = "Maximum number of 64 kB blocks per BAM file that are compressed at the same time with --bam-threads (default: two per thread).",order = 22)
+    private int bamBufferBlocks=0;
+    /** If this is set, the valid pairs are written as a coordinate-sorted and indexed BAM file. */
+    @CommandLine.Option(names={"-S", "--sort-valid"}, description = "Sort the BAM file of valid pairs by coordinate and index it (.bai, or .csi for chromosomes longer than 512 Mb).",order = 23)
+    private boolean sortValid=false;
+    @CommandLine.Option(names={"-R", "--sort-memory"}, description = "Sort the valid pairs for --sort-valid and --pairs using at most this many MB of memory each, spilling to temporary files if needed.",order = 24)
+    private int sortMemoryMb=1024;
+    @CommandLine.Option(names={"-C", "--csi"}, description = "Write a CSI instead of a BAI index with --sort-valid.",order = 25)
+    private boolean csiIndex=false;
+    /** If this is set, the valid pairs are also written to a block-sorted and indexed file in the 4DN pairs format. */
+    @CommandLine.Option(names={"-P", "--pairs"}, description = "Also write the valid pairs to a bgzipped, block-sorted 4DN pairs file with an index for region-pair queries.",order = 26)
+    private boolean pairsOutput=false;
 
     public AlignCommand(){}
 
@@ -79,31 +119,182 @@ public class AlignCommand extends Command implements Callable<Integer>  {
         makeOutdirectoryIfNeeded();
 
         String outputDirAndFilePrefix = String.format("%s%s%s", outputDir,File.separator,filenamePrefix);
+        if (r1ThreadFraction <= 0.0 || r1ThreadFraction >= 1.0) {
+            throw new DiachromaticException(String.format("The thread fraction for the forward reads must be between 0 and 1, but was %s", r1ThreadFraction));
+        }
+        if (dedupMemoryMb < 0) {
+            throw new DiachromaticException(String.format("The memory for duplicate removal must not be negative, but was %d", dedupMemoryMb));
+        }
+        if (pairingThreads < 1) {
+            throw new DiachromaticException(String.format("The number of pairing threads must be at least 1, but was %d", pairingThreads));
+        }
+        if (dedupMemoryMb > 0 && pairingThreads > 1) {
+            throw new DiachromaticException("--dedup-memory cannot be combined with more than one pairing thread");
+        }
+        if (bamThreads < 0) {
+            throw new DiachromaticException(String.format("The number of BAM compression threads must not be negative, but was %d", bamThreads));
+        }
+        if (bamCompressionLevel < 0 || bamCompressionLevel > 9) {
+            throw new DiachromaticException(String.format("Compression level must be between 0 and 9, but was %d", bamCompressionLevel));
+        }
+        if (bamBufferBlocks < 0) {
+            throw new DiachromaticException(String.format("The number of BAM buffer blocks must not be negative, but was %d", bamBufferBlocks));
+        }
+        if (sortMemoryMb < 1) {
+            throw new DiachromaticException(String.format("The memory for sorting must be at least 1 MB, but was %d", sortMemoryMb));
+        }
+        if (csiIndex && !sortValid) {
+            throw new DiachromaticException("--csi can only be used with --sort-valid");
+        }
+        if (dedupMemoryMb > 0 && streamSam) {
+            throw new DiachromaticException("--dedup-memory needs temporary SAM files and cannot be combined with --stream");
+        }
+        logger.trace(String.format("About to read digests from %s.",digestFile));
+        DigestMap digestMap = new DigestMap(digestFile);
+        if (bucketIndex) {
+            digestMap.buildBucketIndex();
+        }
+        try {
+            if (streamSam) {
+                alignStreaming(outputDirAndFilePrefix, digestMap);
+            } else {
+                alignSamFiles(outputDirAndFilePrefix, digestMap);
+            }
+        } catch (DiachromaticException | IOException e){
+            e.printStackTrace();
+            return 1;
+        }
+        return 0;
+    }
 
+    /**
+     * Split the thread budget {@link #threadNum} between two bowtie2 processes that run at the same time according
+     * to {@link #r1ThreadFraction}. Each process gets at least one thread.
+     *
+     * @return number of threads for the forward and the reverse reads
+     */
+    private int[] splitThreads() {
+        int threads1 = Math.max(1, (int) Math.round(threadNum * r1ThreadFraction));
+        int threads2 = Math.max(1, threadNum - threads1);
+        if (threads1 + threads2 > threadNum) {
+            logger.warn("Using {} threads for the forward and {} for the reverse reads (--thread-num: {})",
+                    threads1, threads2, threadNum);
+        }
+        return new int[]{threads1, threads2};
+    }
+
+    /**
+     * Write the output of bowtie2 for the forward and reverse reads to temporary SAM files, which are then read by the
+     * {@link Aligner}. The two alignments run one after the other, each with {@link #threadNum} threads, or at the same
+     * time if {@link #concurrent} is set. The SAM files are deleted afterwards (also if an alignment fails) unless
+     * {@link #keepSamFiles} is set.
+     */
+    private void alignSamFiles(String outputDirAndFilePrefix, DigestMap digestMap) throws DiachromaticException, IOException {
         String samFile1 = String.format("%s_%s_1.sam", outputDirAndFilePrefix, getRandomPrefix(7));
         String samFile2 = String.format("%s_%s_2.sam", outputDirAndFilePrefix, getRandomPrefix(7));
-        logger.trace(String.format("About to read digests from %s.",digestFile));
-        DigestMap digestMap = new DigestMap(digestFile);
+        String logFile1 = String.format("%s.bowtie2.R1.log", outputDirAndFilePrefix);
+        String logFile2 = String.format("%s.bowtie2.R2.log", outputDirAndFilePrefix);
         try {
-            Bowtie2Runner runner = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq1,samFile1,this.threadNum);
-            runner.run();
-            Bowtie2Runner runner2 = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq2,samFile2,this.threadNum);
-            runner2.run();
+            Bowtie2Runner runner, runner2;
+            if (concurrent) {
+                int[] threads = splitThreads();
+                runner = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq1,samFile1,threads[0],logFile1);
+                runner2 = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq2,samFile2,threads[1],logFile2);
+                try {
+                    runner.start();
+                    runner2.start();
+                } catch (DiachromaticException e) {
+                    runner.destroy();
+                    throw e;
+                }
+                Bowtie2Runner.waitForAll(runner, runner2);
+            } else {
+                runner = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq1,samFile1,this.threadNum,logFile1);
+                runner.run();
+                runner2 = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq2,samFile2,this.threadNum,logFile2);
+                runner2.run();
+            }
 
             Aligner pairer = new Aligner(samFile1,samFile2, outputRejectedReads, outputDirAndFilePrefix, digestMap, lowerFragSize, upperFragSize, upperSelfLigationFragSize, filenamePrefix,useStringentUniqueSettings);
+            pairer.setShardNum(pairingThreads);
+            pairer.setBamCompression(bamThreads, bamCompressionLevel, bamBufferBlocks);
+            if (sortValid) {
+                pairer.setSortedValidPairs(sortMemoryMb * 1024L * 1024L, csiIndex, tmpDir == null ? null : new File(tmpDir));
+            }
+            if (pairsOutput) {
+                pairer.setPairsOutput(sortMemoryMb * 1024L * 1024L, tmpDir == null ? null : new File(tmpDir));
+            }
+            if (dedupMemoryMb > 0) {
+                pairer.setExternalDuplicateRemoval(dedupMemoryMb * 1024L * 1024L, tmpDir == null ? null : new File(tmpDir));
+            }
             pairer.inputSAMfiles();
+            pairer.setBowtie2Summaries(runner.getSummary(), runner2.getSummary());
             pairer.printStatistics();
+        } finally {
             if(!keepSamFiles) {
                 File file = new File(samFile1);
                 file.delete();
                 file = new File(samFile2);
                 file.delete();
             }
-        } catch (DiachromaticException | IOException e){
-            e.printStackTrace();
         }
-        return 0;
     }
+
+    /**
+     * Run bowtie2 for the forward and reverse reads at the same time, sharing the threads given by {@link #threadNum},
+     * and pass the standard output of both processes directly to the {@link Aligner}, which reads the two streams in
+     * lockstep. No temporary SAM files are written. The statistics are only written if both bowtie2 processes
+     * finished successfully; otherwise, the output of bowtie2 may have ended early, so the BAM and pairs files are
+     * deleted.
+     */
+    private void alignStreaming(String outputDirAndFilePrefix, DigestMap digestMap) throws DiachromaticException, IOException {
+        int[] threads = splitThreads();
+        Bowtie2Runner runner = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq1,null,threads[0],
+                String.format("%s.bowtie2.R1.log", outputDirAndFilePrefix));
+        Bowtie2Runner runner2 = new Bowtie2Runner(bowtiepath,pathToBowtieIndex,pathToInputFastq2,null,threads[1],
+                String.format("%s.bowtie2.R2.log", outputDirAndFilePrefix));
+        try {
+            InputStream sam1 = runner.startStreaming();
+            InputStream sam2 = runner2.startStreaming();
+            Bowtie2Runner.destroyAllOnFailure(runner, runner2);
+            Aligner pairer = null;
+            try {
+                pairer = new Aligner(sam1, sam2, outputRejectedReads, outputDirAndFilePrefix, digestMap, lowerFragSize, upperFragSize, upperSelfLigationFragSize, filenamePrefix,useStringentUniqueSettings);
+                pairer.setShardNum(pairingThreads);
+                pairer.setBamCompression(bamThreads, bamCompressionLevel, bamBufferBlocks);
+                if (sortValid) {
+                    pairer.setSortedValidPairs(sortMemoryMb * 1024L * 1024L, csiIndex, tmpDir == null ? null : new File(tmpDir));
+                }
+                if (pairsOutput) {
+                    pairer.setPairsOutput(sortMemoryMb * 1024L * 1024L, tmpDir == null ? null : new File(tmpDir));
+                }
+                pairer.inputSAMfiles();
+            } catch (SAMException e) {
+                // the streams are closed if one of the processes fails, report the failure of bowtie2 in this case
+                runner.destroy();
+                runner2.destroy();
+                if (pairer != null) {
+                    pairer.deleteOutputFiles();
+                }
+                Bowtie2Runner.waitForAll(runner, runner2);
+                throw new DiachromaticException(String.format("Could not read the output of bowtie2 [%s]", e.getMessage()));
+            }
+            try {
+                Bowtie2Runner.waitForAll(runner, runner2);
+            } catch (DiachromaticException e) {
+                // the SAM records ended early, so the output files are incomplete although they were finished
+                pairer.deleteOutputFiles();
+                throw e;
+            }
+            pairer.setBowtie2Summaries(runner.getSummary(), runner2.getSummary());
+            pairer.printStatistics();
+        } finally {
+            // only has an effect if one of the processes is still running because of an error
+            runner.destroy();
+            runner2.destroy();
+        }
+    }
+
     @Override
     public String toString() {return "diachromatic:align";}
 
@@ -1,19 +1,24 @@
 package org.jax.diachromatic.command;
 
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 
 import org.jax.diachromatic.align.DigestMap;
 import org.jax.diachromatic.count.Counter;
 import org.jax.diachromatic.exception.DiachromaticException;
+import org.jax.diachromatic.util.LightweightBAMReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Class to coordinate counting of valid read pairs between pairs of restriction digests.
@@ -41,37 +46,125 @@ public class CountCommand extends Command implements Callable<Integer> {
     @CommandLine.Option(names={"-s", "--split-counts"},description = "Split counts for different read pair orientations.", order = 5)
     private boolean split=false;
 
+    /** Find the digests of the reads with a bucketed position index instead of a binary search. */
+    @CommandLine.Option(names={"-g", "--bucket-index"},description = "Look up digests with a bucketed position index (faster, needs about 4 bytes of memory per digest).", order = 6)
+    private boolean bucketIndex=false;
+
+    /** Decode only the positions, strands and flags of the reads instead of complete SAM records. */
+    @CommandLine.Option(names={"-l", "--lightweight-decode"},description = "Decode only the positions, strands and flags of the reads (faster; the results are the same). Has no effect for BAM files sorted by coordinate, which are counted by region.", order = 7)
+    private boolean lightweightDecode=false;
+
+    /** Number of threads for decompressing the BAM file and counting the read pairs. */
+    @CommandLine.Option(names={"-t", "--threads"},description = "Number of threads for decompressing the BAM file and counting the read pairs (more than one implies --lightweight-decode).", order = 8)
+    private int threadNum=1;
+
+    /** Compress the tables of interaction and fragment counts with bgzip and index them with tabix. */
+    @CommandLine.Option(names={"-Z", "--bgzip"},description = "Compress the interaction and fragment count tables with bgzip and index them with tabix.", order = 9)
+    private boolean bgzip=false;
+
+    /** Write the interaction counts as a contact matrix with one bin per digest in the cooler format. */
+    @CommandLine.Option(names={"-f", "--cool"},description = "Write the interaction counts as a contact matrix with one bin per digest (.cool).", order = 10)
+    private boolean cool=false;
+
+    /** Bin sizes of the contact matrices of the multi-resolution cooler file. */
+    @CommandLine.Option(names={"-w", "--mcool"},split = ",",description = "Write the interaction counts as contact matrices with the given comma-separated bin sizes, e.g. 5000,10000,50000 (.mcool).", order = 11)
+    private int[] resolutions=null;
+
     public CountCommand() {
     }
 
     @Override
     public Integer call() throws DiachromaticException {
 
+        if (threadNum < 1) {
+            throw new DiachromaticException(String.format("The number of threads must be at least 1 (was %d)", threadNum));
+        }
+        if (resolutions != null) {
+            for (int resolution : resolutions) {
+                if (resolution < 1) {
+                    throw new DiachromaticException(String.format("The bin sizes must be at least 1 (was %d)", resolution));
+                }
+            }
+        }
         makeOutdirectoryIfNeeded();
 
         logger.trace(String.format("About to read digests from %s",digestFile));
         DigestMap digestMap = new DigestMap(digestFile);
+        if (bucketIndex) {
+            digestMap.buildBucketIndex();
+        }
 
         String outputDirAndFilePrefix=String.format("%s%s%s", outputDir, File.separator,filenamePrefix);
 
-        SamReader reader = SamReaderFactory.makeDefault().open(new File(validPairsBamFile));
-
-        Counter counter = new Counter(reader, digestMap, outputDirAndFilePrefix, split);
-        try {
+        File bam = new File(validPairsBamFile);
+        boolean sorted = isSortedAndIndexed(bam);
+        if (sorted && lightweightDecode) {
+            logger.warn("Ignoring --lightweight-decode because {} is sorted by coordinate and is counted by region.",
+                    validPairsBamFile);
+        }
+        boolean parallel = threadNum > 1;
+        ExecutorService executor = parallel || bgzip ? Executors.newFixedThreadPool(threadNum) : null;
+        try (SamReader reader = sorted ? null : SamReaderFactory.makeDefault().open(bam);
+             LightweightBAMReader bamReader = !sorted && (lightweightDecode || parallel) ?
+                     new LightweightBAMReader(bam, parallel ? executor : null, threadNum) : null) {
+            Counter counter;
+            if (sorted) {
+                // a sorted BAM file is counted by region, using its index
+                counter = new Counter(bam, digestMap, outputDirAndFilePrefix, split);
+            } else if (bamReader != null) {
+                counter = new Counter(bamReader, digestMap, outputDirAndFilePrefix, split);
+            } else {
+                counter = new Counter(reader, digestMap, outputDirAndFilePrefix, split);
+            }
+            if (parallel) {
+                counter.setThreads(executor, threadNum);
+            }
             logger.trace("About to determine interaction counts...");
             counter.countInteractions();
             logger.trace("...done with counting!");
             logger.trace("About to print the results...");
-            counter.printInteractionCountsMapAsCountTable();
-            counter.printInteractionCountsMapInWashUSimpleTextFormat();
-            counter.printFragmentInteractionCountsMapAsCountTable();
+            if (bgzip) {
+                counter.setBgzipOutput(executor, threadNum);
+            }
+            counter.printCountTables();
             counter.printStatistics();
+            if (cool) {
+                counter.printCoolerMatrix();
+            }
+            if (resolutions != null) {
+                counter.printMultiResolutionCoolerMatrix(resolutions);
+            }
             logger.trace("...done!");
         } catch (FileNotFoundException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not count the read pairs of %s: %s", validPairsBamFile, e.getMessage()));
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
         }
         return 0;
     }
+
+    /**
+     * @return true if the BAM file is sorted by coordinate, in which case it must have an index
+     */
+    private boolean isSortedAndIndexed(File bam) throws DiachromaticException {
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            if (reader.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+                return false;
+            }
+            if (!reader.hasIndex()) {
+                throw new DiachromaticException(String.format("%s is sorted by coordinate but has no index (.bai or .csi); " +
+                        "index it or use the valid pairs BAM file written without --sort-valid", validPairsBamFile));
+            }
+            return true;
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not read %s: %s", validPairsBamFile, e.getMessage()));
+        }
+    }
+
     @Override
     public String toString() {return "diachromatic:count";} //???
 }
@@ -0,0 +1,79 @@
+package org.jax.diachromatic.command;
+
+import org.jax.diachromatic.align.DigestIndex;
+import org.jax.diachromatic.digest.GenomeDigester;
+import org.jax.diachromatic.digest.RestrictionEnzyme;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.jax.diachromatic.digest.RestrictionEnzyme.parseRestrictionEnzymes;
+
+/**
+ * Creates a digest file for the {@code align} and {@code count} commands by an in silico digestion of a genome in FASTA
+ * format (see {@link GenomeDigester}), as an alternative to exporting the digests from GOPHER.
+ */
+@CommandLine.Command(name = "digest",
+        aliases = {"D"},
+        mixinStandardHelpOptions = true,
+        description = "Create a digest file by in silico digestion of a genome in FASTA format.")
+public class DigestCommand extends Command implements Callable<Integer> {
+    private static final Logger logger = LoggerFactory.getLogger(DigestCommand.class);
+
+    @CommandLine.Option(names={"-g", "--genome"}, required = true, description = "Path to genome FASTA file (may be compressed with gzip or bgzip).", order = 3)
+    private String fastaFile;
+    @CommandLine.Option(names={"-e", "--enzyme"}, required = true, split = ",", description = "Restriction enzyme name. Use a comma-separated list (e.g. DpnII,HinfI) for enzyme cocktails.", order = 4)
+    private List<String> enzymeNames;
+    @CommandLine.Option(names={"-m", "--margin"}, description = "Size of the margins at both ends of the digests used for GC and repeat content.", order = 5)
+    private int marginSize = GenomeDigester.DEFAULT_MARGIN_SIZE;
+    @CommandLine.Option(names={"-t", "--threads"}, description = "Number of threads used to scan the chromosomes.", order = 6)
+    private int threadNum = 1;
+    @CommandLine.Option(names={"-i", "--index"}, description = "Also write a binary index of the digest file (see digest-index).", order = 7)
+    private boolean writeIndex = false;
+
+    public DigestCommand() {
+    }
+
+    @Override
+    public Integer call() throws DiachromaticException {
+        List<RestrictionEnzyme> enzymelist = parseRestrictionEnzymes();
+        List<RestrictionEnzyme> enzymes = new ArrayList<>();
+        for (String enzymeName : enzymeNames) {
+            RestrictionEnzyme re=enzymelist.stream().filter(r->r.getName().equalsIgnoreCase(enzymeName.trim())).findFirst().orElse(null);
+            if (re==null) {
+                throw new DiachromaticException(String.format("Could not identify restriction enzyme for \"%s\"",enzymeName));
+            }
+            if (!enzymes.contains(re)) {
+                enzymes.add(re);
+            }
+        }
+        if (marginSize < 1) {
+            throw new DiachromaticException(String.format("The margin size must be at least 1, but was %d", marginSize));
+        }
+        if (threadNum < 1) {
+            throw new DiachromaticException(String.format("The number of threads must be at least 1, but was %d", threadNum));
+        }
+        if (!new File(fastaFile).exists()) {
+            throw new DiachromaticException(String.format("%s does not exist", fastaFile));
+        }
+        makeOutdirectoryIfNeeded();
+        String digestFile = String.format("%s%s%s_DigestedGenome.txt", outputDir, File.separator, filenamePrefix);
+        logger.trace(String.format("About to digest %s", fastaFile));
+        GenomeDigester digester = new GenomeDigester(enzymes, marginSize, threadNum);
+        int digestNum = digester.digest(fastaFile, digestFile);
+        logger.info("Wrote {} digests to {}", digestNum, digestFile);
+        if (writeIndex) {
+            DigestIndex.write(digestFile, DigestIndex.getDefaultIndexPath(digestFile));
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {return "diachromatic:digest";}
+}
@@ -0,0 +1,47 @@
+package org.jax.diachromatic.command;
+
+import org.jax.diachromatic.align.DigestIndex;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Compiles a GOPHER digest file into a binary {@link DigestIndex}. If the index is written to the default path next to
+ * the digest file, the {@code align} and {@code count} commands use it automatically as long as the digest file is
+ * not changed; the index can also be passed directly with {@code --digest-file}.
+ */
+@CommandLine.Command(name = "digest-index",
+        aliases = {"I"},
+        mixinStandardHelpOptions = true,
+        description = "Compile a GOPHER digest file into a binary index that is read faster by align and count.")
+public class DigestIndexCommand implements Callable<Integer> {
+    private static final Logger logger = LoggerFactory.getLogger(DigestIndexCommand.class);
+
+    /** Path to the genome digest file produced by GOPHER. */
+    @CommandLine.Option(names={"-d","--digest-file"}, required = true, description = "Path to GOPHER digest file.", order = 1)
+    private String digestFile;
+
+    /** Path of the index, by default the path of the digest file with the extension {@link DigestIndex#EXTENSION}. */
+    @CommandLine.Option(names={"-i","--index-file"}, description = "Path of the index (default: path of the digest file + " + DigestIndex.EXTENSION + ").", order = 2)
+    private String indexFile = null;
+
+    public DigestIndexCommand() {
+    }
+
+    @Override
+    public Integer call() throws DiachromaticException {
+        if (indexFile == null) {
+            indexFile = DigestIndex.getDefaultIndexPath(digestFile);
+        }
+        logger.trace(String.format("About to write index of %s to %s", digestFile, indexFile));
+        int digestNum = DigestIndex.write(digestFile, indexFile);
+        logger.info("Wrote {} digests to {}", digestNum, indexFile);
+        return 0;
+    }
+
+    @Override
+    public String toString() {return "diachromatic:digest-index";}
+}
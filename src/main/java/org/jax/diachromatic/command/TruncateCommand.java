@@ -9,6 +9,7 @@ import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -33,21 +34,35 @@ public class TruncateCommand extends Command implements Callable<Integer> {
     private String fastaqFile1;
     @CommandLine.Option(names={"-r","fastq-r2"}, required = true, description = "Path to reverse FASTQ input file.", order = 4)
     private String fastaqFile2;
-    @CommandLine.Option(names={"-e", "--enzyme"}, required = true, description = "Restriction enzyme name.", order = 5)
-    private String enzymeName;
+    @CommandLine.Option(names={"-e", "--enzyme"}, required = true, split = ",", description = "Restriction enzyme name. Use a comma-separated list (e.g. DpnII,HinfI) for enzyme cocktails.", order = 5)
+    private List<String> enzymeNames;
     @CommandLine.Option(names={"-s", "--sticky-ends"},description = "No fill-in of sticky ends was performed.", order = 6)
     private boolean stickyEnds=false;
+    @CommandLine.Option(names={"-t", "--threads"},description = "Number of worker threads used for truncation.", order = 7)
+    private int threadNum=1;
+    @CommandLine.Option(names={"-l", "--compression-level"},description = "Compression level (0-9) of the truncated FASTQ files.", order = 8)
+    private int compressionLevel=Truncator.DEFAULT_COMPRESSION_LEVEL;
+    @CommandLine.Option(names={"-u", "--uncompressed"},description = "Write uncompressed FASTQ files, e.g., to pipe them directly to the aligner.", order = 9)
+    private boolean uncompressed=false;
 
     private Truncator truncator = null;
-    private RestrictionEnzyme re = null;
+    private final List<RestrictionEnzyme> enzymes = new ArrayList<>();
 
     public TruncateCommand(){}
 
     private void init() throws DiachromaticException {
         List<RestrictionEnzyme>  enzymelist = parseRestrictionEnzymes();
-        re=enzymelist.stream().filter(r->r.getName().equalsIgnoreCase(enzymeName)).findFirst().orElse(null);
-        if (re==null) {
-            throw new DiachromaticException(String.format("Could not identify restriction enzyme for \"%s\"",enzymeName));
+        for (String enzymeName : enzymeNames) {
+            RestrictionEnzyme re=enzymelist.stream().filter(r->r.getName().equalsIgnoreCase(enzymeName.trim())).findFirst().orElse(null);
+            if (re==null) {
+                throw new DiachromaticException(String.format("Could not identify restriction enzyme for \"%s\"",enzymeName));
+            }
+            if (!enzymes.contains(re)) {
+                enzymes.add(re);
+            }
+        }
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new DiachromaticException(String.format("Compression level must be between 0 and 9, but was %d", compressionLevel));
         }
         File f = new File(fastaqFile1);
         if(!f.exists()) {
@@ -58,7 +73,7 @@ public class TruncateCommand extends Command implements Callable<Integer> {
             throw new DiachromaticException(String.format("%s does not exist", fastaqFile2));
         }
         String outputDirAndFilePrefix=String.format("%s%s%s", outputDir, File.separator,filenamePrefix);
-        truncator = new Truncator(fastaqFile1,fastaqFile2, re, stickyEnds, outputDirAndFilePrefix);
+        truncator = new Truncator(fastaqFile1,fastaqFile2, enzymes, stickyEnds, outputDirAndFilePrefix, threadNum, compressionLevel, uncompressed);
     }
 
 
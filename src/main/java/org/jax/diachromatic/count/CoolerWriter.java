@@ -0,0 +1,330 @@
+package org.jax.diachromatic.count;
+
+import io.jhdf.HdfFile;
+import io.jhdf.WritableHdfFile;
+import io.jhdf.api.WritableGroup;
+import io.jhdf.exceptions.HdfException;
+import org.jax.diachromatic.Diachromatic;
+import org.jax.diachromatic.align.Digest;
+import org.jax.diachromatic.align.DigestMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the interaction counts of {@link Counter} as contact matrices in the
+ * <a href="https://cooler.readthedocs.io/en/latest/schema.html">cooler format</a> (version 3), an HDF5 format that
+ * is used by cooler, HiGlass and other tools for Hi-C data:
+ * <ul>
+ * <li>a {@code .cool} file at the resolution of the restriction fragments, with one bin per digest (bin type
+ * {@code variable}), and</li>
+ * <li>a multi-resolution {@code .mcool} file with one matrix of fixed-size bins (e.g., 5 kb) for each resolution,
+ * whose groups are {@code /resolutions/<bin size>}. The read pairs of an interaction are counted in the bins of the
+ * centers of its digests.</li>
+ * </ul>
+ * Both store the upper triangle of the symmetric matrix ({@code bin1_id <= bin2_id}). The pixels of each matrix are
+ * aggregated in one pass over the interaction counts, which must be sorted with the lower digest index first (see
+ * {@link DigestPairCountTable#orderDigests}). Since the digests are sorted by chromosome and position, the first bin
+ * of the pixels does not decrease in this order, so that the pixels of one first bin at a time are collected. The
+ * matrices of several resolutions are aggregated in parallel.
+ * <p>
+ * The chromosomes are those of the digest file, in its order, with the end of their last digest as length.
+ */
+final class CoolerWriter {
+    private static final String COOLER_FORMAT = "HDF5::Cooler";
+    private static final long COOLER_FORMAT_VERSION = 3;
+    private static final String MCOOL_FORMAT = "HDF5::MCOOL";
+    private static final long MCOOL_FORMAT_VERSION = 2;
+    private static final String FORMAT_URL = "https://github.com/open2c/cooler";
+
+    private final DigestMap digestMap;
+    /** Names of the chromosomes in the order of the digests. */
+    private final List<String> chromosomes = new ArrayList<>();
+    /** Length of each chromosome, i.e., the end of its last digest. */
+    private final int[] chromosomeLengths;
+    /** Chromosome of each digest (index into {@link #chromosomes}). */
+    private final int[] digestChromosomes;
+
+    /**
+     * @throws IOException if the digests are not sorted by chromosome and position, which is needed for the bins
+     */
+    CoolerWriter(DigestMap digestMap) throws IOException {
+        this.digestMap = digestMap;
+        int n = digestMap.getNumOfDigests();
+        this.digestChromosomes = new int[n];
+        List<Integer> lengths = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Digest previous = null;
+        for (int d = 0; d < n; d++) {
+            Digest digest = digestMap.getDigest(d);
+            if (previous == null || !digest.getChromosome().equals(previous.getChromosome())) {
+                if (!seen.add(digest.getChromosome())) {
+                    throw new IOException(String.format("The digests of %s are not together; the digest file must be " +
+                            "sorted by chromosome and position", digest.getChromosome()));
+                }
+                chromosomes.add(digest.getChromosome());
+                lengths.add(0);
+            } else if (digest.getDigestStartPosition() <= previous.getDigestStartPosition()) {
+                throw new IOException(String.format("The digests of %s are not sorted by position", digest.getChromosome()));
+            }
+            int c = chromosomes.size() - 1;
+            digestChromosomes[d] = c;
+            lengths.set(c, Math.max(lengths.get(c), digest.getDigestEndPosition()));
+            previous = digest;
+        }
+        this.chromosomeLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * The bins and pixels of one contact matrix.
+     */
+    private static final class ContactMatrix {
+        /** Size of the bins, or 0 for one bin per digest. */
+        final int binSize;
+        final int[] binChromosomes;
+        /** 0-based start and end (exclusive) of the bins. */
+        final int[] binStarts;
+        final int[] binEnds;
+        /** First bin of each chromosome, and the number of bins at the end. */
+        final long[] chromosomeOffsets;
+        long[] bin1 = new long[1024];
+        long[] bin2 = new long[1024];
+        int[] counts = new int[1024];
+        int pixelNum = 0;
+
+        ContactMatrix(int binSize, int binNum, int chromosomeNum) {
+            this.binSize = binSize;
+            this.binChromosomes = new int[binNum];
+            this.binStarts = new int[binNum];
+            this.binEnds = new int[binNum];
+            this.chromosomeOffsets = new long[chromosomeNum + 1];
+        }
+
+        void addPixel(int b1, int b2, int count) {
+            if (pixelNum == counts.length) {
+                int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * pixelNum);
+                bin1 = Arrays.copyOf(bin1, capacity);
+                bin2 = Arrays.copyOf(bin2, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            bin1[pixelNum] = b1;
+            bin2[pixelNum] = b2;
+            counts[pixelNum] = count;
+            pixelNum++;
+        }
+
+        /** @return the offset of the first pixel of each bin in the pixels, and the number of pixels at the end */
+        long[] getBin1Offsets() {
+            long[] offsets = new long[binStarts.length + 1];
+            for (int i = 0; i < pixelNum; i++) {
+                offsets[(int) bin1[i] + 1]++;
+            }
+            for (int b = 0; b < binStarts.length; b++) {
+                offsets[b + 1] += offsets[b];
+            }
+            return offsets;
+        }
+    }
+
+    /**
+     * Write a {@code .cool} file with one bin per digest.
+     *
+     * @param table interaction counts, sorted with the lower digest index first
+     */
+    void writeFragmentMatrix(File file, DigestPairCountTable table) throws IOException {
+        ContactMatrix matrix = aggregate(table, 0);
+        try (WritableHdfFile hdf = HdfFile.write(file.toPath())) {
+            writeMatrix(hdf, matrix);
+        } catch (HdfException e) {
+            throw new IOException(String.format("Could not write %s: %s", file, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Write a {@code .mcool} file with one matrix of fixed-size bins for each resolution.
+     *
+     * @param table interaction counts, sorted with the lower digest index first
+     * @param resolutions bin sizes of the matrices
+     * @param executor thread pool that aggregates the matrices of the resolutions in parallel, or null to aggregate
+     *                 them in the calling thread. It is not shut down by this class.
+     */
+    void writeMultiResolutionMatrix(File file, DigestPairCountTable table, int[] resolutions, ExecutorService executor)
+            throws IOException {
+        int[] sortedResolutions = Arrays.stream(resolutions).sorted().distinct().toArray();
+        List<ContactMatrix> matrices = new ArrayList<>();
+        if (executor == null) {
+            for (int resolution : sortedResolutions) {
+                matrices.add(aggregate(table, resolution));
+            }
+        } else {
+            List<Future<ContactMatrix>> tasks = new ArrayList<>();
+            try {
+                for (int resolution : sortedResolutions) {
+                    tasks.add(executor.submit(() -> aggregate(table, resolution)));
+                }
+                for (Future<ContactMatrix> task : tasks) {
+                    matrices.add(task.get());
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Could not aggregate the contact matrix: " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while aggregating the contact matrices");
+            } finally {
+                for (Future<ContactMatrix> task : tasks) {
+                    task.cancel(true);
+                }
+            }
+        }
+        try (WritableHdfFile hdf = HdfFile.write(file.toPath())) {
+            hdf.putAttribute("format", MCOOL_FORMAT);
+            hdf.putAttribute("format-version", MCOOL_FORMAT_VERSION);
+            WritableGroup resolutionGroup = hdf.putGroup("resolutions");
+            for (ContactMatrix matrix : matrices) {
+                writeMatrix(resolutionGroup.putGroup(Integer.toString(matrix.binSize)), matrix);
+            }
+        } catch (HdfException e) {
+            throw new IOException(String.format("Could not write %s: %s", file, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Set up the bins of a matrix and sum the counts of the interactions in the pixels.
+     *
+     * @param binSize size of the bins, or 0 for one bin per digest
+     */
+    private ContactMatrix aggregate(DigestPairCountTable table, int binSize) {
+        int digestNum = digestMap.getNumOfDigests();
+        // bin of each digest
+        int[] digestBins = new int[digestNum];
+        ContactMatrix matrix;
+        if (binSize == 0) {
+            matrix = new ContactMatrix(0, digestNum, chromosomes.size());
+            for (int d = 0; d < digestNum; d++) {
+                Digest digest = digestMap.getDigest(d);
+                digestBins[d] = d;
+                matrix.binChromosomes[d] = digestChromosomes[d];
+                matrix.binStarts[d] = digest.getDigestStartPosition() - 1;
+                matrix.binEnds[d] = digest.getDigestEndPosition();
+                matrix.chromosomeOffsets[digestChromosomes[d] + 1] = d + 1;
+            }
+        } else {
+            long binNum = 0;
+            for (int length : chromosomeLengths) {
+                binNum += (length + binSize - 1) / binSize;
+            }
+            if (binNum > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException(String.format("Too many bins of size %d", binSize));
+            }
+            matrix = new ContactMatrix(binSize, (int) binNum, chromosomes.size());
+            int b = 0;
+            for (int c = 0; c < chromosomeLengths.length; c++) {
+                matrix.chromosomeOffsets[c] = b;
+                for (int start = 0; start < chromosomeLengths[c]; start += binSize, b++) {
+                    matrix.binChromosomes[b] = c;
+                    matrix.binStarts[b] = start;
+                    matrix.binEnds[b] = (int) Math.min(chromosomeLengths[c], (long) start + binSize);
+                }
+            }
+            matrix.chromosomeOffsets[chromosomeLengths.length] = b;
+            for (int d = 0; d < digestNum; d++) {
+                Digest digest = digestMap.getDigest(d);
+                int center = digest.getDigestStartPosition() + ((digest.getDigestEndPosition() - digest.getDigestStartPosition()) / 2);
+                digestBins[d] = (int) matrix.chromosomeOffsets[digestChromosomes[d]] + (center - 1) / binSize;
+            }
+        }
+
+        // counts of the pixels of the current first bin, indexed by the second bin
+        int[] rowCounts = new int[matrix.binStarts.length];
+        int[] rowBins = new int[64];
+        int rowSize = 0;
+        int currentBin1 = -1;
+        for (int i = 0; i < table.size(); i++) {
+            int b1 = digestBins[table.getDigest1(i)];
+            int b2 = digestBins[table.getDigest2(i)];
+            if (b1 != currentBin1) {
+                addRow(matrix, currentBin1, rowBins, rowSize, rowCounts);
+                rowSize = 0;
+                currentBin1 = b1;
+            }
+            if (rowCounts[b2] == 0) {
+                if (rowSize == rowBins.length) {
+                    rowBins = Arrays.copyOf(rowBins, 2 * rowSize);
+                }
+                rowBins[rowSize++] = b2;
+            }
+            rowCounts[b2] += table.getTotalCount(i);
+        }
+        addRow(matrix, currentBin1, rowBins, rowSize, rowCounts);
+        return matrix;
+    }
+
+    /** Add the pixels of a first bin to a matrix in the order of the second bin and reset their counts. */
+    private static void addRow(ContactMatrix matrix, int bin1, int[] rowBins, int rowSize, int[] rowCounts) {
+        Arrays.sort(rowBins, 0, rowSize);
+        for (int j = 0; j < rowSize; j++) {
+            int b2 = rowBins[j];
+            matrix.addPixel(bin1, b2, rowCounts[b2]);
+            rowCounts[b2] = 0;
+        }
+    }
+
+    /**
+     * Write the groups and attributes of a cooler to the root or a group of an HDF5 file.
+     */
+    private void writeMatrix(WritableGroup group, ContactMatrix matrix) {
+        int n = matrix.pixelNum;
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += matrix.counts[i];
+        }
+        String version = Diachromatic.getVersion();
+        group.putAttribute("format", COOLER_FORMAT);
+        group.putAttribute("format-version", COOLER_FORMAT_VERSION);
+        group.putAttribute("format-url", FORMAT_URL);
+        group.putAttribute("generated-by", version == null ? "diachromatic" : "diachromatic-" + version);
+        group.putAttribute("creation-date", ZonedDateTime.now().format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+        group.putAttribute("genome-assembly", "unknown");
+        group.putAttribute("metadata", "{}");
+        group.putAttribute("storage-mode", "symmetric-upper");
+        if (matrix.binSize > 0) {
+            group.putAttribute("bin-type", "fixed");
+            group.putAttribute("bin-size", (long) matrix.binSize);
+        } else {
+            group.putAttribute("bin-type", "variable");
+            group.putAttribute("bin-size", "null");
+        }
+        group.putAttribute("nchroms", (long) chromosomes.size());
+        group.putAttribute("nbins", (long) matrix.binStarts.length);
+        group.putAttribute("nnz", (long) n);
+        group.putAttribute("sum", sum);
+
+        WritableGroup chroms = group.putGroup("chroms");
+        chroms.putDataset("name", chromosomes.toArray(new String[0]));
+        chroms.putDataset("length", chromosomeLengths);
+
+        WritableGroup bins = group.putGroup("bins");
+        bins.putDataset("chrom", matrix.binChromosomes);
+        bins.putDataset("start", matrix.binStarts);
+        bins.putDataset("end", matrix.binEnds);
+
+        WritableGroup pixels = group.putGroup("pixels");
+        pixels.putDataset("bin1_id", Arrays.copyOf(matrix.bin1, n));
+        pixels.putDataset("bin2_id", Arrays.copyOf(matrix.bin2, n));
+        pixels.putDataset("count", Arrays.copyOf(matrix.counts, n));
+
+        WritableGroup indexes = group.putGroup("indexes");
+        indexes.putDataset("chrom_offset", matrix.chromosomeOffsets);
+        indexes.putDataset("bin1_offset", matrix.getBin1Offsets());
+    }
+}
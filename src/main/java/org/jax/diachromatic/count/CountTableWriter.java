@@ -0,0 +1,238 @@
+package org.jax.diachromatic.count;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import org.jax.diachromatic.align.Digest;
+import org.jax.diachromatic.util.BAMIndexBuilder;
+import org.jax.diachromatic.util.ParallelBlockCompressedOutputStream;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes the output tables of {@link Counter}: the interaction counts, the interactions in the WashU simple text
+ * format and the read counts at interacting fragments. {@link Counter} writes the lines of all three tables in one
+ * pass over the sorted interaction counts. The lines are assembled in byte buffers, with numbers encoded without
+ * {@link String#format(String, Object...)}, and written through buffered streams.
+ * <p>
+ * Optionally, the interaction counts and the fragment counts are compressed with bgzip and indexed with tabix
+ * (using the chromosome, start and end of the first fragment of each line), so that the lines of a region can be
+ * queried with {@code tabix}. This requires that the lines are sorted by the chromosome and start of the first
+ * fragment, with all lines of a chromosome together, which holds if the digest file is sorted.
+ */
+final class CountTableWriter implements Closeable {
+    /** Size of the buffers between the lines (or the compressed blocks) and the files. */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+    /** Extension of the files that are compressed with bgzip. */
+    static final String BGZIP_EXTENSION = ".gz";
+    /** Extension of the tabix index, which is appended to the path of the compressed file. */
+    static final String TABIX_EXTENSION = ".tbi";
+
+    private final TableFile interactions;
+    private final TableFile washU;
+    private final TableFile fragments;
+
+    /**
+     * @param interactionFile file for the interaction counts
+     * @param washUFile file for the interactions in the WashU simple text format, which is never compressed
+     * @param fragmentFile file for the read counts at interacting fragments
+     * @param compressors thread pool that compresses the interaction and fragment counts with bgzip, or null to
+     *                    write uncompressed text files. It is not shut down by this class.
+     * @param threadNum number of threads of {@code compressors}
+     * @param maxLength largest end position of a digest, which determines the format of the tabix index
+     */
+    CountTableWriter(File interactionFile, File washUFile, File fragmentFile, ExecutorService compressors,
+                     int threadNum, long maxLength) throws IOException {
+        this.interactions = new TableFile(interactionFile, compressors, threadNum, maxLength);
+        this.washU = new TableFile(washUFile, null, 0, 0);
+        this.fragments = new TableFile(fragmentFile, compressors, threadNum, maxLength);
+    }
+
+    /**
+     * Write a line of the interaction counts with the total number of read pairs.
+     */
+    void writeInteraction(Digest digest1, Digest digest2, int count) throws IOException {
+        interactions.appendDigest(digest1).append('\t').appendDigest(digest2).append('\t').append(count);
+        interactions.endLine(digest1);
+    }
+
+    /**
+     * Write a line of the interaction counts with the counts of the four relative orientations of the read pairs.
+     */
+    void writeInteraction(Digest digest1, Digest digest2, int simple1, int simple2, int twisted1, int twisted2)
+            throws IOException {
+        interactions.appendDigest(digest1).append('\t').appendDigest(digest2).append('\t')
+                .append(simple1).append(':').append(simple2).append(':').append(twisted1).append(':').append(twisted2);
+        interactions.endLine(digest1);
+    }
+
+    /**
+     * Write a line of the WashU simple text format ({@code chr:start-end chr:start-end count}).
+     */
+    void writeWashUInteraction(Digest digest1, Digest digest2, int count) throws IOException {
+        washU.appendCoordinates(digest1).append('\t').appendCoordinates(digest2).append('\t').append(count);
+        washU.endLine(null);
+    }
+
+    /**
+     * Write the read count of an interacting fragment, which is marked as active ({@code A}) if it is selected and as
+     * inactive ({@code I}) otherwise.
+     */
+    void writeFragment(Digest digest, int readCount) throws IOException {
+        fragments.append(digest.getChromosome()).append('\t').append(digest.getDigestStartPosition()).append('\t')
+                .append(digest.getDigestEndPosition()).append('\t').append(digest.isSelected() ? 'A' : 'I').append('\t')
+                .append(readCount);
+        fragments.endLine(digest);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            interactions.close();
+        } finally {
+            try {
+                washU.close();
+            } finally {
+                fragments.close();
+            }
+        }
+    }
+
+    /**
+     * One output file with the buffer of the current line and, if it is compressed, its tabix index.
+     */
+    private static final class TableFile implements Closeable {
+        private final File file;
+        private final OutputStream out;
+        /** The compressed stream, or null for an uncompressed text file. */
+        private final ParallelBlockCompressedOutputStream bgzf;
+        private final BAMIndexBuilder index;
+        /** Names of the chromosomes in the index, in the order of the lines. */
+        private final List<String> names = new ArrayList<>();
+        private final Set<String> indexedNames = new HashSet<>();
+        private String lastChromosome = null;
+        private int lastStart = 0;
+        private byte[] line = new byte[256];
+        private int length = 0;
+        private boolean closed = false;
+
+        TableFile(File file, ExecutorService compressors, int threadNum, long maxLength) throws IOException {
+            this.file = file;
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+            if (compressors != null) {
+                this.bgzf = new ParallelBlockCompressedOutputStream(os,
+                        BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL, compressors, threadNum);
+                this.out = bgzf;
+                this.index = new BAMIndexBuilder(0, maxLength, BAMIndexBuilder.getDefaultFormat(maxLength));
+            } else {
+                this.bgzf = null;
+                this.out = os;
+                this.index = null;
+            }
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > line.length) {
+                line = Arrays.copyOf(line, Math.max(2 * line.length, length + additional));
+            }
+        }
+
+        TableFile append(char c) {
+            ensureCapacity(1);
+            line[length++] = (byte) c;
+            return this;
+        }
+
+        /** Append a string of ASCII characters, such as a chromosome name. */
+        TableFile append(String s) {
+            int n = s.length();
+            ensureCapacity(n);
+            for (int i = 0; i < n; i++) {
+                line[length++] = (byte) s.charAt(i);
+            }
+            return this;
+        }
+
+        /** Append the decimal digits of a number. */
+        TableFile append(int value) {
+            ensureCapacity(11);
+            if (value < 0) {
+                if (value == Integer.MIN_VALUE) {
+                    return append(Integer.toString(value));
+                }
+                line[length++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (int v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            for (int i = length + digits - 1; i >= length; i--) {
+                line[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+            return this;
+        }
+
+        /** Append a digest as {@code chromosome start end E/N} (as {@link Digest#toString()}). */
+        TableFile appendDigest(Digest digest) {
+            return append(digest.getChromosome()).append('\t').append(digest.getDigestStartPosition()).append('\t')
+                    .append(digest.getDigestEndPosition()).append('\t').append(digest.isSelected() ? 'E' : 'N');
+        }
+
+        /** Append the coordinates of a digest as {@code chromosome:start-end}. */
+        TableFile appendCoordinates(Digest digest) {
+            return append(digest.getChromosome()).append(':').append(digest.getDigestStartPosition()).append('-')
+                    .append(digest.getDigestEndPosition());
+        }
+
+        /**
+         * Write the current line.
+         *
+         * @param digest the digest whose position is used for the index, if the file is indexed
+         */
+        void endLine(Digest digest) throws IOException {
+            append('\n');
+            if (index == null) {
+                out.write(line, 0, length);
+                length = 0;
+                return;
+            }
+            String chromosome = digest.getChromosome();
+            int start = digest.getDigestStartPosition();
+            if (!chromosome.equals(lastChromosome)) {
+                if (!indexedNames.add(chromosome)) {
+                    throw new IOException(String.format("Cannot index %s: the lines of %s are not together; the digest " +
+                            "file must be sorted by chromosome and position", file, chromosome));
+                }
+                names.add(chromosome);
+                lastChromosome = chromosome;
+            } else if (start < lastStart) {
+                throw new IOException(String.format("Cannot index %s: the lines of %s are not sorted by position; the " +
+                        "digest file must be sorted by chromosome and position", file, chromosome));
+            }
+            lastStart = start;
+            long blockPointer = bgzf.getBlockPointer();
+            out.write(line, 0, length);
+            length = 0;
+            index.add(names.size() - 1, start - 1, digest.getDigestEndPosition(), false, blockPointer, bgzf.getBlockPointer());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+            if (index != null) {
+                index.writeTabix(new File(file.getPath() + TABIX_EXTENSION), bgzf::toVirtualFilePointer, names, 1, 2, 3, '#');
+            }
+        }
+    }
+}
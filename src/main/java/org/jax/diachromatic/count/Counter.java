@@ -4,16 +4,19 @@ import htsjdk.samtools.*;
 import htsjdk.samtools.util.Log;
 
 import org.jax.diachromatic.align.*;
+import org.jax.diachromatic.util.LightweightBAMReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class is intended for counting read pairs for piars of restriction fragments and for counting reads at
@@ -39,9 +42,9 @@ public class Counter {
     private static final htsjdk.samtools.util.Log log = Log.getInstance(Aligner.class);
 
     /**
-     * HashMap that stores interaction counts. Key: reference of digest pair; Value: SimpleTwistedCount objects.
+     * Stores the interaction counts (simple and twisted read pairs) for each pair of digests.
      */
-    private Map<DigestPair,SimpleTwistedCount> dp2countsMap;
+    private DigestPairCountTable countTable;
 
     /**
      * Stores interaction counts.
@@ -55,12 +58,26 @@ public class Counter {
     private String outputTsvInteractionCounts;
     private String outputWashUSimpleInteractionCounts;
     private String outputTxtStats;
+    private String outputCoolerMatrix;
+    private String outputMultiResolutionCoolerMatrix;
 
     /**
      * A reader for the unique valid read pairs.
      */
     final private SamReader reader;
 
+    /**
+     * A reader for the unique valid read pairs that decodes only the fields needed for counting, used instead of
+     * {@link #reader} if not null.
+     */
+    final private LightweightBAMReader bamReader;
+
+    /**
+     * A coordinate-sorted and indexed BAM file with the unique valid read pairs, which is counted by region if not
+     * null (see {@link #countInteractionsByRegion()}).
+     */
+    final private File sortedBamFile;
+
     /**
      * Iterator over reads from {@link #reader}.
      */
@@ -161,20 +178,122 @@ public class Counter {
 
     boolean split = false;
 
+    /**
+     * Thread pool for counting in parallel with {@link #bamReader} or {@link #sortedBamFile}, or null to count in the
+     * calling thread.
+     */
+    private ExecutorService executor = null;
+    private int threadNum = 1;
+
+    /**
+     * Thread pool that compresses the interaction and fragment counts with bgzip, or null to write text files.
+     */
+    private ExecutorService compressors = null;
+    private int compressorNum = 0;
+
+    /**
+     * Minimum length of the regions that are counted independently with {@link #sortedBamFile}.
+     */
+    private static final int MIN_REGION_LENGTH = 1_000_000;
+
+    /**
+     * Number of regions per thread with {@link #sortedBamFile}, so that threads that finish their regions early can
+     * take over the remaining ones (e.g., regions with many read pairs or long chromosomes).
+     */
+    private static final int REGIONS_PER_THREAD = 4;
+
 
     public Counter(SamReader samReader, DigestMap digestMap, String outputDirAndFilePrefix, boolean split) {
         this.reader = samReader;
+        this.bamReader = null;
+        this.sortedBamFile = null;
         this.digestMap = digestMap;
         this.it = reader.iterator();
         createOutputNames(outputDirAndFilePrefix);
-        this.dp2countsMap = new HashMap<>();
+        this.countTable = new DigestPairCountTable();
         this.split=split;
     }
 
-    public void countInteractions() {
+    /**
+     * Count the read pairs of a BAM file that is read with a {@link LightweightBAMReader}, which decodes only the
+     * positions, strands and flags of the reads. The results are the same as with a {@link SamReader}.
+     */
+    public Counter(LightweightBAMReader bamReader, DigestMap digestMap, String outputDirAndFilePrefix, boolean split) {
+        this.reader = null;
+        this.bamReader = bamReader;
+        this.sortedBamFile = null;
+        this.digestMap = digestMap;
+        this.it = null;
+        createOutputNames(outputDirAndFilePrefix);
+        this.countTable = new DigestPairCountTable();
+        this.split=split;
+    }
+
+    /**
+     * Count the read pairs of a coordinate-sorted BAM file with an index (.bai or .csi), as written by align with
+     * --sort-valid. The genome is divided into regions that are counted independently, in parallel with
+     * {@link #setThreads(ExecutorService, int)}. Each read pair is counted in the region of the start of its first
+     * read, and the 5' end of the second read is determined from the mate fields and the MC tag of the first read.
+     * The counts are the same as for the unsorted BAM file.
+     */
+    public Counter(File sortedBamFile, DigestMap digestMap, String outputDirAndFilePrefix, boolean split) {
+        this.reader = null;
+        this.bamReader = null;
+        this.sortedBamFile = sortedBamFile;
+        this.digestMap = digestMap;
+        this.it = null;
+        createOutputNames(outputDirAndFilePrefix);
+        this.countTable = new DigestPairCountTable();
+        this.split=split;
+    }
+
+    /**
+     * Count the read pairs in several threads, which requires a {@link LightweightBAMReader} or a sorted BAM file.
+     * The read pairs are counted in batches (or regions of the sorted BAM file) by the threads of the executor, each
+     * into its own {@link PartialCounts}, which are merged at the end. The results are the same as with one thread.
+     *
+     * @param executor thread pool that counts the read pairs. It is not shut down by this class.
+     * @param threadNum number of threads of the executor
+     */
+    public void setThreads(ExecutorService executor, int threadNum) {
+        if (bamReader == null && sortedBamFile == null) {
+            throw new IllegalStateException("Counting with several threads requires a LightweightBAMReader or a sorted BAM file");
+        }
+        this.executor = executor;
+        this.threadNum = threadNum;
+    }
+
+    /**
+     * Compress the interaction counts and the read counts at interacting fragments with bgzip and index them with
+     * tabix, so that they can be queried by the region of the first fragment of each line. The suffix {@code .gz} is
+     * added to their names, and the indices have the additional suffix {@code .tbi}.
+     *
+     * @param compressors thread pool that compresses the files. It is not shut down by this class.
+     * @param compressorNum number of threads of the executor
+     */
+    public void setBgzipOutput(ExecutorService compressors, int compressorNum) {
+        this.compressors = compressors;
+        this.compressorNum = compressorNum;
+        outputTsvInteractionCounts += CountTableWriter.BGZIP_EXTENSION;
+        outputTsvInteractingFragmentCounts += CountTableWriter.BGZIP_EXTENSION;
+    }
+
+    public void countInteractions() throws IOException {
 
         // iterate over unique valid pairs
         n_pairs_total = 0;
+        if (sortedBamFile != null) {
+            countInteractionsByRegion();
+            return;
+        }
+        if (bamReader != null && executor != null) {
+            countInteractionsParallel();
+            return;
+        }
+        if (bamReader != null) {
+            countInteractionsLightweight();
+            return;
+        }
         while (it.hasNext()) {
             SAMRecord record1 = it.next();
             SAMRecord record2 = it.next();
@@ -182,85 +301,391 @@ public class Counter {
             // create read pair
             ReadPair readPair = new ReadPair(record1, record2, digestMap);
             //readPair.setRandomRelativeOrientationTag();
-            readPair.setRelativeOrientationTag();
-
-            read_count = read_count + 2;
-            if (readPair.forwardDigestIsActive()) {
-                active_read_count++;
-            }
-            if (readPair.reverseDigestIsActive()) {
-                active_read_count++;
-            }
-
+            RelativeOrientation orientation = readPair.setRelativeOrientation();
             DigestPair dp = readPair.getDigestPair();
-            incrementDigestPair(dp, readPair);
+            countReadPair(dp.forward(), dp.reverse(), orientation, readPair.isTrans());
+        }
+        logMemoryFootprint();
+    }
 
-            if (interaction_count % 10000000 == 0) {
-                logger.trace("Number of Interactions: " + interaction_count);
+    /**
+     * Count the read pairs with the fields decoded by {@link #bamReader}, without creating {@link SAMRecord} and
+     * {@link ReadPair} objects.
+     */
+    private void countInteractionsLightweight() throws IOException {
+        SAMSequenceDictionary dictionary = bamReader.getHeader().getSequenceDictionary();
+        while (bamReader.next()) {
+            int referenceIndex1 = bamReader.getReferenceIndex();
+            int pos1 = bamReader.getFivePrimeEndPosition();
+            boolean reverse1 = bamReader.isReverseStrand();
+            if (!bamReader.next()) {
+                throw new IOException("The last read has no mate: the reads of a pair must follow each other");
             }
+            int referenceIndex2 = bamReader.getReferenceIndex();
+            int pos2 = bamReader.getFivePrimeEndPosition();
+            RelativeOrientation orientation = RelativeOrientation.of(reverse1, bamReader.isReverseStrand(), pos1 <= pos2);
+            countReadPair(digestMap.getDigest(dictionary, referenceIndex1, pos1),
+                    digestMap.getDigest(dictionary, referenceIndex2, pos2), orientation, referenceIndex1 != referenceIndex2);
+        }
+        logMemoryFootprint();
+    }
 
-            if (readPair.getRelativeOrientationTag().equals("F1F2")) {
-                n_F1F2++;
-            }
-            if (readPair.getRelativeOrientationTag().equals("F2F1")) {
-                n_F2F1++;
+    /**
+     * Count the read pairs with the fields decoded by {@link #bamReader} in the threads of {@link #executor}. The
+     * reading thread collects the positions of the read pairs in batches, which are counted by the executor into
+     * {@link #threadNum} partial counts. Each partial count is used by one task at a time, so that no locking is needed
+     * for counting. The batches are reused, so that at most twice as many batches as threads are in memory.
+     */
+    private void countInteractionsParallel() throws IOException {
+        SAMSequenceDictionary dictionary = bamReader.getHeader().getSequenceDictionary();
+        BlockingQueue<PartialCounts> partials = new ArrayBlockingQueue<>(threadNum);
+        for (int i = 0; i < threadNum; i++) {
+            partials.add(new PartialCounts());
+        }
+        BlockingQueue<PartialCounts.PairBatch> freeBatches = new ArrayBlockingQueue<>(2 * threadNum);
+        for (int i = 0; i < 2 * threadNum; i++) {
+            freeBatches.add(new PartialCounts.PairBatch());
+        }
+        Deque<Future<?>> tasks = new ArrayDeque<>();
+        long batchNum = 0;
+        try {
+            PartialCounts.PairBatch batch = freeBatches.take();
+            while (bamReader.next()) {
+                int referenceIndex1 = bamReader.getReferenceIndex();
+                int pos1 = bamReader.getFivePrimeEndPosition();
+                boolean reverse1 = bamReader.isReverseStrand();
+                if (!bamReader.next()) {
+                    throw new IOException("The last read has no mate: the reads of a pair must follow each other");
+                }
+                int pos2 = bamReader.getFivePrimeEndPosition();
+                RelativeOrientation orientation = RelativeOrientation.of(reverse1, bamReader.isReverseStrand(), pos1 <= pos2);
+                batch.add(referenceIndex1, pos1, bamReader.getReferenceIndex(), pos2, orientation);
+                if (batch.isFull()) {
+                    batch.index = batchNum++;
+                    tasks.add(submitBatch(batch, partials, freeBatches, dictionary));
+                    while (!tasks.isEmpty() && tasks.peek().isDone()) {
+                        waitForTask(tasks.poll());
+                    }
+                    batch = freeBatches.take();
+                    batch.size = 0;
+                }
             }
-            if (readPair.getRelativeOrientationTag().equals("R1R2")) {
-                n_R1R2++;
+            if (batch.size > 0) {
+                batch.index = batchNum;
+                tasks.add(submitBatch(batch, partials, freeBatches, dictionary));
             }
-            if (readPair.getRelativeOrientationTag().equals("R2R1")) {
-                n_R2R1++;
+            while (!tasks.isEmpty()) {
+                waitForTask(tasks.poll());
             }
-            if (readPair.getRelativeOrientationTag().equals("F1R2")) {
-                n_F1R2++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while counting read pairs");
+        } finally {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
             }
-            if (readPair.getRelativeOrientationTag().equals("R2F1")) {
-                n_R2F1++;
+        }
+        mergePartialCounts(new ArrayList<>(partials));
+    }
+
+    /**
+     * Count the read pairs of {@link #sortedBamFile} by region. Each region is queried with the index of the BAM file
+     * by its own {@link SamReader} and counted into one of {@link #threadNum} partial counts, which are merged at the
+     * end. The regions are numbered in the order of the sorted BAM file, so that the digests of an interaction whose
+     * digests have the same start position are ordered as in the first read pair of the sorted BAM file for any
+     * number of threads.
+     */
+    private void countInteractionsByRegion() throws IOException {
+        SAMSequenceDictionary dictionary;
+        try (SamReader sortedReader = openSortedBamFile()) {
+            dictionary = sortedReader.getFileHeader().getSequenceDictionary();
+        }
+        List<QueryInterval> regions = getRegions(dictionary);
+        int partialNum = executor == null ? 1 : threadNum;
+        BlockingQueue<PartialCounts> partials = new ArrayBlockingQueue<>(partialNum);
+        for (int i = 0; i < partialNum; i++) {
+            partials.add(new PartialCounts());
+        }
+        if (executor == null) {
+            PartialCounts partial = partials.peek();
+            for (int i = 0; i < regions.size(); i++) {
+                countRegion(regions.get(i), i, partial, dictionary);
             }
-            if (readPair.getRelativeOrientationTag().equals("F2R1")) {
-                n_F2R1++;
+        } else {
+            List<Future<?>> tasks = new ArrayList<>();
+            try {
+                for (int i = 0; i < regions.size(); i++) {
+                    QueryInterval region = regions.get(i);
+                    long index = i;
+                    tasks.add(executor.submit(() -> {
+                        PartialCounts partial = partials.take();
+                        try {
+                            countRegion(region, index, partial, dictionary);
+                        } finally {
+                            partials.put(partial);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> task : tasks) {
+                    waitForTask(task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while counting read pairs");
+            } finally {
+                for (Future<?> task : tasks) {
+                    task.cancel(true);
+                }
             }
-            if (readPair.getRelativeOrientationTag().equals("R1F2")) {
-                n_R1F2++;
+        }
+        logger.info("Counted the read pairs of {} in {} regions", sortedBamFile, regions.size());
+        mergePartialCounts(new ArrayList<>(partials));
+    }
+
+    private SamReader openSortedBamFile() throws IOException {
+        SamReader sortedReader = SamReaderFactory.makeDefault().open(sortedBamFile);
+        if (!sortedReader.hasIndex()) {
+            sortedReader.close();
+            throw new IOException("No index (.bai or .csi) found for the sorted BAM file " + sortedBamFile);
+        }
+        return sortedReader;
+    }
+
+    /**
+     * Divide the reference sequences into regions of equal length, such that there are about
+     * {@link #REGIONS_PER_THREAD} regions per thread, but none shorter than {@link #MIN_REGION_LENGTH}.
+     *
+     * @return the regions in the order of the reference sequences and positions
+     */
+    private List<QueryInterval> getRegions(SAMSequenceDictionary dictionary) {
+        long regionLength = Math.max(MIN_REGION_LENGTH, dictionary.getReferenceLength() / ((long) threadNum * REGIONS_PER_THREAD) + 1);
+        List<QueryInterval> regions = new ArrayList<>();
+        for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+            for (long start = 1; start <= sequence.getSequenceLength(); start += regionLength) {
+                long end = Math.min(sequence.getSequenceLength(), start + regionLength - 1);
+                regions.add(new QueryInterval(sequence.getSequenceIndex(), (int) start, (int) end));
             }
+        }
+        return regions;
+    }
 
-            if (readPair.isTrans()) {
-                n_trans_pairs++;
+    /**
+     * Count the read pairs whose first read starts in a region of {@link #sortedBamFile}.
+     *
+     * @param index number of the region in the order of the BAM file
+     */
+    private void countRegion(QueryInterval region, long index, PartialCounts partial, SAMSequenceDictionary dictionary)
+            throws IOException {
+        PartialCounts.PairBatch batch = new PartialCounts.PairBatch();
+        batch.index = index;
+        try (SamReader sortedReader = openSortedBamFile();
+             SAMRecordIterator records = sortedReader.query(new QueryInterval[]{region}, false)) {
+            while (records.hasNext()) {
+                SAMRecord record = records.next();
+                // the query also returns reads that start before the region and overlap it
+                if (!record.getFirstOfPairFlag() || record.getAlignmentStart() < region.start) {
+                    continue;
+                }
+                String mateCigar = record.getStringAttribute(SAMTag.MC.name());
+                if (mateCigar == null) {
+                    throw new IOException(String.format("Read %s has no MC tag with the CIGAR of its mate, which is needed " +
+                            "to count a sorted BAM file (add it with samtools fixmate)", record.getReadName()));
+                }
+                boolean reverse1 = record.getReadNegativeStrandFlag();
+                boolean reverse2 = record.getMateNegativeStrandFlag();
+                int pos1 = reverse1 ? record.getAlignmentEnd() : record.getAlignmentStart();
+                int pos2 = reverse2 ?
+                        record.getMateAlignmentStart() + TextCigarCodec.decode(mateCigar).getReferenceLength() - 1 :
+                        record.getMateAlignmentStart();
+                batch.add(record.getReferenceIndex(), pos1, record.getMateReferenceIndex(), pos2,
+                        RelativeOrientation.of(reverse1, reverse2, pos1 <= pos2));
+                if (batch.isFull()) {
+                    partial.count(batch, digestMap, dictionary);
+                    batch.size = 0;
+                }
             }
-            n_pairs_total++;
         }
+        partial.count(batch, digestMap, dictionary);
     }
 
-    public void incrementDigestPair(DigestPair dp, ReadPair rp) {
+    private Future<?> submitBatch(PartialCounts.PairBatch batch, BlockingQueue<PartialCounts> partials,
+                                  BlockingQueue<PartialCounts.PairBatch> freeBatches, SAMSequenceDictionary dictionary) {
+        return executor.submit(() -> {
+            PartialCounts partial = partials.take();
+            try {
+                partial.count(batch, digestMap, dictionary);
+            } finally {
+                partials.put(partial);
+                freeBatches.put(batch);
+            }
+            return null;
+        });
+    }
 
-        if (!dp2countsMap.containsKey(dp)) {
-            // this is the first read pair for this pair of digests
-            interaction_count++;
-            if (dp.forward().isSelected() && dp.reverse().isSelected()) {
+    private static void waitForTask(Future<?> task) throws IOException, InterruptedException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Could not count read pairs: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Merge the counts of the threads into {@link #countTable} and the counters of this class. The interaction
+     * statistics, which are counted for the first read pair of each pair of digests when counting in one thread,
+     * are determined from the merged table.
+     */
+    private void mergePartialCounts(List<PartialCounts> partials) {
+        long partialBytes = 0;
+        for (PartialCounts partial : partials) {
+            partialBytes += partial.table.getMemoryFootprint();
+        }
+        logger.info("Memory used for the interaction counts of {} threads before merging: {} MB", partials.size(),
+                partialBytes / 1_000_000);
+        // merge into the largest table
+        partials.sort(Comparator.comparingInt((PartialCounts p) -> p.table.size()).reversed());
+        countTable = partials.get(0).table;
+        Map<Long, Long> firstOrders = new HashMap<>(partials.get(0).firstOrders);
+        for (PartialCounts partial : partials.subList(1, partials.size())) {
+            countTable.addAll(partial.table);
+            partial.firstOrders.forEach((key, order) -> firstOrders.merge(key, order,
+                    (a, b) -> a >>> 1 <= b >>> 1 ? a : b));
+        }
+        // the order of the digests of the first read pair, for digests with the same start position
+        firstOrders.forEach((key, order) -> {
+            int lower = (int) (key >>> 32);
+            int higher = (int) (long) key;
+            if ((order & 1) == 0) {
+                countTable.setOrder(lower, higher);
+            } else {
+                countTable.setOrder(higher, lower);
+            }
+        });
+        for (PartialCounts partial : partials) {
+            read_count += partial.readCount;
+            active_read_count += partial.activeReadCount;
+            n_trans_pairs += partial.transPairs;
+            n_pairs_total += partial.pairs;
+            int[] o = partial.orientationCounts;
+            n_F1F2 += o[RelativeOrientation.F1F2.ordinal()];
+            n_F2F1 += o[RelativeOrientation.F2F1.ordinal()];
+            n_R1R2 += o[RelativeOrientation.R1R2.ordinal()];
+            n_R2R1 += o[RelativeOrientation.R2R1.ordinal()];
+            n_F1R2 += o[RelativeOrientation.F1R2.ordinal()];
+            n_R2F1 += o[RelativeOrientation.R2F1.ordinal()];
+            n_F2R1 += o[RelativeOrientation.F2R1.ordinal()];
+            n_R1F2 += o[RelativeOrientation.R1F2.ordinal()];
+        }
+        countTable.sort();
+        interaction_count = countTable.size();
+        for (int i = 0; i < countTable.size(); i++) {
+            boolean selected1 = digestMap.getDigest(countTable.getDigest1(i)).isSelected();
+            boolean selected2 = digestMap.getDigest(countTable.getDigest2(i)).isSelected();
+            if (selected1 && selected2) {
                 active_active_interaction_count++;
-            } else if (!dp.forward().isSelected() && !dp.reverse().isSelected()) {
+            } else if (!selected1 && !selected2) {
                 inactive_inactive_interaction_count++;
             } else {
                 active_inactive_interaction_count++;
             }
-            dp2countsMap.put(dp, new SimpleTwistedCount());
         }
-        if (rp.getRelativeOrientationTag().equals("F1R2") || rp.getRelativeOrientationTag().equals("F2R1")) {
-            dp2countsMap.get(dp).simple_1++;
+        logMemoryFootprint();
+    }
+
+    /**
+     * Log the memory used for the interaction counts, also extrapolated to 100 million interactions and compared
+     * to the memory that a {@code HashMap<DigestPair,SimpleTwistedCount>} would need.
+     */
+    private void logMemoryFootprint() {
+        long bytes = countTable.getMemoryFootprint();
+        int n = Math.max(1, countTable.size());
+        logger.info("Memory used for interaction counts: {} MB for {} interactions ({} MB per 100M interactions, " +
+                        "about {} MB with a HashMap)", bytes / 1_000_000, countTable.size(),
+                bytes * 100 / n, (long) DigestPairCountTable.HASH_MAP_BYTES_PER_PAIR * 100);
+    }
+
+    /**
+     * Count a read pair for the statistics and for its pair of digests.
+     */
+    private void countReadPair(Digest digest1, Digest digest2, RelativeOrientation orientation, boolean trans) {
+        read_count = read_count + 2;
+        if (digest1.isSelected()) {
+            active_read_count++;
+        }
+        if (digest2.isSelected()) {
+            active_read_count++;
         }
-        if (rp.getRelativeOrientationTag().equals("R1F2") || rp.getRelativeOrientationTag().equals("R2F1")) {
-            dp2countsMap.get(dp).simple_2++;
+
+        incrementDigestPair(digest1, digest2, orientation);
+
+        if (interaction_count % 10000000 == 0) {
+            logger.trace("Number of Interactions: " + interaction_count);
         }
-        if (rp.getRelativeOrientationTag().equals("F1F2") || rp.getRelativeOrientationTag().equals("F2F1")) {
-            dp2countsMap.get(dp).twisted_1++;
+
+        switch (orientation) {
+            case F1F2: n_F1F2++; break;
+            case F2F1: n_F2F1++; break;
+            case R1R2: n_R1R2++; break;
+            case R2R1: n_R2R1++; break;
+            case F1R2: n_F1R2++; break;
+            case R2F1: n_R2F1++; break;
+            case F2R1: n_F2R1++; break;
+            case R1F2: n_R1F2++; break;
         }
-        if (rp.getRelativeOrientationTag().equals("R1R2") || rp.getRelativeOrientationTag().equals("R2R1")) {
-            dp2countsMap.get(dp).twisted_2++;
+
+        if (trans) {
+            n_trans_pairs++;
         }
+        n_pairs_total++;
     }
 
+    public void incrementDigestPair(DigestPair dp, ReadPair rp) {
+        incrementDigestPair(dp.forward(), dp.reverse(), rp.getRelativeOrientation());
+    }
+
+    /**
+     * Count a read pair for a pair of digests. The counter is selected by the swap-invariant code of the orientation
+     * (0: F1R2/F2R1 simple_1, 1: R1F2/R2F1 simple_2, 2: F1F2/F2F1 twisted_1, 3: R1R2/R2R1 twisted_2).
+     */
+    private void incrementDigestPair(Digest digest1, Digest digest2, RelativeOrientation orientation) {
+        if (countTable.increment(digest1.getIndex(), digest2.getIndex(), orientation.getSwapInvariantCode())) {
+            // this is the first read pair for this pair of digests
+            interaction_count++;
+            if (digest1.isSelected() && digest2.isSelected()) {
+                active_active_interaction_count++;
+            } else if (!digest1.isSelected() && !digest2.isSelected()) {
+                inactive_inactive_interaction_count++;
+            } else {
+                active_inactive_interaction_count++;
+            }
+        }
+    }
+
+    /**
+     * @return the counts for a pair of digests (in either order), or null if there is no read pair for the digests
+     */
     public SimpleTwistedCount getSimpleTwistedCountForDigestPair(DigestPair dp) {
-        return dp2countsMap.get(dp);
+        int position = countTable.find(dp.forward().getIndex(), dp.reverse().getIndex());
+        if (position < 0) {
+            return null;
+        }
+        return getSimpleTwistedCount(position);
+    }
+
+    /**
+     * @return the counts at a position of {@link #countTable}
+     */
+    private SimpleTwistedCount getSimpleTwistedCount(int position) {
+        SimpleTwistedCount counts = new SimpleTwistedCount();
+        counts.simple_1 = countTable.getCount(position, 0);
+        counts.simple_2 = countTable.getCount(position, 1);
+        counts.twisted_1 = countTable.getCount(position, 2);
+        counts.twisted_2 = countTable.getCount(position, 3);
+        return counts;
     }
 
     public int getInteractionCount(){
@@ -273,7 +698,12 @@ public class Counter {
     public void printStatistics() throws FileNotFoundException {
 
         // create file for summarize
-        PrintStream printStream = new PrintStream(new FileOutputStream(outputTxtStats));
+        try (PrintStream printStream = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputTxtStats)))) {
+            printStatistics(printStream);
+        }
+    }
+
+    private void printStatistics(PrintStream printStream) {
 
         printStream.print("#Count statistics\n");
         printStream.print("==================\n\n");
@@ -327,145 +757,134 @@ public class Counter {
         outputTsvInteractionCounts = String.format("%s.%s", outputPathPrefix, "interaction.counts.table.tsv");
         outputWashUSimpleInteractionCounts = String.format("%s.%s", outputPathPrefix, "interaction.counts.washU.simple.tsv");
         outputTxtStats = String.format("%s.%s", outputPathPrefix, "count.stats.txt");
+        outputCoolerMatrix = String.format("%s.%s", outputPathPrefix, "interaction.counts.cool");
+        outputMultiResolutionCoolerMatrix = String.format("%s.%s", outputPathPrefix, "interaction.counts.mcool");
     }
 
 
     /**
-     * Prints digest pairs with associated read pair counts to a tab separated file.
+     * Write the interaction counts as a contact matrix with one bin per digest to 'prefix.interaction.counts.cool'
+     * (see {@link CoolerWriter}).
      *
-     * @throws FileNotFoundException  if the file output stream cannot be open for the TSV file of interaction counts
+     * @throws IOException if the digests are not sorted or the file cannot be written
      */
-        public void printInteractionCountsMapAsCountTable() throws FileNotFoundException {
+    public void printCoolerMatrix() throws IOException {
+        countTable.orderDigests(Math::min);
+        countTable.sort();
+        new CoolerWriter(digestMap).writeFragmentMatrix(new File(outputCoolerMatrix), countTable);
+    }
+
+    /**
+     * Write the interaction counts as contact matrices of fixed-size bins to 'prefix.interaction.counts.mcool'. The
+     * matrices of the resolutions are aggregated in parallel if {@link #setThreads(ExecutorService, int)} was called.
+     *
+     * @param resolutions bin sizes of the matrices
+     * @throws IOException if the digests are not sorted or the file cannot be written
+     */
+    public void printMultiResolutionCoolerMatrix(int[] resolutions) throws IOException {
+        countTable.orderDigests(Math::min);
+        countTable.sort();
+        new CoolerWriter(digestMap).writeMultiResolutionMatrix(new File(outputMultiResolutionCoolerMatrix), countTable,
+                resolutions, executor);
+    }
+
+    /**
+     * Write the interaction counts, the interactions in the WashU simple text format and the read counts at
+     * interacting fragments in one pass over the sorted interaction counts, and determine the statistics of the
+     * interactions and interacting fragments for {@link #printStatistics()}. The interactions are sorted by the
+     * first and then the second digest of each line. As in {@link DigestPair#toString()}, the digest with the smaller
+     * start position comes first, and for digests with the same start position (on different chromosomes) the digest
+     * of the second read of the first read pair. This method must be called once, as it replaces the order of the
+     * first read pair.
+     *
+     * @throws IOException if an output file cannot be written
+     */
+    public void printCountTables() throws IOException {
 
         // init array for k-interaction counting
         Arrays.fill(kInteractionCounts, 0);
 
-        // create file for summarize
-        PrintStream printStream = new PrintStream(new FileOutputStream(outputTsvInteractionCounts));
-
-        for (DigestPair dp : this.dp2countsMap.keySet()) {
-            SimpleTwistedCount cc = this.dp2countsMap.get(dp);
-            kInteractionCounts[cc.simple_1 + cc.simple_2 + cc.twisted_1 + cc.twisted_2]++;
-            //int cnt = cc.simple + cc.twisted;
-            //printStream.println(dp.toString() + "\t" + cnt);
-            if(this.split) {
-                printStream.println(dp.toString() + "\t" + cc.simple_1 + ":" + cc.simple_2 + ":" + cc.twisted_1 + ":" + cc.twisted_2);
-            } else {
-                int c = cc.simple_1 + cc.simple_2 + cc.twisted_1 + cc.twisted_2;
-                printStream.println(dp.toString() + "\t" + c);
-            }
-            if (cc.simple_1 + cc.simple_2 + cc.twisted_1 + cc.twisted_2 == 1) {
-                this.n_singleton_interactions++;
-                if (!dp.forward().getChromosome().equals(dp.reverse().getChromosome())) {
-                    n_singleton_interactions_trans++;
+        // read counts indexed by digest index, 0 for digests without interactions
+        int[] readCountsAtDigests = new int[digestMap.getNumOfDigests()];
+        long maxLength = 0;
+        for (int d = 0; d < readCountsAtDigests.length; d++) {
+            maxLength = Math.max(maxLength, digestMap.getDigest(d).getDigestEndPosition());
+        }
+
+        // called with the digests of the first read pair (forward, reverse), as DigestPair#toString()
+        countTable.orderDigests((d1, d2) -> digestMap.getDigest(d1).getDigestStartPosition() <
+                digestMap.getDigest(d2).getDigestStartPosition() ? d1 : d2);
+        countTable.sort();
+        try (CountTableWriter writer = new CountTableWriter(new File(outputTsvInteractionCounts),
+                new File(outputWashUSimpleInteractionCounts), new File(outputTsvInteractingFragmentCounts),
+                compressors, compressorNum, maxLength)) {
+            for (int i = 0; i < countTable.size(); i++) {
+                Digest digest1 = digestMap.getDigest(countTable.getDigest1(i));
+                Digest digest2 = digestMap.getDigest(countTable.getDigest2(i));
+                int c = countTable.getTotalCount(i);
+                kInteractionCounts[c]++;
+                if (this.split) {
+                    writer.writeInteraction(digest1, digest2, countTable.getCount(i, 0), countTable.getCount(i, 1),
+                            countTable.getCount(i, 2), countTable.getCount(i, 3));
                 } else {
-                    int forward_digest_center = dp.forward().getDigestStartPosition() + ((dp.forward().getDigestEndPosition() - dp.forward().getDigestStartPosition()) / 2);
-                    int reverse_digest_center = dp.reverse().getDigestStartPosition() + ((dp.reverse().getDigestEndPosition() - dp.reverse().getDigestStartPosition()) / 2);
-                    if(Math.abs(reverse_digest_center - forward_digest_center)<LONG_RANGE_THRESHOLD) {
-                        n_singleton_interactions_short_range++;
-                    } else {
+                    writer.writeInteraction(digest1, digest2, c);
+                }
+                boolean trans = !digest1.getChromosome().equals(digest2.getChromosome());
+                boolean longRange = false;
+                if (!trans) {
+                    int digest1Center = digest1.getDigestStartPosition() + ((digest1.getDigestEndPosition() - digest1.getDigestStartPosition()) / 2);
+                    int digest2Center = digest2.getDigestStartPosition() + ((digest2.getDigestEndPosition() - digest2.getDigestStartPosition()) / 2);
+                    longRange = LONG_RANGE_THRESHOLD <= Math.abs(digest2Center - digest1Center);
+                }
+                if (c == 1) {
+                    this.n_singleton_interactions++;
+                    if (trans) {
+                        n_singleton_interactions_trans++;
+                    } else if (longRange) {
                         n_singleton_interactions_long_range++;
+                    } else {
+                        n_singleton_interactions_short_range++;
                     }
-                }
-            } else {
-                n_gt1_interaction_count++;
-                if (!dp.forward().getChromosome().equals(dp.reverse().getChromosome())) {
-                    n_gt1_interaction_count_trans++;
                 } else {
-                    int forward_digest_center = dp.forward().getDigestStartPosition() + ((dp.forward().getDigestEndPosition() - dp.forward().getDigestStartPosition()) / 2);
-                    int reverse_digest_center = dp.reverse().getDigestStartPosition() + ((dp.reverse().getDigestEndPosition() - dp.reverse().getDigestStartPosition()) / 2);
-                    if(Math.abs(reverse_digest_center - forward_digest_center)<LONG_RANGE_THRESHOLD) {
-                        n_gt1_interaction_count_short_range++;
-                    } else {
+                    n_gt1_interaction_count++;
+                    if (trans) {
+                        n_gt1_interaction_count_trans++;
+                    } else if (longRange) {
                         n_gt1_interaction_count_long_range++;
-                    }
-                }
-            }
-        }
-    }
-
-    /**
-     * Prints digest pairs with associated read pair counts to simple text format established by washU.
-     *
-     * @throws FileNotFoundException  if the file output stream cannot be opened.
-     */
-    public void printInteractionCountsMapInWashUSimpleTextFormat() throws FileNotFoundException {
-
-        // create file
-        PrintStream printStream = new PrintStream(new FileOutputStream(outputWashUSimpleInteractionCounts));
-
-        for (DigestPair dp : this.dp2countsMap.keySet()) {
-            if(dp.forward().getChromosome().equals(dp.reverse().getChromosome())){
-                int forward_digest_center = dp.forward().getDigestStartPosition() + ((dp.forward().getDigestEndPosition() - dp.forward().getDigestStartPosition()) / 2);
-                int reverse_digest_center = dp.reverse().getDigestStartPosition() + ((dp.reverse().getDigestEndPosition() - dp.reverse().getDigestStartPosition()) / 2);
-                if(LONG_RANGE_THRESHOLD<=Math.abs(reverse_digest_center - forward_digest_center)) {
-                    SimpleTwistedCount cc = this.dp2countsMap.get(dp);
-                    int c = cc.simple_1 + cc.simple_2 + cc.twisted_1 + cc.twisted_2;
-                    String coordinatesF = String.format("%s:%s-%s", dp.forward().getChromosome(),dp.forward().getDigestStartPosition(),dp.forward().getDigestEndPosition());
-                    String coordinatesR = String.format("%s:%s-%s", dp.reverse().getChromosome(),dp.reverse().getDigestStartPosition(),dp.reverse().getDigestEndPosition());
-                    String coordinates;
-                    // fragment with the smaller starting position comes first
-                    if(dp.forward().getDigestStartPosition()<dp.reverse().getDigestStartPosition()) {
-                        coordinates = String.format("%s\t%s", coordinatesF, coordinatesR);
                     } else {
-                        coordinates = String.format("%s\t%s", coordinatesR, coordinatesF);
+                        n_gt1_interaction_count_short_range++;
                     }
-                    printStream.println(coordinates + "\t" + c);
                 }
-            }
-        }
-    }
-
-    /**
-     * Prints coordinates of interacting digests and associated read counts to a tab separated file.
-     *
-     * @throws FileNotFoundException if the file output stream cannot be open for the TSV file of fragment interaction counts
-     */
-    public void printFragmentInteractionCountsMapAsCountTable() throws FileNotFoundException {
-
-        // create file for summarize
-        PrintStream printStream = new PrintStream(new FileOutputStream(outputTsvInteractingFragmentCounts));
-
-        HashMap<Digest, Integer> readCountsAtDigestsMap = new HashMap<>();
-
-        // Iterate over all interactions and add individual digest to a hashMap with key=digestRef and value=read count.
-        Integer readCount;
-        for (DigestPair dp : this.dp2countsMap.keySet()) {
-            SimpleTwistedCount cc = this.dp2countsMap.get(dp);
-            if (!readCountsAtDigestsMap.containsKey(dp.forward())) {
-                readCountsAtDigestsMap.put(dp.forward(), 1);
-                interacting_fragment_count++;
-                if (dp.forward().isSelected()) {
-                    active_interacting_fragment_count++;
+                // WashU: long range cis interactions, fragment with the smaller starting position first
+                if (longRange) {
+                    writer.writeWashUInteraction(digest1, digest2, c);
                 }
-            } else {
-                readCount = cc.simple_1 + cc.simple_2 + cc.twisted_1 + cc.twisted_2;
-                readCountsAtDigestsMap.put(dp.forward(), readCountsAtDigestsMap.get(dp.forward()) + readCount);
+                // As before, the first interaction of a digest contributes 1 to its read count.
+                addReadCount(readCountsAtDigests, countTable.getDigest1(i), c);
+                addReadCount(readCountsAtDigests, countTable.getDigest2(i), c);
             }
-            if (!readCountsAtDigestsMap.containsKey(dp.reverse())) {
-                readCountsAtDigestsMap.put(dp.reverse(), 1);
-                interacting_fragment_count++;
-                if (dp.reverse().isSelected()) {
-                    active_interacting_fragment_count++;
+
+            // Print unique interacting digests and associated read counts
+            for (int d = 0; d < readCountsAtDigests.length; d++) {
+                if (readCountsAtDigests[d] != 0) {
+                    writer.writeFragment(digestMap.getDigest(d), readCountsAtDigests[d]);
                 }
-            } else {
-                readCount = cc.simple_1 + cc.simple_2 + cc.twisted_1 + cc.twisted_2;
-                readCountsAtDigestsMap.put(dp.reverse(), readCountsAtDigestsMap.get(dp.reverse()) + readCount);
             }
         }
+    }
 
-        // Print unique interacting digests and associated read counts
-        for (Digest d : readCountsAtDigestsMap.keySet()) {
-            char c = 'I';
-            if (d.isSelected()) {
-                c = 'A';
+    private void addReadCount(int[] readCountsAtDigests, int digest, int readCount) {
+        if (readCountsAtDigests[digest] == 0) {
+            readCountsAtDigests[digest] = 1;
+            interacting_fragment_count++;
+            if (digestMap.getDigest(digest).isSelected()) {
+                active_interacting_fragment_count++;
             }
-            printStream.println(d.getChromosome() + "\t" + d.getDigestStartPosition() + "\t" + d.getDigestEndPosition() + "\t" + c + "\t" + readCountsAtDigestsMap.get(d));
+        } else {
+            readCountsAtDigests[digest] += readCount;
         }
-
     }
 
-
     /**
      * @return Percentage of reads in selective/active digests.
      */
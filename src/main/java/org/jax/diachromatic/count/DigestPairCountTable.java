@@ -0,0 +1,355 @@
+package org.jax.diachromatic.count;
+
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Read pair counts for pairs of digests, stored in primitive arrays using open addressing with linear probing. The
+ * key of a pair is the packed {@code long} of the two digest indices (see {@link org.jax.diachromatic.align.Digest#getIndex()}),
+ * and each pair has four counters (simple 1, simple 2, twisted 1 and twisted 2, see {@link SimpleTwistedCount}), which
+ * are kept in four {@code int} arrays parallel to the keys. In contrast to a {@code HashMap<DigestPair,SimpleTwistedCount>},
+ * no objects are allocated per pair, so that a table with n pairs needs between about 32n and 64n bytes (depending
+ * on the current load) instead of about 96n bytes, and the garbage collector does not need to trace the pairs.
+ * <p>
+ * A pair of digests is the same pair in both orders of the digests. The key stores the lower digest index first and
+ * marks with {@link #SWAPPED} whether the first read pair had the digests in the other order, so that
+ * {@link #getDigest1(int)} and {@link #getDigest2(int)} return the digests in the order of the first read pair, as
+ * the keys of a {@code HashMap<DigestPair,SimpleTwistedCount>} did.
+ * <p>
+ * After counting, {@link #sort()} moves the pairs to the positions {@code 0} to {@code size() - 1} in the order of
+ * {@link #getDigest1(int)} and then {@link #getDigest2(int)}, so that the pairs are written in a reproducible order.
+ * The order of the digests of each pair can be changed before, e.g., to the order of the output, with
+ * {@link #orderDigests(IntBinaryOperator)}.
+ */
+final class DigestPairCountTable {
+    /** Number of counters per pair of digests. */
+    static final int COUNTER_NUM = 4;
+    /** Value that marks empty slots of {@link #keys}; no key has all bits set, as digest indices are not negative. */
+    private static final long EMPTY = -1L;
+    /** Bit of a key that is set if the digests were added with the higher index first. */
+    private static final long SWAPPED = Long.MIN_VALUE;
+    /** The table is doubled when the number of pairs exceeds this fraction of the number of slots. */
+    private static final double MAX_LOAD_FACTOR = 0.75;
+    /** Largest number of slots (the largest power of two that can be used as array size). */
+    private static final int MAX_CAPACITY = 1 << 30;
+    /** Approximate number of bytes per entry of a {@code HashMap<DigestPair,SimpleTwistedCount>}. */
+    static final int HASH_MAP_BYTES_PER_PAIR = 96;
+
+    private long[] keys;
+    /** The four counters of the pairs, parallel to {@link #keys}. */
+    private int[][] counts = new int[COUNTER_NUM][];
+    /** {@code keys.length - 1}, used to map hash values to slots. */
+    private int mask;
+    /** Number of pairs stored in the table. */
+    private int size;
+    /** Number of pairs at which the table is resized. */
+    private int resizeThreshold;
+    /** True after {@link #sort()}. */
+    private boolean sorted = false;
+
+    DigestPairCountTable() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of pairs that can be added without resizing the table
+     */
+    DigestPairCountTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) Math.min(MAX_CAPACITY, expectedSize / MAX_LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        for (int c = 0; c < COUNTER_NUM; c++) {
+            counts[c] = new int[capacity];
+        }
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+    }
+
+    /** @return the key of a pair of digests without the {@link #SWAPPED} bit */
+    private static long getKey(int digest1, int digest2) {
+        return digest1 <= digest2 ? (long) digest1 << 32 | digest2 : (long) digest2 << 32 | digest1;
+    }
+
+    /** @return {@code digest1 << 32 | digest2} of a key, which gives the order of {@link #sort()} */
+    private static long getOrderedKey(long key) {
+        return key < 0 ? (key & ~SWAPPED) >>> 32 | key << 32 : key;
+    }
+
+    /** Finalization step of MurmurHash3, which spreads the bits of similar keys (e.g., nearby digests). */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Increment a counter of a pair of digests.
+     *
+     * @param digest1 index of the digest of the first read
+     * @param digest2 index of the digest of the second read
+     * @param counter counter that is incremented (0-3, see {@link org.jax.diachromatic.align.RelativeOrientation#getSwapInvariantCode()})
+     * @return true if this is the first read pair for the pair of digests
+     */
+    boolean increment(int digest1, int digest2, int counter) {
+        return add(digest1, digest2, counter, 1);
+    }
+
+    /**
+     * Add to a counter of a pair of digests.
+     *
+     * @return true if the pair of digests was not yet in the table
+     */
+    boolean add(int digest1, int digest2, int counter, int count) {
+        if (sorted) {
+            throw new IllegalStateException("No pairs can be added after sorting");
+        }
+        long key = getKey(digest1, digest2);
+        int i = hash(key) & mask;
+        long current;
+        while ((current = keys[i]) != EMPTY) {
+            if ((current & ~SWAPPED) == key) {
+                counts[counter][i] += count;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = digest1 <= digest2 ? key : key | SWAPPED;
+        counts[counter][i] = count;
+        if (++size > resizeThreshold) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Add the counts of another table, e.g., of the read pairs counted by another thread. Pairs that are not yet in
+     * this table keep the order of their digests in the other table.
+     */
+    void addAll(DigestPairCountTable other) {
+        for (int j = 0; j < other.keys.length; j++) {
+            long key = other.keys[j];
+            if (key == EMPTY) {
+                continue;
+            }
+            int digest1 = other.getDigest1(j);
+            int digest2 = other.getDigest2(j);
+            for (int c = 0; c < COUNTER_NUM; c++) {
+                int count = other.counts[c][j];
+                // add the first counter even if it is 0, so that the pair is added in the order of the other table
+                if (count > 0 || c == 0) {
+                    add(digest1, digest2, c, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the order of the digests of a pair that is in the table, i.e., the order of {@link #getDigest1(int)} and
+     * {@link #getDigest2(int)}.
+     */
+    void setOrder(int digest1, int digest2) {
+        int position = find(digest1, digest2);
+        if (position < 0) {
+            throw new IllegalArgumentException(String.format("No pair of the digests %d and %d", digest1, digest2));
+        }
+        long key = getKey(digest1, digest2);
+        keys[position] = digest1 <= digest2 ? key : key | SWAPPED;
+    }
+
+    private void resize() {
+        if (keys.length == MAX_CAPACITY) {
+            throw new IllegalStateException("DigestPairCountTable cannot hold more than " + resizeThreshold + " pairs");
+        }
+        long[] oldKeys = keys;
+        int[][] oldCounts = counts;
+        counts = new int[COUNTER_NUM][];
+        allocate(oldKeys.length << 1);
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != EMPTY) {
+                int i = hash(key & ~SWAPPED) & mask;
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                for (int c = 0; c < COUNTER_NUM; c++) {
+                    counts[c][i] = oldCounts[c][j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the order of the digests of all pairs. The order of the first read pair is replaced by the new order.
+     *
+     * @param first returns the digest (of the two digest indices passed to it) that comes first. It is called with
+     *              the digests in their current order ({@link #getDigest1(int)}, {@link #getDigest2(int)}), so that it
+     *              can keep this order for digests that it does not distinguish.
+     */
+    void orderDigests(IntBinaryOperator first) {
+        int end = sorted ? size : keys.length;
+        for (int i = 0; i < end; i++) {
+            long key = keys[i];
+            if (key == EMPTY) {
+                continue;
+            }
+            int lower = (int) ((key & ~SWAPPED) >>> 32);
+            int higher = (int) key;
+            int digest1 = key < 0 ? higher : lower;
+            int digest2 = key < 0 ? lower : higher;
+            keys[i] = first.applyAsInt(digest1, digest2) == lower ? key & ~SWAPPED : key | SWAPPED;
+        }
+        if (sorted) {
+            quickSort(0, size - 1);
+        }
+    }
+
+    /**
+     * @return the position of a pair of digests in the table (in either order of the digests), or -1 if the pair
+     * is not in the table
+     */
+    int find(int digest1, int digest2) {
+        if (sorted) {
+            int position = binarySearch((long) digest1 << 32 | digest2);
+            return position >= 0 || digest1 == digest2 ? position : binarySearch((long) digest2 << 32 | digest1);
+        }
+        long key = getKey(digest1, digest2);
+        int i = hash(key) & mask;
+        long current;
+        while ((current = keys[i]) != EMPTY) {
+            if ((current & ~SWAPPED) == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the position of an ordered key (see {@link #getOrderedKey(long)}) in the sorted table, or -1 */
+    private int binarySearch(long orderedKey) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long current = getOrderedKey(keys[mid]);
+            if (current < orderedKey) {
+                lo = mid + 1;
+            } else if (current > orderedKey) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** @return number of pairs of digests in the table */
+    int size() {
+        return size;
+    }
+
+    /** @return digest index of the first read of the first read pair at a position of the table */
+    int getDigest1(int position) {
+        long key = keys[position];
+        return key < 0 ? (int) key : (int) (key >>> 32);
+    }
+
+    /** @return digest index of the second read of the first read pair at a position of the table */
+    int getDigest2(int position) {
+        long key = keys[position];
+        return key < 0 ? (int) ((key & ~SWAPPED) >>> 32) : (int) key;
+    }
+
+    /** @return a counter of the pair at a position of the table */
+    int getCount(int position, int counter) {
+        return counts[counter][position];
+    }
+
+    /** @return the sum of the four counters of the pair at a position of the table */
+    int getTotalCount(int position) {
+        return counts[0][position] + counts[1][position] + counts[2][position] + counts[3][position];
+    }
+
+    /** @return approximate number of bytes used by this table (the arrays and the object headers) */
+    long getMemoryFootprint() {
+        return (8L + 4L * COUNTER_NUM) * keys.length + 16L * (COUNTER_NUM + 1) + 48;
+    }
+
+    /**
+     * Move the pairs to the positions {@code 0} to {@code size() - 1}, sorted by {@link #getDigest1(int)} and then
+     * {@link #getDigest2(int)}. Afterwards, no pairs can be added. Calling this method again has no effect.
+     */
+    void sort() {
+        if (sorted) {
+            return;
+        }
+        sorted = true;
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                move(i, n++);
+            }
+        }
+        quickSort(0, size - 1);
+    }
+
+    private void move(int from, int to) {
+        if (from != to) {
+            keys[to] = keys[from];
+            keys[from] = EMPTY;
+            for (int c = 0; c < COUNTER_NUM; c++) {
+                counts[c][to] = counts[c][from];
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        for (int c = 0; c < COUNTER_NUM; c++) {
+            int count = counts[c][i];
+            counts[c][i] = counts[c][j];
+            counts[c][j] = count;
+        }
+    }
+
+    /** Sort the positions lo to hi (inclusive) by {@link #getOrderedKey(long)}. Keys are unique. */
+    private void quickSort(int lo, int hi) {
+        while (hi - lo >= 16) {
+            // median of three as pivot, moved to hi
+            int mid = (lo + hi) >>> 1;
+            if (getOrderedKey(keys[mid]) < getOrderedKey(keys[lo])) swap(mid, lo);
+            if (getOrderedKey(keys[hi]) < getOrderedKey(keys[lo])) swap(hi, lo);
+            if (getOrderedKey(keys[mid]) < getOrderedKey(keys[hi])) swap(mid, hi);
+            long pivot = getOrderedKey(keys[hi]);
+            int store = lo;
+            for (int i = lo; i < hi; i++) {
+                if (getOrderedKey(keys[i]) < pivot) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, hi);
+            // recurse into the smaller part, so that the stack depth is logarithmic
+            if (store - lo < hi - store) {
+                quickSort(lo, store - 1);
+                lo = store + 1;
+            } else {
+                quickSort(store + 1, hi);
+                hi = store - 1;
+            }
+        }
+        // insertion sort for short ranges
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && getOrderedKey(keys[j]) < getOrderedKey(keys[j - 1]); j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+}
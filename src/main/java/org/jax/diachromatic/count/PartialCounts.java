@@ -0,0 +1,99 @@
+package org.jax.diachromatic.count;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import org.jax.diachromatic.align.Digest;
+import org.jax.diachromatic.align.DigestMap;
+import org.jax.diachromatic.align.RelativeOrientation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts of the read pairs that were counted by one thread of the parallel counting mode of {@link Counter}: the
+ * interaction counts of the pairs of digests and the counters of the statistics. The counts of all threads are
+ * merged at the end, which gives the same results as counting all read pairs in one thread, since the counts do not
+ * depend on the order of the read pairs.
+ * <p>
+ * The only thing that depends on the order is the order of the two digests of an interaction in the output, which is
+ * that of the first read pair. It matters only if the digests have the same start position (on different chromosomes),
+ * because the digest with the smaller start position is written first otherwise. For these rare pairs,
+ * {@link #firstOrders} keeps the number of the batch with the first read pair and its order of the digests, so that
+ * the order of the first read pair of all threads can be found when the counts are merged.
+ */
+final class PartialCounts {
+    private static final RelativeOrientation[] ORIENTATIONS = RelativeOrientation.values();
+
+    final DigestPairCountTable table = new DigestPairCountTable();
+    /** Number of read pairs for each relative orientation, indexed by {@link RelativeOrientation#ordinal()}. */
+    final int[] orientationCounts = new int[ORIENTATIONS.length];
+    int readCount = 0;
+    int activeReadCount = 0;
+    int transPairs = 0;
+    int pairs = 0;
+    /**
+     * For pairs of different digests with the same start position: key (lower and higher digest index) and value
+     * (batch number and 1 if the first read pair had the higher digest index first) of the first read pair.
+     */
+    final Map<Long, Long> firstOrders = new HashMap<>();
+
+    /** Read pairs that are counted together by one thread, given by the positions of their 5' ends. */
+    static final class PairBatch {
+        static final int CAPACITY = 1 << 16;
+        final int[] referenceIndices1 = new int[CAPACITY];
+        final int[] positions1 = new int[CAPACITY];
+        final int[] referenceIndices2 = new int[CAPACITY];
+        final int[] positions2 = new int[CAPACITY];
+        /** Relative orientation of each pair ({@link RelativeOrientation#ordinal()}). */
+        final byte[] orientations = new byte[CAPACITY];
+        int size = 0;
+        /** Number of the batch in the order of the input. */
+        long index;
+
+        void add(int referenceIndex1, int position1, int referenceIndex2, int position2, RelativeOrientation orientation) {
+            referenceIndices1[size] = referenceIndex1;
+            positions1[size] = position1;
+            referenceIndices2[size] = referenceIndex2;
+            positions2[size] = position2;
+            orientations[size] = (byte) orientation.ordinal();
+            size++;
+        }
+
+        boolean isFull() {
+            return size == CAPACITY;
+        }
+    }
+
+    /**
+     * Count the read pairs of a batch as in {@link Counter#countInteractions()}.
+     */
+    void count(PairBatch batch, DigestMap digestMap, SAMSequenceDictionary dictionary) {
+        for (int i = 0; i < batch.size; i++) {
+            Digest digest1 = digestMap.getDigest(dictionary, batch.referenceIndices1[i], batch.positions1[i]);
+            Digest digest2 = digestMap.getDigest(dictionary, batch.referenceIndices2[i], batch.positions2[i]);
+            RelativeOrientation orientation = ORIENTATIONS[batch.orientations[i]];
+            readCount += 2;
+            if (digest1.isSelected()) {
+                activeReadCount++;
+            }
+            if (digest2.isSelected()) {
+                activeReadCount++;
+            }
+            int index1 = digest1.getIndex();
+            int index2 = digest2.getIndex();
+            table.increment(index1, index2, orientation.getSwapInvariantCode());
+            if (index1 != index2 && digest1.getDigestStartPosition() == digest2.getDigestStartPosition()) {
+                long key = Math.min(index1, index2) * (1L << 32) + Math.max(index1, index2);
+                long order = batch.index << 1 | (index1 > index2 ? 1 : 0);
+                Long first = firstOrders.get(key);
+                if (first == null || first >>> 1 > batch.index) {
+                    firstOrders.put(key, order);
+                }
+            }
+            orientationCounts[orientation.ordinal()]++;
+            if (batch.referenceIndices1[i] != batch.referenceIndices2[i]) {
+                transPairs++;
+            }
+            pairs++;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.jax.diachromatic.digest;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the sequences of a FASTA file one after the other. Files compressed with gzip or bgzip (which consists of
+ * concatenated gzip blocks) are recognized by their magic number. The case of the bases is kept, so that soft-masked
+ * (lower case) repeats can be recognized. The name of a sequence is the first word of its header line.
+ */
+final class FastaReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int INITIAL_SEQUENCE_SIZE = 1 << 20;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    /** Name of the sequence whose header line was already read, or null at the end of the file. */
+    private String nextName;
+
+    private String name;
+    private byte[] sequence;
+    private int length;
+
+    FastaReader(String path) throws IOException {
+        InputStream file = new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE);
+        file.mark(2);
+        boolean gzipped = file.read() == 0x1f && file.read() == 0x8b;
+        file.reset();
+        this.in = gzipped ? new GZIPInputStream(file, BUFFER_SIZE) : file;
+        int b;
+        while ((b = read()) != -1 && b != '>') {
+            // skip anything before the first header line
+        }
+        nextName = b == -1 ? null : readName();
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    /** Read the rest of a header line and return its first word. */
+    private String readName() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int b;
+        while ((b = read()) != -1 && b != '\n') {
+            header.write(b);
+        }
+        String line = header.toString(StandardCharsets.US_ASCII).trim();
+        int end = 0;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+            end++;
+        }
+        return line.substring(0, end);
+    }
+
+    /**
+     * Read the next sequence. A new array is allocated for each sequence, so that the previous sequence can still be
+     * used (e.g., by another thread).
+     *
+     * @return false if there are no more sequences
+     */
+    boolean next() throws IOException {
+        if (nextName == null) {
+            return false;
+        }
+        name = nextName;
+        nextName = null;
+        byte[] seq = new byte[INITIAL_SEQUENCE_SIZE];
+        int n = 0;
+        boolean lineStart = true;
+        int b;
+        while ((b = read()) != -1) {
+            if (b == '\n') {
+                lineStart = true;
+                continue;
+            }
+            if (b == '>' && lineStart) {
+                nextName = readName();
+                break;
+            }
+            lineStart = false;
+            if (b == '\r' || b == ' ' || b == '\t') {
+                continue;
+            }
+            if (n == seq.length) {
+                seq = Arrays.copyOf(seq, (int) Math.min(Integer.MAX_VALUE - 8, 2L * seq.length));
+            }
+            seq[n++] = (byte) b;
+        }
+        sequence = seq;
+        length = n;
+        return true;
+    }
+
+    /** @return name of the current sequence */
+    String getName() {
+        return name;
+    }
+
+    /** @return bases of the current sequence; only the first {@link #getLength()} entries are used */
+    byte[] getSequence() {
+        return sequence;
+    }
+
+    /** @return length of the current sequence */
+    int getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,206 @@
+package org.jax.diachromatic.digest;
+
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.jax.diachromatic.util.MultiPatternScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Performs an in silico digestion of a genome in FASTA format with one or more restriction enzymes and writes the
+ * digests in the format of the digest files of GOPHER (see {@link org.jax.diachromatic.align.DigestMap}). The cutting
+ * sites of all enzymes are found in a single pass over each chromosome with a {@link MultiPatternScanner}. A digest
+ * ends directly before a cutting site; the first and last digests of a chromosome have the restriction site
+ * {@code None} at the end of the chromosome.
+ * <p>
+ * For the margins of {@link #marginSize} bases at both ends of each digest (or the entire digest if it is shorter),
+ * the GC content is the fraction of G and C bases and the repeat content is the fraction of soft-masked (lower case)
+ * bases. All digests are written as not selected and without probes.
+ * <p>
+ * The chromosomes are read one after the other, but scanned by {@link #threadNum} threads in parallel. The digests are
+ * written in the order of the chromosomes in the FASTA file; at most {@link #threadNum} + 1 chromosomes are kept in
+ * memory at the same time.
+ */
+public class GenomeDigester {
+    private static final Logger logger = LoggerFactory.getLogger(GenomeDigester.class);
+    /** Header line of the digest file. */
+    static final String HEADER = "Chromosome\tFragment_Start_Position\tFragment_End_Position\tFragment_Number\t" +
+            "5'_Restriction_Site\t3'_Restriction_Site\tLength\t5'_GC_Content\t3'_GC_Content\t5'_Repeat_Content\t" +
+            "3'_Repeat_Content\tSelected\t5'_Probes\t3'_Probes";
+    /** Name of the restriction site at the ends of the chromosomes. */
+    private static final String NO_SITE = "None";
+    /** Default size of the margins used for GC and repeat content (as in GOPHER). */
+    public static final int DEFAULT_MARGIN_SIZE = 250;
+
+    private final List<RestrictionEnzyme> enzymes;
+    private final MultiPatternScanner scanner;
+    /** Position of the cut relative to the start of the recognition site of each enzyme. */
+    private final int[] cutOffsets;
+    private final int marginSize;
+    private final int threadNum;
+    private int digestNum = 0;
+
+    /**
+     * @param enzymes restriction enzymes used for the digestion
+     * @param marginSize number of bases at each end of a digest used to determine GC and repeat content
+     * @param threadNum number of threads used to scan the chromosomes
+     */
+    public GenomeDigester(List<RestrictionEnzyme> enzymes, int marginSize, int threadNum) {
+        this.enzymes = List.copyOf(enzymes);
+        this.scanner = new MultiPatternScanner(enzymes.stream().map(RestrictionEnzyme::getPlainSite).collect(Collectors.toList()));
+        this.cutOffsets = enzymes.stream().mapToInt(RestrictionEnzyme::getOffset).toArray();
+        this.marginSize = marginSize;
+        this.threadNum = threadNum;
+    }
+
+    /**
+     * Digest all sequences of a FASTA file and write the digests.
+     *
+     * @param fastaPath path to a FASTA file, which may be compressed with gzip or bgzip
+     * @param outputPath path of the digest file that is written
+     * @return number of digests
+     */
+    public int digest(String fastaPath, String outputPath) throws DiachromaticException {
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        digestNum = 0;
+        try (FastaReader reader = new FastaReader(fastaPath);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath), StandardCharsets.US_ASCII), 1 << 16)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            while (reader.next()) {
+                String name = reader.getName();
+                byte[] sequence = reader.getSequence();
+                int length = reader.getLength();
+                pending.add(executor.submit(() -> digestChromosome(name, sequence, length)));
+                // write the finished chromosomes in input order, so that only a few sequences are in memory
+                while (pending.size() > threadNum) {
+                    writer.write(pending.poll().get());
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.write(pending.poll().get());
+            }
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not digest %s: %s", fastaPath, e.getMessage()));
+        } catch (ExecutionException e) {
+            throw new DiachromaticException(String.format("Could not digest %s: %s", fastaPath, e.getCause().getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiachromaticException("Interrupted while digesting " + fastaPath);
+        } finally {
+            executor.shutdownNow();
+        }
+        return digestNum;
+    }
+
+    /**
+     * Find the cutting sites of all enzymes in a sequence.
+     *
+     * @return sorted array with, for each cutting site, the 0-based position of the first base after the cut in the
+     * upper 32 bits and the index of the enzyme in the lower 32 bits. Every site of every enzyme is used, also if it
+     * overlaps with the site of another enzyme. Cuts at the ends of the sequence are omitted; if several enzymes cut
+     * at the same position, the first one is kept.
+     */
+    long[] findCuts(byte[] sequence, int length) {
+        long[] cuts = scanner.findAll(sequence, 0, length);
+        int n = 0;
+        for (long match : cuts) {
+            int enzyme = MultiPatternScanner.matchPattern(match);
+            int cut = MultiPatternScanner.matchStart(match) + cutOffsets[enzyme];
+            if (cut > 0 && cut < length) {
+                cuts[n++] = ((long) cut << 32) | enzyme;
+            }
+        }
+        // the matches are sorted by end position, so the cuts are only unsorted if the sites overlap
+        Arrays.sort(cuts, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || (cuts[i] >>> 32) != (cuts[unique - 1] >>> 32)) {
+                cuts[unique++] = cuts[i];
+            }
+        }
+        return Arrays.copyOf(cuts, unique);
+    }
+
+    /** @return the lines of the digest file for one chromosome */
+    private String digestChromosome(String name, byte[] sequence, int length) {
+        long[] cuts = findCuts(sequence, length);
+        StringBuilder sb = new StringBuilder((cuts.length + 1) * 80);
+        int start = 0; // 0-based start of the current digest
+        String fivePrimeSite = NO_SITE;
+        for (int i = 0; i <= cuts.length; i++) {
+            int end = i < cuts.length ? (int) (cuts[i] >>> 32) : length; // exclusive
+            String threePrimeSite = i < cuts.length ? enzymes.get((int) cuts[i]).getName() : NO_SITE;
+            int fivePrimeMarginEnd = Math.min(end, start + marginSize);
+            int threePrimeMarginStart = Math.max(start, end - marginSize);
+            long fivePrimeCounts = countMargin(sequence, start, fivePrimeMarginEnd);
+            // for digests that are not longer than the margins, both margins are the entire digest
+            long threePrimeCounts = threePrimeMarginStart == start ? fivePrimeCounts : countMargin(sequence, threePrimeMarginStart, end);
+            sb.append(name).append('\t').append(start + 1).append('\t').append(end).append('\t').append(i + 1)
+                    .append('\t').append(fivePrimeSite).append('\t').append(threePrimeSite).append('\t')
+                    .append(end - start).append('\t');
+            appendFraction(sb, (int) (fivePrimeCounts >>> 32), fivePrimeMarginEnd - start);
+            sb.append('\t');
+            appendFraction(sb, (int) (threePrimeCounts >>> 32), end - threePrimeMarginStart);
+            sb.append('\t');
+            appendFraction(sb, (int) fivePrimeCounts, fivePrimeMarginEnd - start);
+            sb.append('\t');
+            appendFraction(sb, (int) threePrimeCounts, end - threePrimeMarginStart);
+            sb.append("\tF\t0\t0\n");
+            start = end;
+            fivePrimeSite = threePrimeSite;
+        }
+        synchronized (this) {
+            digestNum += cuts.length + 1;
+        }
+        logger.trace("Found {} digests on {}", cuts.length + 1, name);
+        return sb.toString();
+    }
+
+    /**
+     * @return number of G and C bases (upper 32 bits) and of lower case bases (lower 32 bits) in {@code sequence[from, to)}
+     */
+    private static long countMargin(byte[] sequence, int from, int to) {
+        int gc = 0, lowerCase = 0;
+        for (int i = from; i < to; i++) {
+            int b = sequence[i];
+            if (b >= 'a') {
+                lowerCase++;
+                b -= 'a' - 'A';
+            }
+            if (b == 'G' || b == 'C') {
+                gc++;
+            }
+        }
+        return ((long) gc << 32) | lowerCase;
+    }
+
+    /**
+     * Append {@code count / total} with three decimal places (rounded half up, as with {@code %.3f}) without
+     * formatting a double.
+     */
+    static void appendFraction(StringBuilder sb, int count, int total) {
+        long thousandths = total == 0 ? 0 : (2000L * count + total) / (2L * total);
+        sb.append(thousandths / 1000).append('.');
+        long fraction = thousandths % 1000;
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
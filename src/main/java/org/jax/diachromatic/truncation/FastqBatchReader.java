@@ -0,0 +1,170 @@
+package org.jax.diachromatic.truncation;
+
+import org.jax.diachromatic.exception.DiachromaticException;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads FASTQ records byte-wise into a {@link FastqRecordBatch} without creating String objects. Gzipped input
+ * (including BGZF) is recognized by the gzip magic number.
+ */
+class FastqBatchReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String path;
+    private final InputStream in;
+    /** Chunk of the input; the bytes in [pos, limit) have not yet been parsed. */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    /** Line number of the last line that was read (used for error messages). */
+    private long lineNumber = 0;
+    /** Start and length (without line break) of the last line that was found by {@link #nextLine()}. */
+    private int lineStart;
+    private int lineLength;
+
+    FastqBatchReader(String path) throws DiachromaticException {
+        this.path = path;
+        try {
+            InputStream is = new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE);
+            is.mark(2);
+            int b1 = is.read();
+            int b2 = is.read();
+            is.reset();
+            if (b1 == 0x1f && b2 == 0x8b) {
+                is = new GZIPInputStream(is, BUFFER_SIZE);
+            }
+            this.in = is;
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not open FASTQ file %s: %s", path, e.getMessage()));
+        }
+    }
+
+    /**
+     * Read the next record and append it to the batch.
+     * @return false if the end of the file was reached
+     * @throws DiachromaticException if the file cannot be read or is not a valid FASTQ file
+     */
+    boolean readRecord(FastqRecordBatch batch) throws DiachromaticException {
+        try {
+            if (!nextLine()) {
+                return false;
+            }
+            if (lineLength == 0 || buffer[lineStart] != '@') {
+                throw formatError("Sequence header must start with @");
+            }
+            batch.startRecord();
+            batch.appendLine(buffer, lineStart + 1, lineLength - 1, 0);
+            if (!nextLine()) {
+                throw formatError("Missing sequence line");
+            }
+            batch.appendLine(buffer, lineStart, lineLength, 1);
+            int sequenceLength = lineLength;
+            if (!nextLine() || lineLength == 0 || buffer[lineStart] != '+') {
+                throw formatError("Quality header must start with +");
+            }
+            if (!nextLine()) {
+                throw formatError("Missing quality line");
+            }
+            if (lineLength != sequenceLength) {
+                throw formatError("Sequence and quality line must be the same length");
+            }
+            batch.appendLine(buffer, lineStart, lineLength, 2);
+            return true;
+        } catch (IOException e) {
+            throw new DiachromaticException(String.format("Could not read FASTQ file %s: %s", path, e.getMessage()));
+        }
+    }
+
+    private DiachromaticException formatError(String message) {
+        return new DiachromaticException(String.format("%s at line %d of %s", message, lineNumber, path));
+    }
+
+    /**
+     * Find the next line in the buffer, refilling the buffer if necessary. Empty lines at the end of the file are
+     * ignored.
+     * @return false if there are no more lines
+     */
+    private boolean nextLine() throws IOException {
+        while (true) {
+            int end = indexOfNewline(pos);
+            while (end < 0 && !eof) {
+                int scanned = limit - pos;
+                fill();
+                end = indexOfNewline(pos + scanned);
+            }
+            if (end < 0) {
+                end = limit; // last line without line break
+            }
+            if (end == pos && eof && end == limit) {
+                return false;
+            }
+            lineStart = pos;
+            lineLength = end - pos;
+            pos = Math.min(end + 1, limit);
+            lineNumber++;
+            if (lineLength > 0 && buffer[lineStart + lineLength - 1] == '\r') {
+                lineLength--;
+            }
+            if (lineLength > 0 || !atEndOfInput()) {
+                return true;
+            }
+        }
+    }
+
+    /** @return true if only line breaks remain in the input */
+    private boolean atEndOfInput() throws IOException {
+        while (true) {
+            for (int i = pos; i < limit; i++) {
+                if (buffer[i] != '\n' && buffer[i] != '\r') {
+                    return false;
+                }
+            }
+            if (eof) {
+                return true;
+            }
+            int scanned = limit - pos;
+            fill();
+            if (limit - pos == scanned && eof) {
+                return true;
+            }
+        }
+    }
+
+    private int indexOfNewline(int from) {
+        for (int i = from; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move the unparsed bytes to the start of the buffer (growing it if it is full) and read more input.
+     */
+    private void fill() throws IOException {
+        int remaining = limit - pos;
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, remaining);
+        } else if (remaining == buffer.length) {
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        pos = 0;
+        limit = remaining;
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,23 +1,20 @@
 package org.jax.diachromatic.truncation;
 
-import htsjdk.samtools.fastq.FastqReader;
-import htsjdk.samtools.fastq.FastqRecord;
 
-
-import java.io.File;
+import java.io.IOException;
 
 import org.jax.diachromatic.exception.DiachromaticException;
-import org.jax.diachromatic.util.Pair;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Parse paired end FASTQ read files. This class will read g-zipped files.
+ * Parse paired end FASTQ read files. This class will read g-zipped files. The reads are parsed in batches into
+ * {@link FastqRecordBatch} objects, which can be reused for the next batch once they have been processed.
  * @author <a href="mailto:peter.robinson@jax.org">Peter Robinson</a>
  */
-public class FastqPairParser {
+public class FastqPairParser implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(FastqPairParser.class);
     /**
      * First read of paired end sequencing experiment.
@@ -27,105 +24,53 @@ public class FastqPairParser {
      * Second read of paired end sequencing experiment.
      */
     private final String fastqFile2;
-    /**
-     * Number of reads from file 1 that got truncated during processing.
-     */
-    private int nReadOneTruncated;
-    /** Number of reads from file 2 that got truncated during processing. */
-    private int nReadTwoTruncated;
-    /** Total number of reads from each file that got processed.*/
-    private int nReadsProcessed;
     /** FASTQ reader for the forward reads. */
-    private FastqReader fastQreader1;
+    private final FastqBatchReader fastQreader1;
     /** FASTQ reader for the reverse reads. */
-    private FastqReader fastQreader2;
-    /** Number at which we show logger trace messages (every BLOCKSIZE reads)*/
-    private final int BLOCKSIZE = 100_000_000;
-
-
-    /**
-     * This is used to store the last processed pair of reads roughly in the style of an iterator.
-     */
-    private Pair<PotentiallyTruncatedFastQRecord, PotentiallyTruncatedFastQRecord> currentPair = null;
-    /**
-     * This is the Hi-C ligation sequence that is created from the restriction enzyme.
-     */
-    private String ligationSequence = null;
+    private final FastqBatchReader fastQreader2;
+    /** Set to true once the end of one of the two files was reached. */
+    private boolean finished = false;
 
     public FastqPairParser(String file1, String file2, String ligationSequence) throws DiachromaticException {
         fastqFile1 = file1;
         fastqFile2 = file2;
         logger.trace(String.format("Processing FASTQ files %s and %s with ligation sequence %s", file1, file2, ligationSequence));
-        setUpIterator(ligationSequence);
-    }
-
-
-    private void setUpIterator(String ligSeq) {
-        fastQreader1 = new FastqReader(new File(fastqFile1));
-        fastQreader2 = new FastqReader(new File(fastqFile2));
-        this.ligationSequence = ligSeq;
-        movePairIterator();
-    }
-
-    int getnReadsProcessed() {
-        return nReadsProcessed;
-    }
-
-    int getReadOneTruncated() {
-        return nReadOneTruncated;
-    }
-
-    int getReadTwoTruncated() {
-        return nReadTwoTruncated;
+        fastQreader1 = new FastqBatchReader(fastqFile1);
+        fastQreader2 = new FastqBatchReader(fastqFile2);
     }
 
     /**
-     * This function will read the next FASTQ record each from {@link #fastQreader1} and {@link #fastQreader2}. If there is a problem, it will
-     * set {@link #currentPair} to null and return. Otherwise, it will use the four lines from each file handle to
-     * create two {@link PotentiallyTruncatedFastQRecord} objects and place them in {@link #currentPair}. If there is any exception thrown
-     * while constructing the {@link PotentiallyTruncatedFastQRecord} objects, the function will set {@link #currentPair} to null and return
-     *
+     * Clear the two batches and read up to {@code n} read pairs into them. The i-th record of batch1 and
+     * batch2 are the forward and reverse read of the i-th read pair. The reads are not truncated here; this is done
+     * by {@link Truncator}.
+     * @param n maximum number of read pairs to read
+     * @return number of read pairs that were read (0 if there are no more read pairs)
+     * @throws DiachromaticException if one of the files cannot be parsed
      */
-    private void movePairIterator() {
-        if (fastQreader1.hasNext() && fastQreader2.hasNext()) {
-            FastqRecord fq1 = fastQreader1.next();
-            FastqRecord fq2 = fastQreader2.next();
-
-
-            PotentiallyTruncatedFastQRecord fqr1 = new PotentiallyTruncatedFastQRecord(fq1);
-            PotentiallyTruncatedFastQRecord fqr2 = new PotentiallyTruncatedFastQRecord(fq2);
-            if (fqr1.truncateIfLigationSiteFound()) {
-                nReadOneTruncated++;
+    int readBatch(FastqRecordBatch batch1, FastqRecordBatch batch2, int n) throws DiachromaticException {
+        batch1.clear();
+        batch2.clear();
+        while (!finished && batch1.size() < n) {
+            boolean hasNext1 = fastQreader1.readRecord(batch1);
+            boolean hasNext2 = fastQreader2.readRecord(batch2);
+            if (!hasNext1 || !hasNext2) {
+                finished = true;
+                if (hasNext1 || hasNext2) {
+                    logger.warn("The FASTQ files {} and {} have a different number of reads, skipping the remaining reads",
+                            fastqFile1, fastqFile2);
+                    (hasNext1 ? batch1 : batch2).removeLast();
+                }
             }
-            if (fqr2.truncateIfLigationSiteFound()) {
-                nReadTwoTruncated++;
-            }
-            currentPair = new Pair<>(fqr1, fqr2);
-            nReadsProcessed++;
-            if (nReadsProcessed % BLOCKSIZE == 0) {
-                logger.trace("Processed readpair number {}.", nReadsProcessed);
-            }
-        } else {
-            currentPair = null;
         }
+        return batch1.size();
     }
 
-    /**
-     *
-     * @return true iff the FASTQ Readers have another read pair.
-     */
-    boolean hasNextPair() {
-        return currentPair != null;
-    }
-
-    /**
-     * @return the next forward/reverse read pair
-     */
-    Pair<PotentiallyTruncatedFastQRecord, PotentiallyTruncatedFastQRecord> getNextPair() {
-        Pair<PotentiallyTruncatedFastQRecord, PotentiallyTruncatedFastQRecord> tmp = currentPair;
-        movePairIterator();
-        return tmp;
+    @Override
+    public void close() throws IOException {
+        try {
+            fastQreader1.close();
+        } finally {
+            fastQreader2.close();
+        }
     }
-
-
 }
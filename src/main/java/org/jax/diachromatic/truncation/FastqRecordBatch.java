@@ -0,0 +1,202 @@
+package org.jax.diachromatic.truncation;
+
+import org.jax.diachromatic.util.MultiPatternScanner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A batch of FASTQ records of one input file. The records are stored as offsets into a single byte array that is
+ * reused for subsequent batches, so that no objects are allocated per read. Truncating a read overwrites the bytes
+ * following the truncation position and shortens the sequence and quality by adjusting {@link #seqLength}.
+ * The records that are retained after truncation are serialized to a second reusable byte array by
+ * {@link #appendRecordToOutput(int)} and written to file by {@link #writeOutput(OutputStream)}.
+ */
+class FastqRecordBatch {
+    private static final int INITIAL_DATA_SIZE = 1 << 20;
+    private static final int INITIAL_RECORD_NUMBER = 1024;
+
+    /** Raw bytes of the header, sequence and quality lines of all records (without line breaks). */
+    private byte[] data = new byte[INITIAL_DATA_SIZE];
+    private int dataLength = 0;
+    /** Number of records in this batch. */
+    private int size = 0;
+    /** Start of the header of each record in {@link #data} (excluding the leading @). */
+    private int[] headerStart = new int[INITIAL_RECORD_NUMBER];
+    private int[] headerLength = new int[INITIAL_RECORD_NUMBER];
+    private int[] seqStart = new int[INITIAL_RECORD_NUMBER];
+    /** Current length of sequence and quality of each record, which becomes smaller if the read is truncated. */
+    private int[] seqLength = new int[INITIAL_RECORD_NUMBER];
+    private int[] qualStart = new int[INITIAL_RECORD_NUMBER];
+    /** FASTQ records that are retained after truncation. */
+    private byte[] output = new byte[INITIAL_DATA_SIZE];
+    private int outputLength = 0;
+
+    /** Remove all records and the output from this batch, keeping the allocated buffers. */
+    void clear() {
+        dataLength = 0;
+        size = 0;
+        outputLength = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** @return length of the (possibly truncated) sequence of record i */
+    int getLen(int i) {
+        return seqLength[i];
+    }
+
+    /** @return the (possibly truncated) sequence of record i. Only intended for testing and debugging. */
+    String getSequence(int i) {
+        return new String(data, seqStart[i], seqLength[i], StandardCharsets.US_ASCII);
+    }
+
+    /** @return the (possibly truncated) quality string of record i. Only intended for testing and debugging. */
+    String getQuality(int i) {
+        return new String(data, qualStart[i], seqLength[i], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Starts a new record. The header, sequence and quality lines must then be appended in this order with
+     * {@link #appendLine(byte[], int, int, int)}.
+     * @return index of the new record
+     */
+    int startRecord() {
+        if (size == headerStart.length) {
+            int n = 2 * size;
+            headerStart = Arrays.copyOf(headerStart, n);
+            headerLength = Arrays.copyOf(headerLength, n);
+            seqStart = Arrays.copyOf(seqStart, n);
+            seqLength = Arrays.copyOf(seqLength, n);
+            qualStart = Arrays.copyOf(qualStart, n);
+        }
+        return size++;
+    }
+
+    /**
+     * Append one line of the current record.
+     * @param src buffer that contains the line
+     * @param offset start of the line in src
+     * @param length length of the line without the line break
+     * @param line 0 for the header (without the leading @), 1 for the sequence and 2 for the quality
+     */
+    void appendLine(byte[] src, int offset, int length, int line) {
+        ensureDataCapacity(length);
+        int i = size - 1;
+        switch (line) {
+            case 0:
+                headerStart[i] = dataLength;
+                headerLength[i] = length;
+                break;
+            case 1:
+                seqStart[i] = dataLength;
+                seqLength[i] = length;
+                break;
+            case 2:
+                qualStart[i] = dataLength;
+                break;
+        }
+        System.arraycopy(src, offset, data, dataLength, length);
+        dataLength += length;
+    }
+
+    /** Remove the last record, which must not have been appended to the output yet. */
+    void removeLast() {
+        size--;
+        dataLength = headerStart[size];
+    }
+
+    private void ensureDataCapacity(int length) {
+        if (dataLength + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(2 * data.length, dataLength + length));
+        }
+    }
+
+    /** @return true if the sequence of record i starts with seq */
+    boolean startsWith(int i, byte[] seq) {
+        if (seq.length > seqLength[i]) {
+            return false;
+        }
+        int start = seqStart[i];
+        for (int k = 0; k < seq.length; k++) {
+            if (data[start + k] != seq[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return position of the first occurrence of seq in the sequence of record i, or -1 if there is none */
+    int indexOf(int i, byte[] seq) {
+        int start = seqStart[i];
+        int last = seqLength[i] - seq.length;
+        outer:
+        for (int j = 0; j <= last; j++) {
+            for (int k = 0; k < seq.length; k++) {
+                if (data[start + j + k] != seq[k]) {
+                    continue outer;
+                }
+            }
+            return j;
+        }
+        return -1;
+    }
+
+    /** @return true if the sequence of record i starts with one of the patterns of the scanner */
+    boolean startsWith(int i, MultiPatternScanner scanner) {
+        int end = seqStart[i] + Math.min(seqLength[i], scanner.getMaxPatternLength());
+        long match = scanner.findFirst(data, seqStart[i], end);
+        return match >= 0 && MultiPatternScanner.matchStart(match) == seqStart[i];
+    }
+
+    /**
+     * Find the leftmost occurrence of any of the patterns of the scanner in the sequence of record i.
+     * @return the match as packed by {@link MultiPatternScanner}, with the start position relative to the start of
+     * the sequence, or -1 if there is none
+     */
+    long findFirst(int i, MultiPatternScanner scanner) {
+        long match = scanner.findFirst(data, seqStart[i], seqStart[i] + seqLength[i]);
+        return match < 0 ? match : match - ((long) seqStart[i] << 32);
+    }
+
+    /**
+     * Truncate record i at position pos and append the replacement sequence, i.e., the sequence becomes
+     * {@code sequence[0,pos) + replacement}. The quality is truncated to the same length. The replacement overwrites
+     * the bytes after pos; if it is longer than the rest of the read, only the leading part is written, so that the
+     * read never becomes longer.
+     */
+    void truncate(int i, int pos, byte[] replacement) {
+        int len = Math.min(replacement.length, seqLength[i] - pos);
+        System.arraycopy(replacement, 0, data, seqStart[i] + pos, len);
+        seqLength[i] = pos + len;
+    }
+
+    /** Append record i in FASTQ format to the output of this batch. */
+    void appendRecordToOutput(int i) {
+        int len = headerLength[i] + 2 * seqLength[i] + 6;
+        if (outputLength + len > output.length) {
+            output = Arrays.copyOf(output, Math.max(2 * output.length, outputLength + len));
+        }
+        output[outputLength++] = '@';
+        System.arraycopy(data, headerStart[i], output, outputLength, headerLength[i]);
+        outputLength += headerLength[i];
+        output[outputLength++] = '\n';
+        System.arraycopy(data, seqStart[i], output, outputLength, seqLength[i]);
+        outputLength += seqLength[i];
+        output[outputLength++] = '\n';
+        output[outputLength++] = '+';
+        output[outputLength++] = '\n';
+        System.arraycopy(data, qualStart[i], output, outputLength, seqLength[i]);
+        outputLength += seqLength[i];
+        output[outputLength++] = '\n';
+    }
+
+    /** Write the records that were appended with {@link #appendRecordToOutput(int)}. */
+    void writeOutput(OutputStream os) throws IOException {
+        os.write(output, 0, outputLength);
+    }
+}
@@ -0,0 +1,127 @@
+package org.jax.diachromatic.truncation;
+
+import org.jax.diachromatic.digest.RestrictionEnzyme;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A ligation junction that is created if a fragment end produced by restriction enzyme A is ligated to a fragment
+ * end produced by restriction enzyme B. If more than one enzyme is used for digestion, the junctions of all pairs of
+ * enzymes (including hybrid junctions with A different from B) can occur in the reads.
+ * <p>
+ * The junction consists of the upstream end of the A fragment followed by the downstream end of the B fragment. If
+ * the sticky ends were filled in, the ends are blunt and every pair of enzymes can be ligated. For instance,
+ * HindIII (A^AGCTT) and DpnII (^GATC) yield the junction {@code AAGCT + GATC = AAGCTGATC}, and for HindIII alone we get
+ * {@code AAGCT + AGCTT = AAGCTAGCTT} (see {@link Truncator#fillEnd(RestrictionEnzyme)}). Without fill-in, only ends
+ * with identical overhangs can be ligated, and the junction is the upstream part of the A site up to the cut followed
+ * by the downstream part of the B site after the cut, e.g., {@code A + GATC = AGATC} for BglII (A^GATCT) and DpnII.
+ * <p>
+ * A read that contains a junction is truncated after the upstream end of the A fragment, and the remainder of the
+ * A restriction site is appended, i.e., the truncated read ends with the complete A site.
+ */
+class LigationJunction {
+    /** The restriction enzyme that produced the upstream fragment end. */
+    private final RestrictionEnzyme upstreamEnzyme;
+    /** The restriction enzyme that produced the downstream fragment end. */
+    private final RestrictionEnzyme downstreamEnzyme;
+    /** Sequence of the upstream fragment end that is part of the junction (kept in the truncated read). */
+    private final String upstreamEnd;
+    /** Sequence of the downstream fragment end that is part of the junction. */
+    private final String downstreamEnd;
+    /** Rest of the upstream restriction site, which is appended to the truncated read. */
+    private final String siteRemainder;
+
+    private LigationJunction(RestrictionEnzyme a, RestrictionEnzyme b, boolean stickyEnds) {
+        this.upstreamEnzyme = a;
+        this.downstreamEnzyme = b;
+        String siteA = a.getPlainSite();
+        String siteB = b.getPlainSite();
+        int cutA = stickyEnds ? a.getOffset() : siteA.length() - flankSize(a);
+        int cutB = stickyEnds ? b.getOffset() : flankSize(b);
+        this.upstreamEnd = siteA.substring(0, cutA);
+        this.siteRemainder = siteA.substring(cutA);
+        this.downstreamEnd = siteB.substring(cutB);
+    }
+
+    /**
+     * @return the number of bases of the restriction site before the overhang, which is the same as the number of
+     * bases after the overhang (e.g., 1 for A^AGCTT and 0 for ^GATC).
+     */
+    private static int flankSize(RestrictionEnzyme re) {
+        int offset = re.getOffset();
+        return Math.min(offset, re.getPlainSite().length() - offset);
+    }
+
+    /**
+     * @return the sequence of the overhang that is created by the enzyme, with a leading "5" or "3" for 5' and 3'
+     * overhangs (blunt cutters produce an empty overhang).
+     */
+    private static String overhang(RestrictionEnzyme re) {
+        int offset = re.getOffset();
+        int len = re.getPlainSite().length();
+        if (offset < len - offset) {
+            return "5" + re.getPlainSite().substring(offset, len - offset);
+        } else if (offset > len - offset) {
+            return "3" + re.getPlainSite().substring(len - offset, offset);
+        } else {
+            return "";
+        }
+    }
+
+    /**
+     * Create the junctions of all ordered pairs of enzymes (for sticky ends, only the pairs with compatible
+     * overhangs). Junctions with the same sequence are only included once. The junctions of each enzyme with itself
+     * come first, in the order of the enzymes.
+     */
+    static List<LigationJunction> createJunctions(List<RestrictionEnzyme> enzymes, boolean stickyEnds) {
+        List<LigationJunction> junctions = new ArrayList<>();
+        Set<String> sequences = new HashSet<>();
+        for (RestrictionEnzyme a : enzymes) {
+            LigationJunction j = new LigationJunction(a, a, stickyEnds);
+            if (sequences.add(j.getSequence())) {
+                junctions.add(j);
+            }
+        }
+        for (RestrictionEnzyme a : enzymes) {
+            for (RestrictionEnzyme b : enzymes) {
+                if (a.equals(b) || (stickyEnds && !overhang(a).equals(overhang(b)))) {
+                    continue;
+                }
+                LigationJunction j = new LigationJunction(a, b, stickyEnds);
+                if (sequences.add(j.getSequence())) {
+                    junctions.add(j);
+                }
+            }
+        }
+        return junctions;
+    }
+
+    String getSequence() {
+        return upstreamEnd + downstreamEnd;
+    }
+
+    /** @return number of bases of the junction that are kept in the truncated read */
+    int getUpstreamEndLength() {
+        return upstreamEnd.length();
+    }
+
+    String getSiteRemainder() {
+        return siteRemainder;
+    }
+
+    RestrictionEnzyme getUpstreamEnzyme() {
+        return upstreamEnzyme;
+    }
+
+    RestrictionEnzyme getDownstreamEnzyme() {
+        return downstreamEnzyme;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s-%s:%s", upstreamEnzyme.getName(), downstreamEnzyme.getName(), getSequence());
+    }
+}
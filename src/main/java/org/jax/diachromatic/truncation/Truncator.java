@@ -4,19 +4,41 @@ package org.jax.diachromatic.truncation;
 
 import org.jax.diachromatic.digest.RestrictionEnzyme;
 import org.jax.diachromatic.exception.DiachromaticException;
-import org.jax.diachromatic.util.Pair;
+import org.jax.diachromatic.util.MultiPatternScanner;
+import org.jax.diachromatic.util.ParallelBlockCompressedOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.zip.GZIPOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 public class Truncator {
     private static final Logger logger = LoggerFactory.getLogger(Truncator.class);
     private final String fastqFile1;
     private final String fastqFile2;
-    private final RestrictionEnzyme renzyme;
-    private final String filledEndSequence;
+    /** The restriction enzymes used for digestion (a single enzyme or an enzyme cocktail). */
+    private final List<RestrictionEnzyme> enzymes;
+    /** All ligation junctions that can be created by the enzymes, including hybrid junctions of two enzymes. */
+    private final List<LigationJunction> junctions;
+    /** Finds the ligation junctions in the reads in one pass. Pattern i of the scanner is junction i. */
+    private final MultiPatternScanner ligationSequenceScanner;
+    /**
+     * The junction if there is only one without ambiguity codes (a single enzyme such as HindIII or DpnII), which is
+     * found faster by a byte comparison than by {@link #ligationSequenceScanner}; null otherwise.
+     */
+    private final byte[] ligationSequenceBytes;
+    /** Number of bases of each junction that are kept in a truncated read. */
+    private final int[] junctionUpstreamEndLength;
+    /** Part of the restriction site that is appended to a truncated read for each junction. */
+    private final byte[][] junctionSiteRemainder;
+    /** Finds reads that start with the dangling end sequence of one of the enzymes. */
+    private final MultiPatternScanner danglingSequenceScanner;
+    /** The dangling end sequence if there is only one without ambiguity codes; null otherwise. */
+    private final byte[] danglingSequenceBytes;
     private final String  outputFASTQ1;
     private final String  outputFASTQ2;
     private final String  outputSummaryStatistics;
@@ -38,89 +60,129 @@ public class Truncator {
     private int numOfMaybeDanglingRead1;
     private int numOfMaybeDanglingRead2;
 
+    /**
+     * Total number of processed read pairs and numbers of forward and reverse reads that were truncated.
+     */
+    private int nReadsProcessed;
+    private int nReadOneTruncated;
+    private int nReadTwoTruncated;
+
     private static final int LENGTH_THRESHOLD = 19; // using 19 the same results as for HiCUP are obtained
 
+    /**
+     * Number of read pairs that are passed to a worker thread as one unit of work.
+     */
+    private static final int BATCH_SIZE = 10_000;
+    /** Number at which we show logger trace messages (every BLOCKSIZE read pairs)*/
+    private static final int BLOCKSIZE = 100_000_000;
+
+    /**
+     * Number of worker threads that perform the truncation. If this is 1, all work is done on the calling thread.
+     */
+    private final int threadNum;
+
+    /**
+     * Deflate level (0-9) of the truncated FASTQ files, which are written in the blocked gzip format (BGZF).
+     */
+    private final int compressionLevel;
+    /**
+     * If true, the truncated FASTQ files are written without compression, e.g., if they are directly passed to the aligner.
+     */
+    private final boolean uncompressed;
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
     public Truncator(String inputFASTQforward, String inputFASTQreverse, RestrictionEnzyme re, boolean stickyEnds, String outputPathPrefix) {
+        this(inputFASTQforward, inputFASTQreverse, List.of(re), stickyEnds, outputPathPrefix, 1, DEFAULT_COMPRESSION_LEVEL, false);
+    }
+
+    public Truncator(String inputFASTQforward, String inputFASTQreverse, List<RestrictionEnzyme> enzymes, boolean stickyEnds, String outputPathPrefix,
+                     int threadNum, int compressionLevel, boolean uncompressed) {
         this.fastqFile1 = inputFASTQforward;
         this.fastqFile2 = inputFASTQreverse;
-        this.renzyme = re;
-        if(stickyEnds) {
-            filledEndSequence=re.getPlainSite();
-        } else {
-            filledEndSequence = fillEnd(renzyme);
-        }
-        outputFASTQ1 = String.format("%s.%s", outputPathPrefix, "truncated_R1.fastq.gz");
-        outputFASTQ2 = String.format("%s.%s", outputPathPrefix, "truncated_R2.fastq.gz");
+        this.enzymes = List.copyOf(enzymes);
+        this.junctions = LigationJunction.createJunctions(this.enzymes, stickyEnds);
+        List<String> junctionSequences = junctions.stream().map(LigationJunction::getSequence).collect(Collectors.toList());
+        ligationSequenceScanner = new MultiPatternScanner(junctionSequences, false);
+        ligationSequenceBytes = getPlainSequenceBytes(junctionSequences);
+        junctionUpstreamEndLength = junctions.stream().mapToInt(LigationJunction::getUpstreamEndLength).toArray();
+        junctionSiteRemainder = junctions.stream()
+                .map(j -> j.getSiteRemainder().getBytes(StandardCharsets.US_ASCII))
+                .toArray(byte[][]::new);
+        List<String> danglingSequences = this.enzymes.stream()
+                .map(RestrictionEnzyme::getDanglingEndSequence)
+                .distinct()
+                .collect(Collectors.toList());
+        danglingSequenceScanner = new MultiPatternScanner(danglingSequences, false);
+        danglingSequenceBytes = getPlainSequenceBytes(danglingSequences);
+        String suffix = uncompressed ? "fastq" : "fastq.gz";
+        outputFASTQ1 = String.format("%s.truncated_R1.%s", outputPathPrefix, suffix);
+        outputFASTQ2 = String.format("%s.truncated_R2.%s", outputPathPrefix, suffix);
         outputSummaryStatistics = String.format("%s.%s", outputPathPrefix, "truncation.stats.txt");
+        this.threadNum = Math.max(1, threadNum);
+        this.compressionLevel = compressionLevel;
+        this.uncompressed = uncompressed;
     }
 
     /**
-     * Parse the two input FASTQ files using a {@link FastqPairParser} object that returns one inputSAMfiles of reads at a time.
-     * For each inputSAMfiles of reads, if one or both of the reads was truncated to the extent that the remaining read is too
-     * short, then skip the read inputSAMfiles. Write out each read of valid pairs to separate summarize files.
+     * Parse the two input FASTQ files using a {@link FastqPairParser} object that returns batches of read pairs.
+     * For each pair of reads, if one or both of the reads was truncated to the extent that the remaining read is too
+     * short, then skip the read pair. Write out each read of valid pairs to separate summarize files.
+     * If more than one thread was requested, the batches are truncated by a pool of worker threads, and the results
+     * are written in the order of the input files, so that the output is identical to the single-threaded output.
+     * Unless {@link #uncompressed} is set, the output files are compressed block-wise by a separate pool of threads.
      *
      * @throws DiachromaticException if the FASTQ files cannot be parsed
      */
     public void parseFASTQ() throws DiachromaticException {
-        PotentiallyTruncatedFastQRecord.setLigationSequence(filledEndSequence);
-        PotentiallyTruncatedFastQRecord.setRestrictionSequence(renzyme.getPlainSite());
-        PotentiallyTruncatedFastQRecord.setDanglingSequence(renzyme.getDanglingEndSequence());
-        FastqPairParser parser = new FastqPairParser(fastqFile1, fastqFile2, filledEndSequence);
+        nReadsProcessed = 0;
+        nReadOneTruncated = 0;
+        nReadTwoTruncated = 0;
         NumOfPairsRemovedBecauseAtLeastOneReadTooShort = 0;
         removedBecauseRead1TooShort = 0;
         removedBecauseRead2TooShort = 0;
         numOfMaybeDanglingRead1 = 0;
         numOfMaybeDanglingRead2 = 0;
-        logger.trace("filledEndSequence:"  + filledEndSequence + "\trenzyme.getSite(): " + renzyme.getSite() + "\tenzyme.getPlainSite(): " + renzyme.getPlainSite() + "\trenzyme.getDanglingEndSequence(): " + renzyme.getDanglingEndSequence() + "\n");
-        try {
-
-            BufferedWriter out1 = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFASTQ1))));
-            BufferedWriter out2 = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFASTQ2))));
-
-            while (parser.hasNextPair()) {
-                Pair<PotentiallyTruncatedFastQRecord, PotentiallyTruncatedFastQRecord> pair = parser.getNextPair();
-
-                if (pair.first.getLen() < LENGTH_THRESHOLD) {
-                    removedBecauseRead1TooShort++;
-                }
-                if (pair.second.getLen() < LENGTH_THRESHOLD) {
-                    removedBecauseRead2TooShort++;
-                }
-                if((LENGTH_THRESHOLD) < pair.first.getLen() && (LENGTH_THRESHOLD < pair.second.getLen())) {
-                    pair.first.writeToStream(out1);
-                    pair.second.writeToStream(out2);
-                }
-                else {
-                    NumOfPairsRemovedBecauseAtLeastOneReadTooShort++;
-                }
-                if(pair.first.isMaybeDangling()) {
-                    numOfMaybeDanglingRead1++;
-                }
-                if(pair.second.isMaybeDangling()) {
-                    numOfMaybeDanglingRead2++;
+        for (RestrictionEnzyme renzyme : enzymes) {
+            logger.trace("renzyme.getSite(): " + renzyme.getSite() + "\tenzyme.getPlainSite(): " + renzyme.getPlainSite() + "\trenzyme.getDanglingEndSequence(): " + renzyme.getDanglingEndSequence());
+        }
+        logger.trace("ligation junctions: {}", junctions);
+        ExecutorService compressors = uncompressed ? null : Executors.newFixedThreadPool(threadNum);
+        try (FastqPairParser parser = new FastqPairParser(fastqFile1, fastqFile2, getFilledEndSequences());
+             OutputStream out1 = openOutputStream(outputFASTQ1, compressors);
+             OutputStream out2 = openOutputStream(outputFASTQ2, compressors)) {
+            if (threadNum == 1) {
+                TruncationBatch batch = new TruncationBatch();
+                while (parser.readBatch(batch.reads1, batch.reads2, BATCH_SIZE) > 0) {
+                    truncateBatch(batch);
+                    writeBatch(batch, out1, out2);
                 }
+            } else {
+                truncateInParallel(parser, out1, out2);
             }
-            out1.close();
-            out2.close();
         } catch (IOException e) {
             logger.error("Error encountered while writing truncated FASTQ files: {}", e.getMessage());
             e.printStackTrace();
+        } finally {
+            if (compressors != null) {
+                compressors.shutdownNow();
+            }
         }
         logger.trace(String.format("Number of pairs processed: %d",
-                parser.getnReadsProcessed()));
+                nReadsProcessed));
         logger.trace(String.format("Number of truncated forward reads: %d (%.2f%%)",
-                parser.getReadOneTruncated(),
-                100.0 * parser.getReadOneTruncated() / parser.getnReadsProcessed()));
+                nReadOneTruncated,
+                100.0 * nReadOneTruncated / nReadsProcessed));
         logger.trace(String.format("Number of truncated reverse reads: %d (%.2f%%)",
-                parser.getReadTwoTruncated(),
-                100.0 * parser.getReadOneTruncated() / parser.getnReadsProcessed()));
-        logger.trace(String.format("Number of maybe dangling forward reads: %d (%.2f%%)", numOfMaybeDanglingRead1,100.0 * numOfMaybeDanglingRead1/parser.getnReadsProcessed()));
-        logger.trace(String.format("Number of maybe dangling reverse reads: %d (%.2f%%)", numOfMaybeDanglingRead2,100.0 * numOfMaybeDanglingRead2/parser.getnReadsProcessed()));
+                nReadTwoTruncated,
+                100.0 * nReadOneTruncated / nReadsProcessed));
+        logger.trace(String.format("Number of maybe dangling forward reads: %d (%.2f%%)", numOfMaybeDanglingRead1,100.0 * numOfMaybeDanglingRead1/nReadsProcessed));
+        logger.trace(String.format("Number of maybe dangling reverse reads: %d (%.2f%%)", numOfMaybeDanglingRead2,100.0 * numOfMaybeDanglingRead2/nReadsProcessed));
         logger.trace(String.format("Number of too short removed forward reads (<%d): %d", LENGTH_THRESHOLD, removedBecauseRead1TooShort));
         logger.trace(String.format("Number of too short removed reverse reads (<%d): %d", LENGTH_THRESHOLD, removedBecauseRead2TooShort));
         logger.trace(String.format("Number of removed pairs (at least one read too short): %d (%.2f%%)",
                 NumOfPairsRemovedBecauseAtLeastOneReadTooShort,
-                100.0 * NumOfPairsRemovedBecauseAtLeastOneReadTooShort / parser.getnReadsProcessed()));
+                100.0 * NumOfPairsRemovedBecauseAtLeastOneReadTooShort / nReadsProcessed));
 
         PrintStream printSummaryStatistics = null;
         try {
@@ -128,28 +190,238 @@ public class Truncator {
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
-        printSummaryStatistics.print(String.format("restriction_enzyme:%s (%s)\n",this.renzyme.getName(),this.renzyme.getSite()));
-        printSummaryStatistics.print(String.format("filled_end_sequence:%s\n",filledEndSequence));
-        printSummaryStatistics.print("total_raw_read_pairs_processed:" + parser.getnReadsProcessed() + "\n");
+        printSummaryStatistics.print(String.format("restriction_enzyme:%s\n",enzymes.stream()
+                .map(re -> String.format("%s (%s)", re.getName(), re.getSite()))
+                .collect(Collectors.joining(", "))));
+        printSummaryStatistics.print(String.format("filled_end_sequence:%s\n",getFilledEndSequences()));
+        printSummaryStatistics.print("total_raw_read_pairs_processed:" + nReadsProcessed + "\n");
         printSummaryStatistics.print(String.format("truncated_forward_reads:%d (%.2f%%)\n",
-                parser.getReadOneTruncated(),
-                100.0 * parser.getReadOneTruncated() / parser.getnReadsProcessed()));
+                nReadOneTruncated,
+                100.0 * nReadOneTruncated / nReadsProcessed));
         printSummaryStatistics.print(String.format("truncated_reverse_reads:%d (%.2f%%)\n",
-                parser.getReadTwoTruncated(),
-                100.0 * parser.getReadOneTruncated() / parser.getnReadsProcessed()));
-        printSummaryStatistics.print(String.format("dangling_forward_reads:%d (%.2f%%)\n", numOfMaybeDanglingRead1,100.0 * numOfMaybeDanglingRead1/parser.getnReadsProcessed()));
-        printSummaryStatistics.print(String.format("dangling_reverse_reads:%d (%.2f%%)\n", numOfMaybeDanglingRead2,100.0 * numOfMaybeDanglingRead2/parser.getnReadsProcessed()));
+                nReadTwoTruncated,
+                100.0 * nReadOneTruncated / nReadsProcessed));
+        printSummaryStatistics.print(String.format("dangling_forward_reads:%d (%.2f%%)\n", numOfMaybeDanglingRead1,100.0 * numOfMaybeDanglingRead1/nReadsProcessed));
+        printSummaryStatistics.print(String.format("dangling_reverse_reads:%d (%.2f%%)\n", numOfMaybeDanglingRead2,100.0 * numOfMaybeDanglingRead2/nReadsProcessed));
         printSummaryStatistics.println(String.format("length_threshold:%d",LENGTH_THRESHOLD));
         printSummaryStatistics.print(String.format("short_removed_forward_reads:%d\n", removedBecauseRead1TooShort));
         printSummaryStatistics.print(String.format("short_removed_reverse_reads:%d\n", removedBecauseRead2TooShort));
         printSummaryStatistics.print(String.format("removed_pairs_one_or_two_reads_too_short:%d (%.2f%%)\n",
                 NumOfPairsRemovedBecauseAtLeastOneReadTooShort,
-                100.0 * NumOfPairsRemovedBecauseAtLeastOneReadTooShort / parser.getnReadsProcessed()));
+                100.0 * NumOfPairsRemovedBecauseAtLeastOneReadTooShort / nReadsProcessed));
         printSummaryStatistics.print(String.format("input_fastq1:%s\n",fastqFile1));
         printSummaryStatistics.print(String.format("input_fastq2:%s",fastqFile2));
     }
 
 
+    /**
+     * @param path path of a truncated FASTQ file
+     * @param compressors thread pool for the compression of the output, or null if the output is not compressed
+     * @return stream to which the FASTQ records are written
+     */
+    private OutputStream openOutputStream(String path, ExecutorService compressors) throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(path));
+        if (compressors == null) {
+            return os;
+        }
+        return new ParallelBlockCompressedOutputStream(os, compressionLevel, compressors, threadNum);
+    }
+
+    /**
+     * Reader, worker and writer stages of the multi-threaded truncation. A reader thread reads batches of read pairs
+     * and submits them to {@link #threadNum} worker threads. The futures of the submitted batches are queued in input
+     * order, and the calling thread writes the results in this order. Written batches are handed back to the reader
+     * for reuse, so that the number of batches (and thereby the memory) is bounded.
+     */
+    private void truncateInParallel(FastqPairParser parser, OutputStream out1, OutputStream out2) throws DiachromaticException, IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threadNum);
+        int batchNum = 2 * threadNum + 2;
+        BlockingQueue<TruncationBatch> free = new ArrayBlockingQueue<>(batchNum);
+        for (int i = 0; i < batchNum; i++) {
+            free.add(new TruncationBatch());
+        }
+        BlockingQueue<Future<TruncationBatch>> pending = new ArrayBlockingQueue<>(batchNum);
+        Future<TruncationBatch> endOfInput = CompletableFuture.completedFuture(null);
+        AtomicReference<Exception> readerException = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    TruncationBatch batch = free.take();
+                    if (parser.readBatch(batch.reads1, batch.reads2, BATCH_SIZE) == 0) {
+                        break;
+                    }
+                    pending.put(workers.submit(() -> truncateBatch(batch)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (DiachromaticException | RuntimeException e) {
+                readerException.set(e);
+            } finally {
+                try {
+                    pending.put(endOfInput);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "truncate-reader");
+        reader.start();
+        try {
+            Future<TruncationBatch> future;
+            while ((future = pending.take()) != endOfInput) {
+                TruncationBatch batch = future.get();
+                writeBatch(batch, out1, out2);
+                free.put(batch);
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiachromaticException("Interrupted while truncating FASTQ files");
+        } catch (ExecutionException e) {
+            throw new DiachromaticException(String.format("Could not truncate read pairs: %s", e.getCause().getMessage()));
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+        if (readerException.get() != null) {
+            throw new DiachromaticException(String.format("Could not read FASTQ files: %s", readerException.get().getMessage()));
+        }
+    }
+
+    /**
+     * Truncate the reads of a batch of read pairs in place and serialize the pairs that are long enough to the output
+     * buffers of the batch. This function does not modify any fields of this class and is therefore safe to call
+     * from worker threads.
+     */
+    private TruncationBatch truncateBatch(TruncationBatch batch) {
+        batch.resetCounts();
+        FastqRecordBatch reads1 = batch.reads1;
+        FastqRecordBatch reads2 = batch.reads2;
+        for (int i = 0; i < reads1.size(); i++) {
+            batch.nReadsProcessed++;
+            // reads that start with the dangling end sequence are counted before truncation
+            if (startsWithDanglingSequence(reads1, i)) {
+                batch.numOfMaybeDanglingRead1++;
+            }
+            if (startsWithDanglingSequence(reads2, i)) {
+                batch.numOfMaybeDanglingRead2++;
+            }
+            if (truncateIfLigationSiteFound(reads1, i)) {
+                batch.nReadOneTruncated++;
+            }
+            if (truncateIfLigationSiteFound(reads2, i)) {
+                batch.nReadTwoTruncated++;
+            }
+            int len1 = reads1.getLen(i);
+            int len2 = reads2.getLen(i);
+            if (len1 < LENGTH_THRESHOLD) {
+                batch.removedBecauseRead1TooShort++;
+            }
+            if (len2 < LENGTH_THRESHOLD) {
+                batch.removedBecauseRead2TooShort++;
+            }
+            if((LENGTH_THRESHOLD) < len1 && (LENGTH_THRESHOLD < len2)) {
+                reads1.appendRecordToOutput(i);
+                reads2.appendRecordToOutput(i);
+            }
+            else {
+                batch.numOfPairsRemovedBecauseAtLeastOneReadTooShort++;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Truncates sequence and quality of read i if one of the ligation junctions is found. The sequence is replaced by
+     * the part of the read upstream of the junction followed by the restriction site of the upstream fragment end
+     * (see {@link LigationJunction}). If the read contains several junctions, it is truncated at the first one.
+     * @return true if truncation was performed.
+     */
+    boolean truncateIfLigationSiteFound(FastqRecordBatch reads, int i) {
+        if (ligationSequenceBytes != null) {
+            int pos = reads.indexOf(i, ligationSequenceBytes);
+            if (pos < 0) {
+                return false;
+            }
+            reads.truncate(i, pos + junctionUpstreamEndLength[0], junctionSiteRemainder[0]);
+            return true;
+        }
+        long match = reads.findFirst(i, ligationSequenceScanner);
+        if (match < 0) {
+            return false;  // we did not find the ligation sequence
+        }
+        int junction = MultiPatternScanner.matchPattern(match);
+        reads.truncate(i, MultiPatternScanner.matchStart(match) + junctionUpstreamEndLength[junction], junctionSiteRemainder[junction]);
+        return true;
+    }
+
+    private boolean startsWithDanglingSequence(FastqRecordBatch reads, int i) {
+        return danglingSequenceBytes != null ? reads.startsWith(i, danglingSequenceBytes) :
+                reads.startsWith(i, danglingSequenceScanner);
+    }
+
+    /**
+     * @return the bytes of the only sequence if there is one sequence that consists of A, C, G and T, so that it can be
+     * searched byte by byte with the same result as with a {@link MultiPatternScanner} that does not ignore case
+     */
+    private static byte[] getPlainSequenceBytes(List<String> sequences) {
+        if (sequences.size() != 1 || !sequences.get(0).matches("[ACGT]+")) {
+            return null;
+        }
+        return sequences.get(0).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Write the FASTQ records of a truncated batch and add its counts to the totals of this class. */
+    private void writeBatch(TruncationBatch batch, OutputStream out1, OutputStream out2) throws IOException {
+        batch.reads1.writeOutput(out1);
+        batch.reads2.writeOutput(out2);
+        nReadsProcessed += batch.nReadsProcessed;
+        if (nReadsProcessed / BLOCKSIZE != (nReadsProcessed - batch.nReadsProcessed) / BLOCKSIZE) {
+            logger.trace("Processed readpair number {}.", nReadsProcessed);
+        }
+        nReadOneTruncated += batch.nReadOneTruncated;
+        nReadTwoTruncated += batch.nReadTwoTruncated;
+        removedBecauseRead1TooShort += batch.removedBecauseRead1TooShort;
+        removedBecauseRead2TooShort += batch.removedBecauseRead2TooShort;
+        NumOfPairsRemovedBecauseAtLeastOneReadTooShort += batch.numOfPairsRemovedBecauseAtLeastOneReadTooShort;
+        numOfMaybeDanglingRead1 += batch.numOfMaybeDanglingRead1;
+        numOfMaybeDanglingRead2 += batch.numOfMaybeDanglingRead2;
+    }
+
+    /**
+     * One unit of work of the truncation: the forward and reverse reads of a batch of read pairs (which also hold the
+     * FASTQ records of the retained pairs after truncation) and the counts that are needed for the summary statistics.
+     * The buffers of a batch are reused for subsequent batches.
+     */
+    private static class TruncationBatch {
+        private final FastqRecordBatch reads1 = new FastqRecordBatch();
+        private final FastqRecordBatch reads2 = new FastqRecordBatch();
+        private int nReadsProcessed;
+        private int nReadOneTruncated;
+        private int nReadTwoTruncated;
+        private int removedBecauseRead1TooShort;
+        private int removedBecauseRead2TooShort;
+        private int numOfPairsRemovedBecauseAtLeastOneReadTooShort;
+        private int numOfMaybeDanglingRead1;
+        private int numOfMaybeDanglingRead2;
+
+        private void resetCounts() {
+            nReadsProcessed = 0;
+            nReadOneTruncated = 0;
+            nReadTwoTruncated = 0;
+            removedBecauseRead1TooShort = 0;
+            removedBecauseRead2TooShort = 0;
+            numOfPairsRemovedBecauseAtLeastOneReadTooShort = 0;
+            numOfMaybeDanglingRead1 = 0;
+            numOfMaybeDanglingRead2 = 0;
+        }
+    }
+
+
+    /** @return comma-separated list of the ligation junctions that are searched in the reads */
+    String getFilledEndSequences() {
+        return junctions.stream().map(LigationJunction::getSequence).collect(Collectors.joining(","));
+    }
+
     /**
      * The ligation sequence in capture Hi-C is the result of cutting DNA with a restriction enzyme, filling in the
      * overhands with biotinylated nucleotides, and performing blunet ended ligation. For examples, HindIII has the
@@ -159,7 +431,7 @@ public class Truncator {
      * @param re restriction enzyme
      * @return a string representing the filled-in ligation sequence
      */
-    static String fillEnd(RestrictionEnzyme re) {
+    public static String fillEnd(RestrictionEnzyme re) {
         String plainsite = re.getPlainSite();
         int offset = re.getOffset();
         int len = plainsite.length();
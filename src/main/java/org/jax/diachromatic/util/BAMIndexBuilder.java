@@ -0,0 +1,433 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Builds the index of a coordinate-sorted BAM file while the file is written, in the BAI or the CSI format of the
+ * SAM specification. The records are passed to {@link #add(int, int, int, boolean, long, long)} in file order with
+ * their positions in the BAM file. Both formats divide each reference sequence into a hierarchy of bins (the
+ * smallest bins cover 2^{@link #MIN_SHIFT} bases) and store, for each bin, the chunks of the file with the records
+ * that fall into the bin. BAI has five levels of bins, which covers reference sequences of up to 2^29 bases, and a
+ * linear index of the first record of each 16 kb window. CSI has as many levels as needed for the longest reference
+ * sequence and stores the first record of the window at the start of each bin instead of the linear index.
+ * <p>
+ * The positions can be given in any unit that increases with the position in the file, e.g., as block pointers of
+ * {@link ParallelBlockCompressedOutputStream}; they are converted to virtual file pointers when the index is written.
+ * <p>
+ * The same bins index bgzipped text files in the tabix format ({@link #writeTabix}), where the BAI layout becomes a
+ * TBI index and the CSI index stores the tabix configuration in its auxiliary data, as with {@code tabix -C}, and in
+ * the PX2 format of pairix for files with two positions per line ({@link #writePairix}).
+ */
+public final class BAMIndexBuilder {
+
+    public enum Format {
+        BAI(".bai"), CSI(".csi");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /** @return extension that is appended to the path of the BAM file, e.g. {@code .bai} */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /** Size of the smallest bins and of the windows of the linear index (16 kb). */
+    static final int MIN_SHIFT = 14;
+    /** Number of levels of bins in a BAI index. */
+    private static final int BAI_DEPTH = 5;
+    private static final byte[] BAI_MAGIC = "BAI\1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CSI_MAGIC = "CSI\1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TBI_MAGIC = "TBI\1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PX2_MAGIC = "PX2\1".getBytes(StandardCharsets.US_ASCII);
+    /** Tabix format of files with 1-based positions that are not SAM or VCF. */
+    private static final int TABIX_GENERIC = 0;
+
+    private final Format format;
+    /** Number of levels of bins below the root bin. */
+    private final int depth;
+    private ReferenceIndex[] references;
+    /** Number of records without a reference sequence. */
+    private long noCoordinateCount = 0;
+
+    /** Bins, linear index and metadata of one reference sequence. */
+    private static final class ReferenceIndex {
+        /** Chunks of each bin as pairs of start and end positions. */
+        private final Map<Integer, long[]> chunks = new HashMap<>();
+        private final Map<Integer, Integer> chunkNums = new HashMap<>();
+        /** Position of the first record in each window of 2^{@link #MIN_SHIFT} bases (0 if there is none). */
+        private long[] linear = new long[64];
+        private int linearLength = 0;
+        private long firstPointer = -1;
+        private long lastPointer = 0;
+        private long mappedNum = 0;
+        private long unmappedNum = 0;
+
+        private void addChunk(int bin, long start, long end) {
+            long[] binChunks = chunks.get(bin);
+            int n = chunkNums.getOrDefault(bin, 0);
+            if (binChunks == null) {
+                binChunks = new long[4];
+                chunks.put(bin, binChunks);
+            } else if (binChunks[2 * n - 1] == start) {
+                // the record directly follows the last chunk of the bin
+                binChunks[2 * n - 1] = end;
+                return;
+            } else if (2 * n == binChunks.length) {
+                binChunks = Arrays.copyOf(binChunks, 2 * binChunks.length);
+                chunks.put(bin, binChunks);
+            }
+            binChunks[2 * n] = start;
+            binChunks[2 * n + 1] = end;
+            chunkNums.put(bin, n + 1);
+        }
+
+        private void addToLinearIndex(int beg, int end, long start) {
+            int last = (end - 1) >> MIN_SHIFT;
+            if (last >= linear.length) {
+                linear = Arrays.copyOf(linear, Math.max(2 * linear.length, last + 1));
+            }
+            for (int w = beg >> MIN_SHIFT; w <= last; w++) {
+                if (linear[w] == 0) {
+                    linear[w] = start;
+                }
+            }
+            linearLength = Math.max(linearLength, last + 1);
+        }
+    }
+
+    /**
+     * @param dictionary reference sequences of the BAM file
+     * @param format format of the index. BAI cannot be used for reference sequences longer than 2^29 bases.
+     */
+    public BAMIndexBuilder(SAMSequenceDictionary dictionary, Format format) {
+        this(dictionary.size(), dictionary.getSequences().stream().mapToLong(s -> s.getSequenceLength()).max().orElse(0), format);
+    }
+
+    /**
+     * @param referenceNum number of reference sequences. Records of further reference sequences may be added, e.g.
+     *                     if the reference sequences are only known while the file is written.
+     * @param maxLength length of the longest reference sequence
+     * @param format format of the index. BAI cannot be used for reference sequences longer than 2^29 bases.
+     */
+    public BAMIndexBuilder(int referenceNum, long maxLength, Format format) {
+        this.format = format;
+        if (format == Format.BAI) {
+            if (maxLength > 1L << (MIN_SHIFT + 3 * BAI_DEPTH)) {
+                throw new IllegalArgumentException(String.format("BAI indices cannot be used for reference sequences " +
+                        "longer than %d bases (%d); use CSI instead", 1L << (MIN_SHIFT + 3 * BAI_DEPTH), maxLength));
+            }
+            this.depth = BAI_DEPTH;
+        } else {
+            // as samtools, keep some space after the end of the longest reference sequence
+            int d = 0;
+            for (long size = 1L << MIN_SHIFT; maxLength + 256 > size; size <<= 3) {
+                d++;
+            }
+            this.depth = d;
+        }
+        this.references = new ReferenceIndex[referenceNum];
+    }
+
+    /**
+     * @return the format that can be used for the reference sequences, i.e., BAI unless a reference sequence is
+     * longer than 2^29 bases
+     */
+    public static Format getDefaultFormat(SAMSequenceDictionary dictionary) {
+        return getDefaultFormat(dictionary.getSequences().stream().mapToLong(s -> s.getSequenceLength()).max().orElse(0));
+    }
+
+    /** @return BAI unless {@code maxLength} is longer than 2^29 bases */
+    public static Format getDefaultFormat(long maxLength) {
+        return maxLength > 1L << (MIN_SHIFT + 3 * BAI_DEPTH) ? Format.CSI : Format.BAI;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /** @return the first bin of a level of the bin hierarchy (level 0 is the root bin) */
+    private static int firstBin(int level) {
+        return ((1 << 3 * level) - 1) / 7;
+    }
+
+    /**
+     * @param beg 0-based start of a record
+     * @param end 0-based exclusive end of a record
+     * @return the smallest bin that contains the record
+     */
+    int getBin(int beg, int end) {
+        int last = end - 1;
+        int shift = MIN_SHIFT;
+        for (int level = depth; level > 0; level--, shift += 3) {
+            if (beg >> shift == last >> shift) {
+                return firstBin(level) + (beg >> shift);
+            }
+        }
+        return 0;
+    }
+
+    /** @return 0-based start of the region covered by a bin */
+    private long getBinStart(int bin) {
+        int level = depth;
+        while (firstBin(level) > bin) {
+            level--;
+        }
+        return (long) (bin - firstBin(level)) << (MIN_SHIFT + 3 * (depth - level));
+    }
+
+    /** @return the number of the bin with the metadata of a reference sequence */
+    private int getPseudoBin() {
+        return firstBin(depth + 1) + 1;
+    }
+
+    /**
+     * Add a record. The records must be added in the order of the BAM file, i.e., sorted by reference sequence and
+     * start position, with the records without reference sequence at the end.
+     *
+     * @param referenceIndex index of the reference sequence, or -1 for records without reference sequence
+     * @param beg 0-based start position
+     * @param end 0-based exclusive end position (for unmapped records, {@code beg + 1})
+     * @param unmapped true for unmapped records (which are placed at the position of their mate)
+     * @param start position of the record in the file
+     * @param endPointer position after the record in the file
+     */
+    public void add(int referenceIndex, int beg, int end, boolean unmapped, long start, long endPointer) {
+        if (referenceIndex < 0) {
+            noCoordinateCount++;
+            return;
+        }
+        if (referenceIndex >= references.length) {
+            references = Arrays.copyOf(references, Math.max(2 * references.length, referenceIndex + 1));
+        }
+        ReferenceIndex reference = references[referenceIndex];
+        if (reference == null) {
+            reference = references[referenceIndex] = new ReferenceIndex();
+        }
+        if (end <= beg) {
+            end = beg + 1;
+        }
+        reference.addChunk(getBin(beg, end), start, endPointer);
+        reference.addToLinearIndex(beg, end, start);
+        if (reference.firstPointer < 0) {
+            reference.firstPointer = start;
+        }
+        reference.lastPointer = endPointer;
+        if (unmapped) {
+            reference.unmappedNum++;
+        } else {
+            reference.mappedNum++;
+        }
+    }
+
+    /**
+     * Write the index.
+     *
+     * @param indexFile file that is written
+     * @param toVirtualFilePointer converts the positions passed to {@link #add(int, int, int, boolean, long, long)}
+     *                             to virtual file pointers
+     */
+    public void write(File indexFile, LongUnaryOperator toVirtualFilePointer) throws IOException {
+        // CSI indices are compressed with BGZF, BAI indices are not
+        write(indexFile, toVirtualFilePointer, format == Format.CSI, references.length, null, false);
+    }
+
+    /** @return the null-terminated names as stored in tabix and pairix indices */
+    private static byte[] getNameBytes(List<String> names) {
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+        for (String name : names) {
+            nameBytes.write(name.getBytes(StandardCharsets.US_ASCII), 0, name.length());
+            nameBytes.write(0);
+        }
+        return nameBytes.toByteArray();
+    }
+
+    /**
+     * Write the index of a bgzipped text file with one record per line in the tabix format (TBI for
+     * {@link Format#BAI}).
+     *
+     * @param indexFile file that is written
+     * @param toVirtualFilePointer converts the positions passed to {@link #add(int, int, int, boolean, long, long)}
+     *                             to virtual file pointers
+     * @param names names of the reference sequences in the order of their indices
+     * @param sequenceColumn 1-based column of the reference sequence
+     * @param beginColumn 1-based column of the 1-based start position
+     * @param endColumn 1-based column of the end position, or 0 if the records have a single position
+     * @param meta first character of header lines
+     */
+    public void writeTabix(File indexFile, LongUnaryOperator toVirtualFilePointer, List<String> names,
+                           int sequenceColumn, int beginColumn, int endColumn, char meta) throws IOException {
+        byte[] nameBytes = getNameBytes(names);
+        ByteArrayOutputStream configuration = new ByteArrayOutputStream();
+        try (BinaryCodec codec = new BinaryCodec(configuration)) {
+            codec.writeInt(TABIX_GENERIC);
+            codec.writeInt(sequenceColumn);
+            codec.writeInt(beginColumn);
+            codec.writeInt(endColumn);
+            codec.writeInt(meta);
+            codec.writeInt(0); // no lines to skip
+            codec.writeInt(nameBytes.length);
+            codec.writeBytes(nameBytes);
+        }
+        write(indexFile, toVirtualFilePointer, true, names.size(), configuration.toByteArray(), false);
+    }
+
+    /**
+     * Write the index of a bgzipped text file with two positions per line in the PX2 format of pairix, which is only
+     * available for {@link Format#BAI}. The index has one reference sequence for each pair of sequences with the name
+     * {@code chr1|chr2}, and the records are added with the reference of their pair of sequences and their first
+     * position. Apart from the magic number, the format differs from a TBI index only by the columns of the second
+     * sequence and position and the delimiters in the configuration, and it has no metadata pseudo-bins.
+     *
+     * @param indexFile file that is written
+     * @param toVirtualFilePointer converts the positions passed to {@link #add(int, int, int, boolean, long, long)}
+     *                             to virtual file pointers
+     * @param names names of the pairs of reference sequences in the order of their indices
+     * @param sequenceColumn 1-based column of the first reference sequence
+     * @param beginColumn 1-based column of the first 1-based start position
+     * @param endColumn 1-based column of the first end position
+     * @param sequenceColumn2 1-based column of the second reference sequence
+     * @param beginColumn2 1-based column of the second 1-based start position
+     * @param endColumn2 1-based column of the second end position
+     * @param meta first character of header lines
+     */
+    public void writePairix(File indexFile, LongUnaryOperator toVirtualFilePointer, List<String> names,
+                            int sequenceColumn, int beginColumn, int endColumn,
+                            int sequenceColumn2, int beginColumn2, int endColumn2, char meta) throws IOException {
+        if (format != Format.BAI) {
+            throw new IllegalStateException("A pairix index needs the BAI layout for sequences of up to 2^29 bases");
+        }
+        byte[] nameBytes = getNameBytes(names);
+        ByteArrayOutputStream configuration = new ByteArrayOutputStream();
+        try (BinaryCodec codec = new BinaryCodec(configuration)) {
+            codec.writeInt(TABIX_GENERIC);
+            codec.writeInt(sequenceColumn);
+            codec.writeInt(beginColumn);
+            codec.writeInt(endColumn);
+            codec.writeInt(sequenceColumn2);
+            codec.writeInt(beginColumn2);
+            codec.writeInt(endColumn2);
+            // the delimiter of the columns and of the sequence names, padded to four bytes as in the C struct
+            codec.writeByte('\t');
+            codec.writeByte('|');
+            codec.writeShort((short) 0);
+            codec.writeInt(meta);
+            codec.writeInt(0); // no lines to skip
+            codec.writeInt(nameBytes.length);
+            codec.writeBytes(nameBytes);
+        }
+        write(indexFile, toVirtualFilePointer, true, names.size(), configuration.toByteArray(), true);
+    }
+
+    /**
+     * @param referenceNum number of reference sequences in the index
+     * @param tabixConfiguration configuration of a tabix or pairix index, or null for a BAM index
+     * @param pairix if true, a pairix index without metadata is written
+     */
+    private void write(File indexFile, LongUnaryOperator toVirtualFilePointer, boolean compressed, int referenceNum,
+                       byte[] tabixConfiguration, boolean pairix) throws IOException {
+        for (int i = referenceNum; i < references.length; i++) {
+            if (references[i] != null) {
+                throw new IllegalArgumentException(String.format("Records for reference %d, but only %d names",
+                        i, referenceNum));
+            }
+        }
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16);
+        if (compressed) {
+            os = new BlockCompressedOutputStream(os, (File) null);
+        }
+        try (BinaryCodec codec = new BinaryCodec(os)) {
+            if (format == Format.BAI) {
+                codec.writeBytes(pairix ? PX2_MAGIC : tabixConfiguration == null ? BAI_MAGIC : TBI_MAGIC);
+                codec.writeInt(referenceNum);
+                if (tabixConfiguration != null) {
+                    codec.writeBytes(tabixConfiguration);
+                }
+            } else {
+                codec.writeBytes(CSI_MAGIC);
+                codec.writeInt(MIN_SHIFT);
+                codec.writeInt(depth);
+                if (tabixConfiguration == null) {
+                    codec.writeInt(0); // no auxiliary data
+                } else {
+                    codec.writeInt(tabixConfiguration.length);
+                    codec.writeBytes(tabixConfiguration);
+                }
+                codec.writeInt(referenceNum);
+            }
+            for (int i = 0; i < referenceNum; i++) {
+                writeReference(codec, i < references.length ? references[i] : null, toVirtualFilePointer, !pairix);
+            }
+            if (!pairix) {
+                codec.writeLong(noCoordinateCount);
+            }
+        }
+    }
+
+    /**
+     * @param metadata if true, the metadata pseudo-bin with the range of the records and their numbers is written
+     */
+    private void writeReference(BinaryCodec codec, ReferenceIndex reference, LongUnaryOperator toPointer,
+                                boolean metadata) {
+        if (reference == null) {
+            codec.writeInt(0); // bins
+            if (format == Format.BAI) {
+                codec.writeInt(0); // linear index
+            }
+            return;
+        }
+        // linear index with virtual file pointers, where empty windows get the pointer of the previous window
+        long[] linear = new long[reference.linearLength];
+        for (int w = 0; w < linear.length; w++) {
+            linear[w] = reference.linear[w] != 0 ? toPointer.applyAsLong(reference.linear[w]) : w > 0 ? linear[w - 1] : 0;
+        }
+        int[] bins = reference.chunks.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        codec.writeInt(metadata ? bins.length + 1 : bins.length);
+        if (metadata) {
+            // the order of the bins does not matter, but htsjdk takes the start of the unmapped records from the offset
+            // of the last bin of a CSI index, so the metadata come first
+            codec.writeUInt(getPseudoBin());
+            if (format == Format.CSI) {
+                codec.writeLong(0);
+            }
+            codec.writeInt(2);
+            codec.writeLong(toPointer.applyAsLong(reference.firstPointer));
+            codec.writeLong(toPointer.applyAsLong(reference.lastPointer));
+            codec.writeLong(reference.mappedNum);
+            codec.writeLong(reference.unmappedNum);
+        }
+        for (int bin : bins) {
+            codec.writeUInt(bin);
+            if (format == Format.CSI) {
+                // the first record that overlaps the start of the bin
+                long window = getBinStart(bin) >> MIN_SHIFT;
+                codec.writeLong(window < linear.length ? linear[(int) window] : 0);
+            }
+            long[] binChunks = reference.chunks.get(bin);
+            int n = reference.chunkNums.get(bin);
+            codec.writeInt(n);
+            for (int i = 0; i < 2 * n; i++) {
+                codec.writeLong(toPointer.applyAsLong(binChunks[i]));
+            }
+        }
+        if (format == Format.BAI) {
+            codec.writeInt(linear.length);
+            for (long pointer : linear) {
+                codec.writeLong(pointer);
+            }
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package org.jax.diachromatic.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts records of bytes by two {@code long} keys (first key first) with a bounded amount of memory. The bytes of
+ * the records are written one after the other into a chunk of at most {@code memoryBudget / (threadNum + 1)} bytes;
+ * whenever the chunk is full, it is sorted and written to a temporary file (a "run") by a thread of the executor
+ * while the next chunk is filled, with at most {@code threadNum} runs in progress. {@link #sort()} then
+ * merges the runs (a k-way merge that keeps one record per run in memory). If there are more than
+ * {@link #MAX_FAN_IN} runs, groups of consecutive runs are first merged into longer runs until at most
+ * {@link #MAX_FAN_IN} are left, so that the number of open files stays bounded. If all records fit into one chunk,
+ * no temporary files are written.
+ * <p>
+ * Records with the same keys keep the order in which they were added, so the result does not depend on the memory
+ * budget or the number of threads. The memory budget covers the bytes of the records and the arrays used to sort
+ * them; in addition, the merge uses an I/O buffer of {@link #IO_BUFFER_SIZE} bytes per merged run.
+ */
+public final class ExternalRecordSorter implements Closeable {
+    /** Size of the buffers used to write and read the runs. */
+    static final int IO_BUFFER_SIZE = 1 << 16;
+    /** Bytes per record in addition to its bytes: two keys, offset and two entries of the sort order. */
+    private static final int RECORD_OVERHEAD = 28;
+    /** Minimum size of a chunk, so that tiny budgets do not produce a run per record. */
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+    /** Maximum number of runs that are merged at the same time. */
+    static final int MAX_FAN_IN = 64;
+
+    private final ExecutorService executor;
+    private final int threadNum;
+    private final File tmpDir;
+    private final long chunkSize;
+    private final int fanIn;
+    private Chunk chunk = new Chunk();
+    /** Runs in the order in which the records were added. */
+    private final List<File> runs = new ArrayList<>();
+    /** Runs written by intermediate merges. */
+    private final List<File> mergedRuns = new ArrayList<>();
+    /** Runs that are being sorted and written. */
+    private final Deque<Future<?>> spills = new ArrayDeque<>();
+    /** Memory of the chunks of {@link #spills}, in the same order. */
+    private final Deque<Long> spillMemory = new ArrayDeque<>();
+    /** Sum of {@link #spillMemory}. */
+    private long totalSpillMemory = 0;
+    /** Maximum number of bytes used so far, see {@link #getMemoryFootprint()}. */
+    private long peakMemory = 0;
+    private final List<RunReader> openRuns = new ArrayList<>();
+    private long size = 0;
+
+    /** Writes to the chunk that is currently filled. */
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            chunk.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            chunk.write(b, off, len);
+        }
+    };
+
+    /** Receives the sorted records. */
+    public interface RecordConsumer {
+        /**
+         * @param key1 first key of the record
+         * @param key2 second key of the record
+         * @param data array with the bytes of the record. It is reused for the following records.
+         * @param offset start of the record in {@code data}
+         * @param length number of bytes of the record
+         */
+        void accept(long key1, long key2, byte[] data, int offset, int length) throws IOException;
+    }
+
+    /** Iterates over the sorted records. */
+    public abstract static class Reader {
+        long key1, key2;
+        byte[] data;
+        int offset, length;
+
+        /** Move to the next record; return false if there are no more records. */
+        public abstract boolean next() throws IOException;
+
+        /** @return first key of the current record */
+        public long getKey1() {
+            return key1;
+        }
+
+        /** @return second key of the current record */
+        public long getKey2() {
+            return key2;
+        }
+
+        /** @return array with the bytes of the current record. It is reused for the following records. */
+        public byte[] getData() {
+            return data;
+        }
+
+        /** @return start of the current record in {@link #getData()} */
+        public int getOffset() {
+            return offset;
+        }
+
+        /** @return number of bytes of the current record */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * @param executor thread pool that sorts and writes the runs. It is not shut down by this class. If null, the
+     *                 runs are written by the thread that adds the records.
+     * @param threadNum number of threads of the executor (0 if the executor is null)
+     * @param memoryBudget approximate maximum number of bytes used for records that are not yet written to runs
+     * @param tmpDir directory for the temporary files (null for the default temporary directory)
+     */
+    public ExternalRecordSorter(ExecutorService executor, int threadNum, long memoryBudget, File tmpDir) {
+        this(executor, threadNum, tmpDir,
+                Math.max(MIN_CHUNK_SIZE, Math.min(Integer.MAX_VALUE - 8, memoryBudget / (threadNum + 1))), MAX_FAN_IN);
+    }
+
+    /**
+     * @param chunkSize number of bytes of a chunk (see {@link Chunk#getMemory()})
+     * @param fanIn maximum number of runs that are merged at the same time (at least 2)
+     */
+    ExternalRecordSorter(ExecutorService executor, int threadNum, File tmpDir, long chunkSize, int fanIn) {
+        this.executor = executor;
+        this.threadNum = threadNum;
+        this.tmpDir = tmpDir;
+        this.chunkSize = chunkSize;
+        this.fanIn = fanIn;
+    }
+
+    /** Records of a chunk, one after the other. */
+    private static final class Chunk {
+        private byte[] data = new byte[1 << 16];
+        private int length = 0;
+        private long[] keys1 = new long[1024];
+        private long[] keys2 = new long[1024];
+        private int[] offsets = new int[1024];
+        private int count = 0;
+
+        /** @return number of bytes used by the records of the chunk */
+        long getMemory() {
+            return length + (long) count * RECORD_OVERHEAD;
+        }
+
+        /** @return number of bytes allocated for the chunk, including the arrays used by {@link #sort()} */
+        long getAllocatedMemory() {
+            return data.length + 20L * keys1.length + 8L * count;
+        }
+
+        void startRecord(long key1, long key2) {
+            if (count == keys1.length) {
+                keys1 = Arrays.copyOf(keys1, 2 * count);
+                keys2 = Arrays.copyOf(keys2, 2 * count);
+                offsets = Arrays.copyOf(offsets, 2 * count);
+            }
+            keys1[count] = key1;
+            keys2[count] = key2;
+            offsets[count] = length;
+            count++;
+        }
+
+        private void ensureCapacity(int n) {
+            if (length + n > data.length) {
+                long newLength = Math.max(2L * data.length, (long) length + n);
+                if (newLength > Integer.MAX_VALUE - 8) {
+                    newLength = Integer.MAX_VALUE - 8;
+                }
+                data = Arrays.copyOf(data, (int) newLength);
+            }
+        }
+
+        void write(int b) {
+            ensureCapacity(1);
+            data[length++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, data, length, len);
+            length += len;
+        }
+
+        /** @return number of bytes of record i */
+        int getRecordLength(int i) {
+            return (i + 1 < count ? offsets[i + 1] : length) - offsets[i];
+        }
+
+        private boolean lessOrEqual(int i, int j) {
+            return keys1[i] < keys1[j] || keys1[i] == keys1[j] && keys2[i] <= keys2[j];
+        }
+
+        /** @return the indices of the records in sorted order (a stable bottom-up merge sort) */
+        int[] sort() {
+            int[] order = new int[count];
+            int[] tmp = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            for (int width = 1; width < count; width <<= 1) {
+                for (int lo = 0; lo < count; lo += 2 * width) {
+                    int mid = Math.min(lo + width, count);
+                    int hi = Math.min(lo + 2 * width, count);
+                    int i = lo, j = mid, k = lo;
+                    while (i < mid && j < hi) {
+                        tmp[k++] = lessOrEqual(order[i], order[j]) ? order[i++] : order[j++];
+                    }
+                    while (i < mid) tmp[k++] = order[i++];
+                    while (j < hi) tmp[k++] = order[j++];
+                }
+                int[] swap = order;
+                order = tmp;
+                tmp = swap;
+            }
+            return order;
+        }
+    }
+
+    /**
+     * Start a new record, whose bytes are then written to {@link #getOutputStream()}.
+     *
+     * @throws IOException if the chunk is full and a run cannot be written
+     */
+    public void startRecord(long key1, long key2) throws IOException {
+        if (chunk.getMemory() >= chunkSize) {
+            spill();
+        }
+        chunk.startRecord(key1, key2);
+        size++;
+    }
+
+    /** @return stream for the bytes of the current record */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /** @return total number of records that were added */
+    public long size() {
+        return size;
+    }
+
+    /** @return number of runs that were written to temporary files */
+    public int getRunNum() {
+        return runs.size();
+    }
+
+    /**
+     * @return the maximum number of bytes used so far for the chunks that were filled or written at the same time, or
+     * for the I/O buffers of the merge
+     */
+    public long getMemoryFootprint() {
+        return Math.max(peakMemory,
+                totalSpillMemory + (chunk == null ? 0 : chunk.getAllocatedMemory()) + getMergeMemory());
+    }
+
+    /** @return number of bytes used by the buffers of the runs that are being merged */
+    private long getMergeMemory() {
+        long memory = 0;
+        for (RunReader run : openRuns) {
+            memory += IO_BUFFER_SIZE + run.record.length;
+        }
+        return memory;
+    }
+
+    /** Sort the current chunk and write it to a new run in a thread of the executor. */
+    private void spill() throws IOException {
+        while (!spills.isEmpty() && (spills.size() >= threadNum || spills.peek().isDone())) {
+            waitForSpill();
+        }
+        File run = createRun();
+        runs.add(run);
+        final Chunk full = chunk;
+        long memory = full.getAllocatedMemory();
+        peakMemory = Math.max(peakMemory, totalSpillMemory + memory);
+        chunk = new Chunk();
+        if (executor == null) {
+            writeRun(full, run);
+            return;
+        }
+        spills.add(executor.submit(() -> {
+            writeRun(full, run);
+            return null;
+        }));
+        spillMemory.add(memory);
+        totalSpillMemory += memory;
+    }
+
+    private void waitForSpill() throws IOException {
+        try {
+            totalSpillMemory -= spillMemory.poll();
+            spills.poll().get();
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write temporary file: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing temporary file");
+        }
+    }
+
+    private File createRun() throws IOException {
+        File run = File.createTempFile("diachromatic-sort-", ".bin", tmpDir);
+        run.deleteOnExit();
+        return run;
+    }
+
+    private static DataOutputStream openRun(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE));
+    }
+
+    /** Write a record to a run as its keys, its length and its bytes. */
+    private static void writeRecord(DataOutputStream out, long key1, long key2, byte[] data, int offset, int length)
+            throws IOException {
+        out.writeLong(key1);
+        out.writeLong(key2);
+        out.writeInt(length);
+        out.write(data, offset, length);
+    }
+
+    /** Write the records of a chunk in sorted order. */
+    private static void writeRun(Chunk chunk, File run) throws IOException {
+        try (DataOutputStream out = openRun(run)) {
+            for (int i : chunk.sort()) {
+                writeRecord(out, chunk.keys1[i], chunk.keys2[i], chunk.data, chunk.offsets[i], chunk.getRecordLength(i));
+            }
+        }
+    }
+
+    /**
+     * Finish adding records and pass all records in sorted order to the consumer. No more records must be added
+     * afterwards.
+     */
+    public void sort(RecordConsumer consumer) throws IOException {
+        Reader reader = sort();
+        while (reader.next()) {
+            consumer.accept(reader.key1, reader.key2, reader.data, reader.offset, reader.length);
+        }
+    }
+
+    /**
+     * Finish adding records and return a reader for the records in sorted order. No more records must be added
+     * afterwards. The runs stay open until {@link #close()} is called.
+     */
+    public Reader sort() throws IOException {
+        if (runs.isEmpty()) {
+            // everything fits into memory
+            peakMemory = Math.max(peakMemory, chunk.getAllocatedMemory());
+            return new ChunkReader(chunk);
+        }
+        if (chunk.count > 0) {
+            spill();
+        }
+        while (!spills.isEmpty()) {
+            waitForSpill();
+        }
+        chunk = null; // the chunk is not needed for merging
+        List<File> current = new ArrayList<>(runs);
+        while (current.size() > fanIn) {
+            // merge consecutive runs, so that the runs stay in the order in which the records were added
+            List<File> next = new ArrayList<>();
+            for (int from = 0; from < current.size(); from += fanIn) {
+                List<File> group = current.subList(from, Math.min(from + fanIn, current.size()));
+                next.add(group.size() == 1 ? group.get(0) : mergeIntoRun(group));
+            }
+            current = next;
+        }
+        return new MergeReader(current);
+    }
+
+    /** Merge runs into a new run and delete them. */
+    private File mergeIntoRun(List<File> group) throws IOException {
+        File merged = createRun();
+        mergedRuns.add(merged);
+        try (DataOutputStream out = openRun(merged)) {
+            MergeReader reader = new MergeReader(group);
+            while (reader.next()) {
+                writeRecord(out, reader.key1, reader.key2, reader.data, reader.offset, reader.length);
+            }
+            peakMemory = Math.max(peakMemory, getMergeMemory() + IO_BUFFER_SIZE);
+        }
+        for (RunReader run : openRuns) {
+            run.close();
+        }
+        openRuns.clear();
+        for (File run : group) {
+            run.delete();
+        }
+        return merged;
+    }
+
+    /** Reads the records of a chunk in sorted order. */
+    private static final class ChunkReader extends Reader {
+        private final Chunk chunk;
+        private final int[] order;
+        private int next = 0;
+
+        ChunkReader(Chunk chunk) {
+            this.chunk = chunk;
+            this.order = chunk.sort();
+            this.data = chunk.data;
+        }
+
+        @Override
+        public boolean next() {
+            if (next == order.length) {
+                return false;
+            }
+            int i = order[next++];
+            key1 = chunk.keys1[i];
+            key2 = chunk.keys2[i];
+            offset = chunk.offsets[i];
+            length = chunk.getRecordLength(i);
+            return true;
+        }
+    }
+
+    /** Merges runs; records with equal keys are read in the order of the runs. */
+    private final class MergeReader extends Reader {
+        private final PriorityQueue<RunReader> queue;
+        /** Run of the current record. */
+        private RunReader current = null;
+
+        MergeReader(List<File> group) throws IOException {
+            queue = new PriorityQueue<>(group.size());
+            for (int r = 0; r < group.size(); r++) {
+                RunReader reader = new RunReader(group.get(r), r);
+                openRuns.add(reader);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (current != null && current.advance()) {
+                queue.add(current);
+            }
+            current = queue.poll();
+            if (current == null) {
+                return false;
+            }
+            key1 = current.key1;
+            key2 = current.key2;
+            data = current.record;
+            offset = 0;
+            length = current.length;
+            return true;
+        }
+    }
+
+    /** Delete the temporary files. */
+    @Override
+    public void close() throws IOException {
+        peakMemory = getMemoryFootprint();
+        for (Future<?> spill : spills) {
+            spill.cancel(true);
+        }
+        spills.clear();
+        spillMemory.clear();
+        totalSpillMemory = 0;
+        for (RunReader run : openRuns) {
+            run.close();
+        }
+        openRuns.clear();
+        for (File run : runs) {
+            run.delete();
+        }
+        for (File run : mergedRuns) {
+            run.delete();
+        }
+        chunk = null;
+    }
+
+    /** Reads the records of a run, one at a time. */
+    private static final class RunReader implements Closeable, Comparable<RunReader> {
+        private final DataInputStream in;
+        /** Position of the run, which breaks ties so that records with the same keys keep their order. */
+        private final int runIndex;
+        private long key1, key2;
+        private byte[] record = new byte[1024];
+        private int length;
+
+        RunReader(File run, int runIndex) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+            this.runIndex = runIndex;
+        }
+
+        /** Read the next record; return false at the end of the run. */
+        boolean advance() throws IOException {
+            try {
+                key1 = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            key2 = in.readLong();
+            length = in.readInt();
+            if (length > record.length) {
+                record = new byte[Math.max(length, 2 * record.length)];
+            }
+            in.readFully(record, 0, length);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            int c = Long.compare(key1, other.key1);
+            if (c == 0) {
+                c = Long.compare(key2, other.key2);
+            }
+            return c != 0 ? c : Integer.compare(runIndex, other.runIndex);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads the records of a BAM file one after the other and decodes only the fields that are needed to locate the reads:
+ * reference index, start position, flag and the reference length of the CIGAR. Unlike {@link htsjdk.samtools.SAMRecord},
+ * no objects are created for the records; the read name, sequence, base qualities and attributes are skipped without
+ * decoding. After {@link #next()}, the getters return the fields of the current record.
+ * <p>
+ * The header is read with htsjdk (see {@link #getHeader()}), so that the reference indices can be resolved with its
+ * sequence dictionary. The BGZF blocks can be decompressed in parallel by the threads of an executor. CIGARs with more
+ * than 65535 operations, which are stored in the {@code CG} attribute, are not
+ * supported; they do not occur for short reads.
+ */
+public final class LightweightBAMReader implements Closeable {
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    /** Number of bytes of the fixed fields of a record after the block size. */
+    private static final int FIXED_LENGTH = 32;
+    /** Bit of the flag for reads on the reverse strand. */
+    private static final int REVERSE_STRAND_FLAG = 0x10;
+    /** Bit of the flag for unmapped reads. */
+    private static final int UNMAPPED_FLAG = 0x4;
+    /** Bit mask of the CIGAR operations that consume the reference: M, D, N, = and X. */
+    private static final int REFERENCE_OPERATIONS = 1 | 1 << 2 | 1 << 3 | 1 << 7 | 1 << 8;
+
+    private final SAMFileHeader header;
+    private final InputStream in;
+    private byte[] record = new byte[1024];
+    /** Buffer for the block size that precedes each record. */
+    private final byte[] blockSize = new byte[4];
+    private long recordNum = 0;
+    private int referenceIndex;
+    private int alignmentStart;
+    private int alignmentEnd;
+    private int flag;
+
+    /**
+     * @param bam BAM file that is read
+     * @throws IOException if the file cannot be read or is not a BAM file
+     */
+    public LightweightBAMReader(File bam) throws IOException {
+        this(bam, null, 0);
+    }
+
+    /**
+     * @param bam BAM file that is read
+     * @param executor thread pool that decompresses the BGZF blocks of the file in parallel (see
+     *                 {@link ParallelBlockCompressedInputStream}), or null to decompress them in the reading thread.
+     *                 It is not shut down by this class.
+     * @param threadNum number of threads of the executor
+     * @throws IOException if the file cannot be read or is not a BAM file
+     */
+    public LightweightBAMReader(File bam, ExecutorService executor, int threadNum) throws IOException {
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            if (reader.type() != SamReader.Type.BAM_TYPE) {
+                throw new IOException(bam + " is not a BAM file");
+            }
+            this.header = reader.getFileHeader();
+        }
+        this.in = executor == null ? new BlockCompressedInputStream(bam) :
+                new ParallelBlockCompressedInputStream(bam, executor, threadNum);
+        byte[] magic = new byte[4];
+        if (!readFully(magic, 4) || !Arrays.equals(magic, BAM_MAGIC)) {
+            in.close();
+            throw new IOException(bam + " is not a BAM file");
+        }
+        skipHeader();
+    }
+
+    /** Skip the text and the reference sequences of the binary header. */
+    private void skipHeader() throws IOException {
+        skip(readInt());
+        int referenceNum = readInt();
+        for (int i = 0; i < referenceNum; i++) {
+            skip(readInt() + 4); // name and length
+        }
+    }
+
+    private int readInt() throws IOException {
+        if (!readFully(record, 4)) {
+            throw new EOFException("Unexpected end of BAM header");
+        }
+        return readIntLE(record, 0);
+    }
+
+    private void skip(int length) throws IOException {
+        ensureCapacity(length);
+        if (!readFully(record, length)) {
+            throw new EOFException("Unexpected end of BAM header");
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (length > record.length) {
+            record = new byte[Math.max(length, 2 * record.length)];
+        }
+    }
+
+    /** @return false if the stream ends before the first byte, true if all bytes were read */
+    private boolean readFully(byte[] buffer, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int r = in.read(buffer, n, length - n);
+            if (r < 0) {
+                if (n == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated BAM record");
+            }
+            n += r;
+        }
+        return true;
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return false at the end of the file
+     * @throws IOException if the record cannot be read
+     */
+    public boolean next() throws IOException {
+        if (!readFully(blockSize, 4)) {
+            return false;
+        }
+        int length = readIntLE(blockSize, 0);
+        if (length < FIXED_LENGTH) {
+            throw new IOException("Invalid BAM record of " + length + " bytes");
+        }
+        ensureCapacity(length);
+        if (!readFully(record, length)) {
+            throw new EOFException("Truncated BAM record");
+        }
+        referenceIndex = readIntLE(record, 0);
+        alignmentStart = readIntLE(record, 4) + 1;
+        int readNameLength = record[8] & 0xff;
+        int cigarLength = (record[12] & 0xff) | (record[13] & 0xff) << 8;
+        flag = (record[14] & 0xff) | (record[15] & 0xff) << 8;
+        int referenceLength = 0;
+        for (int i = 0, offset = FIXED_LENGTH + readNameLength; i < cigarLength; i++, offset += 4) {
+            int operation = readIntLE(record, offset);
+            if ((REFERENCE_OPERATIONS & 1 << (operation & 0xf)) != 0) {
+                referenceLength += operation >>> 4;
+            }
+        }
+        // as SAMRecord.getAlignmentEnd()
+        alignmentEnd = (flag & UNMAPPED_FLAG) != 0 ? 0 : alignmentStart + referenceLength - 1;
+        recordNum++;
+        return true;
+    }
+
+    /** @return header of the BAM file */
+    public SAMFileHeader getHeader() {
+        return header;
+    }
+
+    /** @return reference index of the current record, or -1 if it has no reference sequence */
+    public int getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    /** @return 1-based start position of the current record */
+    public int getAlignmentStart() {
+        return alignmentStart;
+    }
+
+    /** @return 1-based inclusive end position of the current record, or 0 if it is unmapped */
+    public int getAlignmentEnd() {
+        return alignmentEnd;
+    }
+
+    /** @return SAM flag of the current record */
+    public int getFlag() {
+        return flag;
+    }
+
+    /** @return true if the current record is on the reverse strand */
+    public boolean isReverseStrand() {
+        return (flag & REVERSE_STRAND_FLAG) != 0;
+    }
+
+    /** @return the position of the 5' end of the current record (the end position for the reverse strand) */
+    public int getFivePrimeEndPosition() {
+        return isReverseStrand() ? alignmentEnd : alignmentStart;
+    }
+
+    /** @return number of records read */
+    public long getRecordNum() {
+        return recordNum;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
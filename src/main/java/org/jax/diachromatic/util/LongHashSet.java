@@ -0,0 +1,123 @@
+package org.jax.diachromatic.util;
+
+/**
+ * A set of {@code long} values that is stored in a single {@code long[]} array using open addressing with linear
+ * probing. In contrast to a {@code HashSet<Long>}, no objects are allocated per element, so that a set with n elements
+ * needs between about 10n and 21n bytes (depending on the current load), and the garbage collector does not need to
+ * trace the elements.
+ */
+public final class LongHashSet {
+    /** Value that marks empty slots of {@link #table}. The value itself is tracked by {@link #containsEmptyValue}. */
+    private static final long EMPTY = 0L;
+    /** The table is doubled when the number of elements exceeds this fraction of the number of slots. */
+    private static final double MAX_LOAD_FACTOR = 0.75;
+    /** Largest number of slots (the largest power of two that can be used as array size). */
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] table;
+    /** {@code table.length - 1}, used to map hash values to slots. */
+    private int mask;
+    /** Number of elements stored in {@link #table}. */
+    private int size;
+    /** Number of elements at which the table is resized. */
+    private int resizeThreshold;
+    private boolean containsEmptyValue = false;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of elements that can be added without resizing the table
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) Math.min(MAX_CAPACITY, expectedSize / MAX_LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity]; // filled with EMPTY
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+    }
+
+    /** Finalization step of MurmurHash3, which spreads the bits of similar values (e.g., nearby positions). */
+    private static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    /**
+     * Add a value to the set.
+     *
+     * @return true if the value was added, false if it was already contained in the set
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmptyValue) {
+                return false;
+            }
+            containsEmptyValue = true;
+            return true;
+        }
+        int i = hash(value) & mask;
+        long current;
+        while ((current = table[i]) != EMPTY) {
+            if (current == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        if (++size > resizeThreshold) {
+            resize();
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsEmptyValue;
+        }
+        int i = hash(value) & mask;
+        long current;
+        while ((current = table[i]) != EMPTY) {
+            if (current == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private void resize() {
+        if (table.length == MAX_CAPACITY) {
+            throw new IllegalStateException("LongHashSet cannot hold more than " + resizeThreshold + " elements");
+        }
+        long[] old = table;
+        allocate(old.length << 1);
+        for (long value : old) {
+            if (value != EMPTY) {
+                int i = hash(value) & mask;
+                while (table[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+
+    /** @return number of values in the set */
+    public int size() {
+        return containsEmptyValue ? size + 1 : size;
+    }
+
+    /** @return approximate number of bytes used by this set (the table and the object headers) */
+    public long getMemoryFootprint() {
+        return 8L * table.length + 16 + 40;
+    }
+}
@@ -0,0 +1,315 @@
+package org.jax.diachromatic.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Finds occurrences of several DNA sequences in a single pass over a sequence using an Aho-Corasick automaton.
+ * The automaton is compiled into a table of transitions (a DFA), so that each base of the scanned sequence costs one
+ * array lookup, independent of the number and length of the patterns. Lower case bases of the scanned sequence
+ * (e.g., soft-masked repeats of a genome) match the patterns only if the scanner ignores case. Patterns may contain
+ * IUPAC ambiguity codes (e.g., {@code GANTC} for HinfI); these are expanded into all matching sequences. Bases other
+ * than A, C, G and T in the scanned sequence (e.g. N) do not match any pattern.
+ * <p>
+ * Matches are reported as a {@code long} that packs the start position and the index of the matched pattern, so that
+ * scanning does not allocate objects; use {@link #matchStart(long)} and {@link #matchPattern(long)} to unpack it.
+ * {@link #findFirst(byte[], int, int)} reports the leftmost-longest match, {@link #findAll(byte[], int, int)} every
+ * occurrence of every pattern, including overlapping ones.
+ */
+public final class MultiPatternScanner {
+    /** A, C, G, T and a symbol for all other characters. */
+    private static final int ALPHABET_SIZE = 5;
+    private static final int OTHER = 4;
+    /** Each state has a row of 8 entries in {@link #table}, so that rows can be addressed by shifting. */
+    private static final int ROW_SHIFT = 3;
+    /** Symbols of the upper case bases; all other characters are {@link #OTHER}. */
+    private static final byte[] CODE = new byte[256];
+    /** Symbols of the upper and lower case bases. */
+    private static final byte[] CODE_IGNORE_CASE = new byte[256];
+
+    static {
+        Arrays.fill(CODE, (byte) OTHER);
+        CODE['A'] = 0;
+        CODE['C'] = 1;
+        CODE['G'] = 2;
+        CODE['T'] = 3;
+        System.arraycopy(CODE, 0, CODE_IGNORE_CASE, 0, CODE.length);
+        CODE_IGNORE_CASE['a'] = 0;
+        CODE_IGNORE_CASE['c'] = 1;
+        CODE_IGNORE_CASE['g'] = 2;
+        CODE_IGNORE_CASE['t'] = 3;
+    }
+
+    /** The patterns as passed to the constructor. */
+    private final List<String> patterns;
+    /**
+     * Transition table used for scanning. The entry at {@code row + c} holds the row of the state that follows the
+     * state at {@code row} after reading symbol c, where the row of state s is {@code s << ROW_SHIFT}. If a pattern
+     * ends in the following state, the entry is the bitwise complement of the row (i.e., negative), so that the
+     * scanning loop only needs a sign check to detect matches.
+     */
+    private final int[] table;
+    /**
+     * Index of the longest pattern that ends in each state (-1 if none). If several patterns end at the same
+     * position, the longest one is the one that starts leftmost.
+     */
+    private final int[] longestPattern;
+    /** Length of {@link #longestPattern} for each state. */
+    private final int[] longestPatternLength;
+    /**
+     * Indices of all patterns that end in each state, i.e., the patterns of the state itself followed by those of the
+     * states along its chain of failure links (longest first).
+     */
+    private final int[][] outputs;
+    private final int maxPatternLength;
+    /** Symbols of the characters of the scanned sequences, {@link #CODE} or {@link #CODE_IGNORE_CASE}. */
+    private final byte[] code;
+
+    /**
+     * Create a scanner that ignores the case of the scanned sequences.
+     *
+     * @param patterns DNA sequences to search for, possibly containing IUPAC ambiguity codes
+     */
+    public MultiPatternScanner(List<String> patterns) {
+        this(patterns, true);
+    }
+
+    /**
+     * @param patterns DNA sequences to search for, possibly containing IUPAC ambiguity codes
+     * @param ignoreCase if false, only upper case bases of the scanned sequences match the patterns (as with
+     *                   {@link String#indexOf(String)} and upper case patterns)
+     */
+    public MultiPatternScanner(List<String> patterns, boolean ignoreCase) {
+        this.code = ignoreCase ? CODE_IGNORE_CASE : CODE;
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("At least one pattern is required");
+        }
+        this.patterns = List.copyOf(patterns);
+        // build the trie
+        List<int[]> trie = new ArrayList<>();
+        List<Integer> output = new ArrayList<>();
+        List<Integer> outputLength = new ArrayList<>();
+        List<List<Integer>> statePatterns = new ArrayList<>();
+        trie.add(newNode());
+        output.add(-1);
+        outputLength.add(0);
+        statePatterns.add(new ArrayList<>());
+        int maxLength = 0;
+        for (int p = 0; p < this.patterns.size(); p++) {
+            String pattern = this.patterns.get(p);
+            if (pattern.isEmpty()) {
+                throw new IllegalArgumentException("Patterns must not be empty");
+            }
+            maxLength = Math.max(maxLength, pattern.length());
+            for (String seq : expandAmbiguityCodes(pattern)) {
+                int state = 0;
+                for (int k = 0; k < seq.length(); k++) {
+                    int c = CODE[seq.charAt(k)];
+                    if (trie.get(state)[c] < 0) {
+                        trie.get(state)[c] = trie.size();
+                        trie.add(newNode());
+                        output.add(-1);
+                        outputLength.add(0);
+                        statePatterns.add(new ArrayList<>());
+                    }
+                    state = trie.get(state)[c];
+                }
+                if (output.get(state) < 0) {
+                    output.set(state, p);
+                    outputLength.set(state, seq.length());
+                }
+                if (!statePatterns.get(state).contains(p)) {
+                    statePatterns.get(state).add(p);
+                }
+            }
+        }
+        this.maxPatternLength = maxLength;
+        int n = trie.size();
+        int[] transitions = new int[n * ALPHABET_SIZE];
+        longestPattern = new int[n];
+        longestPatternLength = new int[n];
+        outputs = new int[n][];
+        outputs[0] = new int[0];
+        for (int s = 0; s < n; s++) {
+            longestPattern[s] = output.get(s);
+            longestPatternLength[s] = outputLength.get(s);
+        }
+        // breadth-first traversal to compute the failure links and complete the transition table
+        int[] failure = new int[n];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET_SIZE; c++) {
+            int child = trie.get(0)[c];
+            if (child > 0) {
+                transitions[c] = child;
+                queue.add(child);
+            } else {
+                transitions[c] = 0;
+            }
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            // a pattern ending in the state of the failure link is a suffix, and therefore shorter, of the patterns
+            // ending in s, so it is only used if no pattern ends in s itself
+            if (longestPattern[s] < 0) {
+                longestPattern[s] = longestPattern[failure[s]];
+                longestPatternLength[s] = longestPatternLength[failure[s]];
+            }
+            // the failure link points to a state closer to the root, whose outputs are therefore already complete
+            int[] own = statePatterns.get(s).stream().mapToInt(Integer::intValue).toArray();
+            int[] inherited = outputs[failure[s]];
+            outputs[s] = Arrays.copyOf(own, own.length + inherited.length);
+            System.arraycopy(inherited, 0, outputs[s], own.length, inherited.length);
+            for (int c = 0; c < ALPHABET_SIZE; c++) {
+                int child = trie.get(s)[c];
+                if (child > 0) {
+                    failure[child] = transitions[failure[s] * ALPHABET_SIZE + c];
+                    transitions[s * ALPHABET_SIZE + c] = child;
+                    queue.add(child);
+                } else {
+                    transitions[s * ALPHABET_SIZE + c] = transitions[failure[s] * ALPHABET_SIZE + c];
+                }
+            }
+        }
+        table = new int[n << ROW_SHIFT];
+        for (int s = 0; s < n; s++) {
+            for (int c = 0; c < ALPHABET_SIZE; c++) {
+                int t = transitions[s * ALPHABET_SIZE + c];
+                table[(s << ROW_SHIFT) + c] = longestPattern[t] < 0 ? t << ROW_SHIFT : ~(t << ROW_SHIFT);
+            }
+        }
+    }
+
+    private static int[] newNode() {
+        int[] node = new int[ALPHABET_SIZE];
+        Arrays.fill(node, -1);
+        return node;
+    }
+
+    /**
+     * Find the match that starts leftmost in {@code seq[from, to)}. If several patterns start at this position, the
+     * longest one is reported.
+     *
+     * @return the packed match (see {@link #matchStart(long)} and {@link #matchPattern(long)}), or -1 if no pattern
+     * occurs in the given range
+     */
+    public long findFirst(byte[] seq, int from, int to) {
+        final int[] table = this.table;
+        final byte[] code = this.code;
+        int row = 0;
+        int bestStart = Integer.MAX_VALUE;
+        int bestPattern = -1;
+        for (int i = from; i < to; i++) {
+            row = table[row + code[seq[i] & 0xff]];
+            if (row < 0) {
+                row = ~row;
+                int state = row >>> ROW_SHIFT;
+                int start = i + 1 - longestPatternLength[state];
+                if (start <= bestStart) {
+                    if (bestPattern < 0) {
+                        // matches that end after this position can only start before it if they are longer
+                        to = Math.min(to, start + maxPatternLength);
+                    }
+                    bestStart = start;
+                    bestPattern = longestPattern[state];
+                }
+            }
+        }
+        return bestPattern < 0 ? -1 : ((long) bestStart << 32) | bestPattern;
+    }
+
+    /**
+     * Find all occurrences of all patterns in {@code seq[from, to)}, including overlapping ones and occurrences of
+     * several patterns at the same position.
+     *
+     * @return the packed matches (see {@link #matchStart(long)} and {@link #matchPattern(long)}), sorted by end
+     * position and, for the same end position, longest first
+     */
+    public long[] findAll(byte[] seq, int from, int to) {
+        final int[] table = this.table;
+        final byte[] code = this.code;
+        long[] matches = new long[1024];
+        int n = 0;
+        int row = 0;
+        for (int i = from; i < to; i++) {
+            row = table[row + code[seq[i] & 0xff]];
+            if (row < 0) {
+                row = ~row;
+                for (int pattern : outputs[row >>> ROW_SHIFT]) {
+                    if (n == matches.length) {
+                        matches = Arrays.copyOf(matches, 2 * n);
+                    }
+                    int start = i + 1 - patterns.get(pattern).length();
+                    matches[n++] = ((long) start << 32) | pattern;
+                }
+            }
+        }
+        return Arrays.copyOf(matches, n);
+    }
+
+    /** @return start position (in the scanned array) of a match returned by {@link #findFirst(byte[], int, int)} */
+    public static int matchStart(long match) {
+        return (int) (match >>> 32);
+    }
+
+    /** @return index of the pattern of a match returned by {@link #findFirst(byte[], int, int)} */
+    public static int matchPattern(long match) {
+        return (int) match;
+    }
+
+    /** @return length of the longest pattern (ambiguity codes count as one base) */
+    public int getMaxPatternLength() {
+        return maxPatternLength;
+    }
+
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    public String getPattern(int i) {
+        return patterns.get(i);
+    }
+
+    /**
+     * @return all sequences over A, C, G and T that match the given sequence with IUPAC ambiguity codes
+     */
+    static List<String> expandAmbiguityCodes(String pattern) {
+        List<String> expanded = new ArrayList<>();
+        expanded.add("");
+        for (int k = 0; k < pattern.length(); k++) {
+            String bases = iupacBases(pattern.charAt(k));
+            List<String> next = new ArrayList<>(expanded.size() * bases.length());
+            for (String prefix : expanded) {
+                for (int b = 0; b < bases.length(); b++) {
+                    next.add(prefix + bases.charAt(b));
+                }
+            }
+            expanded = next;
+        }
+        return expanded;
+    }
+
+    private static String iupacBases(char c) {
+        switch (Character.toUpperCase(c)) {
+            case 'A': return "A";
+            case 'C': return "C";
+            case 'G': return "G";
+            case 'T': return "T";
+            case 'R': return "AG";
+            case 'Y': return "CT";
+            case 'S': return "CG";
+            case 'W': return "AT";
+            case 'K': return "GT";
+            case 'M': return "AC";
+            case 'B': return "CGT";
+            case 'D': return "AGT";
+            case 'H': return "ACT";
+            case 'V': return "ACG";
+            case 'N': return "ACGT";
+            default:
+                throw new IllegalArgumentException(String.format("Invalid character '%c' in DNA sequence", c));
+        }
+    }
+}
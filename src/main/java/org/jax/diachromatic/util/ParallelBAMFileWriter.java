@@ -0,0 +1,158 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link SAMFileWriter} for BAM files whose BGZF blocks are compressed in parallel by the threads of an
+ * {@link ExecutorService} (see {@link ParallelBlockCompressedOutputStream}). The records are encoded by the calling
+ * thread and written in the order in which they are added, i.e., the writer behaves like the BAM writer of htsjdk
+ * for presorted records, and the BAM file has the same content as the one written by htsjdk. Only the division into
+ * BGZF blocks may differ.
+ * <p>
+ * Compressing a 64 kB block takes much longer than encoding the records it holds, so the calling thread only waits if
+ * all compression threads are busy and {@code maxPendingBlocks} blocks are in flight. The counters of the writer show
+ * how much data was written and how long the calling thread waited for the compression.
+ */
+public class ParallelBAMFileWriter implements SAMFileWriter {
+    /** Size of the buffer between the compressed blocks and the file. */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes(StandardCharsets.US_ASCII);
+
+    private final SAMFileHeader header;
+    private final ParallelBlockCompressedOutputStream bgzf;
+    private final BAMRecordCodec codec;
+    private final long startNanos = System.nanoTime();
+    private long elapsedNanos = 0;
+    private long recordNum = 0;
+    private ProgressLoggerInterface progressLogger = null;
+    private boolean closed = false;
+
+    /**
+     * Create the BAM file and write its header.
+     *
+     * @param header header of the BAM file
+     * @param file BAM file that is written
+     * @param compressionLevel deflate compression level (0-9)
+     * @param executor thread pool that compresses the blocks. It is not shut down by this class, so that it can be
+     *                 shared by several writers.
+     * @param threadNum number of threads of the executor
+     * @param maxPendingBlocks maximum number of blocks that are compressed or waiting to be written at any time
+     */
+    public ParallelBAMFileWriter(SAMFileHeader header, File file, int compressionLevel, ExecutorService executor,
+                                 int threadNum, int maxPendingBlocks) throws IOException {
+        this.header = header;
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+        this.bgzf = new ParallelBlockCompressedOutputStream(os, compressionLevel, executor, threadNum, maxPendingBlocks);
+        try {
+            writeHeader(new BinaryCodec(bgzf), header);
+            // the header is written in blocks of its own, as by htsjdk
+            bgzf.flush();
+        } catch (IOException | RuntimeIOException e) {
+            bgzf.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e.getCause());
+        }
+        this.codec = new BAMRecordCodec(header);
+        this.codec.setOutputStream(bgzf, file.getPath());
+    }
+
+    /**
+     * Write the binary BAM header. As with the BAM writer of htsjdk, the header text has the current version of the
+     * SAM format.
+     */
+    static void writeHeader(BinaryCodec codec, SAMFileHeader header) {
+        StringWriter text = new StringWriter();
+        new SAMTextHeaderCodec().encode(text, header);
+        codec.writeBytes(BAM_MAGIC);
+        codec.writeString(text.toString(), true, false);
+        codec.writeInt(header.getSequenceDictionary().size());
+        for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            codec.writeString(sequence.getSequenceName(), true, true);
+            codec.writeInt(sequence.getSequenceLength());
+        }
+    }
+
+    @Override
+    public void addAlignment(SAMRecord alignment) {
+        // resolve the reference indices with the header of this file, as the writers of htsjdk do
+        alignment.setHeaderStrict(header);
+        codec.encode(alignment);
+        recordNum++;
+        if (progressLogger != null) {
+            progressLogger.record(alignment);
+        }
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    @Override
+    public void setProgressLogger(ProgressLoggerInterface progressLogger) {
+        this.progressLogger = progressLogger;
+    }
+
+    /**
+     * Write the remaining blocks and the end-of-file marker and close the file.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            bgzf.close();
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        } finally {
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+    }
+
+    /** @return number of records written */
+    public long getRecordNum() {
+        return recordNum;
+    }
+
+    /** @return number of bytes of the encoded header and records */
+    public long getUncompressedBytes() {
+        return bgzf.getUncompressedBytes();
+    }
+
+    /** @return number of bytes of the compressed header and records */
+    public long getCompressedBytes() {
+        return bgzf.getCompressedBytes();
+    }
+
+    /** @return nanoseconds the calling thread waited for the compression of blocks */
+    public long getCompressionWaitNanos() {
+        return bgzf.getCompressionWaitNanos();
+    }
+
+    /** @return nanoseconds from the creation of the writer until it was closed (or until now, if it is open) */
+    public long getElapsedNanos() {
+        return closed ? elapsedNanos : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return summary of the counters, e.g. for the log
+     */
+    public String getThroughputSummary() {
+        double seconds = getElapsedNanos() / 1e9;
+        double megabytes = getUncompressedBytes() / 1e6;
+        return String.format("%d records, %.1f MB uncompressed, %.1f MB compressed (ratio %.2f), %.1f MB/s in %.1f s, " +
+                        "%.1f s (%.1f%%) waiting for compression",
+                recordNum, megabytes, getCompressedBytes() / 1e6,
+                getCompressedBytes() == 0 ? 0.0 : (double) getUncompressedBytes() / getCompressedBytes(),
+                seconds > 0 ? megabytes / seconds : 0.0, seconds, getCompressionWaitNanos() / 1e9,
+                seconds > 0 ? 100.0 * getCompressionWaitNanos() / 1e9 / seconds : 0.0);
+    }
+}
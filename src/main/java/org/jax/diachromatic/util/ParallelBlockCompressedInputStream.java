@@ -0,0 +1,278 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An input stream that reads data in the blocked gzip format (BGZF), e.g., a BAM file, and decompresses the blocks
+ * in parallel by the threads of an {@link ExecutorService}. This is the counterpart of
+ * {@link ParallelBlockCompressedOutputStream}: the reading thread only reads the compressed blocks from the
+ * underlying stream and hands batches of {@link #BLOCKS_PER_BATCH} blocks to the executor, which decompresses them
+ * while the data of earlier batches is consumed. The data is returned in the order of the blocks.
+ * <p>
+ * The stream counts the compressed and uncompressed bytes and the time that the reading thread waited for the
+ * decompression of a batch, which shows whether the decompression threads keep up with the consumer of the data.
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+    /** Number of blocks that are decompressed together by one task. */
+    static final int BLOCKS_PER_BATCH = 16;
+    /** Length of the gzip header of a BGZF block up to the extra subfields. */
+    private static final int HEADER_LENGTH = 12;
+    private static final int GZIP_ID1 = 31;
+    private static final int GZIP_ID2 = 139;
+
+    private final InputStream in;
+    private final ExecutorService executor;
+    /** Maximum number of batches that are decompressed or waiting to be read at any time. */
+    private final int maxPendingBatches;
+    /** Decompressed batches in the order of the blocks. */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    /** Decompressor for each worker thread; an Inflater must not be shared between threads. */
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private byte[] buffer = new byte[0];
+    private int bufferPosition = 0;
+    private boolean endOfInput = false;
+    private boolean closed = false;
+    private long compressedBytes = 0;
+    private long uncompressedBytes = 0;
+    private long blockNum = 0;
+    private long decompressionWaitNanos = 0;
+
+    /**
+     * @param in stream with the compressed blocks. It will be closed by {@link #close()}.
+     * @param executor thread pool that decompresses the blocks. It is not shut down by this class, so that it can be
+     *                 shared with other tasks.
+     * @param threadNum number of threads of the executor, used to limit the number of blocks held in memory
+     */
+    public ParallelBlockCompressedInputStream(InputStream in, ExecutorService executor, int threadNum) {
+        this.in = in;
+        this.executor = executor;
+        this.maxPendingBatches = 2 * Math.max(1, threadNum);
+    }
+
+    /**
+     * @param file BGZF file that is read
+     * @param executor thread pool that decompresses the blocks. It is not shut down by this class.
+     * @param threadNum number of threads of the executor
+     */
+    public ParallelBlockCompressedInputStream(File file, ExecutorService executor, int threadNum) throws FileNotFoundException {
+        this(new BufferedInputStream(new FileInputStream(file), 1 << 16), executor, threadNum);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
+        }
+        return buffer[bufferPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillBuffer()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.length - bufferPosition);
+        System.arraycopy(buffer, bufferPosition, b, off, n);
+        bufferPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length - bufferPosition;
+    }
+
+    /**
+     * Make sure that the buffer has unread data, waiting for the next batch if needed.
+     *
+     * @return false at the end of the data
+     */
+    private boolean fillBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (bufferPosition == buffer.length) {
+            submitBatches();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            long start = System.nanoTime();
+            try {
+                buffer = pending.poll().get();
+            } catch (ExecutionException e) {
+                throw new IOException("Could not decompress BGZF block: " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decompressing BGZF blocks");
+            } finally {
+                decompressionWaitNanos += System.nanoTime() - start;
+            }
+            bufferPosition = 0;
+            uncompressedBytes += buffer.length;
+            submitBatches();
+        }
+        return true;
+    }
+
+    /** Read compressed batches and hand them to the executor until the maximum number of batches is pending. */
+    private void submitBatches() throws IOException {
+        while (!endOfInput && pending.size() < maxPendingBatches) {
+            byte[][] blocks = new byte[BLOCKS_PER_BATCH][];
+            int n = 0;
+            while (n < BLOCKS_PER_BATCH && (blocks[n] = readBlock()) != null) {
+                n++;
+            }
+            if (n == 0) {
+                break;
+            }
+            final int blockCount = n;
+            pending.add(executor.submit(() -> decompress(blocks, blockCount)));
+        }
+    }
+
+    /**
+     * Read the next compressed block.
+     *
+     * @return the complete block including its header, or null at the end of the input
+     */
+    private byte[] readBlock() throws IOException {
+        int n = readFully(header, 0, HEADER_LENGTH);
+        if (n == 0) {
+            endOfInput = true;
+            return null;
+        }
+        if (n < HEADER_LENGTH || (header[0] & 0xff) != GZIP_ID1 || (header[1] & 0xff) != GZIP_ID2 || (header[3] & 4) == 0) {
+            throw new IOException("Invalid BGZF block header");
+        }
+        int extraLength = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        byte[] extra = new byte[extraLength];
+        if (readFully(extra, 0, extraLength) < extraLength) {
+            throw new EOFException("Truncated BGZF block");
+        }
+        // find the BC subfield with the size of the block
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= extraLength; ) {
+            int subfieldLength = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+            if (extra[i] == 66 && extra[i + 1] == 67 && subfieldLength == 2 && i + 6 <= extraLength) {
+                blockSize = ((extra[i + 4] & 0xff) | (extra[i + 5] & 0xff) << 8) + 1;
+            }
+            i += 4 + subfieldLength;
+        }
+        int headerLength = HEADER_LENGTH + extraLength;
+        if (blockSize < headerLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH) {
+            throw new IOException("BGZF block without valid block size");
+        }
+        byte[] block = new byte[blockSize];
+        System.arraycopy(header, 0, block, 0, HEADER_LENGTH);
+        System.arraycopy(extra, 0, block, HEADER_LENGTH, extraLength);
+        if (readFully(block, headerLength, blockSize - headerLength) < blockSize - headerLength) {
+            throw new EOFException("Truncated BGZF block");
+        }
+        compressedBytes += blockSize;
+        blockNum++;
+        return block;
+    }
+
+    /** @return number of bytes read, which is smaller than {@code length} only at the end of the input */
+    private int readFully(byte[] b, int offset, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int r = in.read(b, offset + n, length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    /** Decompress the blocks of a batch into one array. */
+    private static byte[] decompress(byte[][] blocks, int blockCount) throws IOException {
+        int length = 0;
+        for (int b = 0; b < blockCount; b++) {
+            length += getUncompressedLength(blocks[b]);
+        }
+        byte[] data = new byte[length];
+        Inflater inf = inflater.get();
+        int offset = 0;
+        for (int b = 0; b < blockCount; b++) {
+            byte[] block = blocks[b];
+            int headerLength = HEADER_LENGTH + ((block[10] & 0xff) | (block[11] & 0xff) << 8);
+            int uncompressedLength = getUncompressedLength(block);
+            inf.reset();
+            inf.setInput(block, headerLength, block.length - headerLength - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
+            try {
+                int n = 0;
+                while (n < uncompressedLength) {
+                    int r = inf.inflate(data, offset + n, uncompressedLength - n);
+                    if (r == 0 && (inf.finished() || inf.needsInput())) {
+                        break;
+                    }
+                    n += r;
+                }
+                if (n != uncompressedLength) {
+                    throw new IOException(String.format("BGZF block with %d instead of %d bytes", n, uncompressedLength));
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt BGZF block: " + e.getMessage(), e);
+            }
+            offset += uncompressedLength;
+        }
+        return data;
+    }
+
+    /** @return the uncompressed size of a block (ISIZE in the footer) */
+    private static int getUncompressedLength(byte[] block) {
+        int i = block.length - 4;
+        return (block[i] & 0xff) | (block[i + 1] & 0xff) << 8 | (block[i + 2] & 0xff) << 16 | (block[i + 3] & 0xff) << 24;
+    }
+
+    /** @return number of bytes of the compressed blocks read from the underlying stream so far */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /** @return number of decompressed bytes that were made available so far */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /** @return number of blocks read so far */
+    public long getBlockNum() {
+        return blockNum;
+    }
+
+    /**
+     * @return nanoseconds the reading thread waited for decompressed blocks. If this is a large fraction of the run
+     * time, the decompression (rather than the consumer of the data) limits the throughput.
+     */
+    public long getDecompressionWaitNanos() {
+        return decompressionWaitNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<byte[]> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        in.close();
+    }
+}
@@ -0,0 +1,283 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that writes data in the blocked gzip format (BGZF) that is used by htsjdk, samtools and tabix.
+ * Each block of at most {@link BlockCompressedStreamConstants#DEFAULT_UNCOMPRESSED_BLOCK_SIZE} bytes is an
+ * independent gzip member, so that the blocks can be compressed in parallel by the threads of an
+ * {@link ExecutorService}. The compressed blocks are written in the order in which the data was written to the
+ * stream. The output can be read by any gzip reader, e.g., by bowtie2 or {@link java.util.zip.GZIPInputStream}.
+ * <p>
+ * The stream counts the uncompressed and compressed bytes and the time that the writing thread waited for the
+ * compression of a block, which shows whether the compression threads keep up with the producer of the data.
+ * <p>
+ * Since the compressed size of a block is only known after its compression, positions in the stream are first given
+ * as block pointers ({@link #getBlockPointer()}), which are converted to BGZF virtual file pointers (as used by BAM
+ * indices) with {@link #toVirtualFilePointer(long)} once the blocks have been written.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int compressionLevel;
+    /** Maximum number of blocks that are compressed or waiting to be written at any time. */
+    private final int maxPendingBlocks;
+    /** Compressed blocks in the order in which they will be written to {@link #out}. */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    /** Uncompressed data of the current block. */
+    private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int bufferLength = 0;
+    private boolean closed = false;
+    private long uncompressedBytes = 0;
+    private long compressedBytes = 0;
+    private long blockNum = 0;
+    private long compressionWaitNanos = 0;
+    /** Offset of each written block in the underlying stream. */
+    private long[] blockStarts = new long[1024];
+    private int writtenBlockNum = 0;
+
+    /** Compressor for each worker thread; a Deflater must not be shared between threads. */
+    private final ThreadLocal<Deflater> deflater;
+    /** Fallback for the rare case that compressed data does not fit into a BGZF block. */
+    private static final ThreadLocal<Deflater> noCompressionDeflater =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.NO_COMPRESSION, true));
+
+    /**
+     * @param out stream to which the compressed blocks are written. It will be closed by {@link #close()}.
+     * @param compressionLevel deflate compression level (0-9)
+     * @param executor thread pool that compresses the blocks. It is not shut down by this class, so that it can be
+     *                 shared by several streams.
+     * @param threadNum number of threads of the executor, used to limit the number of blocks held in memory
+     */
+    public ParallelBlockCompressedOutputStream(OutputStream out, int compressionLevel, ExecutorService executor, int threadNum) {
+        this(out, compressionLevel, executor, threadNum, 2 * Math.max(1, threadNum));
+    }
+
+    /**
+     * @param out stream to which the compressed blocks are written. It will be closed by {@link #close()}.
+     * @param compressionLevel deflate compression level (0-9)
+     * @param executor thread pool that compresses the blocks. It is not shut down by this class, so that it can be
+     *                 shared by several streams.
+     * @param threadNum number of threads of the executor
+     * @param maxPendingBlocks maximum number of blocks that are compressed or waiting to be written at any time; each
+     *                         block needs up to 128 kB of memory
+     */
+    public ParallelBlockCompressedOutputStream(OutputStream out, int compressionLevel, ExecutorService executor,
+                                               int threadNum, int maxPendingBlocks) {
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Invalid compression level: %d", compressionLevel));
+        }
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.executor = executor;
+        if (maxPendingBlocks < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of pending blocks: %d", maxPendingBlocks));
+        }
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(this.compressionLevel, true));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[bufferLength++] = (byte) b;
+        if (bufferLength == buffer.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, n);
+            bufferLength += n;
+            off += n;
+            len -= n;
+            if (bufferLength == buffer.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Ends the current block and writes all blocks that have been submitted so far.
+     */
+    @Override
+    public void flush() throws IOException {
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes all remaining blocks followed by the empty BGZF block that marks the end of the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        } finally {
+            for (Future<byte[]> f : pending) {
+                f.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    /** @return number of bytes written to this stream so far */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /** @return number of bytes of the compressed blocks written to the underlying stream so far */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /** @return number of blocks submitted for compression so far */
+    public long getBlockNum() {
+        return blockNum;
+    }
+
+    /**
+     * @return nanoseconds the writing thread waited for compressed blocks. If this is a large fraction of the run
+     * time, the compression (rather than the producer of the data) limits the throughput.
+     */
+    public long getCompressionWaitNanos() {
+        return compressionWaitNanos;
+    }
+
+    /**
+     * @return the current position in the stream as the index of the current block (upper 48 bits) and the offset
+     * within its uncompressed data (lower 16 bits). Since full blocks are compressed immediately, the offset is always
+     * smaller than the block size.
+     */
+    public long getBlockPointer() {
+        return (blockNum << 16) | bufferLength;
+    }
+
+    /**
+     * Convert a block pointer to a BGZF virtual file pointer, i.e., the offset of the compressed block in the
+     * underlying stream (upper 48 bits) and the offset within its uncompressed data (lower 16 bits).
+     *
+     * @param blockPointer a value returned by {@link #getBlockPointer()}. The block must already have been written,
+     *                     e.g., because the stream was flushed or closed.
+     */
+    public long toVirtualFilePointer(long blockPointer) {
+        int block = (int) (blockPointer >>> 16);
+        if (block > writtenBlockNum) {
+            throw new IllegalStateException(String.format("Block %d has not been written yet", block));
+        }
+        // a pointer to the end of the last block refers to the end of the written data
+        long start = block < writtenBlockNum ? blockStarts[block] : compressedBytes;
+        return (start << 16) | (blockPointer & 0xffff);
+    }
+
+    /** Hand the data of the current block to the executor and start a new block. */
+    private void submitBlock() throws IOException {
+        if (bufferLength == 0) {
+            return;
+        }
+        final byte[] data = buffer;
+        final int length = bufferLength;
+        uncompressedBytes += length;
+        blockNum++;
+        pending.add(executor.submit(() -> compressBlock(data, length)));
+        buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        bufferLength = 0;
+        while (pending.size() >= maxPendingBlocks) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        try {
+            long start = System.nanoTime();
+            byte[] block = pending.removeFirst().get();
+            compressionWaitNanos += System.nanoTime() - start;
+            if (writtenBlockNum == blockStarts.length) {
+                blockStarts = Arrays.copyOf(blockStarts, 2 * blockStarts.length);
+            }
+            blockStarts[writtenBlockNum++] = compressedBytes;
+            out.write(block);
+            compressedBytes += block.length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing BGZF block");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress BGZF block", e.getCause());
+        }
+    }
+
+    /**
+     * Compress the data of one block and wrap it with the BGZF header and footer.
+     *
+     * @return the complete BGZF block
+     */
+    private byte[] compressBlock(byte[] data, int length) {
+        byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        int maxDeflatedLength = compressed.length - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+                - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int deflatedLength = deflate(deflater.get(), data, length, compressed, maxDeflatedLength);
+        if (deflatedLength < 0) {
+            // data that cannot be compressed; stored blocks only add a few bytes of overhead
+            deflatedLength = deflate(noCompressionDeflater.get(), data, length, compressed, maxDeflatedLength);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int blockLength = deflatedLength + BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+                + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        ByteBuffer block = ByteBuffer.wrap(compressed).order(ByteOrder.LITTLE_ENDIAN);
+        block.put(BlockCompressedStreamConstants.GZIP_ID1);
+        block.put((byte) BlockCompressedStreamConstants.GZIP_ID2);
+        block.put(BlockCompressedStreamConstants.GZIP_CM_DEFLATE);
+        block.put((byte) BlockCompressedStreamConstants.GZIP_FLG);
+        block.putInt(0); // modification time
+        block.put((byte) BlockCompressedStreamConstants.GZIP_XFL);
+        block.put((byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN);
+        block.putShort(BlockCompressedStreamConstants.GZIP_XLEN);
+        block.put(BlockCompressedStreamConstants.BGZF_ID1);
+        block.put(BlockCompressedStreamConstants.BGZF_ID2);
+        block.putShort(BlockCompressedStreamConstants.BGZF_LEN);
+        block.putShort((short) (blockLength - 1));
+        block.position(BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedLength);
+        block.putInt((int) crc.getValue());
+        block.putInt(length);
+        return Arrays.copyOf(compressed, blockLength);
+    }
+
+    /**
+     * Deflate the data into the target array after the space reserved for the BGZF header.
+     *
+     * @return number of compressed bytes, or -1 if the compressed data is longer than {@code maxLength}
+     */
+    private static int deflate(Deflater deflater, byte[] data, int length, byte[] target, int maxLength) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int n = deflater.deflate(target, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, maxLength);
+        return deflater.finished() ? n : -1;
+    }
+}
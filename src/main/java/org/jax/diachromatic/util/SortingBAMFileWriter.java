@@ -0,0 +1,207 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link SAMFileWriter} that writes a coordinate-sorted BAM file together with its BAI or CSI index (see
+ * {@link BAMIndexBuilder}), for records that are added in any order. The encoded records are sorted with a bounded
+ * amount of memory by an {@link ExternalRecordSorter}, which sorts and writes full chunks of records to temporary
+ * files in the threads of the executor while the next chunk is filled. When the writer is closed, the sorted records
+ * are written to the BAM file, whose BGZF blocks are compressed by the same executor (see
+ * {@link ParallelBlockCompressedOutputStream}), and the index is built on the way.
+ * <p>
+ * Records are sorted by reference sequence and start position, with the records without reference sequence at the
+ * end. Records with the same position keep the order in which they were added, so the output does not depend on the
+ * memory budget or the number of threads.
+ */
+public class SortingBAMFileWriter implements SAMFileWriter {
+    /** Size of the buffer between the compressed blocks and the file. */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    private final SAMFileHeader header;
+    private final File file;
+    private final BAMIndexBuilder.Format indexFormat;
+    private final int compressionLevel;
+    private final ExecutorService executor;
+    private final int threadNum;
+    private final ExternalRecordSorter sorter;
+    private final BAMRecordCodec codec;
+    /** Buffer for the end position that precedes each record. */
+    private final byte[] endBytes = new byte[4];
+    private final long startNanos = System.nanoTime();
+    private long elapsedNanos = 0;
+    private long mergeNanos = 0;
+    private long recordNum = 0;
+    private long compressedBytes = 0;
+    private ProgressLoggerInterface progressLogger = null;
+    private boolean closed = false;
+
+    /**
+     * @param header header of the records. The BAM file gets a copy of it with the sort order coordinate.
+     * @param file BAM file that is written. The index is written to the same path with the extension of the index
+     *             format appended, e.g. {@code foo.bam.bai}.
+     * @param indexFormat format of the index, or null to write no index
+     * @param compressionLevel deflate compression level (0-9)
+     * @param executor thread pool that sorts the runs and compresses the BAM file. It is not shut down by this class.
+     * @param threadNum number of threads of the executor
+     * @param memoryBudget approximate maximum number of bytes used for records that are not yet written to runs
+     * @param tmpDir directory for the temporary files (null for the default temporary directory)
+     */
+    public SortingBAMFileWriter(SAMFileHeader header, File file, BAMIndexBuilder.Format indexFormat,
+                                int compressionLevel, ExecutorService executor, int threadNum, long memoryBudget,
+                                File tmpDir) {
+        this.header = header.clone();
+        this.header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        this.file = file;
+        this.indexFormat = indexFormat;
+        this.compressionLevel = compressionLevel;
+        this.executor = executor;
+        this.threadNum = threadNum;
+        this.sorter = new ExternalRecordSorter(executor, threadNum, memoryBudget, tmpDir);
+        this.codec = new BAMRecordCodec(this.header);
+        this.codec.setOutputStream(sorter.getOutputStream());
+    }
+
+    /** @return the index file that belongs to a BAM file */
+    public static File getIndexFile(File bam, BAMIndexBuilder.Format format) {
+        return new File(bam.getPath() + format.getExtension());
+    }
+
+    /**
+     * @return the sort key of a record: the reference index in the upper and the 0-based start position in the lower
+     * 32 bits, or {@link Long#MAX_VALUE} for records without reference sequence
+     */
+    static long getSortKey(SAMRecord record) {
+        int referenceIndex = record.getReferenceIndex();
+        if (referenceIndex < 0) {
+            return Long.MAX_VALUE;
+        }
+        return ((long) referenceIndex << 32) | ((record.getAlignmentStart() - 1) & 0xffffffffL);
+    }
+
+    /**
+     * Add a record. Each record is preceded by its 0-based exclusive end position, which is needed for the index.
+     */
+    @Override
+    public void addAlignment(SAMRecord alignment) {
+        // resolve the reference indices with the header of this file, as the writers of htsjdk do
+        alignment.setHeaderStrict(header);
+        int start = alignment.getAlignmentStart() - 1;
+        int end = alignment.getReadUnmappedFlag() || alignment.getCigar().isEmpty() ? start + 1 : alignment.getAlignmentEnd();
+        try {
+            sorter.startRecord(getSortKey(alignment), 0);
+            writeIntLE(endBytes, 0, end);
+            sorter.getOutputStream().write(endBytes);
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+        codec.encode(alignment);
+        recordNum++;
+        if (progressLogger != null) {
+            progressLogger.record(alignment);
+        }
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    @Override
+    public void setProgressLogger(ProgressLoggerInterface progressLogger) {
+        this.progressLogger = progressLogger;
+    }
+
+    /**
+     * Sort the records, write the BAM file and its index and delete the temporary files.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long mergeStart = System.nanoTime();
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+            ParallelBlockCompressedOutputStream bgzf = new ParallelBlockCompressedOutputStream(os, compressionLevel,
+                    executor, threadNum);
+            BAMIndexBuilder index = indexFormat == null ? null : new BAMIndexBuilder(header.getSequenceDictionary(), indexFormat);
+            try {
+                ParallelBAMFileWriter.writeHeader(new BinaryCodec(bgzf), header);
+                bgzf.flush();
+                sorter.sort((key1, key2, data, offset, length) -> writeRecord(bgzf, index, data, offset, length));
+            } finally {
+                bgzf.close();
+            }
+            compressedBytes = bgzf.getCompressedBytes();
+            if (index != null) {
+                index.write(getIndexFile(file, indexFormat), bgzf::toVirtualFilePointer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        } finally {
+            try {
+                sorter.close();
+            } catch (IOException ignored) {
+                // the temporary files are deleted on exit anyway
+            }
+            mergeNanos = System.nanoTime() - mergeStart;
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Write a record (preceded by its end position in {@code data}) to the BAM file and add it to the index.
+     */
+    private static void writeRecord(ParallelBlockCompressedOutputStream bgzf, BAMIndexBuilder index, byte[] data,
+                                    int offset, int length) throws IOException {
+        long start = bgzf.getBlockPointer();
+        bgzf.write(data, offset + 4, length - 4);
+        if (index != null) {
+            // the fields of the BAM record after the block size
+            int referenceIndex = readIntLE(data, offset + 8);
+            int pos = readIntLE(data, offset + 12);
+            int flag = (data[offset + 22] & 0xff) | (data[offset + 23] & 0xff) << 8;
+            index.add(referenceIndex, pos, readIntLE(data, offset), (flag & 0x4) != 0, start, bgzf.getBlockPointer());
+        }
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static void writeIntLE(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /** @return number of records written */
+    public long getRecordNum() {
+        return recordNum;
+    }
+
+    /** @return number of runs that were written to temporary files */
+    public int getRunNum() {
+        return sorter.getRunNum();
+    }
+
+    /**
+     * @return summary of the counters, e.g. for the log
+     */
+    public String getThroughputSummary() {
+        double seconds = (closed ? elapsedNanos : System.nanoTime() - startNanos) / 1e9;
+        return String.format("%d records sorted in %d temporary runs, %.1f MB compressed, %.1f s in total, " +
+                        "%.1f s merging and writing", recordNum, getRunNum(), compressedBytes / 1e6, seconds,
+                mergeNanos / 1e9);
+    }
+}
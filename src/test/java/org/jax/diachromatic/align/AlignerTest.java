@@ -0,0 +1,125 @@
+package org.jax.diachromatic.align;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the {@link Aligner} on simulated SAM records for three chromosomes, including unmapped reads and duplicates.
+ */
+class AlignerTest {
+
+    private static final int CHROMOSOME_NUMBER = 3;
+    private static final int CHROMOSOME_LENGTH = 200_000;
+    private static final int DIGEST_LENGTH = 1000;
+    private static final int PAIR_NUMBER = 20_000;
+
+    @TempDir
+    static File tmpDir;
+
+    private static DigestMap digestMap;
+    private static byte[] sam1;
+    private static byte[] sam2;
+
+    @BeforeAll
+    static void simulate() throws IOException, DiachromaticException {
+        File digestFile = new File(tmpDir, "digests.txt");
+        try (PrintWriter writer = new PrintWriter(digestFile)) {
+            writer.println("Chromosome\tFragment_Start_Position\tFragment_End_Position\tFragment_Number\t5'_Restriction_Site\t3'_Restriction_Site\tLength\t5'_GC_Content\t3'_GC_Content\t5'_Repeat_Content\t3'_Repeat_Content\tSelected\t5'_Probes\t3'_Probes");
+            for (int c = 1; c <= CHROMOSOME_NUMBER; c++) {
+                for (int start = 1, n = 1; start < CHROMOSOME_LENGTH; start += DIGEST_LENGTH, n++) {
+                    writer.printf("chr%d\t%d\t%d\t%d\tHindIII\tHindIII\t%d\t0.400\t0.400\t0.000\t0.000\t%s\t0\t0%n", c, start,
+                            start + DIGEST_LENGTH - 1, n, DIGEST_LENGTH, n % 10 == 0 ? "T" : "F");
+                }
+            }
+        }
+        digestMap = new DigestMap(digestFile.getAbsolutePath());
+
+        StringBuilder header = new StringBuilder("@HD\tVN:1.0\tSO:unsorted\n");
+        for (int c = 1; c <= CHROMOSOME_NUMBER; c++) {
+            header.append("@SQ\tSN:chr").append(c).append("\tLN:").append(CHROMOSOME_LENGTH).append('\n');
+        }
+        StringBuilder r1 = new StringBuilder(header);
+        StringBuilder r2 = new StringBuilder(header);
+        Random random = new Random(42);
+        List<String[]> previous = new ArrayList<>();
+        for (int i = 0; i < PAIR_NUMBER; i++) {
+            String[] reads;
+            if (!previous.isEmpty() && random.nextInt(10) == 0) {
+                reads = previous.get(random.nextInt(previous.size())); // duplicate
+            } else {
+                reads = new String[]{randomRead(random), randomRead(random)};
+                previous.add(reads);
+            }
+            r1.append("read").append(i).append('\t').append(reads[0]);
+            r2.append("read").append(i).append('\t').append(reads[1]);
+        }
+        sam1 = r1.toString().getBytes(StandardCharsets.US_ASCII);
+        sam2 = r2.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** @return a SAM record without read name (unmapped in 5% of the cases) */
+    private static String randomRead(Random random) {
+        String seq = "ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC";
+        String qual = "IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII";
+        if (random.nextInt(20) == 0) {
+            return String.format("4\t*\t0\t0\t*\t*\t0\t0\t%s\t%s\tYT:Z:UU%n", seq, qual);
+        }
+        return String.format("%d\tchr%d\t%d\t42\t50M\t*\t0\t0\t%s\t%s\tAS:i:0\tXN:i:0\tXM:i:0\tYT:Z:UU%n",
+                random.nextBoolean() ? 0 : 16, 1 + random.nextInt(CHROMOSOME_NUMBER),
+                1 + random.nextInt(CHROMOSOME_LENGTH - 100), seq, qual);
+    }
+
+    /** Run the aligner with the given number of shards and return the prefix of the output files. */
+    private static String align(int shardNum) throws IOException, DiachromaticException {
+        File outDir = new File(tmpDir, "shards" + shardNum);
+        assertTrue(outDir.mkdir());
+        String prefix = new File(outDir, "test").getAbsolutePath();
+        Aligner aligner = new Aligner(new ByteArrayInputStream(sam1), new ByteArrayInputStream(sam2), true, prefix,
+                digestMap, 50, 800, 3000, "test", false);
+        aligner.setShardNum(shardNum);
+        aligner.inputSAMfiles();
+        aligner.printStatistics();
+        return prefix;
+    }
+
+    private static List<String> readBam(String path) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.makeDefault().open(new File(path))) {
+            for (SAMRecord record : reader) {
+                records.add(record.getSAMString());
+            }
+        }
+        return records;
+    }
+
+    /** The sharded mode must produce the same statistics and BAM files as the sequential mode. */
+    @Test
+    void testShardsGiveSameResults() throws IOException, DiachromaticException {
+        String sequential = align(1);
+        String sharded = align(3);
+        List<String> stats = Files.readAllLines(new File(sequential + ".align.stats.txt").toPath());
+        assertEquals(stats, Files.readAllLines(new File(sharded + ".align.stats.txt").toPath()));
+        assertTrue(stats.contains("total_read_pairs_processed:\t" + PAIR_NUMBER));
+        assertFalse(stats.contains("duplicated_pairs:\t0"));
+        List<String> valid = readBam(sequential + ".valid_pairs.aligned.bam");
+        assertFalse(valid.isEmpty());
+        assertEquals(valid, readBam(sharded + ".valid_pairs.aligned.bam"));
+        assertEquals(readBam(sequential + ".rejected_pairs.aligned.bam"), readBam(sharded + ".rejected_pairs.aligned.bam"));
+        assertEquals(Files.readAllLines(new File(sequential + ".frag.sizes.counts.script.R").toPath()),
+                Files.readAllLines(new File(sharded + ".frag.sizes.counts.script.R").toPath()));
+    }
+}
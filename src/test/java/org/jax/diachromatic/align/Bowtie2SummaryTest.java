@@ -0,0 +1,57 @@
+package org.jax.diachromatic.align;
+
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Bowtie2SummaryTest {
+
+    private static final String BOWTIE2_OUTPUT = "Warning: skipping read 'read17' because it was < 2 characters long\n" +
+            "10000 reads; of these:\n" +
+            "  10000 (100.00%) were unpaired; of these:\n" +
+            "    596 (5.96%) aligned 0 times\n" +
+            "    9138 (91.38%) aligned exactly 1 time\n" +
+            "    266 (2.66%) aligned >1 times\n" +
+            "94.04% overall alignment rate\n";
+
+    private static Bowtie2Summary parse(String output) throws IOException, DiachromaticException {
+        return Bowtie2Summary.parse(new BufferedReader(new StringReader(output)));
+    }
+
+    @Test
+    void testParse() throws IOException, DiachromaticException {
+        Bowtie2Summary summary = parse(BOWTIE2_OUTPUT);
+        assertEquals(10000, summary.getTotalReads());
+        assertEquals(596, summary.getAlignedZeroTimes());
+        assertEquals(9138, summary.getAlignedExactlyOnce());
+        assertEquals(266, summary.getAlignedMoreThanOnce());
+        assertEquals(94.04, summary.getOverallAlignmentRate(), 1e-9);
+    }
+
+    @Test
+    void testIncompleteSummary() {
+        assertThrows(DiachromaticException.class, () -> parse("Error: Encountered internal Bowtie 2 exception (#1)\n"));
+    }
+
+    /** The summary is written as key:value lines that can be parsed by the summarize command. */
+    @Test
+    void testPrint() throws IOException, DiachromaticException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        parse(BOWTIE2_OUTPUT).print(new PrintStream(bytes), "bowtie2_R1_");
+        String[] lines = bytes.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertEquals("bowtie2_R1_reads:10000", lines[0]);
+        assertEquals("bowtie2_R1_aligned_0_times:596 (5.96%)", lines[1]);
+        assertEquals("bowtie2_R1_overall_alignment_rate:94.04%", lines[4]);
+        for (String line : lines) {
+            assertEquals(2, line.split(":").length);
+        }
+    }
+}
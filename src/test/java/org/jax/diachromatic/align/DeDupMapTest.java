@@ -13,11 +13,11 @@ import static org.mockito.Mockito.when;
 
 
 
-@Disabled("Cannot run Mockito with final class from HTSJDK")
 class DeDupMapTest {
 
 
     @Test
+    @Disabled("Cannot run Mockito with final class from HTSJDK")
     void recognizeDuplicateTest() {
         boolean useRelativeOrientation = false;
         DeDupMap ddmap = new DeDupMap(useRelativeOrientation);
@@ -62,6 +62,7 @@ class DeDupMapTest {
     }
         // Now test two read pairs that have the same coordinates (5' end positions) but different orientations that cannot be explained by a duplication event
         @Test
+        @Disabled("Cannot run Mockito with final class from HTSJDK")
         void recognizeDuplicateTestDifferingOrientation() {
         boolean useRelativeOrientation=true;
         DeDupMap ddmap2 = new DeDupMap(useRelativeOrientation);
@@ -76,7 +77,7 @@ class DeDupMapTest {
         when (rpair3.reverse()).thenReturn(r3r);
         when (r3f.getReferenceName()).thenReturn("chr1");
         when (r3r.getReferenceName()).thenReturn("chr1");
-        when (rpair3.getRelativeOrientationTag()).thenReturn("F1F2");
+        when (rpair3.getRelativeOrientation()).thenReturn(RelativeOrientation.F1F2);
 
         // add another read pair that differs with respect to orientation only
         ReadPair rpair4 = Mockito.mock(ReadPair.class);
@@ -89,7 +90,7 @@ class DeDupMapTest {
         when (rpair4.reverse()).thenReturn(r4r);
         when (r4f.getReferenceName()).thenReturn("chr1");
         when (r4r.getReferenceName()).thenReturn("chr1");
-        when (rpair4.getRelativeOrientationTag()).thenReturn("F1R2"); // two read pairs with F1F2 and F1R2 cannot originate from duplication event
+        when (rpair4.getRelativeOrientation()).thenReturn(RelativeOrientation.F1R2); // two read pairs with F1F2 and F1R2 cannot originate from duplication event
 
         // query and insert rpair3
         boolean result = ddmap2.hasSeen(rpair3);
@@ -109,6 +110,7 @@ class DeDupMapTest {
      * See here for an explanatory figure: src/test/resources/data/testDeDup/doc/deDupDoc.pdf
      */
     @Test
+    @Disabled("Cannot run Mockito with final class from HTSJDK")
     void testDuplicateRemovalWithAndWithoutConsiderationOfOrienation() {
 
         DeDupMap ddmap = new DeDupMap(false);
@@ -123,14 +125,14 @@ class DeDupMapTest {
         when(rpair1.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair1.getFivePrimeEndPosOfR1()).thenReturn(1000);
         when(rpair1.getFivePrimeEndPosOfR2()).thenReturn(2000);
-        when(rpair1.getRelativeOrientationTag()).thenReturn("F1R2");
+        when(rpair1.getRelativeOrientation()).thenReturn(RelativeOrientation.F1R2);
 
         ReadPair rpair2 = Mockito.mock(ReadPair.class);
         when(rpair2.getReferenceSequenceOfR1()).thenReturn("chr1");
         when(rpair2.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair2.getFivePrimeEndPosOfR1()).thenReturn(2000);
         when(rpair2.getFivePrimeEndPosOfR2()).thenReturn(1000);
-        when(rpair2.getRelativeOrientationTag()).thenReturn("F2R1"); // only difference to rpair1
+        when(rpair2.getRelativeOrientation()).thenReturn(RelativeOrientation.F2R1); // only difference to rpair1
 
         ddmap.hasSeen(rpair1);
         ddmap.hasSeen(rpair2);
@@ -150,14 +152,14 @@ class DeDupMapTest {
         when(rpair3.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair3.getFivePrimeEndPosOfR1()).thenReturn(1000);
         when(rpair3.getFivePrimeEndPosOfR2()).thenReturn(2000);
-        when(rpair3.getRelativeOrientationTag()).thenReturn("R1F2");
+        when(rpair3.getRelativeOrientation()).thenReturn(RelativeOrientation.R1F2);
 
         ReadPair rpair4 = Mockito.mock(ReadPair.class);
         when(rpair4.getReferenceSequenceOfR1()).thenReturn("chr1");
         when(rpair4.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair4.getFivePrimeEndPosOfR1()).thenReturn(2000);
         when(rpair4.getFivePrimeEndPosOfR2()).thenReturn(1000);
-        when(rpair4.getRelativeOrientationTag()).thenReturn("R2F1"); // only difference to rpair3
+        when(rpair4.getRelativeOrientation()).thenReturn(RelativeOrientation.R2F1); // only difference to rpair3
 
         ddmap.hasSeen(rpair3);
         ddmap.hasSeen(rpair4);
@@ -177,14 +179,14 @@ class DeDupMapTest {
         when(rpair5.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair5.getFivePrimeEndPosOfR1()).thenReturn(1000);
         when(rpair5.getFivePrimeEndPosOfR2()).thenReturn(2000);
-        when(rpair5.getRelativeOrientationTag()).thenReturn("F1F2");
+        when(rpair5.getRelativeOrientation()).thenReturn(RelativeOrientation.F1F2);
 
         ReadPair rpair6 = Mockito.mock(ReadPair.class);
         when(rpair6.getReferenceSequenceOfR1()).thenReturn("chr1");
         when(rpair6.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair6.getFivePrimeEndPosOfR1()).thenReturn(2000);
         when(rpair6.getFivePrimeEndPosOfR2()).thenReturn(1000);
-        when(rpair6.getRelativeOrientationTag()).thenReturn("F2F1"); // only difference to rpair5
+        when(rpair6.getRelativeOrientation()).thenReturn(RelativeOrientation.F2F1); // only difference to rpair5
 
         ddmap.hasSeen(rpair5);
         ddmap.hasSeen(rpair6);
@@ -203,14 +205,14 @@ class DeDupMapTest {
         when(rpair7.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair7.getFivePrimeEndPosOfR1()).thenReturn(1000);
         when(rpair7.getFivePrimeEndPosOfR2()).thenReturn(2000);
-        when(rpair7.getRelativeOrientationTag()).thenReturn("R1R2");
+        when(rpair7.getRelativeOrientation()).thenReturn(RelativeOrientation.R1R2);
 
         ReadPair rpair8 = Mockito.mock(ReadPair.class);
         when(rpair8.getReferenceSequenceOfR1()).thenReturn("chr1");
         when(rpair8.getReferenceSequenceOfR2()).thenReturn("chr1");
         when(rpair8.getFivePrimeEndPosOfR1()).thenReturn(2000);
         when(rpair8.getFivePrimeEndPosOfR2()).thenReturn(1000);
-        when(rpair8.getRelativeOrientationTag()).thenReturn("R2R1"); // only difference to rpair7
+        when(rpair8.getRelativeOrientation()).thenReturn(RelativeOrientation.R2R1); // only difference to rpair7
 
         ddmap.hasSeen(rpair7);
         ddmap.hasSeen(rpair8);
@@ -221,4 +223,41 @@ class DeDupMapTest {
         assertEquals(1, ddmap.getNumOfInsertions());
         assertEquals(4, ddmap_ori.getNumOfInsertions());
     }
+
+    /** The order of the two reads does not matter, neither for cis nor for trans pairs. */
+    @Test
+    void testSwappedReads() {
+        DeDupMap ddmap = new DeDupMap(false);
+        assertFalse(ddmap.hasSeen(0, 1000, 0, 2000, 0));
+        assertTrue(ddmap.hasSeen(0, 2000, 0, 1000, 0));
+        assertFalse(ddmap.hasSeen(3, 1000, 1, 2000, 0));
+        assertTrue(ddmap.hasSeen(1, 2000, 3, 1000, 0));
+        // same positions on other chromosomes
+        assertFalse(ddmap.hasSeen(1, 1000, 1, 2000, 0));
+        assertFalse(ddmap.hasSeen(0, 1000, 1, 2000, 0));
+        assertEquals(6, ddmap.getNumOfQueries());
+        assertEquals(4, ddmap.getNumOfInsertions());
+        assertEquals(4, ddmap.getNumOfChrPairKeys());
+    }
+
+    @Test
+    void testOrientation() {
+        DeDupMap ddmap = new DeDupMap(true);
+        assertFalse(ddmap.hasSeen(0, 1000, 0, 2000, 2));
+        assertFalse(ddmap.hasSeen(0, 1000, 0, 2000, 0));
+        assertTrue(ddmap.hasSeen(0, 2000, 0, 1000, 2));
+    }
+
+    /** Positions up to the largest position in a SAM file must not be mixed up with other positions. */
+    @Test
+    void testPackPositions() {
+        int max = Integer.MAX_VALUE;
+        assertNotEquals(DeDupMap.packPositions(max, 1, 0), DeDupMap.packPositions(max - 1, 1, 0));
+        assertNotEquals(DeDupMap.packPositions(1, max, 0), DeDupMap.packPositions(1, max, 3));
+        assertNotEquals(DeDupMap.packPositions(1, max, 0), DeDupMap.packPositions(2, max, 0));
+        DeDupMap ddmap = new DeDupMap(true);
+        assertFalse(ddmap.hasSeen(0, max, 0, max, 3));
+        assertTrue(ddmap.hasSeen(0, max, 0, max, 3));
+        assertFalse(ddmap.hasSeen(0, max, 0, max, 2));
+    }
 }
@@ -0,0 +1,122 @@
+package org.jax.diachromatic.align;
+
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DigestIndexTest {
+
+    @TempDir
+    static File tmpDir;
+
+    private static String digestFilePath;
+
+    @BeforeAll
+    static void init() throws FileNotFoundException {
+        URL url = DigestIndexTest.class.getClassLoader().getResource("data/digestmap/hg19_digestedGenome.small.txt");
+        if (url == null) {
+            throw new FileNotFoundException("Could not find data/digestmap/hg19_digestGenome.small.txt");
+        }
+        digestFilePath = url.getFile();
+    }
+
+    private static void assertSameDigests(List<Digest> expected, List<Digest> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Digest e = expected.get(i), a = actual.get(i);
+            assertEquals(e, a);
+            assertEquals(e.getDigesttNumber(), a.getDigesttNumber());
+            assertEquals(e.getDigestLength(), a.getDigestLength());
+            assertEquals(e.getFivePrimeRestrictionSite(), a.getFivePrimeRestrictionSite());
+            assertEquals(e.getThreePrimeRestrictionSite(), a.getThreePrimeRestrictionSite());
+            assertEquals(e.getFivePrimeGcContent(), a.getFivePrimeGcContent());
+            assertEquals(e.getThreePrimeGcContent(), a.getThreePrimeGcContent());
+            assertEquals(e.getFivePrimeRepeatContent(), a.getFivePrimeRepeatContent());
+            assertEquals(e.getThreePrimeRepeatContent(), a.getThreePrimeRepeatContent());
+            assertEquals(e.isSelected(), a.isSelected());
+            assertEquals(e.getFivePrimeProbeCount(), a.getFivePrimeProbeCount());
+            assertEquals(e.getThreePrimeProbeCount(), a.getThreePrimeProbeCount());
+        }
+    }
+
+    @Test
+    void testWriteAndRead() throws DiachromaticException {
+        String indexPath = new File(tmpDir, "small.didx").getAbsolutePath();
+        assertEquals(19, DigestIndex.write(digestFilePath, indexPath));
+        assertTrue(DigestIndex.isIndex(indexPath));
+        assertFalse(DigestIndex.isIndex(digestFilePath));
+        assertTrue(DigestIndex.isUpToDate(indexPath, digestFilePath));
+        assertSameDigests(DigestMap.readDigests(digestFilePath), DigestIndex.read(indexPath));
+        // the index can be passed instead of the digest file
+        DigestMap dmap = new DigestMap(indexPath);
+        assertEquals(19, dmap.getNumOfDigests());
+        assertEquals(17954, dmap.getDigestMap().get("chr1").getDigestAt(18000).getDigestStartPosition());
+    }
+
+    /** An index at the default path is only used as long as the digest file is not changed. */
+    @Test
+    void testStaleIndex() throws DiachromaticException, IOException {
+        File digestFile = new File(tmpDir, "digests.txt");
+        Files.copy(new File(digestFilePath).toPath(), digestFile.toPath());
+        String indexPath = DigestIndex.getDefaultIndexPath(digestFile.getAbsolutePath());
+        DigestIndex.write(digestFile.getAbsolutePath(), indexPath);
+        assertTrue(DigestIndex.isUpToDate(indexPath, digestFile.getAbsolutePath()));
+        assertEquals(19, new DigestMap(digestFile.getAbsolutePath()).getNumOfDigests());
+
+        Files.write(digestFile.toPath(), "\nchr2\t1\t100\t1\tNone\tDpnII\t100\t0.000\t0.000\t0.000\t0.000\tF\t0\t0\n"
+                .getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        assertFalse(DigestIndex.isUpToDate(indexPath, digestFile.getAbsolutePath()));
+        assertEquals(20, new DigestMap(digestFile.getAbsolutePath()).getNumOfDigests());
+    }
+
+    /** The checksum decides if only the modification time of the digest file was changed. */
+    @Test
+    void testModificationTime() throws DiachromaticException, IOException {
+        File digestFile = new File(tmpDir, "touched.txt");
+        Files.copy(new File(digestFilePath).toPath(), digestFile.toPath());
+        String indexPath = DigestIndex.getDefaultIndexPath(digestFile.getAbsolutePath());
+        DigestIndex.write(digestFile.getAbsolutePath(), indexPath);
+        assertTrue(digestFile.setLastModified(digestFile.lastModified() - 10000));
+        assertTrue(DigestIndex.isUpToDate(indexPath, digestFile.getAbsolutePath()));
+
+        // same length, different content
+        byte[] content = Files.readAllBytes(digestFile.toPath());
+        String text = new String(content, StandardCharsets.US_ASCII).replace("\tDpnII\t", "\tDpnIx\t");
+        Files.write(digestFile.toPath(), text.getBytes(StandardCharsets.US_ASCII));
+        assertEquals(content.length, digestFile.length());
+        assertFalse(DigestIndex.isUpToDate(indexPath, digestFile.getAbsolutePath()));
+    }
+
+    /** Digests of different chromosomes that alternate in the digest file are read from the index in the same order. */
+    @Test
+    void testFileOrder() throws DiachromaticException, IOException {
+        List<String> lines = Files.readAllLines(new File(digestFilePath).toPath(), StandardCharsets.US_ASCII);
+        lines.add(2, "chr2\t1\t100\t1\tNone\tDpnII\t100\t0.000\t0.000\t0.000\t0.000\tF\t0\t0");
+        lines.add("chr2\t101\t200\t2\tDpnII\tNone\t100\t0.000\t0.000\t0.000\t0.000\tF\t0\t0");
+        File digestFile = new File(tmpDir, "unsorted.txt");
+        Files.write(digestFile.toPath(), lines, StandardCharsets.US_ASCII);
+        String indexPath = new File(tmpDir, "unsorted.didx").getAbsolutePath();
+        assertEquals(21, DigestIndex.write(digestFile.getAbsolutePath(), indexPath));
+        List<Digest> expected = DigestMap.readDigests(digestFile.getAbsolutePath());
+        List<Digest> actual = DigestIndex.read(indexPath);
+        assertSameDigests(expected, actual);
+        DigestMap fromText = new DigestMap(expected);
+        DigestMap fromIndex = new DigestMap(actual);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getIndex(), actual.get(i).getIndex());
+            assertEquals(fromText.getDigest(i), fromIndex.getDigest(i));
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package org.jax.diachromatic.align;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import org.jax.diachromatic.exception.DiachromaticException;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.FileNotFoundException;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -104,4 +107,42 @@ public class DigestMapTest {
         assertEquals(digest4,dpair.reverse());
     }
 
+    /** The chromosomes are found by the reference index of a SAM sequence dictionary with its own order. */
+    @Test
+    void testGetDigestByReferenceIndex() throws DiachromaticException {
+        DigestMap dmap = new DigestMap(digestFilePath);
+        SAMSequenceDictionary dictionary = new SAMSequenceDictionary(List.of(
+                new SAMSequenceRecord("chr2", 1000000), new SAMSequenceRecord("chr1", 1000000)));
+        DigestMap.Chromosome2DigestArray chrom2array = dmap.getDigestMap().get("chr1");
+        assertEquals(chrom2array.getDigestAt(17954), dmap.getDigest(dictionary, 1, 17954));
+        assertEquals(chrom2array.getDigestAt(850), dmap.getDigest(dictionary, 1, 850));
+        assertThrows(IllegalArgumentException.class, () -> dmap.getDigest(dictionary, 0, 850));
+    }
+
+    @Test
+    void testGlobalDigestIndex() throws DiachromaticException {
+        DigestMap dmap = new DigestMap(digestFilePath);
+        DigestMap.Chromosome2DigestArray chrom2array = dmap.getDigestMap().get("chr1");
+        assertEquals(19, dmap.getNumOfDigests());
+        assertEquals(0, chrom2array.getDigestAt(2).getIndex());
+        Digest digest = dmap.getDigest(chrom2array.getDigestAt(18000).getIndex());
+        assertEquals(17954, digest.getDigestStartPosition());
+        assertEquals(18291, digest.getDigestEndPosition());
+    }
+
+    /** The bucketed position index must find the same digests as the binary search, including positions at digest ends. */
+    @Test
+    void testBucketIndex() throws DiachromaticException {
+        DigestMap dmap = new DigestMap(digestFilePath);
+        DigestMap bucketed = new DigestMap(digestFilePath);
+        bucketed.buildBucketIndex();
+        DigestMap.Chromosome2DigestArray chrom2array = dmap.getDigestMap().get("chr1");
+        DigestMap.Chromosome2DigestArray bucketedArray = bucketed.getDigestMap().get("chr1");
+        int length = chrom2array.getLength();
+        for (int pos = 1; pos <= length; pos++) {
+            assertEquals(chrom2array.getDigestIndexAt(pos), bucketedArray.getDigestIndexAt(pos));
+        }
+        assertEquals(chrom2array.getDigestIndexAt(length + 1), bucketedArray.getDigestIndexAt(length + 1));
+        assertEquals(chrom2array.getDigestIndexAt(length + 100000), bucketedArray.getDigestIndexAt(length + 100000));
+    }
 }
@@ -0,0 +1,65 @@
+package org.jax.diachromatic.align;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExternalDeDupTest {
+
+    @TempDir
+    File tmpDir;
+
+    /**
+     * The duplicates found with a small memory budget (several runs on disk) must be the same as those found by
+     * {@link DeDupMap}, including pairs with swapped reads and pairs that differ only in the orientation.
+     */
+    @Test
+    void testSameDuplicatesAsDeDupMap() throws IOException {
+        int n = 50_000;
+        int[][] pairs = new int[n][];
+        Random random = new Random(7);
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && random.nextInt(4) == 0) {
+                // duplicate of an earlier pair, possibly with swapped reads
+                int[] p = pairs[random.nextInt(i)];
+                pairs[i] = random.nextBoolean() ? p : new int[]{p[2], p[3], p[0], p[1], p[4]};
+            } else {
+                pairs[i] = new int[]{random.nextInt(3), random.nextInt(10_000), random.nextInt(3), random.nextInt(10_000), random.nextInt(4)};
+            }
+        }
+        DeDupMap deDupMap = new DeDupMap(true);
+        ExternalDeDup externalDeDup = new ExternalDeDup(true, 64 * 1024, tmpDir);
+        try (externalDeDup) {
+            for (int[] p : pairs) {
+                externalDeDup.add(p[0], p[1], p[2], p[3], p[4]);
+            }
+            externalDeDup.findDuplicates();
+            assertEquals(n, externalDeDup.getNumOfAddedPairs());
+            for (int[] p : pairs) {
+                assertEquals(deDupMap.hasSeen(p[0], p[1], p[2], p[3], p[4]), externalDeDup.hasSeen(null));
+            }
+            assertEquals(deDupMap.getNumOfInsertions(), externalDeDup.getNumOfInsertions());
+            assertEquals(n - deDupMap.getNumOfInsertions(), externalDeDup.getNumOfDuplicates());
+            assertTrue(externalDeDup.getNumOfDuplicates() > n / 5);
+        }
+        // the chunks of at least 1 MB are only partly filled
+        long footprint = externalDeDup.getMemoryFootprint();
+        assertTrue(0 < footprint && footprint < 4 << 20, "footprint: " + footprint);
+        assertEquals(0, tmpDir.listFiles().length);
+    }
+
+    @Test
+    void testAddAfterFindDuplicates() throws IOException {
+        try (ExternalDeDup externalDeDup = new ExternalDeDup(false, 1 << 20, tmpDir)) {
+            externalDeDup.add(0, 100, 0, 200, 0);
+            externalDeDup.findDuplicates();
+            assertThrows(IllegalStateException.class, () -> externalDeDup.add(0, 100, 0, 200, 0));
+            assertFalse(externalDeDup.hasSeen(null));
+        }
+    }
+}
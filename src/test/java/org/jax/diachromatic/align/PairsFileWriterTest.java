@@ -0,0 +1,207 @@
+package org.jax.diachromatic.align;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PairsFileWriterTest {
+
+    private static final int CHROMOSOME_NUMBER = 3;
+    private static final int CHROMOSOME_LENGTH = 500_000;
+    private static final int DIGEST_LENGTH = 1000;
+
+    private static SAMFileHeader header;
+    private static DigestMap digestMap;
+    private static List<ReadPair> pairs;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeAll
+    static void setup() throws DiachromaticException {
+        header = new SAMFileHeader();
+        List<Digest> digests = new ArrayList<>();
+        for (int c = 1; c <= CHROMOSOME_NUMBER; c++) {
+            header.addSequence(new SAMSequenceRecord("chr" + c, CHROMOSOME_LENGTH));
+            for (int start = 1, n = 1; start < CHROMOSOME_LENGTH; start += DIGEST_LENGTH, n++) {
+                digests.add(new Digest(new String[]{"chr" + c, Integer.toString(start),
+                        Integer.toString(start + DIGEST_LENGTH - 1), Integer.toString(n), "HindIII", "HindIII",
+                        Integer.toString(DIGEST_LENGTH), "0.4", "0.4", "0.0", "0.0", "F", "0", "0"}));
+            }
+        }
+        digestMap = new DigestMap(digests);
+        Random random = new Random(42);
+        pairs = new ArrayList<>();
+        for (int i = 0; i < 40_000; i++) {
+            // many pairs at the same positions, in both orders of the ends
+            SAMRecord r1 = record(random, "read" + i);
+            SAMRecord r2 = record(random, "read" + i);
+            pairs.add(new ReadPair(r1, r2, digestMap));
+        }
+    }
+
+    private static SAMRecord record(Random random, String name) {
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReferenceIndex(random.nextInt(CHROMOSOME_NUMBER));
+        record.setAlignmentStart(1 + random.nextInt(5000) * 97);
+        record.setReadNegativeStrandFlag(random.nextBoolean());
+        record.setCigarString("50M");
+        return record;
+    }
+
+    private File write(String name, long memoryBudget, int threadNum) throws IOException {
+        File file = tempDir.resolve(name).toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        try {
+            PairsFileWriter writer = new PairsFileWriter(file, header.getSequenceDictionary(), 5, executor, threadNum,
+                    memoryBudget, tempDir.toFile());
+            for (ReadPair pair : pairs) {
+                writer.add(pair);
+            }
+            writer.close();
+            assertEquals(pairs.size(), writer.getPairNum());
+        } finally {
+            executor.shutdownNow();
+        }
+        return file;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new BlockCompressedInputStream(file), StandardCharsets.US_ASCII))) {
+            return reader.lines().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void testSortedUpperTriangle() throws IOException {
+        File file = write("memory.pairs.gz", 1L << 30, 2);
+        List<String> lines = readLines(file);
+        assertEquals("## pairs format v1.0", lines.get(0));
+        assertTrue(lines.contains("#chromsize: chr2 500000"));
+        assertTrue(lines.contains("#columns: readID chr1 pos1 chr2 pos2 strand1 strand2 pair_type frag1 frag2"));
+        List<String[]> records = lines.stream().filter(l -> !l.startsWith("#")).map(l -> l.split("\t")).collect(Collectors.toList());
+        assertEquals(pairs.size(), records.size());
+        long previous = Long.MIN_VALUE;
+        for (String[] fields : records) {
+            assertEquals(10, fields.length);
+            assertEquals("UU", fields[7]);
+            int chrom1 = header.getSequenceIndex(fields[1]);
+            int chrom2 = header.getSequenceIndex(fields[3]);
+            int pos1 = Integer.parseInt(fields[2]);
+            int pos2 = Integer.parseInt(fields[4]);
+            assertTrue(chrom1 < chrom2 || chrom1 == chrom2 && pos1 <= pos2);
+            // chr1-chr2-pos1-pos2
+            long key = ((long) chrom1 * CHROMOSOME_NUMBER + chrom2) * CHROMOSOME_LENGTH + pos1;
+            assertTrue(key >= previous);
+            previous = key;
+            // the digest numbers belong to the positions
+            assertEquals(Integer.parseInt(fields[8]), (pos1 - 1) / DIGEST_LENGTH + 1);
+            assertEquals(Integer.parseInt(fields[9]), (pos2 - 1) / DIGEST_LENGTH + 1);
+        }
+        // the first pair
+        ReadPair pair = pairs.get(0);
+        String name = pair.forward().getReadName();
+        String[] first = records.stream().filter(f -> f[0].equals(name)).findFirst().orElseThrow();
+        boolean swapped = !first[1].equals(pair.forward().getReferenceName()) || Integer.parseInt(first[2]) != pair.getFivePrimeEndPosOfR1();
+        SAMRecord end1 = swapped ? pair.reverse() : pair.forward();
+        assertEquals(end1.getReadNegativeStrandFlag() ? "-" : "+", first[5]);
+    }
+
+    @Test
+    void testSameOutputWithRuns() throws IOException {
+        File memory = write("memory.pairs.gz", 1L << 30, 1);
+        // chunks of the minimum size of 1 MB hold about 13,000 pairs
+        File runs = write("runs.pairs.gz", 2L << 20, 2);
+        assertEquals(readLines(memory), readLines(runs));
+        assertEquals(2, tempDir.toFile().list((dir, name) -> name.endsWith(".pairs.gz")).length);
+        assertEquals(2, tempDir.toFile().list((dir, name) -> name.endsWith(PairsFileWriter.INDEX_EXTENSION)).length);
+        assertEquals(4, tempDir.toFile().list().length); // the temporary files are deleted
+    }
+
+    /**
+     * Check the configuration of a pairix index and convert it to a TBI index, which differs only by the magic number
+     * and the configuration, so that it can be queried with htsjdk.
+     */
+    private static TabixIndex readPairixIndex(File file) throws IOException {
+        byte[] px2;
+        try (BlockCompressedInputStream in = new BlockCompressedInputStream(file)) {
+            px2 = in.readAllBytes();
+        }
+        assertEquals("PX2\1", new String(px2, 0, 4, StandardCharsets.US_ASCII));
+        ByteBuffer buffer = ByteBuffer.wrap(px2).order(ByteOrder.LITTLE_ENDIAN);
+        // preset, columns of the first chromosome and position, columns of the second chromosome and position
+        int[] configuration = new int[7];
+        for (int i = 0; i < configuration.length; i++) {
+            configuration[i] = buffer.getInt(8 + 4 * i);
+        }
+        assertArrayEquals(new int[]{0, 2, 3, 3, 4, 5, 5}, configuration);
+        assertEquals('\t', px2[36]);
+        assertEquals('|', px2[37]);
+        assertEquals('#', buffer.getInt(40));
+        assertEquals(0, buffer.getInt(44));
+        ByteArrayOutputStream tbi = new ByteArrayOutputStream();
+        tbi.write("TBI\1".getBytes(StandardCharsets.US_ASCII));
+        tbi.write(px2, 4, 20); // number of references, preset and columns of the first end
+        tbi.write(px2, 40, px2.length - 40); // meta character, skipped lines, names and bins
+        return new TabixIndex(new ByteArrayInputStream(tbi.toByteArray()));
+    }
+
+    /** Compare region-pair queries with the index to filtering all pairs. */
+    @Test
+    void testRegionPairQueries() throws IOException {
+        File file = write("query.pairs.gz", 2L << 20, 2);
+        List<String> all = readLines(file).stream().filter(l -> !l.startsWith("#")).collect(Collectors.toList());
+        TabixIndex index = readPairixIndex(PairsFileWriter.getIndexFile(file));
+        assertEquals(List.of("chr1|chr1", "chr1|chr2", "chr1|chr3", "chr2|chr2", "chr2|chr3", "chr3|chr3"), index.getSequenceNames());
+        Random random = new Random(7);
+        try (BlockCompressedInputStream in = new BlockCompressedInputStream(file)) {
+            for (int q = 0; q < 100; q++) {
+                int c1 = 1 + random.nextInt(CHROMOSOME_NUMBER);
+                int c2 = c1 + random.nextInt(CHROMOSOME_NUMBER - c1 + 1);
+                String chrom1 = "chr" + c1, chrom2 = "chr" + c2;
+                int start1 = 1 + random.nextInt(CHROMOSOME_LENGTH - 50_000), end1 = start1 + random.nextInt(50_000);
+                int start2 = 1 + random.nextInt(CHROMOSOME_LENGTH - 200_000), end2 = start2 + random.nextInt(200_000);
+                List<String> expected = all.stream().filter(l -> {
+                    String[] f = l.split("\t");
+                    int p1 = Integer.parseInt(f[2]), p2 = Integer.parseInt(f[4]);
+                    return f[1].equals(chrom1) && f[3].equals(chrom2) && p1 >= start1 && p1 <= end1 && p2 >= start2 && p2 <= end2;
+                }).collect(Collectors.toList());
+                List<String> actual = new ArrayList<>();
+                for (Block block : index.getBlocks(chrom1 + "|" + chrom2, start1, end1)) {
+                    in.seek(block.getStartPosition());
+                    String line;
+                    while (in.getFilePointer() < block.getEndPosition() && (line = in.readLine()) != null) {
+                        String[] f = line.split("\t");
+                        int p1 = Integer.parseInt(f[2]), p2 = Integer.parseInt(f[4]);
+                        if (f[1].equals(chrom1) && f[3].equals(chrom2) && p1 >= start1 && p1 <= end1 && p2 >= start2 && p2 <= end2) {
+                            actual.add(line);
+                        }
+                    }
+                }
+                assertEquals(expected, actual, String.format("%s:%d-%d|%s:%d-%d", chrom1, start1, end1, chrom2, start2, end2));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.jax.diachromatic.benchmark;
+
+import org.jax.diachromatic.align.DeDupMap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the heap that is needed to remember the unique read pairs for duplicate removal with {@link DeDupMap} and
+ * with the previous implementation, which stored an object with the two 5' end positions and the orientation in a
+ * {@code HashSet} per concatenated pair of chromosome names. The read pairs are random (about half of them cis) on 24
+ * chromosomes. Run with
+ * {@code java -Xmx4g -cp target/test-classes:target/classes:<classpath> org.jax.diachromatic.benchmark.DeDupMapMemoryBenchmark [pairs]}.
+ */
+public class DeDupMapMemoryBenchmark {
+
+    private static final int CHROMOSOME_NUMBER = 24;
+    private static final int CHROMOSOME_LENGTH = 150_000_000;
+
+    /** Layout of the objects that were stored by the previous implementation (three ints and the hash code). */
+    private static final class Coordinates {
+        private final int pos1;
+        private final int pos2;
+        private final int orientation;
+        private final int hashCode;
+
+        Coordinates(int pos1, int pos2, int orientation) {
+            this.pos1 = pos1;
+            this.pos2 = pos2;
+            this.orientation = orientation;
+            this.hashCode = Objects.hash(orientation, pos1, pos2);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Coordinates)) return false;
+            Coordinates other = (Coordinates) o;
+            return pos1 == other.pos1 && pos2 == other.pos2 && orientation == other.orientation;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, long bytes, int pairs) {
+        System.out.printf("%s: %.1f MB for %d unique pairs, %.1f MB per million unique pairs%n",
+                name, bytes / 1e6, pairs, bytes / 1e6 / (pairs / 1e6));
+    }
+
+    public static void main(String[] args) {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        String[] names = new String[CHROMOSOME_NUMBER];
+        for (int c = 0; c < CHROMOSOME_NUMBER; c++) {
+            names[c] = "chr" + (c + 1);
+        }
+
+        long before = usedHeap();
+        Map<String, Set<Coordinates>> stringKeyed = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < pairs; i++) {
+            int c1 = random.nextInt(CHROMOSOME_NUMBER);
+            int c2 = random.nextBoolean() ? c1 : random.nextInt(CHROMOSOME_NUMBER);
+            stringKeyed.computeIfAbsent(names[c1] + names[c2], k -> new HashSet<>())
+                    .add(new Coordinates(random.nextInt(CHROMOSOME_LENGTH), random.nextInt(CHROMOSOME_LENGTH), 0));
+        }
+        report("HashMap<String,HashSet<ReadPairCoordinates>>", usedHeap() - before, pairs);
+        stringKeyed = null;
+
+        before = usedHeap();
+        DeDupMap deDupMap = new DeDupMap(false);
+        random = new Random(42);
+        for (int i = 0; i < pairs; i++) {
+            int c1 = random.nextInt(CHROMOSOME_NUMBER);
+            int c2 = random.nextBoolean() ? c1 : random.nextInt(CHROMOSOME_NUMBER);
+            deDupMap.hasSeen(c1, random.nextInt(CHROMOSOME_LENGTH), c2, random.nextInt(CHROMOSOME_LENGTH), 0);
+        }
+        report("DeDupMap", usedHeap() - before, deDupMap.getNumOfInsertions());
+        report("DeDupMap (estimate)", deDupMap.getMemoryFootprint(), deDupMap.getNumOfInsertions());
+    }
+}
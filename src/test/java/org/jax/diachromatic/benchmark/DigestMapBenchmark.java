@@ -0,0 +1,145 @@
+package org.jax.diachromatic.benchmark;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.jax.diachromatic.align.Digest;
+import org.jax.diachromatic.align.DigestMap;
+import org.jax.diachromatic.align.DigestPair;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookup of the digest pair of a read pair with the previous layout of {@link DigestMap} (per chromosome
+ * an {@code ArrayList<Integer>} of end positions searched with {@link Collections#binarySearch(List, Object)} and found
+ * by name) with the current {@code int[]} arrays, found by name or by SAM reference index, and with the optional
+ * bucketed position index ({@link DigestMap#buildBucketIndex()}). The simulated genome has
+ * the chromosome sizes of hg38 and about 7 million digests (as for DpnII). Run with
+ * {@code java -Xmx4g -cp target/test-classes:<test classpath> org.jax.diachromatic.benchmark.DigestMapBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class DigestMapBenchmark {
+
+    /** Sizes of the chromosomes chr1-chr22, chrX and chrY of hg38. */
+    private static final int[] CHROMOSOME_SIZES = {248956422, 242193529, 198295559, 190214555, 181538259, 170805979,
+            159345973, 145138636, 138394717, 133797422, 135086622, 133275309, 114364328, 107043718, 101991189, 90338345,
+            83257441, 80373285, 58617616, 64444167, 46709983, 50818468, 156040895, 57227415};
+    private static final int QUERY_NUMBER = 1_000_000;
+
+    @Param({"7000000"})
+    public int digestNum;
+
+    /** The previous layout of the digests of one chromosome. */
+    private static final class BoxedDigestArray {
+        private final ArrayList<Integer> coordArray = new ArrayList<>();
+        private final ArrayList<Digest> digestArray = new ArrayList<>();
+
+        Digest getDigestAt(int coordinate) {
+            int index = Collections.binarySearch(coordArray, coordinate);
+            return digestArray.get(0 <= index ? index : -(index + 1));
+        }
+    }
+
+    private Map<String, BoxedDigestArray> boxedMap;
+    private DigestMap digestMap;
+    private DigestMap bucketedDigestMap;
+    private SAMSequenceDictionary dictionary;
+    /** Chromosome names, reference indices and positions of the simulated read pairs. */
+    private String[] names1, names2;
+    private int[] refIndices1, refIndices2, positions1, positions2;
+
+    @Setup
+    public void setup() throws DiachromaticException {
+        long genomeSize = Arrays.stream(CHROMOSOME_SIZES).asLongStream().sum();
+        double meanLength = (double) genomeSize / digestNum;
+        Random random = new Random(42);
+        List<Digest> digests = new ArrayList<>(digestNum + CHROMOSOME_SIZES.length);
+        List<SAMSequenceRecord> sequences = new ArrayList<>();
+        boxedMap = new HashMap<>();
+        String[] names = new String[CHROMOSOME_SIZES.length];
+        for (int c = 0; c < CHROMOSOME_SIZES.length; c++) {
+            String name = c < 22 ? "chr" + (c + 1) : (c == 22 ? "chrX" : "chrY");
+            names[c] = name;
+            sequences.add(new SAMSequenceRecord(name, CHROMOSOME_SIZES[c]));
+            BoxedDigestArray boxed = new BoxedDigestArray();
+            boxedMap.put(name, boxed);
+            int start = 1, number = 1;
+            while (start <= CHROMOSOME_SIZES[c]) {
+                // exponentially distributed fragment lengths as for random cutting sites
+                int length = 1 + (int) (-Math.log(1.0 - random.nextDouble()) * meanLength);
+                int end = Math.min(CHROMOSOME_SIZES[c], start + length - 1);
+                Digest digest = new Digest(new String[]{name, Integer.toString(start), Integer.toString(end),
+                        Integer.toString(number++), "DpnII", "DpnII", Integer.toString(end - start + 1), "0.4", "0.4",
+                        "0.0", "0.0", "F", "0", "0"});
+                digests.add(digest);
+                boxed.digestArray.add(digest);
+                boxed.coordArray.add(end);
+                start = end + 1;
+            }
+        }
+        digestMap = new DigestMap(digests);
+        bucketedDigestMap = new DigestMap(digests);
+        bucketedDigestMap.buildBucketIndex();
+        dictionary = new SAMSequenceDictionary(sequences);
+        names1 = new String[QUERY_NUMBER];
+        names2 = new String[QUERY_NUMBER];
+        refIndices1 = new int[QUERY_NUMBER];
+        refIndices2 = new int[QUERY_NUMBER];
+        positions1 = new int[QUERY_NUMBER];
+        positions2 = new int[QUERY_NUMBER];
+        for (int i = 0; i < QUERY_NUMBER; i++) {
+            refIndices1[i] = random.nextInt(CHROMOSOME_SIZES.length);
+            refIndices2[i] = random.nextBoolean() ? refIndices1[i] : random.nextInt(CHROMOSOME_SIZES.length);
+            names1[i] = names[refIndices1[i]];
+            names2[i] = names[refIndices2[i]];
+            positions1[i] = 1 + random.nextInt(CHROMOSOME_SIZES[refIndices1[i]]);
+            positions2[i] = 1 + random.nextInt(CHROMOSOME_SIZES[refIndices2[i]]);
+        }
+    }
+
+    @Benchmark
+    public void boxedBinarySearchByName(Blackhole bh) {
+        for (int i = 0; i < QUERY_NUMBER; i++) {
+            bh.consume(new DigestPair(boxedMap.get(names1[i]).getDigestAt(positions1[i]),
+                    boxedMap.get(names2[i]).getDigestAt(positions2[i])));
+        }
+    }
+
+    @Benchmark
+    public void primitiveBinarySearchByName(Blackhole bh) {
+        for (int i = 0; i < QUERY_NUMBER; i++) {
+            bh.consume(digestMap.getDigestPair(names1[i], positions1[i], names2[i], positions2[i]));
+        }
+    }
+
+    @Benchmark
+    public void primitiveBinarySearchByReferenceIndex(Blackhole bh) {
+        for (int i = 0; i < QUERY_NUMBER; i++) {
+            bh.consume(new DigestPair(digestMap.getDigest(dictionary, refIndices1[i], positions1[i]),
+                    digestMap.getDigest(dictionary, refIndices2[i], positions2[i])));
+        }
+    }
+
+    @Benchmark
+    public void bucketIndexByReferenceIndex(Blackhole bh) {
+        for (int i = 0; i < QUERY_NUMBER; i++) {
+            bh.consume(new DigestPair(bucketedDigestMap.getDigest(dictionary, refIndices1[i], positions1[i]),
+                    bucketedDigestMap.getDigest(dictionary, refIndices2[i], positions2[i])));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DigestMapBenchmark.class.getSimpleName()).build()).run();
+    }
+}
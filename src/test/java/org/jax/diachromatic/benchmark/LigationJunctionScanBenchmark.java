@@ -0,0 +1,107 @@
+package org.jax.diachromatic.benchmark;
+
+import org.jax.diachromatic.digest.RestrictionEnzyme;
+import org.jax.diachromatic.truncation.Truncator;
+import org.jax.diachromatic.util.MultiPatternScanner;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the search for ligation junctions with {@link String#indexOf(String)} (one call for the dangling end and
+ * one per junction, as in the original truncation code) with a single pass of a {@link MultiPatternScanner} over
+ * the bytes of the reads. Run with
+ * {@code java -cp target/test-classes:<test classpath> org.jax.diachromatic.benchmark.LigationJunctionScanBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LigationJunctionScanBenchmark {
+
+    private static final int READ_NUMBER = 100_000;
+    private static final int READ_LENGTH = 150;
+
+    /** Comma-separated names of the enzymes whose filled-in ligation junctions are searched. */
+    @Param({"HindIII", "DpnII,HindIII,NlaIII"})
+    public String enzymes;
+
+    private String[] reads;
+    private byte[][] readBytes;
+    private String[] junctions;
+    private String danglingEnd;
+    private byte[] danglingEndBytes;
+    private MultiPatternScanner scanner;
+
+    @Setup
+    public void setup() {
+        List<RestrictionEnzyme> enzymeList = new ArrayList<>();
+        for (String name : enzymes.split(",")) {
+            RestrictionEnzyme.parseRestrictionEnzymes().stream()
+                    .filter(re -> re.getName().equals(name))
+                    .findFirst()
+                    .ifPresent(enzymeList::add);
+        }
+        junctions = enzymeList.stream().map(Truncator::fillEnd).toArray(String[]::new);
+        danglingEnd = enzymeList.get(0).getDanglingEndSequence();
+        danglingEndBytes = danglingEnd.getBytes(StandardCharsets.US_ASCII);
+        scanner = new MultiPatternScanner(List.of(junctions));
+        Random random = new Random(42);
+        reads = new String[READ_NUMBER];
+        readBytes = new byte[READ_NUMBER][];
+        for (int i = 0; i < READ_NUMBER; i++) {
+            StringBuilder sb = new StringBuilder(READ_LENGTH);
+            for (int k = 0; k < READ_LENGTH; k++) {
+                sb.append("ACGT".charAt(random.nextInt(4)));
+            }
+            if (random.nextInt(5) == 0) { // about 20% of the reads contain a junction
+                String junction = junctions[random.nextInt(junctions.length)];
+                int pos = random.nextInt(READ_LENGTH - junction.length());
+                sb.replace(pos, pos + junction.length(), junction);
+            }
+            reads[i] = sb.toString();
+            readBytes[i] = reads[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Benchmark
+    public void stringIndexOf(Blackhole bh) {
+        for (String read : reads) {
+            bh.consume(read.indexOf(danglingEnd) == 0);
+            int first = -1;
+            for (String junction : junctions) {
+                int i = read.indexOf(junction);
+                if (i >= 0 && (first < 0 || i < first)) {
+                    first = i;
+                }
+            }
+            bh.consume(first);
+        }
+    }
+
+    @Benchmark
+    public void multiPatternScanner(Blackhole bh) {
+        for (byte[] read : readBytes) {
+            boolean dangling = read.length >= danglingEndBytes.length;
+            for (int k = 0; dangling && k < danglingEndBytes.length; k++) {
+                dangling = read[k] == danglingEndBytes[k];
+            }
+            bh.consume(dangling);
+            bh.consume(scanner.findFirst(read, 0, read.length));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LigationJunctionScanBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,133 @@
+package org.jax.diachromatic.benchmark;
+
+import htsjdk.samtools.*;
+import org.jax.diachromatic.align.*;
+import org.jax.diachromatic.count.Counter;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-pair work of the align step (categorization of a {@link ReadPair} and {@link AlignmentCounts}) and
+ * of the count step (orientation of a {@link ReadPair} and {@link Counter#incrementDigestPair(DigestPair, ReadPair)})
+ * for simulated read pairs on three chromosomes. Run with the GC profiler to see the allocations per read pair
+ * ({@code gc.alloc.rate.norm} divided by {@link #PAIR_NUMBER}):
+ * {@code java -cp target/test-classes:<test classpath> org.jax.diachromatic.benchmark.ReadPairBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1)
+@State(Scope.Benchmark)
+public class ReadPairBenchmark {
+
+    private static final int CHROMOSOME_NUMBER = 3;
+    private static final int CHROMOSOME_LENGTH = 1_000_000;
+    private static final int DIGEST_LENGTH = 1000;
+    static final int PAIR_NUMBER = 100_000;
+
+    /** Duplicate filter that does not find duplicates, so that all pairs are categorized. */
+    private static final DuplicateFilter NO_DUPLICATES = new DuplicateFilter() {
+        @Override
+        public boolean hasSeen(ReadPair readPair) {
+            return false;
+        }
+
+        @Override
+        public int getNumOfInsertions() {
+            return 0;
+        }
+
+        @Override
+        public long getMemoryFootprint() {
+            return 0;
+        }
+    };
+
+    private DigestMap digestMap;
+    private SAMRecord[] records1, records2;
+    private Counter counter;
+
+    @Setup
+    public void setup() throws DiachromaticException {
+        List<Digest> digests = new ArrayList<>();
+        SAMFileHeader header = new SAMFileHeader();
+        for (int c = 1; c <= CHROMOSOME_NUMBER; c++) {
+            header.addSequence(new SAMSequenceRecord("chr" + c, CHROMOSOME_LENGTH));
+            for (int start = 1, n = 1; start < CHROMOSOME_LENGTH; start += DIGEST_LENGTH, n++) {
+                digests.add(new Digest(new String[]{"chr" + c, Integer.toString(start),
+                        Integer.toString(start + DIGEST_LENGTH - 1), Integer.toString(n), "HindIII", "HindIII",
+                        Integer.toString(DIGEST_LENGTH), "0.4", "0.4", "0.0", "0.0", n % 10 == 0 ? "T" : "F", "0", "0"}));
+            }
+        }
+        digestMap = new DigestMap(digests);
+        Random random = new Random(42);
+        records1 = new SAMRecord[PAIR_NUMBER];
+        records2 = new SAMRecord[PAIR_NUMBER];
+        for (int i = 0; i < PAIR_NUMBER; i++) {
+            records1[i] = randomRecord(header, random, "read" + i);
+            // half of the pairs are close to each other on the same chromosome
+            records2[i] = random.nextBoolean() ? randomRecord(header, random, "read" + i) :
+                    nearbyRecord(header, random, "read" + i, records1[i]);
+        }
+        SamReader reader = SamReaderFactory.makeDefault().open(SamInputResource.of(new ByteArrayInputStream(new byte[0])));
+        counter = new Counter(reader, digestMap, "benchmark", false);
+    }
+
+    private static SAMRecord randomRecord(SAMFileHeader header, Random random, String name) {
+        return record(header, random, name, random.nextInt(CHROMOSOME_NUMBER), 1 + random.nextInt(CHROMOSOME_LENGTH - 100));
+    }
+
+    private static SAMRecord nearbyRecord(SAMFileHeader header, Random random, String name, SAMRecord other) {
+        int start = Math.max(1, Math.min(CHROMOSOME_LENGTH - 100, other.getAlignmentStart() + random.nextInt(4000) - 2000));
+        return record(header, random, name, other.getReferenceIndex(), start);
+    }
+
+    private static SAMRecord record(SAMFileHeader header, Random random, String name, int refIndex, int start) {
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReferenceIndex(refIndex);
+        record.setAlignmentStart(start);
+        record.setReadNegativeStrandFlag(random.nextBoolean());
+        record.setMappingQuality(42);
+        record.setCigarString("50M");
+        record.setReadString("ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC");
+        record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+        record.setAttribute("AS", 0);
+        return record;
+    }
+
+    /** Categorize and count all read pairs as in the align step. */
+    @Benchmark
+    public AlignmentCounts align() throws Exception {
+        AlignmentCounts counts = new AlignmentCounts();
+        for (int i = 0; i < PAIR_NUMBER; i++) {
+            counts.count(new ReadPair(records1[i], records2[i], digestMap, false), NO_DUPLICATES);
+        }
+        return counts;
+    }
+
+    /** Determine the orientation and the digest pair of all read pairs and count them as in the count step. */
+    @Benchmark
+    public Counter count() {
+        for (int i = 0; i < PAIR_NUMBER; i++) {
+            ReadPair readPair = new ReadPair(records1[i], records2[i], digestMap);
+            readPair.setRelativeOrientation();
+            counter.incrementDigestPair(readPair.getDigestPair(), readPair);
+        }
+        return counter;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ReadPairBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+    }
+}
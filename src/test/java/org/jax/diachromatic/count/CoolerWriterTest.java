@@ -0,0 +1,160 @@
+package org.jax.diachromatic.count;
+
+import io.jhdf.HdfFile;
+import io.jhdf.api.Dataset;
+import io.jhdf.api.Group;
+import org.jax.diachromatic.align.Digest;
+import org.jax.diachromatic.align.DigestMap;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoolerWriterTest {
+
+    private static final String[] CHROMOSOMES = {"chr2", "chr1", "chrX"};
+    private static final int[] RESOLUTIONS = {5000, 1000, 20_000};
+
+    @TempDir
+    static Path tempDir;
+    private static DigestMap digestMap;
+    private static DigestPairCountTable table;
+
+    private static Digest digest(String chromosome, int start, int end) throws DiachromaticException {
+        return new Digest(new String[]{chromosome, Integer.toString(start), Integer.toString(end), "1", "HindIII",
+                "HindIII", Integer.toString(end - start + 1), "0.4", "0.4", "0.0", "0.0", "F", "0", "0"});
+    }
+
+    /** Digests of random lengths, and random interactions in the order of the first read pair. */
+    @BeforeAll
+    static void setup() throws DiachromaticException {
+        Random random = new Random(42);
+        List<Digest> digests = new ArrayList<>();
+        for (String chromosome : CHROMOSOMES) {
+            int start = 1;
+            for (int i = 0; i < 100; i++) {
+                int end = start + 50 + random.nextInt(1500);
+                digests.add(digest(chromosome, start, end));
+                start = end + 1;
+            }
+        }
+        digestMap = new DigestMap(digests);
+        table = new DigestPairCountTable();
+        for (int i = 0; i < 20_000; i++) {
+            int digest1 = random.nextInt(digests.size());
+            int digest2 = random.nextBoolean() ? Math.min(digests.size() - 1, digest1 + random.nextInt(10)) :
+                    random.nextInt(digests.size());
+            table.increment(digest1, digest2, random.nextInt(DigestPairCountTable.COUNTER_NUM));
+        }
+        table.orderDigests(Math::min);
+        table.sort();
+    }
+
+    private static int center(Digest digest) {
+        return digest.getDigestStartPosition() + ((digest.getDigestEndPosition() - digest.getDigestStartPosition()) / 2);
+    }
+
+    /**
+     * Check a cooler against the sums of the interaction counts in the bins of the digests.
+     *
+     * @param binSize size of the bins, or 0 for one bin per digest
+     */
+    private static void assertMatrix(Group cooler, int binSize) {
+        int[] binChromosomes = (int[]) ((Dataset) cooler.getByPath("bins/chrom")).getData();
+        int[] binStarts = (int[]) ((Dataset) cooler.getByPath("bins/start")).getData();
+        int[] binEnds = (int[]) ((Dataset) cooler.getByPath("bins/end")).getData();
+        long[] chromosomeOffsets = (long[]) ((Dataset) cooler.getByPath("indexes/chrom_offset")).getData();
+        assertArrayEquals(CHROMOSOMES, (String[]) ((Dataset) cooler.getByPath("chroms/name")).getData());
+        // bin of each digest
+        int[] digestBins = new int[digestMap.getNumOfDigests()];
+        for (int d = 0; d < digestBins.length; d++) {
+            Digest digest = digestMap.getDigest(d);
+            int c = Arrays.asList(CHROMOSOMES).indexOf(digest.getChromosome());
+            if (binSize == 0) {
+                digestBins[d] = d;
+                assertEquals(digest.getDigestStartPosition() - 1, binStarts[d]);
+                assertEquals(digest.getDigestEndPosition(), binEnds[d]);
+            } else {
+                digestBins[d] = (int) chromosomeOffsets[c] + (center(digest) - 1) / binSize;
+                assertTrue(binStarts[digestBins[d]] < center(digest) && center(digest) <= binEnds[digestBins[d]]);
+            }
+            assertEquals(c, binChromosomes[digestBins[d]]);
+        }
+        Map<List<Long>, Integer> expected = new HashMap<>();
+        long sum = 0;
+        for (int i = 0; i < table.size(); i++) {
+            long bin1 = digestBins[table.getDigest1(i)];
+            long bin2 = digestBins[table.getDigest2(i)];
+            expected.merge(List.of(Math.min(bin1, bin2), Math.max(bin1, bin2)), table.getTotalCount(i), Integer::sum);
+            sum += table.getTotalCount(i);
+        }
+
+        long[] bin1 = (long[]) ((Dataset) cooler.getByPath("pixels/bin1_id")).getData();
+        long[] bin2 = (long[]) ((Dataset) cooler.getByPath("pixels/bin2_id")).getData();
+        int[] counts = (int[]) ((Dataset) cooler.getByPath("pixels/count")).getData();
+        long[] bin1Offsets = (long[]) ((Dataset) cooler.getByPath("indexes/bin1_offset")).getData();
+        Map<List<Long>, Integer> pixels = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            // upper triangle, sorted by the first and then the second bin
+            assertTrue(bin1[i] <= bin2[i]);
+            if (i > 0) {
+                assertTrue(bin1[i - 1] < bin1[i] || bin1[i - 1] == bin1[i] && bin2[i - 1] < bin2[i]);
+            }
+            assertTrue(bin1Offsets[(int) bin1[i]] <= i && i < bin1Offsets[(int) bin1[i] + 1]);
+            pixels.put(List.of(bin1[i], bin2[i]), counts[i]);
+        }
+        assertEquals(expected, pixels);
+        assertEquals(binStarts.length + 1, bin1Offsets.length);
+        assertEquals((long) counts.length, cooler.getAttribute("nnz").getData());
+        assertEquals(sum, cooler.getAttribute("sum").getData());
+        assertEquals((long) binStarts.length, cooler.getAttribute("nbins").getData());
+        assertEquals("HDF5::Cooler", cooler.getAttribute("format").getData());
+    }
+
+    @Test
+    void testFragmentMatrix() throws IOException {
+        File file = tempDir.resolve("test.cool").toFile();
+        new CoolerWriter(digestMap).writeFragmentMatrix(file, table);
+        try (HdfFile hdf = new HdfFile(file.toPath())) {
+            assertEquals("variable", hdf.getAttribute("bin-type").getData());
+            assertMatrix(hdf, 0);
+        }
+    }
+
+    /** The matrices of the resolutions are the same when they are aggregated in parallel. */
+    @Test
+    void testMultiResolutionMatrix() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (ExecutorService e : Arrays.asList(null, executor)) {
+                File file = tempDir.resolve(e == null ? "serial.mcool" : "parallel.mcool").toFile();
+                new CoolerWriter(digestMap).writeMultiResolutionMatrix(file, table, RESOLUTIONS, e);
+                try (HdfFile hdf = new HdfFile(file.toPath())) {
+                    assertEquals("HDF5::MCOOL", hdf.getAttribute("format").getData());
+                    for (int resolution : RESOLUTIONS) {
+                        Group cooler = (Group) hdf.getByPath("resolutions/" + resolution);
+                        assertEquals((long) resolution, cooler.getAttribute("bin-size").getData());
+                        assertMatrix(cooler, resolution);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testUnsortedDigests() throws DiachromaticException {
+        DigestMap unsorted = new DigestMap(List.of(digest("chr1", 1001, 2000), digest("chr1", 1, 1000)));
+        assertThrows(IOException.class, () -> new CoolerWriter(unsorted));
+    }
+}
@@ -0,0 +1,250 @@
+package org.jax.diachromatic.count;
+
+import htsjdk.samtools.*;
+import htsjdk.tribble.readers.TabixReader;
+import org.jax.diachromatic.align.Digest;
+import org.jax.diachromatic.align.DigestMap;
+import org.jax.diachromatic.align.DigestPair;
+import org.jax.diachromatic.align.ReadPair;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.jax.diachromatic.util.LightweightBAMReader;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CounterTest {
+
+    private static final int CHROMOSOME_NUMBER = 3;
+    private static final int CHROMOSOME_LENGTH = 300_000;
+    private static final int DIGEST_LENGTH = 1000;
+    /** More than two batches of the parallel counting mode. */
+    private static final int PAIR_NUMBER = 150_000;
+    private static final String[] OUTPUT_SUFFIXES = {"interaction.counts.table.tsv",
+            "interaction.counts.washU.simple.tsv", "interacting.fragments.counts.table.tsv", "count.stats.txt"};
+
+    private static SAMFileHeader header;
+    private static DigestMap digestMap;
+
+    @TempDir
+    static Path tempDir;
+    private static File bam;
+    private static File sortedBam;
+
+    /**
+     * The digests of all chromosomes have the same start positions, so that the order of the digests of trans
+     * interactions depends on the first read pair.
+     */
+    @BeforeAll
+    static void setup() throws DiachromaticException, IOException {
+        header = new SAMFileHeader();
+        List<Digest> digests = new ArrayList<>();
+        for (int c = 1; c <= CHROMOSOME_NUMBER; c++) {
+            header.addSequence(new SAMSequenceRecord("chr" + c, CHROMOSOME_LENGTH));
+            for (int start = 1, n = 1; start < CHROMOSOME_LENGTH; start += DIGEST_LENGTH, n++) {
+                digests.add(new Digest(new String[]{"chr" + c, Integer.toString(start),
+                        Integer.toString(start + DIGEST_LENGTH - 1), Integer.toString(n), "HindIII", "HindIII",
+                        Integer.toString(DIGEST_LENGTH), "0.4", "0.4", "0.0", "0.0", n % 10 == 0 ? "T" : "F", "0", "0"}));
+            }
+        }
+        digestMap = new DigestMap(digests);
+        bam = tempDir.resolve("valid_pairs.bam").toFile();
+        sortedBam = tempDir.resolve("valid_pairs.sorted.bam").toFile();
+        SAMFileHeader sortedHeader = header.clone();
+        sortedHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        Random random = new Random(42);
+        try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bam);
+             SAMFileWriter sortedWriter = new SAMFileWriterFactory().setCreateIndex(true)
+                     .makeBAMWriter(sortedHeader, false, sortedBam)) {
+            for (int i = 0; i < PAIR_NUMBER; i++) {
+                SAMRecord r1 = record(random, "read" + i);
+                SAMRecord r2 = record(random, "read" + i);
+                r1.setFirstOfPairFlag(true);
+                r2.setSecondOfPairFlag(true);
+                // with the MC tags, as written by align
+                SamPairUtil.setMateInfo(r1, r2, true);
+                writer.addAlignment(r1);
+                writer.addAlignment(r2);
+                sortedWriter.addAlignment(r1);
+                sortedWriter.addAlignment(r2);
+            }
+        }
+    }
+
+    private static SAMRecord record(Random random, String name) {
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReferenceIndex(random.nextInt(CHROMOSOME_NUMBER));
+        record.setAlignmentStart(1 + random.nextInt(500) * 503);
+        record.setReadNegativeStrandFlag(random.nextBoolean());
+        record.setReadPairedFlag(true);
+        record.setCigarString(random.nextBoolean() ? "50M" : "20M5D30M");
+        record.setReadString("A".repeat(50));
+        record.setBaseQualityString("I".repeat(50));
+        return record;
+    }
+
+    private static void count(Counter counter) throws IOException {
+        counter.countInteractions();
+        counter.printCountTables();
+        counter.printStatistics();
+    }
+
+    private static void assertSameOutput(String prefix1, String prefix2) throws IOException {
+        assertSameOutput(prefix1, prefix2, OUTPUT_SUFFIXES);
+    }
+
+    private static void assertSameOutput(String prefix1, String prefix2, String... suffixes) throws IOException {
+        for (String suffix : suffixes) {
+            List<String> lines1 = Files.readAllLines(tempDir.resolve(prefix1 + "." + suffix));
+            List<String> lines2 = Files.readAllLines(tempDir.resolve(prefix2 + "." + suffix));
+            assertFalse(lines1.isEmpty());
+            assertEquals(lines1, lines2, suffix);
+        }
+    }
+
+    /** Counting with htsjdk, with the lightweight decoder and with several threads gives the same results. */
+    @Test
+    void testSameResults() throws IOException {
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            count(new Counter(reader, digestMap, tempDir.resolve("htsjdk").toString(), true));
+        }
+        try (LightweightBAMReader reader = new LightweightBAMReader(bam)) {
+            count(new Counter(reader, digestMap, tempDir.resolve("lightweight").toString(), true));
+        }
+        assertSameOutput("htsjdk", "lightweight");
+        for (int threadNum : new int[]{2, 3}) {
+            ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+            try (LightweightBAMReader reader = new LightweightBAMReader(bam, executor, threadNum)) {
+                Counter counter = new Counter(reader, digestMap, tempDir.resolve("parallel" + threadNum).toString(), true);
+                counter.setThreads(executor, threadNum);
+                count(counter);
+            } finally {
+                executor.shutdownNow();
+            }
+            assertSameOutput("htsjdk", "parallel" + threadNum);
+        }
+        List<String> stats = Files.readAllLines(tempDir.resolve("htsjdk.count.stats.txt"));
+        assertTrue(stats.contains("total_read_pairs_ processed:" + PAIR_NUMBER));
+    }
+
+    /**
+     * The lines of the interaction counts are those of a {@code HashMap<DigestPair,SimpleTwistedCount>} with the
+     * digest pair of the first read pair as key, printed with {@link org.jax.diachromatic.align.DigestPair#toString()},
+     * also for trans interactions between digests with the same start position.
+     */
+    @Test
+    void testDigestOrderOfFirstReadPair() throws IOException {
+        Map<List<Integer>, DigestPair> firstPairs = new HashMap<>();
+        Map<List<Integer>, Integer> counts = new HashMap<>();
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            Iterator<SAMRecord> it = reader.iterator();
+            while (it.hasNext()) {
+                DigestPair dp = new ReadPair(it.next(), it.next(), digestMap).getDigestPair();
+                int index1 = dp.forward().getIndex();
+                int index2 = dp.reverse().getIndex();
+                List<Integer> key = List.of(Math.min(index1, index2), Math.max(index1, index2));
+                firstPairs.putIfAbsent(key, dp);
+                counts.merge(key, 1, Integer::sum);
+            }
+        }
+        Set<String> expected = new HashSet<>();
+        int ties = 0;
+        for (Map.Entry<List<Integer>, DigestPair> e : firstPairs.entrySet()) {
+            DigestPair dp = e.getValue();
+            expected.add(dp + "\t" + counts.get(e.getKey()));
+            if (dp.forward().getDigestStartPosition() == dp.reverse().getDigestStartPosition() &&
+                    !dp.forward().getChromosome().equals(dp.reverse().getChromosome())) {
+                ties++;
+            }
+        }
+        assertTrue(ties > 0);
+        try (LightweightBAMReader reader = new LightweightBAMReader(bam)) {
+            count(new Counter(reader, digestMap, tempDir.resolve("order").toString(), false));
+        }
+        List<String> lines = Files.readAllLines(tempDir.resolve("order.interaction.counts.table.tsv"));
+        assertEquals(expected.size(), lines.size());
+        assertEquals(expected, new HashSet<>(lines));
+    }
+
+    /**
+     * A coordinate-sorted BAM file gives the same statistics and fragment counts as the unsorted BAM file, and the same
+     * results with any number of threads. Only the order of digests with the same start position in the interaction
+     * tables may differ from the unsorted BAM file, as it is the order of the first read pair.
+     */
+    @Test
+    void testSortedByRegion() throws IOException {
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            count(new Counter(reader, digestMap, tempDir.resolve("unsorted").toString(), false));
+        }
+        count(new Counter(sortedBam, digestMap, tempDir.resolve("sorted").toString(), false));
+        assertSameOutput("unsorted", "sorted", "count.stats.txt", "interacting.fragments.counts.table.tsv");
+        int threadNum = 3;
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        try {
+            Counter counter = new Counter(sortedBam, digestMap, tempDir.resolve("sorted" + threadNum).toString(), false);
+            counter.setThreads(executor, threadNum);
+            count(counter);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertSameOutput("sorted", "sorted" + threadNum);
+    }
+
+    /**
+     * The bgzipped tables have the same lines as the text files, and their tabix indices find the lines of a region.
+     */
+    @Test
+    void testBgzipOutput() throws IOException {
+        try (LightweightBAMReader reader = new LightweightBAMReader(bam)) {
+            count(new Counter(reader, digestMap, tempDir.resolve("text").toString(), false));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (LightweightBAMReader reader = new LightweightBAMReader(bam)) {
+            Counter counter = new Counter(reader, digestMap, tempDir.resolve("bgzip").toString(), false);
+            counter.setBgzipOutput(executor, 2);
+            count(counter);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertSameOutput("text", "bgzip", "count.stats.txt", "interaction.counts.washU.simple.tsv");
+        for (String suffix : new String[]{"interaction.counts.table.tsv", "interacting.fragments.counts.table.tsv"}) {
+            Path text = tempDir.resolve("text." + suffix);
+            Path compressed = tempDir.resolve("bgzip." + suffix + ".gz");
+            List<String> lines = Files.readAllLines(text);
+            List<String> decompressed = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(compressed))))) {
+                br.lines().forEach(decompressed::add);
+            }
+            assertEquals(lines, decompressed);
+            // lines of chr2 that overlap the region 100,000-150,000
+            List<String> expected = new ArrayList<>();
+            for (String line : lines) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals("chr2") && Integer.parseInt(fields[2]) >= 100_000 && Integer.parseInt(fields[1]) <= 150_000) {
+                    expected.add(line);
+                }
+            }
+            assertFalse(expected.isEmpty());
+            assertTrue(Files.exists(Path.of(compressed + ".tbi")));
+            TabixReader tabix = new TabixReader(compressed.toString());
+            // the start of the query is 0-based
+            TabixReader.Iterator it = tabix.query("chr2", 100_000 - 1, 150_000);
+            List<String> found = new ArrayList<>();
+            for (String line = it.next(); line != null; line = it.next()) {
+                found.add(line);
+            }
+            tabix.close();
+            assertEquals(expected, found);
+        }
+    }
+}
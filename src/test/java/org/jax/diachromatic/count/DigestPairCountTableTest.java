@@ -0,0 +1,125 @@
+package org.jax.diachromatic.count;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DigestPairCountTableTest {
+
+    /** Compare the counts with a map whose keys are the digest pairs with the lower index first. */
+    @Test
+    void testSameCountsAsMap() {
+        Random random = new Random(42);
+        DigestPairCountTable table = new DigestPairCountTable();
+        Map<List<Integer>, int[]> expected = new HashMap<>();
+        Map<List<Integer>, List<Integer>> firstOrder = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            int digest1 = random.nextInt(2000);
+            int digest2 = random.nextBoolean() ? digest1 + random.nextInt(20) : random.nextInt(2000);
+            int counter = random.nextInt(DigestPairCountTable.COUNTER_NUM);
+            List<Integer> key = List.of(Math.min(digest1, digest2), Math.max(digest1, digest2));
+            boolean isNew = !expected.containsKey(key);
+            assertEquals(isNew, table.increment(digest1, digest2, counter));
+            expected.computeIfAbsent(key, k -> new int[DigestPairCountTable.COUNTER_NUM])[counter]++;
+            firstOrder.putIfAbsent(key, List.of(digest1, digest2));
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<List<Integer>, int[]> e : expected.entrySet()) {
+            int position = table.find(e.getKey().get(1), e.getKey().get(0));
+            assertTrue(position >= 0);
+            for (int c = 0; c < DigestPairCountTable.COUNTER_NUM; c++) {
+                assertEquals(e.getValue()[c], table.getCount(position, c));
+            }
+        }
+        assertEquals(-1, table.find(5000, 1));
+
+        table.sort();
+        List<List<Integer>> keys = new ArrayList<>(expected.keySet());
+        // sorted by the digests in the order of the first read pair
+        keys.sort(Comparator.<List<Integer>>comparingInt(k -> firstOrder.get(k).get(0)).thenComparingInt(k -> firstOrder.get(k).get(1)));
+        for (int i = 0; i < keys.size(); i++) {
+            List<Integer> key = keys.get(i);
+            // the digests are returned in the order of the first read pair
+            assertEquals(firstOrder.get(key), List.of(table.getDigest1(i), table.getDigest2(i)));
+            assertEquals(Arrays.stream(expected.get(key)).sum(), table.getTotalCount(i));
+            assertEquals(i, table.find(key.get(0), key.get(1)));
+            assertEquals(i, table.find(key.get(1), key.get(0)));
+        }
+        assertEquals(-1, table.find(5000, 1));
+        assertThrows(IllegalStateException.class, () -> table.increment(1, 2, 0));
+    }
+
+    /** After {@link DigestPairCountTable#orderDigests}, the pairs are sorted in the new order of their digests. */
+    @Test
+    void testOrderDigests() {
+        Random random = new Random(7);
+        DigestPairCountTable table = new DigestPairCountTable();
+        for (int i = 0; i < 10_000; i++) {
+            table.increment(random.nextInt(500), random.nextInt(500), random.nextInt(DigestPairCountTable.COUNTER_NUM));
+        }
+        int n = table.size();
+        table.sort();
+        int[] totals = new int[n];
+        int[][] digests = new int[n][];
+        for (int i = 0; i < n; i++) {
+            totals[i] = table.getTotalCount(i);
+            digests[i] = new int[]{table.getDigest1(i), table.getDigest2(i)};
+        }
+        // odd digests first, otherwise the higher digest first
+        table.orderDigests((d1, d2) -> d1 % 2 != d2 % 2 ? (d1 % 2 == 1 ? d1 : d2) : Math.max(d1, d2));
+        assertEquals(n, table.size());
+        for (int i = 0; i < n; i++) {
+            int d1 = table.getDigest1(i);
+            int d2 = table.getDigest2(i);
+            assertTrue(d1 % 2 == 1 || d2 % 2 == 0);
+            assertTrue(d1 % 2 != d2 % 2 || d1 >= d2);
+            if (i > 0) {
+                int previous1 = table.getDigest1(i - 1);
+                assertTrue(previous1 < d1 || previous1 == d1 && table.getDigest2(i - 1) < d2);
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            int position = table.find(digests[j][0], digests[j][1]);
+            assertTrue(position >= 0);
+            assertEquals(position, table.find(digests[j][1], digests[j][0]));
+            assertEquals(totals[j], table.getTotalCount(position));
+        }
+    }
+
+    /**
+     * {@link DigestPairCountTable#orderDigests} passes the digests in their current order, so that the order of the
+     * first read pair can be kept for digests that are not distinguished (e.g., with the same start position).
+     */
+    @Test
+    void testOrderDigestsCurrentOrder() {
+        DigestPairCountTable table = new DigestPairCountTable();
+        table.increment(5, 2, 0);
+        table.increment(1, 3, 0);
+        table.increment(2, 5, 1);
+        // keep the order of the first read pair
+        table.orderDigests((d1, d2) -> d1);
+        table.sort();
+        assertEquals(List.of(1, 3), List.of(table.getDigest1(0), table.getDigest2(0)));
+        assertEquals(List.of(5, 2), List.of(table.getDigest1(1), table.getDigest2(1)));
+        assertEquals(2, table.getTotalCount(1));
+        // swap all pairs
+        table.orderDigests((d1, d2) -> d2);
+        assertEquals(List.of(2, 5), List.of(table.getDigest1(0), table.getDigest2(0)));
+        assertEquals(List.of(3, 1), List.of(table.getDigest1(1), table.getDigest2(1)));
+    }
+
+    /** The table needs less memory than a {@code HashMap<DigestPair,SimpleTwistedCount>}. */
+    @Test
+    void testMemoryFootprint() {
+        DigestPairCountTable table = new DigestPairCountTable();
+        int n = 100_000;
+        for (int i = 0; i < n; i++) {
+            table.increment(i, i + 1, 0);
+        }
+        long bytesPerPair = table.getMemoryFootprint() / n;
+        assertTrue(bytesPerPair >= 32 && bytesPerPair <= 64, Long.toString(bytesPerPair));
+        assertTrue(bytesPerPair < DigestPairCountTable.HASH_MAP_BYTES_PER_PAIR);
+    }
+}
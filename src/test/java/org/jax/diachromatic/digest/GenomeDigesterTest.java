@@ -0,0 +1,140 @@
+package org.jax.diachromatic.digest;
+
+import org.jax.diachromatic.align.DigestMap;
+import org.jax.diachromatic.exception.DiachromaticException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Digests the soft-masked sequence chrUn_KI270745v1 (41,891 bp) of hg38.
+ */
+class GenomeDigesterTest {
+
+    @TempDir
+    static File tmpDir;
+
+    private static File fastaFile;
+    /** The sequence of chrUn_KI270745v1. */
+    private static String sequence;
+    private static final RestrictionEnzyme dpnII = new RestrictionEnzyme("DpnII", "^GATC");
+    private static final RestrictionEnzyme hindIII = new RestrictionEnzyme("HindIII", "A^AGCTT");
+
+    @BeforeAll
+    static void init() throws IOException {
+        URL url = GenomeDigesterTest.class.getClassLoader().getResource("data/chrUn_KI270745v1.fa");
+        if (url == null) {
+            throw new FileNotFoundException("Could not find data/chrUn_KI270745v1.fa");
+        }
+        fastaFile = new File(url.getFile());
+        List<String> lines = Files.readAllLines(fastaFile.toPath());
+        sequence = String.join("", lines.subList(1, lines.size()));
+    }
+
+    private static List<String> digest(File fasta, List<RestrictionEnzyme> enzymes, int threadNum, String name)
+            throws DiachromaticException, IOException {
+        File output = new File(tmpDir, name);
+        new GenomeDigester(enzymes, GenomeDigester.DEFAULT_MARGIN_SIZE, threadNum).digest(fasta.getAbsolutePath(), output.getAbsolutePath());
+        return Files.readAllLines(output.toPath());
+    }
+
+    @Test
+    void testDigestWithDpnII() throws DiachromaticException, IOException {
+        List<String> lines = digest(fastaFile, List.of(dpnII), 1, "dpnII.txt");
+        assertEquals(GenomeDigester.HEADER, lines.get(0));
+        // the sequence starts with GATC, where DpnII cuts before the first base, which does not give a digest
+        int siteNum = 0;
+        for (int i = sequence.toUpperCase().indexOf("GATC", 1); i >= 0; i = sequence.toUpperCase().indexOf("GATC", i + 1)) {
+            siteNum++;
+        }
+        assertEquals(siteNum + 1, lines.size() - 1);
+        // the digests cover the sequence without gaps
+        int expectedStart = 1;
+        for (int i = 1; i < lines.size(); i++) {
+            String[] fields = lines.get(i).split("\t");
+            assertEquals(14, fields.length);
+            assertEquals("chrUn_KI270745v1", fields[0]);
+            assertEquals(expectedStart, Integer.parseInt(fields[1]));
+            assertEquals(i, Integer.parseInt(fields[3]));
+            assertEquals(i == 1 ? "None" : "DpnII", fields[4]);
+            assertEquals(i == lines.size() - 1 ? "None" : "DpnII", fields[5]);
+            int end = Integer.parseInt(fields[2]);
+            assertEquals(end - expectedStart + 1, Integer.parseInt(fields[6]));
+            if (i < lines.size() - 1) {
+                assertEquals("GATC", sequence.substring(end, end + 4).toUpperCase());
+            }
+            expectedStart = end + 1;
+        }
+        assertEquals(sequence.length() + 1, expectedStart);
+        // GC and repeat content of the 5' margin of the second digest
+        String[] fields = lines.get(2).split("\t");
+        int start = Integer.parseInt(fields[1]);
+        int end = Math.min(Integer.parseInt(fields[2]), start + 249);
+        String margin = sequence.substring(start - 1, end);
+        long gc = margin.chars().filter(c -> "GCgc".indexOf(c) >= 0).count();
+        long repeat = margin.chars().filter(Character::isLowerCase).count();
+        assertEquals(String.format(Locale.ROOT, "%.3f", (double) gc / margin.length()), fields[7]);
+        assertEquals(String.format(Locale.ROOT, "%.3f", (double) repeat / margin.length()), fields[9]);
+        // the digest file can be read
+        assertEquals(siteNum + 1, new DigestMap(new File(tmpDir, "dpnII.txt").getAbsolutePath()).getNumOfDigests());
+    }
+
+    /** Several chromosomes, compressed input and several threads give the same digests. */
+    @Test
+    void testCompressedMultiChromosomeInput() throws DiachromaticException, IOException {
+        List<RestrictionEnzyme> enzymes = List.of(dpnII, hindIII);
+        List<String> single = digest(fastaFile, enzymes, 1, "single.txt");
+        File gzipped = new File(tmpDir, "two.fa.gz");
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(gzipped)), StandardCharsets.US_ASCII)) {
+            for (String name : List.of("first", "second")) {
+                writer.write(">" + name + " description\r\n");
+                for (int i = 0; i < sequence.length(); i += 60) {
+                    writer.write(sequence.substring(i, Math.min(sequence.length(), i + 60)) + "\r\n");
+                }
+            }
+        }
+        List<String> lines = digest(gzipped, enzymes, 2, "two.txt");
+        assertEquals(2 * single.size() - 1, lines.size());
+        for (int i = 1; i < single.size(); i++) {
+            String expected = single.get(i).substring(single.get(i).indexOf('\t'));
+            assertEquals("first" + expected, lines.get(i));
+            assertEquals("second" + expected, lines.get(i + single.size() - 1));
+        }
+        assertTrue(single.stream().anyMatch(line -> line.contains("HindIII")));
+    }
+
+    /** Enzymes whose sites start at the same position both cut, not only the one with the longer site. */
+    @Test
+    void testSitesWithSameStart() {
+        RestrictionEnzyme shorter = new RestrictionEnzyme("Short", "AA^GC");
+        GenomeDigester digester = new GenomeDigester(List.of(hindIII, shorter), GenomeDigester.DEFAULT_MARGIN_SIZE, 1);
+        byte[] seq = "CCCAAGCTTCCCCAAGCCCCAAGCTT".getBytes(StandardCharsets.US_ASCII);
+        long[] cuts = digester.findCuts(seq, seq.length);
+        assertArrayEquals(new long[]{4L << 32, (5L << 32) | 1, (15L << 32) | 1, 21L << 32, (22L << 32) | 1}, cuts);
+    }
+
+    @Test
+    void testAppendFraction() {
+        StringBuilder sb = new StringBuilder();
+        GenomeDigester.appendFraction(sb, 1, 3);
+        sb.append(' ');
+        GenomeDigester.appendFraction(sb, 1, 8); // 0.125
+        sb.append(' ');
+        GenomeDigester.appendFraction(sb, 1, 2000); // 0.0005 is rounded up
+        sb.append(' ');
+        GenomeDigester.appendFraction(sb, 7, 7);
+        sb.append(' ');
+        GenomeDigester.appendFraction(sb, 0, 0);
+        assertEquals("0.333 0.125 0.001 1.000 0.000", sb.toString());
+    }
+}
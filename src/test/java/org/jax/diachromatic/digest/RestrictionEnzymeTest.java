@@ -33,11 +33,11 @@ class RestrictionEnzymeTest {
 
     /*
      * $ grep -v '#' enzymelist.tab | wc -l
-     * 15
+     * 18
      */
     @Test
     void testGetAllEnzymesFromFile() {
-        assertEquals(15,reList.size());
+        assertEquals(18,reList.size());
     }
 
     @Test
@@ -2,12 +2,24 @@ package org.jax.diachromatic.truncation;
 
 import org.jax.diachromatic.digest.RestrictionEnzyme;
 import org.jax.diachromatic.exception.DiachromaticException;
-import org.jax.diachromatic.util.Pair;
+import org.jax.diachromatic.util.MultiPatternScanner;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 
@@ -128,17 +140,24 @@ class TruncatorTest {
     void testTruncationCount() throws DiachromaticException{
         RestrictionEnzyme hindIII = new RestrictionEnzyme("HindIII","A^AGCTT");
         String ligationSequence = Truncator.fillEnd(hindIII);
-        PotentiallyTruncatedFastQRecord.setLigationSequence(ligationSequence);
-        PotentiallyTruncatedFastQRecord.setRestrictionSequence(hindIII.getPlainSite());
-        PotentiallyTruncatedFastQRecord.setDanglingSequence(hindIII.getDanglingEndSequence());
+        Truncator truncator = new Truncator(fastq_1, fastq_2, hindIII, false, "test");
         parser=new FastqPairParser(fastq_1,fastq_2,ligationSequence);
-        while (parser.hasNextPair()) {
-            Pair<PotentiallyTruncatedFastQRecord, PotentiallyTruncatedFastQRecord> pair = parser.getNextPair();
-            PotentiallyTruncatedFastQRecord fqr1=pair.first;
-            PotentiallyTruncatedFastQRecord fqr2=pair.second;
+        FastqRecordBatch reads1 = new FastqRecordBatch();
+        FastqRecordBatch reads2 = new FastqRecordBatch();
+        int nReadOneTruncated = 0;
+        int nReadTwoTruncated = 0;
+        while (parser.readBatch(reads1, reads2, 5) > 0) {
+            for (int i = 0; i < reads1.size(); i++) {
+                if (truncator.truncateIfLigationSiteFound(reads1, i)) {
+                    nReadOneTruncated++;
+                }
+                if (truncator.truncateIfLigationSiteFound(reads2, i)) {
+                    nReadTwoTruncated++;
+                }
+            }
         }
-        assertEquals(3,parser.getReadOneTruncated());
-        assertEquals(0,parser.getReadTwoTruncated());
+        assertEquals(3,nReadOneTruncated);
+        assertEquals(0,nReadTwoTruncated);
     }
 
 
@@ -151,15 +170,212 @@ class TruncatorTest {
     void testReadsProcessed() throws DiachromaticException {
         RestrictionEnzyme hindIII = new RestrictionEnzyme("HindIII","A^AGCTT");
         String ligationSequence = Truncator.fillEnd(hindIII);
-        PotentiallyTruncatedFastQRecord.setLigationSequence(ligationSequence);
-        PotentiallyTruncatedFastQRecord.setRestrictionSequence(hindIII.getPlainSite());
-        PotentiallyTruncatedFastQRecord.setDanglingSequence(hindIII.getDanglingEndSequence());
         parser=new FastqPairParser(fastq_1,fastq_2,ligationSequence);
-        while (parser.hasNextPair()) {
-            Pair<PotentiallyTruncatedFastQRecord, PotentiallyTruncatedFastQRecord> pair = parser.getNextPair();
-            PotentiallyTruncatedFastQRecord fqr1=pair.first;
-            PotentiallyTruncatedFastQRecord fqr2=pair.second;
+        FastqRecordBatch reads1 = new FastqRecordBatch();
+        FastqRecordBatch reads2 = new FastqRecordBatch();
+        int nReadsProcessed = 0;
+        int n;
+        while ((n = parser.readBatch(reads1, reads2, 5)) > 0) {
+            nReadsProcessed += n;
+        }
+        assertEquals(12,nReadsProcessed);
+    }
+
+    /*
+    The read is truncated at the start of the ligation sequence AAGCTAGCTT, and the restriction site AAGCTT is
+    appended. The quality string is truncated to the same length.
+     */
+    @Test
+    void testTruncatedSequence() {
+        RestrictionEnzyme hindIII = new RestrictionEnzyme("HindIII","A^AGCTT");
+        Truncator truncator = new Truncator(fastq_1, fastq_2, hindIII, false, "test");
+        FastqRecordBatch reads = new FastqRecordBatch();
+        byte[] header = "read1".getBytes();
+        byte[] sequence = "CCCCCAAGCTAGCTTGGGGG".getBytes();
+        byte[] quality = "ABCDEFGHIJKLMNOPQRST".getBytes();
+        reads.startRecord();
+        reads.appendLine(header, 0, header.length, 0);
+        reads.appendLine(sequence, 0, sequence.length, 1);
+        reads.appendLine(quality, 0, quality.length, 2);
+        assertTrue(truncator.truncateIfLigationSiteFound(reads, 0));
+        assertEquals("CCCCCAAGCTT", reads.getSequence(0));
+        assertEquals("ABCDEFGHIJK", reads.getQuality(0));
+    }
+
+    /*
+    For a single enzyme, the only junction is the filled-in ligation sequence, and without fill-in it is the
+    restriction site itself.
+     */
+    @Test
+    void testSingleEnzymeJunctions() {
+        for (RestrictionEnzyme re : RestrictionEnzyme.parseRestrictionEnzymes()) {
+            List<LigationJunction> filled = LigationJunction.createJunctions(List.of(re), false);
+            assertEquals(1, filled.size());
+            assertEquals(Truncator.fillEnd(re), filled.get(0).getSequence());
+            List<LigationJunction> sticky = LigationJunction.createJunctions(List.of(re), true);
+            assertEquals(1, sticky.size());
+            assertEquals(re.getPlainSite(), sticky.get(0).getSequence());
+        }
+    }
+
+    /*
+    DpnII (^GATC) and HinfI (G^ANTC) produce the junctions GATC+GATC, GANT+ANTC and the hybrid junctions
+    GATC+ANTC and GANT+GATC.
+     */
+    @Test
+    void testHybridJunctions() {
+        RestrictionEnzyme dpnII = new RestrictionEnzyme("DpnII","^GATC");
+        RestrictionEnzyme hinfI = new RestrictionEnzyme("HinfI","G^ANTC");
+        List<String> junctions = LigationJunction.createJunctions(List.of(dpnII, hinfI), false).stream()
+                .map(LigationJunction::getSequence)
+                .collect(Collectors.toList());
+        assertEquals(List.of("GATCGATC", "GANTANTC", "GATCANTC", "GANTGATC"), junctions);
+    }
+
+    /*
+    HindIII (A^AGCTT) and DpnII (^GATC) have incompatible overhangs, BglII (A^GATCT) and DpnII have the same
+    overhang GATC. Without fill-in, only compatible ends can be ligated.
+     */
+    @Test
+    void testStickyHybridJunctions() {
+        RestrictionEnzyme dpnII = new RestrictionEnzyme("DpnII","^GATC");
+        RestrictionEnzyme hindIII = new RestrictionEnzyme("HindIII","A^AGCTT");
+        RestrictionEnzyme bglII = new RestrictionEnzyme("BglII","A^GATCT");
+        assertEquals(2, LigationJunction.createJunctions(List.of(dpnII, hindIII), true).size());
+        List<String> junctions = LigationJunction.createJunctions(List.of(dpnII, bglII), true).stream()
+                .map(LigationJunction::getSequence)
+                .collect(Collectors.toList());
+        assertEquals(List.of("GATC", "AGATCT", "GATCT", "AGATC"), junctions);
+    }
+
+    /*
+    A read with a HinfI-DpnII hybrid junction is truncated after the HinfI end, and the rest of the HinfI site is
+    appended: CCCCC + GATT + C.
+     */
+    @Test
+    void testTruncationAtHybridJunction() {
+        RestrictionEnzyme dpnII = new RestrictionEnzyme("DpnII","^GATC");
+        RestrictionEnzyme hinfI = new RestrictionEnzyme("HinfI","G^ANTC");
+        Truncator truncator = new Truncator(fastq_1, fastq_2, List.of(dpnII, hinfI), false, "test",
+                1, Truncator.DEFAULT_COMPRESSION_LEVEL, false);
+        FastqRecordBatch reads = new FastqRecordBatch();
+        byte[] header = "read1".getBytes();
+        byte[] sequence = "CCCCCGATTGATCGGGGG".getBytes();
+        byte[] quality = "ABCDEFGHIJKLMNOPQR".getBytes();
+        reads.startRecord();
+        reads.appendLine(header, 0, header.length, 0);
+        reads.appendLine(sequence, 0, sequence.length, 1);
+        reads.appendLine(quality, 0, quality.length, 2);
+        assertTrue(truncator.truncateIfLigationSiteFound(reads, 0));
+        assertEquals("CCCCCGATTC", reads.getSequence(0));
+        assertEquals("ABCDEFGHIJ", reads.getQuality(0));
+    }
+
+    private static FastqRecordBatch batchOf(String... sequences) {
+        FastqRecordBatch reads = new FastqRecordBatch();
+        for (int i = 0; i < sequences.length; i++) {
+            byte[] header = ("read" + i).getBytes();
+            byte[] sequence = sequences[i].getBytes();
+            byte[] quality = "I".repeat(sequences[i].length()).getBytes();
+            reads.startRecord();
+            reads.appendLine(header, 0, header.length, 0);
+            reads.appendLine(sequence, 0, sequence.length, 1);
+            reads.appendLine(quality, 0, quality.length, 2);
+        }
+        return reads;
+    }
+
+    /*
+    For junctions without ambiguity codes, a scanner that does not ignore case finds the same junctions as the byte
+    comparison that is used for a single junction (and was used for all junctions before), also for reads with lower
+    case bases and N.
+     */
+    @Test
+    void testScannerFindsSameJunctionsAsIndexOf() {
+        Random random = new Random(42);
+        for (RestrictionEnzyme re : RestrictionEnzyme.parseRestrictionEnzymes()) {
+            String junction = Truncator.fillEnd(re);
+            if (!junction.matches("[ACGT]+")) {
+                continue;
+            }
+            MultiPatternScanner scanner = new MultiPatternScanner(List.of(junction), false);
+            byte[] junctionBytes = junction.getBytes();
+            String[] sequences = new String[1000];
+            for (int i = 0; i < sequences.length; i++) {
+                StringBuilder sb = new StringBuilder();
+                while (sb.length() < 100) {
+                    int r = random.nextInt(40);
+                    sb.append(r == 0 ? junction : r == 1 ? junction.toLowerCase() : String.valueOf("ACGTacgtN".charAt(r % 9)));
+                }
+                sequences[i] = sb.toString();
+            }
+            FastqRecordBatch reads = batchOf(sequences);
+            for (int i = 0; i < sequences.length; i++) {
+                long match = reads.findFirst(i, scanner);
+                int expected = sequences[i].indexOf(junction);
+                assertEquals(expected, match < 0 ? -1 : MultiPatternScanner.matchStart(match));
+                assertEquals(expected, reads.indexOf(i, junctionBytes));
+            }
+        }
+    }
+
+    /*
+    HinfI (G^ANTC) alone has the junction GANTANTC, whose N matches any base. A read with the letter N in the junction
+    is not truncated.
+     */
+    @Test
+    void testTruncationAtAmbiguousJunction() {
+        RestrictionEnzyme hinfI = new RestrictionEnzyme("HinfI","G^ANTC");
+        Truncator truncator = new Truncator(fastq_1, fastq_2, hinfI, false, "test");
+        FastqRecordBatch reads = batchOf("CCCCCGATTAGTCGGGG", "CCCCCGANTANTCGGGG", "CCCCCgattagtcGGGG");
+        assertTrue(truncator.truncateIfLigationSiteFound(reads, 0));
+        assertEquals("CCCCCGATTC", reads.getSequence(0));
+        assertFalse(truncator.truncateIfLigationSiteFound(reads, 1));
+        assertFalse(truncator.truncateIfLigationSiteFound(reads, 2));
+    }
+
+    /** Write random read pairs, some with a HindIII junction or the dangling end at the start, to a FASTQ file pair. */
+    private static void writeRandomFastq(Path fastq1, Path fastq2, int pairNum) throws IOException {
+        Random random = new Random(42);
+        try (BufferedWriter w1 = Files.newBufferedWriter(fastq1); BufferedWriter w2 = Files.newBufferedWriter(fastq2)) {
+            for (int i = 0; i < pairNum; i++) {
+                for (BufferedWriter w : List.of(w1, w2)) {
+                    StringBuilder sb = new StringBuilder();
+                    if (random.nextInt(20) == 0) {
+                        sb.append("AGCTT");
+                    }
+                    while (sb.length() < 60) {
+                        sb.append(random.nextInt(30) == 0 ? "AAGCTAGCTT" : String.valueOf("ACGTN".charAt(random.nextInt(5))));
+                    }
+                    w.write("@read" + i + "\n" + sb + "\n+\n" + "I".repeat(sb.length()) + "\n");
+                }
+            }
+        }
+    }
+
+    /*
+    With several threads, the truncated FASTQ files and the statistics are identical to those of a single thread,
+    for an input of several batches.
+     */
+    @Test
+    void testSameOutputWithSeveralThreads(@TempDir Path tempDir) throws IOException, DiachromaticException {
+        Path fastq1 = tempDir.resolve("in_1.fastq");
+        Path fastq2 = tempDir.resolve("in_2.fastq");
+        writeRandomFastq(fastq1, fastq2, 35_000);
+        RestrictionEnzyme hindIII = new RestrictionEnzyme("HindIII","A^AGCTT");
+        for (boolean uncompressed : new boolean[]{true, false}) {
+            String suffix = uncompressed ? "fastq" : "fastq.gz";
+            for (int threadNum : new int[]{1, 4}) {
+                String prefix = tempDir.resolve(threadNum + suffix).toString();
+                new Truncator(fastq1.toString(), fastq2.toString(), List.of(hindIII), false, prefix, threadNum,
+                        Truncator.DEFAULT_COMPRESSION_LEVEL, uncompressed).parseFASTQ();
+            }
+            for (String file : new String[]{"truncated_R1." + suffix, "truncated_R2." + suffix, "truncation.stats.txt"}) {
+                byte[] single = Files.readAllBytes(tempDir.resolve("1" + suffix + "." + file));
+                byte[] parallel = Files.readAllBytes(tempDir.resolve("4" + suffix + "." + file));
+                assertTrue(single.length > 0);
+                assertArrayEquals(single, parallel, file);
+            }
         }
-        assertEquals(12,parser.getnReadsProcessed());
     }
 }
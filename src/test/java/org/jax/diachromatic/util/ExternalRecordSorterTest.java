@@ -0,0 +1,105 @@
+package org.jax.diachromatic.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExternalRecordSorterTest {
+
+    @TempDir
+    File tmpDir;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setup() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Add n records with few distinct keys, each with its ordinal number as bytes, and check that they are sorted by
+     * the keys and, for equal keys, by the ordinal number.
+     */
+    private void assertSorted(ExternalRecordSorter sorter, int n, int expectedRunNum) throws IOException {
+        Random random = new Random(42);
+        long[][] records = new long[n][];
+        DataOutputStream out = new DataOutputStream(sorter.getOutputStream());
+        for (int i = 0; i < n; i++) {
+            records[i] = new long[]{random.nextInt(5) - 2, random.nextInt(50), i};
+            sorter.startRecord(records[i][0], records[i][1]);
+            out.writeLong(i);
+        }
+        assertEquals(n, sorter.size());
+        List<long[]> sorted = new ArrayList<>();
+        sorter.sort((key1, key2, data, offset, length) -> {
+            assertEquals(Long.BYTES, length);
+            sorted.add(new long[]{key1, key2, ByteBuffer.wrap(data, offset, length).getLong()});
+        });
+        assertEquals(expectedRunNum, sorter.getRunNum());
+        Arrays.sort(records, Comparator.<long[]>comparingLong(r -> r[0]).thenComparingLong(r -> r[1]));
+        assertEquals(n, sorted.size());
+        for (int i = 0; i < n; i++) {
+            assertArrayEquals(records[i], sorted.get(i));
+        }
+        sorter.close();
+        assertEquals(0, tmpDir.listFiles().length);
+        assertTrue(sorter.getMemoryFootprint() > 0);
+    }
+
+    @Test
+    void testSortInMemory() throws IOException {
+        assertSorted(new ExternalRecordSorter(executor, 2, 1 << 20, tmpDir), 5000, 0);
+    }
+
+    @Test
+    void testSortWithRuns() throws IOException {
+        // 36 bytes per record, so that each chunk holds 100 records
+        assertSorted(new ExternalRecordSorter(executor, 2, tmpDir, 3600, 64), 2000, 20);
+    }
+
+    /** With a fan-in of 3, the 50 runs are merged in three intermediate passes (17, 6 and 2 runs) before the last. */
+    @Test
+    void testMultiPassMerge() throws IOException {
+        assertSorted(new ExternalRecordSorter(executor, 2, tmpDir, 3600, 3), 5000, 50);
+    }
+
+    /** Runs written by the thread that adds the records, read with {@link ExternalRecordSorter.Reader}. */
+    @Test
+    void testReaderWithoutExecutor() throws IOException {
+        try (ExternalRecordSorter sorter = new ExternalRecordSorter(null, 0, tmpDir, 3600, 4)) {
+            for (int i = 0; i < 1000; i++) {
+                sorter.startRecord(999 - i, i);
+            }
+            ExternalRecordSorter.Reader reader = sorter.sort();
+            assertEquals(1000 / 128 + 1, sorter.getRunNum());
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(reader.next());
+                assertEquals(i, reader.getKey1());
+                assertEquals(999 - i, reader.getKey2());
+                assertEquals(0, reader.getLength());
+            }
+            assertFalse(reader.next());
+        }
+        assertEquals(0, tmpDir.listFiles().length);
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        assertSorted(new ExternalRecordSorter(executor, 2, 1 << 20, tmpDir), 0, 0);
+    }
+}
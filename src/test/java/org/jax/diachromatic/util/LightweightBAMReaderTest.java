@@ -0,0 +1,93 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LightweightBAMReaderTest {
+
+    private static final String[] CIGARS = {"40M", "10S30M", "20M2D20M", "15M3I22M", "5H35M", "10M100N30M", "20=1X19="};
+
+    @TempDir
+    Path tempDir;
+
+    private static SAMFileHeader header() {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 1_000_000));
+        header.addSequence(new SAMSequenceRecord("chr2", 500_000));
+        header.addComment("a comment");
+        return header;
+    }
+
+    private static List<SAMRecord> records(SAMFileHeader header) {
+        Random random = new Random(42);
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName("read" + i + "_" + "x".repeat(random.nextInt(50)));
+            record.setReferenceIndex(random.nextInt(2));
+            record.setAlignmentStart(1 + random.nextInt(400_000));
+            record.setReadNegativeStrandFlag(random.nextBoolean());
+            record.setFirstOfPairFlag(i % 2 == 0);
+            record.setMappingQuality(42);
+            record.setCigarString(CIGARS[random.nextInt(CIGARS.length)]);
+            int length = record.getCigar().getReadLength();
+            record.setReadString("A".repeat(length));
+            record.setBaseQualityString("I".repeat(length));
+            record.setAttribute("RO", "F1R2");
+            records.add(record);
+        }
+        // an unmapped read at the end
+        SAMRecord unmapped = new SAMRecord(header);
+        unmapped.setReadName("unmapped");
+        unmapped.setReadUnmappedFlag(true);
+        unmapped.setReadString("ACGT");
+        unmapped.setBaseQualityString("IIII");
+        records.add(unmapped);
+        return records;
+    }
+
+    @Test
+    void testSameFieldsAsHtsjdk() throws IOException {
+        SAMFileHeader header = header();
+        File bam = tempDir.resolve("test.bam").toFile();
+        List<SAMRecord> records = records(header);
+        try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bam)) {
+            records.forEach(writer::addAlignment);
+        }
+        try (LightweightBAMReader reader = new LightweightBAMReader(bam)) {
+            assertEquals(header.getSequenceDictionary().size(), reader.getHeader().getSequenceDictionary().size());
+            for (SAMRecord record : records) {
+                assertTrue(reader.next());
+                assertEquals(record.getReferenceIndex(), reader.getReferenceIndex(), record.getReadName());
+                assertEquals(record.getAlignmentStart(), reader.getAlignmentStart(), record.getReadName());
+                assertEquals(record.getAlignmentEnd(), reader.getAlignmentEnd(), record.getReadName());
+                assertEquals(record.getFlags(), reader.getFlag(), record.getReadName());
+                assertEquals(record.getReadNegativeStrandFlag(), reader.isReverseStrand());
+            }
+            assertFalse(reader.next());
+            assertEquals(records.size(), reader.getRecordNum());
+        }
+    }
+
+    @Test
+    void testNotABamFile() throws IOException {
+        File sam = tempDir.resolve("test.sam").toFile();
+        SAMFileHeader header = header();
+        try (SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(header, true, sam)) {
+            writer.addAlignment(records(header).get(0));
+        }
+        assertTrue(Files.size(sam.toPath()) > 0);
+        assertThrows(IOException.class, () -> new LightweightBAMReader(sam));
+    }
+}
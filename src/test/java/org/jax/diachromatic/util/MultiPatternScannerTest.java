@@ -0,0 +1,123 @@
+package org.jax.diachromatic.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MultiPatternScannerTest {
+
+    private static long find(MultiPatternScanner scanner, String seq) {
+        byte[] bytes = seq.getBytes(StandardCharsets.US_ASCII);
+        return scanner.findFirst(bytes, 0, bytes.length);
+    }
+
+    @Test
+    void testSinglePattern() {
+        MultiPatternScanner scanner = new MultiPatternScanner(List.of("AAGCTAGCTT"));
+        long match = find(scanner, "CCCCCAAGCTAGCTTGGGGGAAGCTAGCTT");
+        assertEquals(5, MultiPatternScanner.matchStart(match));
+        assertEquals(0, MultiPatternScanner.matchPattern(match));
+        assertEquals(-1, find(scanner, "CCCCCAAGCTAGCTGGGGG"));
+    }
+
+    @Test
+    void testLowerCaseAndN() {
+        MultiPatternScanner scanner = new MultiPatternScanner(List.of("GATCGATC"));
+        assertEquals(3, MultiPatternScanner.matchStart(find(scanner, "NNNgatcGATCNN")));
+        assertEquals(-1, find(scanner, "GATCNATC"));
+    }
+
+    /** A scanner that does not ignore case finds the same matches as {@link String#indexOf(String)}. */
+    @Test
+    void testCaseSensitive() {
+        MultiPatternScanner scanner = new MultiPatternScanner(List.of("GATCGATC"), false);
+        assertEquals(-1, find(scanner, "NNNgatcGATCNN"));
+        assertEquals(7, MultiPatternScanner.matchStart(find(scanner, "NNNgatcGATCGATC")));
+    }
+
+    /** The match that starts leftmost is reported, even if another pattern ends earlier. */
+    @Test
+    void testLeftmostStart() {
+        MultiPatternScanner scanner = new MultiPatternScanner(List.of("CATG", "AACATGTTTT"));
+        long match = find(scanner, "GGAACATGTTTTGG");
+        assertEquals(2, MultiPatternScanner.matchStart(match));
+        assertEquals(1, MultiPatternScanner.matchPattern(match));
+    }
+
+    /** HinfI (G^ANTC) contains an N that matches every base. */
+    @Test
+    void testAmbiguityCode() {
+        MultiPatternScanner scanner = new MultiPatternScanner(List.of("GANTC"));
+        assertEquals(4, MultiPatternScanner.matchStart(find(scanner, "CCCCGATTCCC")));
+        assertEquals(4, MultiPatternScanner.matchStart(find(scanner, "CCCCGAGTCCC")));
+        assertEquals(-1, find(scanner, "CCCCGAGGCCC"));
+    }
+
+    /** The result must be the same as searching each pattern with {@link String#indexOf(String)}. */
+    @Test
+    void testAgreesWithIndexOf() {
+        List<String> patterns = List.of("AAGCTAGCTT", "GATCGATC", "CATGCATG", "GATCAGCTT");
+        MultiPatternScanner scanner = new MultiPatternScanner(patterns);
+        Random random = new Random(7);
+        for (int n = 0; n < 1000; n++) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = 0; k < 100; k++) {
+                sb.append("ACGT".charAt(random.nextInt(4)));
+            }
+            String pattern = patterns.get(random.nextInt(patterns.size()));
+            int pos = random.nextInt(100 - pattern.length());
+            sb.replace(pos, pos + pattern.length(), pattern);
+            String seq = sb.toString();
+            int expected = Integer.MAX_VALUE;
+            for (String p : patterns) {
+                int i = seq.indexOf(p);
+                if (i >= 0) {
+                    expected = Math.min(expected, i);
+                }
+            }
+            long match = find(scanner, seq);
+            assertEquals(expected, MultiPatternScanner.matchStart(match));
+            assertEquals(expected, seq.indexOf(patterns.get(MultiPatternScanner.matchPattern(match))));
+        }
+    }
+
+    /**
+     * {@link MultiPatternScanner#findAll(byte[], int, int)} finds every occurrence of every pattern, also patterns
+     * that start at the same position as a longer one, overlap each other or are equal.
+     */
+    @Test
+    void testFindAll() {
+        List<String> patterns = List.of("AAGCTT", "AAGC", "AGCT", "GATC", "GATC");
+        MultiPatternScanner scanner = new MultiPatternScanner(patterns);
+        Random random = new Random(11);
+        for (int n = 0; n < 200; n++) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = 0; k < 200; k++) {
+                sb.append("ACGT".charAt(random.nextInt(4)));
+            }
+            sb.replace(50, 56, "AAGCTT");
+            String seq = sb.toString();
+            // the patterns are sorted by length, so that the longest pattern ending at a position comes first
+            List<Long> expected = new ArrayList<>();
+            for (int end = 1; end <= seq.length(); end++) {
+                for (int p = 0; p < patterns.size(); p++) {
+                    int start = end - patterns.get(p).length();
+                    if (start >= 0 && seq.startsWith(patterns.get(p), start)) {
+                        expected.add(((long) start << 32) | p);
+                    }
+                }
+            }
+            byte[] bytes = seq.getBytes(StandardCharsets.US_ASCII);
+            List<Long> actual = new ArrayList<>();
+            for (long match : scanner.findAll(bytes, 0, bytes.length)) {
+                actual.add(match);
+            }
+            assertEquals(expected, actual);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelBAMFileWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static SAMFileHeader header() {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 1_000_000));
+        header.addSequence(new SAMSequenceRecord("chr2", 500_000));
+        header.addProgramRecord(new SAMProgramRecord("Diachromatic"));
+        return header;
+    }
+
+    /** Enough records for several BGZF blocks. */
+    private static List<SAMRecord> records(SAMFileHeader header) {
+        Random random = new Random(42);
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName("read" + i);
+            record.setReferenceIndex(random.nextInt(2));
+            record.setAlignmentStart(1 + random.nextInt(400_000));
+            record.setReadNegativeStrandFlag(random.nextBoolean());
+            record.setMappingQuality(42);
+            record.setCigarString("40M");
+            StringBuilder bases = new StringBuilder();
+            for (int j = 0; j < 40; j++) {
+                bases.append("ACGT".charAt(random.nextInt(4)));
+            }
+            record.setReadString(bases.toString());
+            record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+            record.setAttribute("RO", "F1R2");
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static List<String> readBam(File bam) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            lines.add(reader.getFileHeader().getSAMString());
+            for (SAMRecord record : reader) {
+                lines.add(record.getSAMString());
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    void testSameRecordsAsHtsjdk() throws IOException {
+        SAMFileHeader header = header();
+        List<SAMRecord> records = records(header);
+        File expected = tempDir.resolve("htsjdk.bam").toFile();
+        try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, expected)) {
+            records.forEach(writer::addAlignment);
+        }
+        File actual = tempDir.resolve("parallel.bam").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ParallelBAMFileWriter writer = new ParallelBAMFileWriter(header, actual, 5, executor, 3, 4);
+        try {
+            records.forEach(writer::addAlignment);
+            writer.close();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                BlockCompressedInputStream.checkTermination(actual));
+        assertEquals(readBam(expected), readBam(actual));
+        assertEquals(records.size(), writer.getRecordNum());
+        assertTrue(writer.getCompressedBytes() > 0);
+        assertTrue(writer.getUncompressedBytes() > writer.getCompressedBytes());
+        assertTrue(writer.getCompressedBytes() < actual.length()); // without the empty block at the end
+    }
+}
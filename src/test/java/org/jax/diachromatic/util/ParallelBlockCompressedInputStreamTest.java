@@ -0,0 +1,87 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelBlockCompressedInputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    /** Data of many blocks (more than one batch), partly random and partly repetitive. */
+    private static byte[] testData() {
+        byte[] data = new byte[3_000_000];
+        new Random(42).nextBytes(data);
+        for (int i = 1_000_000; i < data.length; i++) {
+            data[i] = (byte) "ACGT".charAt(i % 4);
+        }
+        return data;
+    }
+
+    private File writeCompressed(byte[] data) throws IOException {
+        File f = tempDir.resolve("test.gz").toFile();
+        try (OutputStream os = new BlockCompressedOutputStream(f)) {
+            os.write(data);
+        }
+        return f;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7777];
+        int n;
+        while ((n = is.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, n);
+            // also read single bytes
+            int b = is.read();
+            if (b >= 0) {
+                out.write(b);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** The data written by htsjdk is read back unchanged with one and several threads. */
+    @Test
+    void testReadBack() throws IOException {
+        byte[] data = testData();
+        File f = writeCompressed(data);
+        for (int threadNum : new int[]{1, 3}) {
+            ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+            try (ParallelBlockCompressedInputStream is = new ParallelBlockCompressedInputStream(f, executor, threadNum)) {
+                assertArrayEquals(data, readAll(is));
+                assertEquals(-1, is.read());
+                assertEquals(data.length, is.getUncompressedBytes());
+                assertEquals(f.length(), is.getCompressedBytes());
+                assertTrue(is.getBlockNum() > ParallelBlockCompressedInputStream.BLOCKS_PER_BATCH);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void testTruncatedFile() throws IOException {
+        File f = writeCompressed(testData());
+        byte[] bytes = Files.readAllBytes(f.toPath());
+        File truncated = tempDir.resolve("truncated.gz").toFile();
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ParallelBlockCompressedInputStream is = new ParallelBlockCompressedInputStream(truncated, executor, 1)) {
+            assertThrows(EOFException.class, () -> readAll(is));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
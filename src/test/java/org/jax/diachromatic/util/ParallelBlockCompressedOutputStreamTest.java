@@ -0,0 +1,102 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ParallelBlockCompressedOutputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    /** Data of several blocks, partly random (i.e., incompressible) and partly repetitive. */
+    private static byte[] testData() {
+        byte[] data = new byte[500_000];
+        new Random(42).nextBytes(data);
+        for (int i = 200_000; i < data.length; i++) {
+            data[i] = (byte) "ACGT".charAt(i % 4);
+        }
+        return data;
+    }
+
+    private File writeCompressed(byte[] data, int threadNum) throws IOException {
+        File f = tempDir.resolve("test" + threadNum + ".gz").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        try (OutputStream os = new ParallelBlockCompressedOutputStream(new FileOutputStream(f), 6, executor, threadNum)) {
+            os.write(data, 0, 1000);
+            os.write(data[1000]);
+            os.write(data, 1001, data.length - 1001);
+        } finally {
+            executor.shutdownNow();
+        }
+        return f;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    void testReadableAsBgzf() throws IOException {
+        byte[] data = testData();
+        File f = writeCompressed(data, 4);
+        assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                BlockCompressedInputStream.checkTermination(f));
+        try (InputStream is = new BlockCompressedInputStream(f)) {
+            assertArrayEquals(data, readAll(is));
+        }
+    }
+
+    @Test
+    void testReadableAsGzip() throws IOException {
+        byte[] data = testData();
+        File f = writeCompressed(data, 2);
+        try (InputStream is = new GZIPInputStream(new FileInputStream(f))) {
+            assertArrayEquals(data, readAll(is));
+        }
+    }
+
+    @Test
+    void testOutputIndependentOfThreadNumber() throws IOException {
+        byte[] data = testData();
+        try (InputStream is1 = new FileInputStream(writeCompressed(data, 1));
+             InputStream is4 = new FileInputStream(writeCompressed(data, 4))) {
+            assertArrayEquals(readAll(is1), readAll(is4));
+        }
+    }
+
+    @Test
+    void testByteCounts() throws IOException {
+        byte[] data = testData();
+        File f = tempDir.resolve("counts.gz").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ParallelBlockCompressedOutputStream os = new ParallelBlockCompressedOutputStream(new FileOutputStream(f), 6, executor, 2, 1);
+        try {
+            os.write(data);
+            os.close();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(data.length, os.getUncompressedBytes());
+        assertEquals(8, os.getBlockNum()); // 500,000 bytes in blocks of 65,280 bytes
+        // the file also contains the empty block at the end
+        assertEquals(f.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length, os.getCompressedBytes());
+    }
+}
@@ -0,0 +1,186 @@
+package org.jax.diachromatic.util;
+
+import htsjdk.samtools.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SortingBAMFileWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static SAMFileHeader header() {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 1_000_000));
+        header.addSequence(new SAMSequenceRecord("chr2", 500_000));
+        header.addSequence(new SAMSequenceRecord("chr3", 300_000));
+        return header;
+    }
+
+    /**
+     * Records at random positions of chr1 and chr2 (none on chr3), with many records at the same positions and some
+     * records without reference sequence.
+     */
+    private static List<SAMRecord> records(SAMFileHeader header, int n) {
+        Random random = new Random(42);
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName("read" + i);
+            if (i % 100 == 99) {
+                record.setReadUnmappedFlag(true);
+                record.setReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+                record.setAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
+            } else {
+                record.setReferenceIndex(random.nextInt(2));
+                record.setAlignmentStart(1 + random.nextInt(50_000) * 8);
+                record.setMappingQuality(42);
+                // some long alignments span several bins
+                record.setCigarString(random.nextInt(10) == 0 ? "20M50000N20M" : "40M");
+                record.setReadNegativeStrandFlag(random.nextBoolean());
+            }
+            StringBuilder bases = new StringBuilder();
+            for (int j = 0; j < 40; j++) {
+                bases.append("ACGT".charAt(random.nextInt(4)));
+            }
+            record.setReadString(bases.toString());
+            record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+            records.add(record);
+        }
+        return records;
+    }
+
+    private File write(SAMFileHeader header, List<SAMRecord> records, String name, BAMIndexBuilder.Format format,
+                       int threadNum, long memoryBudget, int expectedRuns) {
+        File bam = tempDir.resolve(name).toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        try {
+            SortingBAMFileWriter writer = new SortingBAMFileWriter(header, bam, format, 5, executor, threadNum,
+                    memoryBudget, tempDir.toFile());
+            records.forEach(writer::addAlignment);
+            writer.close();
+            assertEquals(records.size(), writer.getRecordNum());
+            if (expectedRuns == 0) {
+                assertEquals(0, writer.getRunNum());
+            } else {
+                assertTrue(writer.getRunNum() >= expectedRuns, "runs: " + writer.getRunNum());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // the temporary files are deleted
+        assertEquals(Set.of(name), Arrays.stream(Objects.requireNonNull(tempDir.toFile().list()))
+                .filter(f -> !f.endsWith(".bai") && !f.endsWith(".csi") && !f.endsWith(".bam") || f.equals(name))
+                .collect(Collectors.toSet()));
+        return bam;
+    }
+
+    private static List<String> readBam(File bam) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            assertEquals(SAMFileHeader.SortOrder.coordinate, reader.getFileHeader().getSortOrder());
+            for (SAMRecord record : reader) {
+                lines.add(record.getSAMString());
+            }
+        }
+        return lines;
+    }
+
+    /** @return the records sorted by reference sequence and start, keeping the input order of equal positions */
+    private static List<String> sorted(List<SAMRecord> records) {
+        return records.stream()
+                .sorted(Comparator.comparingLong(SortingBAMFileWriter::getSortKey))
+                .map(SAMRecord::getSAMString)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void testSortInMemory() throws IOException {
+        SAMFileHeader header = header();
+        List<SAMRecord> records = records(header, 5000);
+        File bam = write(header, records, "memory.bam", BAMIndexBuilder.Format.BAI, 2, 1L << 30, 0);
+        assertEquals(sorted(records), readBam(bam));
+    }
+
+    @Test
+    void testSortWithRuns() throws IOException {
+        SAMFileHeader header = header();
+        List<SAMRecord> records = records(header, 40_000);
+        // chunks of the minimum size of 1 MB hold about 7000 records
+        File bam = write(header, records, "runs.bam", BAMIndexBuilder.Format.BAI, 2, 3L << 20, 4);
+        assertEquals(sorted(records), readBam(bam));
+        File single = write(header, records, "single.bam", null, 1, 1L << 30, 0);
+        assertEquals(readBam(single), readBam(bam));
+        assertFalse(SortingBAMFileWriter.getIndexFile(single, BAMIndexBuilder.Format.BAI).exists());
+    }
+
+    @Test
+    void testBaiQueries() throws IOException {
+        testQueries(BAMIndexBuilder.Format.BAI);
+    }
+
+    @Test
+    void testCsiQueries() throws IOException {
+        testQueries(BAMIndexBuilder.Format.CSI);
+    }
+
+    /** Compare region queries with the index to filtering all records. */
+    private void testQueries(BAMIndexBuilder.Format format) throws IOException {
+        SAMFileHeader header = header();
+        List<SAMRecord> records = records(header, 20_000);
+        File bam = write(header, records, "query.bam", format, 2, 2L << 20, 2);
+        File index = SortingBAMFileWriter.getIndexFile(bam, format);
+        assertTrue(index.exists());
+        List<SAMRecord> all = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            reader.iterator().forEachRemaining(all::add);
+        }
+        Random random = new Random(7);
+        try (SamReader reader = SamReaderFactory.makeDefault().open(SamInputResource.of(bam).index(index))) {
+            assertTrue(reader.hasIndex());
+            for (int q = 0; q < 200; q++) {
+                String chrom = "chr" + (1 + random.nextInt(3));
+                int start = 1 + random.nextInt(420_000);
+                int end = start + (q % 2 == 0 ? random.nextInt(100) : random.nextInt(100_000));
+                List<String> expected = all.stream()
+                        .filter(r -> chrom.equals(r.getReferenceName()) && r.getAlignmentStart() <= end && r.getAlignmentEnd() >= start)
+                        .map(SAMRecord::getSAMString)
+                        .collect(Collectors.toList());
+                List<String> actual = new ArrayList<>();
+                try (SAMRecordIterator it = reader.queryOverlapping(chrom, start, end)) {
+                    it.forEachRemaining(r -> actual.add(r.getSAMString()));
+                }
+                assertEquals(expected, actual, String.format("%s:%d-%d", chrom, start, end));
+            }
+            List<String> unmapped = new ArrayList<>();
+            try (SAMRecordIterator it = reader.queryUnmapped()) {
+                it.forEachRemaining(r -> unmapped.add(r.getSAMString()));
+            }
+            assertEquals(records.size() / 100, unmapped.size());
+        }
+    }
+
+    @Test
+    void testCsiDepthForLongChromosomes() {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 1 << 30));
+        assertEquals(BAMIndexBuilder.Format.CSI, BAMIndexBuilder.getDefaultFormat(header.getSequenceDictionary()));
+        assertEquals(BAMIndexBuilder.Format.BAI, BAMIndexBuilder.getDefaultFormat(header().getSequenceDictionary()));
+        assertThrows(IllegalArgumentException.class,
+                () -> new BAMIndexBuilder(header.getSequenceDictionary(), BAMIndexBuilder.Format.BAI));
+        BAMIndexBuilder csi = new BAMIndexBuilder(header.getSequenceDictionary(), BAMIndexBuilder.Format.CSI);
+        // with six levels, the smallest bins of a 1 Gb chromosome start at bin 37449
+        assertEquals(37449 + ((1 << 30) - 100 >> 14), csi.getBin((1 << 30) - 100, (1 << 30) - 50));
+        assertEquals(0, csi.getBin(0, 1 << 30));
+    }
+}